@@ -0,0 +1,158 @@
+package com.github.marcelektro.simplefilehost.benchmarks;
+
+import com.github.marcelektro.simplefilehost.cache.BlobCache;
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.metrics.TransferMetrics;
+import com.github.marcelektro.simplefilehost.service.db.SQLiteDatabaseService;
+import com.github.marcelektro.simplefilehost.service.file.FileUploadServiceImpl;
+import com.github.marcelektro.simplefilehost.service.sharing.ShareLinkCache;
+import com.github.marcelektro.simplefilehost.storage.LocalBlobStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * A throwaway server state in a temp directory: a migrated database and a blob root, wired up to the real services.
+ * <p>
+ * Generated data only depends on the seed, so every run (and every fork) benchmarks the same rows.
+ */
+final class BenchmarkFixtures implements AutoCloseable {
+
+    static final String USER_ID = "bench-user";
+    static final long SEED = 0x5f4dcc3b5aa765d6L;
+
+    final Path directory;
+    final MetricsRegistry metrics = new MetricsRegistry();
+    final TransferMetrics transfers = new TransferMetrics(this.metrics);
+    final SQLiteDatabaseService dbService;
+    final LocalBlobStore blobStore;
+    final ShareLinkCache shareLinkCache;
+    final BlobCache blobCache;
+    final FileUploadServiceImpl fileUploadService;
+
+
+    /**
+     * @param shareLinkCacheBytes 0 to resolve every share link from the database
+     * @param blobCacheBytes 0 to read every blob from disk
+     */
+    BenchmarkFixtures(long shareLinkCacheBytes, long blobCacheBytes) throws Exception {
+        var config = Config.defaultConfig();
+
+        this.directory = Files.createTempDirectory("sfh-bench");
+        this.dbService = new SQLiteDatabaseService(this.directory.resolve("data.db").toString(), config.database, this.metrics);
+        this.dbService.initialSetup();
+
+        this.blobStore = new LocalBlobStore(this.directory.resolve("blobs").toFile());
+        this.shareLinkCache = new ShareLinkCache(this.dbService, shareLinkCacheBytes, this.metrics);
+        this.blobCache = new BlobCache(this.blobStore, blobCacheBytes, config.cache.blobMaxEntryBytes, this.metrics, this.transfers);
+        this.fileUploadService = new FileUploadServiceImpl(this.directory.resolve("blobs").resolve(".staging").toFile(), this.blobStore,
+                this.dbService, config.upload, config.compression, this.shareLinkCache, this.blobCache, this.transfers);
+
+        this.dbService.write(conn -> {
+            try (var ps = conn.prepareStatement("INSERT INTO users (id, username, passwordHash, passwordSalt) VALUES (?, ?, '', '')")) {
+                ps.setString(1, USER_ID);
+                ps.setString(2, USER_ID);
+                ps.executeUpdate();
+            }
+            return null;
+        });
+    }
+
+
+    /**
+     * Inserts file rows for the benchmark user in a single transaction, all pointing at one shared blob.
+     * Names, sizes and dates are random but seeded, with a few share links sprinkled in.
+     */
+    void insertFiles(int count) throws Exception {
+        var blobSize = 4 * 1024;
+        var blobKey = writeBlob(blobSize);
+        var random = new Random(SEED);
+        var now = System.currentTimeMillis();
+
+        this.dbService.write(conn -> {
+            try (var ps = conn.prepareStatement("INSERT INTO blobs (digest, path, size, refCount) VALUES ('bench', ?, ?, ?)")) {
+                ps.setString(1, blobKey);
+                ps.setLong(2, blobSize);
+                ps.setLong(3, count);
+                ps.executeUpdate();
+            }
+
+            var fileSql = """
+                          INSERT INTO uploaded_files (id, userId, filename, size, uploadedAt, path, blobDigest)
+                          VALUES (?, ?, ?, ?, ?, ?, 'bench')
+                          """;
+            try (var files = conn.prepareStatement(fileSql);
+                 var links = conn.prepareStatement("INSERT INTO shared_links (id, fileId, expiresAt, password) VALUES (?, ?, NULL, NULL)")) {
+
+                for (int i = 0; i < count; i++) {
+                    var fileId = new UUID(random.nextLong(), random.nextLong()).toString();
+
+                    files.setString(1, fileId);
+                    files.setString(2, USER_ID);
+                    files.setString(3, "file-" + Long.toString(random.nextLong() & Long.MAX_VALUE, 36) + ".bin");
+                    files.setLong(4, random.nextInt(64 * 1024 * 1024));
+                    files.setLong(5, now - random.nextLong(365L * 24 * 60 * 60 * 1000));
+                    files.setString(6, blobKey);
+                    files.addBatch();
+
+                    if (i % 10 == 0) {
+                        links.setString(1, fileId.substring(0, 8) + i);
+                        links.setString(2, fileId);
+                        links.addBatch();
+                    }
+
+                    if (i % 10_000 == 9_999) {
+                        files.executeBatch();
+                        links.executeBatch();
+                    }
+                }
+
+                files.executeBatch();
+                links.executeBatch();
+            }
+
+            try (var stmt = conn.createStatement()) {
+                stmt.execute("ANALYZE");
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Puts a blob of seeded random content into the fixture's blob store.
+     *
+     * @return its key
+     */
+    String writeBlob(int size) throws IOException {
+        var key = "bench/blob-" + size + "-" + UUID.randomUUID();
+        this.blobStore.put(key, new ByteArrayInputStream(randomBytes(size)), size);
+        return key;
+    }
+
+    static byte[] randomBytes(int size) {
+        var content = new byte[size];
+        new Random(SEED ^ size).nextBytes(content);
+        return content;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        this.dbService.close();
+
+        try (Stream<Path> paths = Files.walk(this.directory)) {
+            paths.sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.github.marcelektro.simplefilehost.benchmarks;
+
+import com.github.marcelektro.simplefilehost.dto.file.FileMetaDto;
+import com.github.marcelektro.simplefilehost.dto.sharing.ListShareLinksResponseDto;
+import com.github.marcelektro.simplefilehost.dto.sharing.ShareLinkDto;
+import com.github.marcelektro.simplefilehost.json.StreamingJsonMapper;
+import com.github.marcelektro.simplefilehost.util.LocalDateTimeTypeAdapter;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing responses with Gson, as the server used to, against the streaming mapper it uses now.
+ * Run with {@code -prof gc} for the allocation per operation ({@code gc.alloc.rate.norm}), which is what this is mostly about.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonSerializationBenchmark {
+
+    @Param({"10", "1000"})
+    public int entries;
+
+    private Gson gson;
+    private StreamingJsonMapper mapper;
+
+    private ListShareLinksResponseDto shareLinks;
+    private List<FileMetaDto> files;
+
+
+    @Setup
+    public void setup() {
+        // the same configuration as in SimpleFileHostApp
+        this.gson = new GsonBuilder()
+                .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeTypeAdapter())
+                .serializeNulls()
+                .create();
+        this.mapper = new StreamingJsonMapper(this.gson);
+
+        var random = new Random(BenchmarkFixtures.SEED);
+        var start = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+        var links = new ArrayList<ShareLinkDto>(this.entries);
+        this.files = new ArrayList<>(this.entries);
+        for (int i = 0; i < this.entries; i++) {
+            var date = start.plusSeconds(random.nextInt(365 * 24 * 60 * 60)).withNano(random.nextInt(1000) * 1_000_000);
+
+            links.add(new ShareLinkDto(
+                    Long.toString(random.nextLong() & Long.MAX_VALUE, 36).substring(0, 8),
+                    random.nextBoolean() ? date : null,
+                    random.nextBoolean() ? "secret" + i : null
+            ));
+
+            this.files.add(new FileMetaDto(
+                    new UUID(random.nextLong(), random.nextLong()).toString(),
+                    "file-" + Long.toString(random.nextLong() & Long.MAX_VALUE, 36) + ".bin",
+                    random.nextInt(64 * 1024 * 1024),
+                    date,
+                    random.nextInt(4)
+            ));
+        }
+        this.shareLinks = new ListShareLinksResponseDto(UUID.randomUUID().toString(), links);
+    }
+
+
+    @Benchmark
+    public String shareLinksGson() {
+        return this.gson.toJson(this.shareLinks, ListShareLinksResponseDto.class);
+    }
+
+    @Benchmark
+    public String shareLinksMapperString() {
+        return this.mapper.toJsonString(this.shareLinks, ListShareLinksResponseDto.class);
+    }
+
+    @Benchmark
+    public InputStream shareLinksMapperStream() {
+        return this.mapper.toJsonStream(this.shareLinks, ListShareLinksResponseDto.class);
+    }
+
+    @Benchmark
+    public String fileListingGson() {
+        return this.gson.toJson(this.files);
+    }
+
+    /**
+     * The way the file listing is written, each file straight to the response stream.
+     */
+    @Benchmark
+    public void fileListingStreamed() throws IOException {
+        try (var gen = StreamingJsonMapper.JSON_FACTORY.createGenerator(OutputStream.nullOutputStream())) {
+            gen.writeStartArray();
+            for (var file : this.files)
+                StreamingJsonMapper.writeValue(gen, file);
+            gen.writeEndArray();
+        }
+    }
+
+}
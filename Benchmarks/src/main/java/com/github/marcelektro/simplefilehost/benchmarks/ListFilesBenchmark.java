@@ -0,0 +1,69 @@
+package com.github.marcelektro.simplefilehost.benchmarks;
+
+import com.github.marcelektro.simplefilehost.service.file.FileUploadService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing a user's files, by how many files they have: the first page, a page deep into the listing by cursor, and everything at once.
+ * Rows are read and handed to a blackhole, so this measures the query and row mapping, not the JSON written for it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListFilesBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"DATE_DESC", "NAME_ASC"})
+    public FileUploadService.SortBy sortBy;
+
+    private BenchmarkFixtures fixtures;
+    private String deepCursor;
+
+
+    @Setup
+    public void setup() throws Exception {
+        this.fixtures = new BenchmarkFixtures(0, 0);
+        this.fixtures.insertFiles(this.rows);
+
+        // the cursor of the page halfway through
+        String cursor = null;
+        for (int i = 0; i < this.rows / PAGE_SIZE / 2; i++)
+            cursor = this.fixtures.fileUploadService.listFiles(BenchmarkFixtures.USER_ID, this.sortBy, cursor, PAGE_SIZE, summary -> {}).getData();
+        this.deepCursor = cursor;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.fixtures.close();
+    }
+
+
+    @Benchmark
+    public String firstPage(Blackhole blackhole) throws Exception {
+        return this.fixtures.fileUploadService.listFiles(BenchmarkFixtures.USER_ID, this.sortBy, null, PAGE_SIZE, blackhole::consume).getData();
+    }
+
+    @Benchmark
+    public String deepPage(Blackhole blackhole) throws Exception {
+        return this.fixtures.fileUploadService.listFiles(BenchmarkFixtures.USER_ID, this.sortBy, this.deepCursor, PAGE_SIZE, blackhole::consume).getData();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5)
+    public String everything(Blackhole blackhole) throws Exception {
+        return this.fixtures.fileUploadService.listFiles(BenchmarkFixtures.USER_ID, this.sortBy, null, 0, blackhole::consume).getData();
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.github.marcelektro.simplefilehost.benchmarks;
+
+import com.github.marcelektro.simplefilehost.service.auth.password.Pbkdf2PasswordHasher;
+import com.github.marcelektro.simplefilehost.util.HashUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single password hash/verification, the legacy salted SHA-512 next to the current PBKDF2 hasher.
+ * Login and registration latency is dominated by this, and the KDF's iteration count is what trades it against brute-force cost.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PasswordHashingBenchmark {
+
+    private static final String PASSWORD = "correct horse battery staple";
+
+    @Param({"100000", "600000"})
+    public int iterations;
+
+    private String legacySalt;
+    private String legacyHash;
+
+    private Pbkdf2PasswordHasher hasher;
+    private String encodedHash;
+
+
+    @Setup
+    public void setup() {
+        this.legacySalt = HashUtil.generateSalt();
+        this.legacyHash = HashUtil.hashPassword(PASSWORD, this.legacySalt);
+
+        this.hasher = new Pbkdf2PasswordHasher(Pbkdf2PasswordHasher.SHA256, this.iterations);
+        this.encodedHash = this.hasher.hash(PASSWORD);
+    }
+
+
+    @Benchmark
+    public String legacyHash() {
+        return HashUtil.hashPassword(PASSWORD, this.legacySalt);
+    }
+
+    @Benchmark
+    public boolean legacyVerify() {
+        return HashUtil.verifyPassword(PASSWORD, this.legacyHash, this.legacySalt);
+    }
+
+    @Benchmark
+    public String pbkdf2Hash() {
+        return this.hasher.hash(PASSWORD);
+    }
+
+    @Benchmark
+    public boolean pbkdf2Verify() {
+        return this.hasher.verify(PASSWORD, this.encodedHash);
+    }
+
+}
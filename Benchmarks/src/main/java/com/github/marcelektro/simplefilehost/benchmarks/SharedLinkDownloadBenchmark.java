@@ -0,0 +1,106 @@
+package com.github.marcelektro.simplefilehost.benchmarks;
+
+import com.github.marcelektro.simplefilehost.service.file.FileUploadService;
+import com.github.marcelektro.simplefilehost.service.ServiceResult;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Anonymous downloads through share links, with the share link and blob caches off and on.
+ * {@code resolve} is the lookup every download starts with, {@code download} additionally reads the whole blob,
+ * from the blob cache if it's there and from disk otherwise, the way the response writer does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class SharedLinkDownloadBenchmark {
+
+    private static final int LINKS = 256;
+    private static final int BLOB_SIZE = 64 * 1024;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private BenchmarkFixtures fixtures;
+    private String[] linkIds;
+
+
+    @Setup
+    public void setup() throws Exception {
+        this.fixtures = this.cached
+                ? new BenchmarkFixtures(16 * 1024 * 1024, 256 * 1024 * 1024)
+                : new BenchmarkFixtures(0, 0);
+
+        var content = BenchmarkFixtures.randomBytes(BLOB_SIZE);
+
+        this.linkIds = new String[LINKS];
+        for (int i = 0; i < LINKS; i++) {
+            // a distinct blob per file, the first bytes tell them apart
+            content[0] = (byte) i;
+            content[1] = (byte) (i >> 8);
+
+            var fileId = this.fixtures.fileUploadService.uploadFile(BenchmarkFixtures.USER_ID, "file-" + i + ".bin", new ByteArrayInputStream(content)).getData();
+            var linkId = "link" + i;
+
+            this.fixtures.dbService.write(conn -> {
+                try (var ps = conn.prepareStatement("INSERT INTO shared_links (id, fileId, expiresAt, password) VALUES (?, ?, NULL, NULL)")) {
+                    ps.setString(1, linkId);
+                    ps.setString(2, fileId);
+                    ps.executeUpdate();
+                }
+                return null;
+            });
+
+            this.linkIds[i] = linkId;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.fixtures.close();
+    }
+
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    }
+
+    @Benchmark
+    public ServiceResult<FileUploadService.FileDownloadResult> resolve(Cursor cursor) throws Exception {
+        return this.fixtures.fileUploadService.downloadBySharedLink(this.linkIds[cursor.next++ & (LINKS - 1)], null);
+    }
+
+    @Benchmark
+    public void download(Cursor cursor, Blackhole blackhole) throws Exception {
+        var blobKey = resolve(cursor).getData().blobKey();
+
+        var cachedBlob = this.fixtures.blobCache.get(blobKey);
+        if (cachedBlob != null) {
+            // copied out like a response would, so memory and disk reads compare fairly
+            cursor.buffer.clear().put(cachedBlob.content().duplicate());
+            blackhole.consume(cursor.buffer);
+            return;
+        }
+
+        try (var channel = FileChannel.open(this.fixtures.blobStore.localFile(blobKey).toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            int read;
+            while ((read = channel.read(cursor.buffer.clear(), position)) > 0)
+                position += read;
+            blackhole.consume(position);
+        }
+    }
+
+}
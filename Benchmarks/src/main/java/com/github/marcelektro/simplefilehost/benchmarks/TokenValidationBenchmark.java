@@ -0,0 +1,67 @@
+package com.github.marcelektro.simplefilehost.benchmarks;
+
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.service.ServiceResult;
+import com.github.marcelektro.simplefilehost.service.auth.AuthServiceImpl;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.security.Keys;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token validation, which every authenticated request goes through, with and without the verified token cache.
+ * Runs on several threads, the cache is shared by all requests.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class TokenValidationBenchmark {
+
+    private static final String SECRET = "benchmark-secret-benchmark-secret-benchmark-secret";
+    private static final int TOKENS = 1024;
+
+    @Param({"0", "4194304"})
+    public long tokenCacheBytes;
+
+    private AuthServiceImpl authService;
+    private String[] tokens;
+
+
+    @Setup
+    public void setup() {
+        // validation needs neither the database nor the password hasher
+        this.authService = new AuthServiceImpl(null, null, SECRET, this.tokenCacheBytes, new MetricsRegistry());
+
+        var key = Keys.hmacShaKeyFor(SECRET.getBytes());
+        var expiration = Date.from(Instant.now().plusSeconds(24 * 60 * 60));
+
+        this.tokens = new String[TOKENS];
+        for (int i = 0; i < TOKENS; i++) {
+            this.tokens[i] = Jwts.builder()
+                    .subject(String.valueOf(i))
+                    .expiration(expiration)
+                    .signWith(key)
+                    .compact();
+        }
+    }
+
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public ServiceResult<Integer> validate(Cursor cursor) throws Exception {
+        var token = this.tokens[cursor.next++ & (TOKENS - 1)];
+        return this.authService.validateTokenAndGetUserId(token);
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.github.marcelektro.simplefilehost.benchmarks;
+
+import com.github.marcelektro.simplefilehost.service.ServiceResult;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload copy throughput by file size: streaming into a staging file while hashing, then committing the blob and its row.
+ * Every upload here has the same content, so after the first one they're all deduplicated against the existing blob,
+ * which is what repeated uploads cost; the copy and digest dominate either way.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UploadBenchmark {
+
+    @Param({"4096", "1048576", "67108864"})
+    public int size;
+
+    private BenchmarkFixtures fixtures;
+    private byte[] content;
+
+
+    @Setup
+    public void setup() throws Exception {
+        this.fixtures = new BenchmarkFixtures(0, 0);
+        this.content = BenchmarkFixtures.randomBytes(this.size);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.fixtures.close();
+    }
+
+
+    @Benchmark
+    public ServiceResult<String> upload() throws Exception {
+        return this.fixtures.fileUploadService.uploadFile(BenchmarkFixtures.USER_ID, "upload.bin", new ByteArrayInputStream(this.content));
+    }
+
+}
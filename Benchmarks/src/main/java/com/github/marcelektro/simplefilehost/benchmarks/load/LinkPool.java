@@ -0,0 +1,36 @@
+package com.github.marcelektro.simplefilehost.benchmarks.load;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The most recently created share links of all clients, which anonymous downloads and validations pick from.
+ * A fixed ring, so popular links stay around while old ones are replaced.
+ */
+final class LinkPool {
+
+    private static final int CAPACITY = 4096;
+
+    private final AtomicReferenceArray<String> links = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong added = new AtomicLong();
+
+
+    void add(String linkId) {
+        this.links.set((int) (this.added.getAndIncrement() % CAPACITY), linkId);
+    }
+
+    /**
+     * @return a random link, or null if none was created yet
+     */
+    @Nullable String random() {
+        var size = (int) Math.min(this.added.get(), CAPACITY);
+        if (size == 0)
+            return null;
+
+        return this.links.get(ThreadLocalRandom.current().nextInt(size));
+    }
+
+}
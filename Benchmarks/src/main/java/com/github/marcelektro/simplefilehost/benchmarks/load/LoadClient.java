@@ -0,0 +1,238 @@
+package com.github.marcelektro.simplefilehost.benchmarks.load;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One simulated user session, doing randomly chosen operations back to back until told to stop.
+ */
+final class LoadClient implements Runnable {
+
+    private static final String BOUNDARY = "----LoadTestBoundary7MA4YWxkTrZu0gW";
+
+    private final LoadTest test;
+    private final HttpClient http;
+    private final int clientId;
+    private final String username;
+
+    private final List<String> fileIds = new ArrayList<>();
+    private @Nullable String token;
+    private long uploads;
+
+
+    LoadClient(LoadTest test, HttpClient http, int clientId, String username) {
+        this.test = test;
+        this.http = http;
+        this.clientId = clientId;
+        this.username = username;
+    }
+
+
+    @Override
+    public void run() {
+        var thinkTime = this.test.options.thinkTime;
+
+        while (this.test.isRunning()) {
+            var operation = this.test.nextOperation();
+
+            try {
+                perform(operation);
+
+                if (!thinkTime.isZero())
+                    Thread.sleep(thinkTime);
+
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Logs in and creates the given number of files, each with a share link.
+     */
+    void seed(int files) throws InterruptedException {
+        login();
+        if (this.token == null)
+            return;
+
+        for (int i = 0; i < files; i++) {
+            upload(this.test.smallestUploadSize());
+            if (!this.fileIds.isEmpty())
+                createShareLink();
+        }
+    }
+
+
+    private void perform(Operation operation) throws InterruptedException {
+        // anything needing a session or a file to work with falls back to getting one first
+        if (this.token == null && operation != Operation.SHARE_VALIDATE && operation != Operation.DOWNLOAD)
+            operation = Operation.LOGIN;
+        if (this.fileIds.isEmpty() && operation == Operation.SHARE_CREATE)
+            operation = Operation.UPLOAD;
+
+        switch (operation) {
+            case LOGIN -> login();
+            case UPLOAD -> upload(this.test.nextUploadSize());
+            case LIST -> list();
+            case SHARE_CREATE -> createShareLink();
+            case SHARE_VALIDATE -> validateShareLink();
+            case DOWNLOAD -> download();
+        }
+    }
+
+    private void login() throws InterruptedException {
+        var body = new JsonObject();
+        body.addProperty("username", this.username);
+        body.addProperty("password", LoadTest.PASSWORD);
+
+        var response = send(Operation.LOGIN, request("/api/auth/login")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .header("Content-Type", "application/json"), true);
+
+        if (response != null)
+            this.token = response.json().get("token").getAsString();
+    }
+
+    private void upload(int size) throws InterruptedException {
+        // unique content, so every upload writes a blob of its own instead of being deduplicated
+        var prefix = ByteBuffer.allocate(16).putInt(this.clientId).putLong(this.uploads++).array();
+        var prefixLength = Math.min(prefix.length, size);
+        var content = this.test.uploadContent(size);
+
+        var header = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"load-" + size + ".bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        var trailer = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        var body = HttpRequest.BodyPublishers.concat(
+                HttpRequest.BodyPublishers.ofByteArray(header),
+                HttpRequest.BodyPublishers.ofByteArray(prefix, 0, prefixLength),
+                HttpRequest.BodyPublishers.ofByteArray(content, prefixLength, size - prefixLength),
+                HttpRequest.BodyPublishers.ofByteArray(trailer)
+        );
+
+        var response = send(Operation.UPLOAD, authorized("/api/files/upload")
+                .POST(body)
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY), true);
+
+        if (response != null)
+            this.fileIds.add(response.json().get("fileId").getAsString());
+    }
+
+    private void list() throws InterruptedException {
+        send(Operation.LIST, authorized("/api/files?limit=" + this.test.options.listLimit).GET(), false);
+    }
+
+    private void createShareLink() throws InterruptedException {
+        var body = new JsonObject();
+        body.addProperty("fileId", this.fileIds.get(ThreadLocalRandom.current().nextInt(this.fileIds.size())));
+
+        var response = send(Operation.SHARE_CREATE, authorized("/api/sharing")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .header("Content-Type", "application/json"), true);
+
+        if (response != null)
+            this.test.links.add(response.json().get("shareLinkId").getAsString());
+    }
+
+    private void validateShareLink() throws InterruptedException {
+        var linkId = this.test.links.random();
+        if (linkId != null)
+            send(Operation.SHARE_VALIDATE, request("/api/sharing/" + linkId + "/validate").GET(), false);
+    }
+
+    private void download() throws InterruptedException {
+        var linkId = this.test.links.random();
+        if (linkId != null)
+            send(Operation.DOWNLOAD, request("/api/sharing/" + linkId).GET(), false);
+    }
+
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create(this.test.baseUrl + path));
+    }
+
+    private HttpRequest.Builder authorized(String path) {
+        return request(path).header("Authorization", this.token);
+    }
+
+    private record Response(byte[] body) {
+
+        JsonObject json() {
+            return JsonParser.parseString(new String(this.body, StandardCharsets.UTF_8)).getAsJsonObject();
+        }
+
+    }
+
+    /**
+     * Sends the request and records how long it took until the response was read completely, and what went wrong if anything.
+     *
+     * @param keepBody whether the caller needs the response body, otherwise it's only counted
+     * @return the response if it was successful, null otherwise
+     */
+    private @Nullable Response send(Operation operation, HttpRequest.Builder request, boolean keepBody) throws InterruptedException {
+        var start = System.nanoTime();
+
+        int status;
+        byte[] body = null;
+        long bytes;
+        try {
+            var response = this.http.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            status = response.statusCode();
+
+            try (var in = response.body()) {
+                if (keepBody || status >= 400) {
+                    body = in.readAllBytes();
+                    bytes = body.length;
+                } else {
+                    bytes = in.transferTo(OutputStream.nullOutputStream());
+                }
+            }
+
+        } catch (IOException e) {
+            this.test.record(operation, System.nanoTime() - start, 0, e.getClass().getSimpleName());
+            return null;
+        }
+
+        var elapsed = System.nanoTime() - start;
+
+        if (status >= 400) {
+            this.test.record(operation, elapsed, bytes, status + " " + errorType(body));
+            if (status == 401)
+                this.token = null;
+            return null;
+        }
+
+        this.test.record(operation, elapsed, bytes, null);
+        return new Response(body);
+    }
+
+    private static String errorType(byte[] body) {
+        try {
+            var json = JsonParser.parseString(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+            var type = json.get("errorType").getAsString();
+
+            // unhandled server errors name the exception in the message
+            if (type.equals("INTERNAL_SERVER_ERROR") && json.has("errorMessage"))
+                return type + " " + json.get("errorMessage").getAsString().replaceFirst("^[^(]*", "");
+            return type;
+
+        } catch (RuntimeException e) {
+            return "UNPARSEABLE_BODY";
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+package com.github.marcelektro.simplefilehost.benchmarks.load;
+
+import com.github.marcelektro.simplefilehost.SimpleFileHostApp;
+import com.github.marcelektro.simplefilehost.config.ConfigManager;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end load test: boots the server in-process on an ephemeral port against a temporary data directory,
+ * then lets thousands of clients, each on a virtual thread, hammer it over HTTP with a configurable mix of operations.
+ * <p>
+ * Reports throughput, latency percentiles and errors per operation, errors logged by the server,
+ * and the server's resource usage, as JSON for comparing runs, plus a summary on stdout.
+ */
+public class LoadTest {
+
+    static final String PASSWORD = "load-test-password";
+
+    final LoadTestOptions options;
+    final LinkPool links = new LinkPool();
+    @Nullable String baseUrl;
+
+    private final Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+    private final Operation[] operationTable;
+    private final int[] uploadSizeTable;
+    private final Map<Integer, byte[]> uploadContents = new HashMap<>();
+
+    private volatile boolean running = true;
+    private volatile boolean recording;
+
+
+    LoadTest(LoadTestOptions options) {
+        this.options = options;
+
+        for (var operation : Operation.values())
+            this.stats.put(operation, new OperationStats());
+
+        // weighted choices as lookup tables, one slot per unit of weight
+        this.operationTable = options.mix.entrySet().stream()
+                .flatMap(entry -> Collections.nCopies(entry.getValue(), entry.getKey()).stream())
+                .toArray(Operation[]::new);
+        this.uploadSizeTable = options.uploadSizes.entrySet().stream()
+                .flatMap(entry -> Collections.nCopies(entry.getValue(), entry.getKey()).stream())
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        var random = new Random(0x10ad7e57L);
+        for (var size : options.uploadSizes.keySet()) {
+            var content = new byte[size];
+            random.nextBytes(content);
+            this.uploadContents.put(size, content);
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options;
+        try {
+            options = LoadTestOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(LoadTestOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        new LoadTest(options).run();
+
+        // the server has non-daemon threads of its own
+        System.exit(0);
+    }
+
+
+    boolean isRunning() {
+        return this.running;
+    }
+
+    Operation nextOperation() {
+        return this.operationTable[ThreadLocalRandom.current().nextInt(this.operationTable.length)];
+    }
+
+    int nextUploadSize() {
+        return this.uploadSizeTable[ThreadLocalRandom.current().nextInt(this.uploadSizeTable.length)];
+    }
+
+    int smallestUploadSize() {
+        return Collections.min(this.options.uploadSizes.keySet());
+    }
+
+    byte[] uploadContent(int size) {
+        return this.uploadContents.get(size);
+    }
+
+    void record(Operation operation, long nanos, long bytes, @Nullable String error) {
+        if (this.recording)
+            this.stats.get(operation).record(nanos, bytes, error);
+    }
+
+
+    private void run() throws Exception {
+        var dataDirectory = Files.createTempDirectory("sfh-load");
+        System.out.println("Data directory: " + dataDirectory);
+
+        var app = startServer(dataDirectory);
+        this.baseUrl = "http://localhost:" + app.port();
+
+        var serverErrors = ServerErrorCounter.attach();
+
+        try (var clientExecutor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var http = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .executor(clientExecutor)
+                    .connectTimeout(Duration.ofSeconds(10))
+                    .build();
+
+            for (int i = 0; i < this.options.users; i++) {
+                var result = app.authService().registerUser(String.valueOf(i + 1), "load" + i, PASSWORD);
+                if (!result.isSuccess())
+                    throw new IllegalStateException("Failed to create load test user: " + result.getMessage());
+            }
+
+            System.out.println("Seeding " + this.options.seedFilesPerUser + " files per user...");
+            var seeders = new ArrayList<Thread>();
+            for (int i = 0; i < this.options.users; i++) {
+                var seeder = new LoadClient(this, http, -1 - i, "load" + i);
+                seeders.add(Thread.ofVirtual().start(() -> {
+                    try {
+                        seeder.seed(this.options.seedFilesPerUser);
+                    } catch (InterruptedException ignored) {
+                    }
+                }));
+            }
+            for (var seeder : seeders)
+                seeder.join();
+
+            var sampler = new ResourceSampler(app.metrics());
+            var samplerThread = new Thread(sampler, "LoadTestResourceSampler");
+            samplerThread.setDaemon(true);
+
+            System.out.println("Ramping up " + this.options.clients + " clients over " + this.options.rampUp.toSeconds() + "s...");
+            var clients = new ArrayList<Thread>();
+            var rampUpStep = this.options.rampUp.dividedBy(this.options.clients);
+            for (int i = 0; i < this.options.clients; i++) {
+                clients.add(Thread.ofVirtual().name("LoadClient-" + i).start(new LoadClient(this, http, i, "load" + (i % this.options.users))));
+                Thread.sleep(rampUpStep);
+            }
+
+            System.out.println("Measuring for " + this.options.duration.toSeconds() + "s...");
+            samplerThread.start();
+            var measureStart = System.nanoTime();
+            this.recording = true;
+
+            Thread.sleep(this.options.duration);
+
+            this.recording = false;
+            var measured = Duration.ofNanos(System.nanoTime() - measureStart);
+            this.running = false;
+            sampler.stop();
+
+            for (var client : clients)
+                client.join(Duration.ofSeconds(30));
+
+            var report = new LoadTestReport(this.options, measured, this.stats, serverErrors.snapshot(), sampler.summaries());
+            report.print(System.out);
+
+            var reportFile = new File(this.options.report);
+            report.write(reportFile);
+            Files.writeString(new File(reportFile.getPath() + ".metrics.txt").toPath(), app.metrics().scrape());
+            System.out.println("Report written to " + reportFile.getAbsolutePath() + " (and the server's final metrics next to it)");
+
+        } finally {
+            app.stop();
+
+            if (!this.options.keepData)
+                deleteRecursively(dataDirectory);
+        }
+    }
+
+    /**
+     * Writes a config for the temporary data directory and starts the server with it, everything not set here is the default.
+     */
+    private SimpleFileHostApp startServer(Path dataDirectory) throws Exception {
+        var config = new JsonObject();
+        config.addProperty("debugMode", false);
+        config.addProperty("host", "localhost");
+        config.addProperty("port", 0);
+        config.addProperty("dataDirectory", dataDirectory.resolve("data").toString());
+
+        var auth = new JsonObject();
+        auth.addProperty("passwordHashIterations", this.options.hashIterations);
+        config.add("auth", auth);
+
+        var metrics = new JsonObject();
+        metrics.addProperty("port", 0); // read in-process instead
+        config.add("metrics", metrics);
+
+        var configFile = dataDirectory.resolve("config.json");
+        Files.writeString(configFile, new GsonBuilder().setPrettyPrinting().create().toJson(config));
+
+        return new SimpleFileHostApp(new ConfigManager(configFile.toFile()), false);
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+
+}
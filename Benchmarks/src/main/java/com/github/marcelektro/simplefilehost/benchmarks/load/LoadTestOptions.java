@@ -0,0 +1,112 @@
+package com.github.marcelektro.simplefilehost.benchmarks.load;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Command line options of the load test, all {@code --name=value}.
+ */
+final class LoadTestOptions {
+
+    int clients = 1000;
+    int users = 50;
+    Duration rampUp = Duration.ofSeconds(10);
+    Duration duration = Duration.ofSeconds(60);
+    Duration thinkTime = Duration.ZERO;
+    int seedFilesPerUser = 4;
+    int listLimit = 100;
+    int hashIterations = 10_000;
+    boolean keepData;
+    String report = "load-report.json";
+
+    // relative weights
+    final Map<Operation, Integer> mix = new EnumMap<>(Map.of(
+            Operation.LOGIN, 1,
+            Operation.UPLOAD, 2,
+            Operation.LIST, 4,
+            Operation.SHARE_CREATE, 1,
+            Operation.SHARE_VALIDATE, 2,
+            Operation.DOWNLOAD, 10
+    ));
+
+    // upload size in bytes to relative weight
+    final Map<Integer, Integer> uploadSizes = new LinkedHashMap<>(Map.of(
+            4 * 1024, 70,
+            1024 * 1024, 25,
+            16 * 1024 * 1024, 5
+    ));
+
+
+    static final String USAGE = """
+            Options (all optional):
+              --clients=1000          concurrent clients, one virtual thread each
+              --users=50              accounts the clients are spread over
+              --ramp-up=10            seconds to start all clients over, not measured
+              --duration=60           seconds measured after the ramp-up
+              --think-time=0          milliseconds each client waits between requests
+              --seed-files=4          files (and share links) created per user before starting
+              --list-limit=100        page size of file listings
+              --hash-iterations=10000 PBKDF2 iterations, the production default makes the test mostly about logins
+              --mix=login=1,upload=2,list=4,share_create=1,share_validate=2,download=10
+              --sizes=4096=70,1048576=25,16777216=5   upload sizes in bytes with their weights
+              --report=load-report.json
+              --keep-data             keep the temporary data directory
+            """;
+
+    static LoadTestOptions parse(String[] args) {
+        var options = new LoadTestOptions();
+
+        for (var arg : args) {
+            if (arg.equals("--keep-data")) {
+                options.keepData = true;
+                continue;
+            }
+
+            var separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0)
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+
+            var value = arg.substring(separator + 1);
+            switch (arg.substring(2, separator)) {
+                case "clients" -> options.clients = Integer.parseInt(value);
+                case "users" -> options.users = Integer.parseInt(value);
+                case "ramp-up" -> options.rampUp = Duration.ofSeconds(Long.parseLong(value));
+                case "duration" -> options.duration = Duration.ofSeconds(Long.parseLong(value));
+                case "think-time" -> options.thinkTime = Duration.ofMillis(Long.parseLong(value));
+                case "seed-files" -> options.seedFilesPerUser = Integer.parseInt(value);
+                case "list-limit" -> options.listLimit = Integer.parseInt(value);
+                case "hash-iterations" -> options.hashIterations = Integer.parseInt(value);
+                case "report" -> options.report = value;
+                case "mix" -> {
+                    options.mix.clear();
+                    parseWeights(value).forEach((name, weight) -> options.mix.put(Operation.valueOf(name.toUpperCase(Locale.ROOT)), weight));
+                }
+                case "sizes" -> {
+                    options.uploadSizes.clear();
+                    parseWeights(value).forEach((size, weight) -> options.uploadSizes.put(Integer.parseInt(size), weight));
+                }
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        if (options.clients <= 0 || options.users <= 0 || options.mix.isEmpty() || options.uploadSizes.isEmpty())
+            throw new IllegalArgumentException("Clients, users, mix and sizes must not be empty");
+
+        return options;
+    }
+
+    private static Map<String, Integer> parseWeights(String value) {
+        var weights = new LinkedHashMap<String, Integer>();
+        for (var entry : value.split(",")) {
+            var separator = entry.indexOf('=');
+            if (separator < 0)
+                throw new IllegalArgumentException("Expected name=weight: " + entry);
+            weights.put(entry.substring(0, separator).trim(), Integer.parseInt(entry.substring(separator + 1).trim()));
+        }
+        return weights;
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.github.marcelektro.simplefilehost.benchmarks.load;
+
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Results of a load test run, written as JSON so runs with different tuning can be compared.
+ */
+final class LoadTestReport {
+
+    private final Map<String, Object> settings = new LinkedHashMap<>();
+    private final double measuredSeconds;
+    private final Map<String, OperationReport> operations = new LinkedHashMap<>();
+    private final long totalRequests;
+    private final long totalErrors;
+    private final double totalThroughput;
+    private final Map<String, Long> serverErrors;
+    private final Map<String, ResourceSampler.Summary> serverResources;
+
+
+    record OperationReport(
+            long requests,
+            long errors,
+            double throughputPerSecond,
+            double megabytesPerSecond,
+            double meanMillis,
+            double p50Millis,
+            double p90Millis,
+            double p99Millis,
+            double p999Millis,
+            double maxMillis,
+            Map<String, Long> errorBreakdown
+    ) {}
+
+
+    LoadTestReport(LoadTestOptions options, Duration measured, Map<Operation, OperationStats> stats,
+                   Map<String, Long> serverErrors, Map<String, ResourceSampler.Summary> serverResources) {
+        this.settings.put("clients", options.clients);
+        this.settings.put("users", options.users);
+        this.settings.put("durationSeconds", options.duration.toSeconds());
+        this.settings.put("thinkTimeMillis", options.thinkTime.toMillis());
+        this.settings.put("hashIterations", options.hashIterations);
+        this.settings.put("mix", options.mix);
+        this.settings.put("uploadSizes", options.uploadSizes);
+
+        this.measuredSeconds = measured.toNanos() / 1e9;
+
+        long requests = 0;
+        long errors = 0;
+        for (var entry : stats.entrySet()) {
+            var operation = entry.getValue();
+            var latency = operation.latency;
+            if (latency.count() == 0)
+                continue;
+
+            this.operations.put(entry.getKey().name(), new OperationReport(
+                    latency.count(),
+                    operation.errorCount(),
+                    latency.count() / this.measuredSeconds,
+                    operation.bytes.sum() / 1e6 / this.measuredSeconds,
+                    latency.meanMillis(),
+                    latency.quantileMillis(0.5),
+                    latency.quantileMillis(0.9),
+                    latency.quantileMillis(0.99),
+                    latency.quantileMillis(0.999),
+                    latency.maxMillis(),
+                    operation.errorBreakdown()
+            ));
+
+            requests += latency.count();
+            errors += operation.errorCount();
+        }
+
+        this.totalRequests = requests;
+        this.totalErrors = errors;
+        this.totalThroughput = requests / this.measuredSeconds;
+        this.serverErrors = serverErrors;
+        this.serverResources = serverResources;
+    }
+
+
+    void write(File file) throws IOException {
+        try (var writer = new FileWriter(file)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(this, writer);
+        }
+    }
+
+    void print(PrintStream out) {
+        out.printf(Locale.ROOT, "%n%d requests in %.1fs, %.1f/s, %d errors%n%n", this.totalRequests, this.measuredSeconds, this.totalThroughput, this.totalErrors);
+
+        out.printf(Locale.ROOT, "%-15s %9s %9s %9s %9s %9s %9s %9s %8s%n", "operation", "req/s", "MB/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "errors");
+        this.operations.forEach((name, op) -> out.printf(Locale.ROOT, "%-15s %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f %8d%n",
+                name, op.throughputPerSecond(), op.megabytesPerSecond(), op.p50Millis(), op.p90Millis(), op.p99Millis(), op.p999Millis(), op.maxMillis(), op.errors()));
+
+        this.operations.forEach((name, op) -> op.errorBreakdown().forEach((error, count) ->
+                out.printf(Locale.ROOT, "  %s %s: %d%n", name, error, count)));
+
+        if (!this.serverErrors.isEmpty()) {
+            out.println();
+            out.println("Errors logged by the server:");
+            this.serverErrors.forEach((error, count) -> out.printf(Locale.ROOT, "  %s: %d%n", error, count));
+        }
+
+        out.println();
+        out.println("Server resources (max / mean):");
+        this.serverResources.forEach((series, summary) -> out.printf(Locale.ROOT, "  %-70s %16.2f %16.2f%n", series, summary.max(), summary.mean()));
+        out.println();
+    }
+
+}
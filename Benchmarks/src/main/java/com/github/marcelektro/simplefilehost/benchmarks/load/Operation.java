@@ -0,0 +1,13 @@
+package com.github.marcelektro.simplefilehost.benchmarks.load;
+
+/**
+ * What a simulated client can do, each one an API request.
+ */
+enum Operation {
+    LOGIN,
+    UPLOAD,
+    LIST,
+    SHARE_CREATE,
+    SHARE_VALIDATE,
+    DOWNLOAD
+}
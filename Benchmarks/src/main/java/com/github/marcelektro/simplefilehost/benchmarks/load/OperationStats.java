@@ -0,0 +1,41 @@
+package com.github.marcelektro.simplefilehost.benchmarks.load;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and failures of one operation, recorded concurrently by all clients.
+ */
+final class OperationStats {
+
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder bytes = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+
+    /**
+     * @param error what went wrong, e.g. {@code 503 OVERLOADED} or the client side exception, null if the request succeeded
+     */
+    void record(long nanos, long transferredBytes, @Nullable String error) {
+        this.latency.recordNanos(nanos);
+        this.bytes.add(transferredBytes);
+
+        if (error != null)
+            this.errors.computeIfAbsent(error, key -> new LongAdder()).increment();
+    }
+
+    long errorCount() {
+        return this.errors.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    Map<String, Long> errorBreakdown() {
+        var breakdown = new TreeMap<String, Long>();
+        this.errors.forEach((error, count) -> breakdown.put(error, count.sum()));
+        return breakdown;
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.github.marcelektro.simplefilehost.benchmarks.load;
+
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Samples the server's resource gauges once a second while the load runs, from its own metrics registry.
+ * The load generator shares the JVM, so heap, threads and CPU include the clients.
+ */
+final class ResourceSampler implements Runnable {
+
+    // every labelled series of these
+    private static final Set<String> METRICS = Set.of(
+            "sfh_process_cpu_load",
+            "sfh_jvm_memory_used_bytes",
+            "sfh_jvm_buffer_pool_used_bytes",
+            "sfh_jvm_threads_live",
+            "sfh_process_open_fds",
+            "sfh_db_pool_connections_active",
+            "sfh_db_pool_pending_threads",
+            "sfh_db_write_queue_depth",
+            "sfh_auth_password_hash_queue_depth",
+            "sfh_uploads_active",
+            "sfh_downloads_active"
+    );
+
+    private final MetricsRegistry metrics;
+    private final Map<String, Summary> summaries = new LinkedHashMap<>();
+
+    private volatile boolean running = true;
+
+
+    ResourceSampler(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+
+    record Summary(double max, double mean, long samples) {
+
+        private Summary add(double value) {
+            return new Summary(Math.max(this.max, value), this.mean + (value - this.mean) / (this.samples + 1), this.samples + 1);
+        }
+
+    }
+
+
+    @Override
+    public void run() {
+        while (this.running) {
+            sample();
+
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    void stop() {
+        this.running = false;
+    }
+
+    synchronized Map<String, Summary> summaries() {
+        return new LinkedHashMap<>(this.summaries);
+    }
+
+
+    private synchronized void sample() {
+        for (var line : this.metrics.scrape().split("\n")) {
+            if (line.startsWith("#"))
+                continue;
+
+            var separator = line.lastIndexOf(' ');
+            if (separator < 0)
+                continue;
+
+            var series = line.substring(0, separator);
+            var labels = series.indexOf('{');
+            if (!METRICS.contains(labels < 0 ? series : series.substring(0, labels)))
+                continue;
+
+            var value = Double.parseDouble(line.substring(separator + 1));
+            this.summaries.merge(series, new Summary(value, value, 1), (summary, sample) -> summary.add(value));
+        }
+    }
+
+}
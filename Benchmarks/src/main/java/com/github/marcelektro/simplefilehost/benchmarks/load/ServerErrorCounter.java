@@ -0,0 +1,73 @@
+package com.github.marcelektro.simplefilehost.benchmarks.load;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.core.AppenderBase;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Counts the errors the server logs, by exception, since a response only tells that something failed, not what.
+ * SQLite failures are broken down by result code, so e.g. {@code SQLITE_BUSY} shows up as such.
+ */
+final class ServerErrorCounter extends AppenderBase<ILoggingEvent> {
+
+    private static final Pattern SQLITE_RESULT_CODE = Pattern.compile("\\[(SQLITE_[A-Z_]+)]");
+
+    private final ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+
+    static ServerErrorCounter attach() {
+        var context = (LoggerContext) LoggerFactory.getILoggerFactory();
+
+        var counter = new ServerErrorCounter();
+        counter.setContext(context);
+        counter.setName("LoadTestServerErrors");
+        counter.start();
+
+        context.getLogger(Logger.ROOT_LOGGER_NAME).addAppender(counter);
+        return counter;
+    }
+
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        if (!event.getLevel().isGreaterOrEqual(Level.WARN))
+            return;
+
+        this.counts.computeIfAbsent(describe(event), key -> new LongAdder()).increment();
+    }
+
+    private static String describe(ILoggingEvent event) {
+        var throwable = event.getThrowableProxy();
+        if (throwable == null)
+            return event.getLevel() + " " + event.getLoggerName();
+
+        // the innermost SQLite result code, or else the root cause
+        IThrowableProxy root = throwable;
+        for (var cause = throwable; cause != null; cause = cause.getCause()) {
+            var message = cause.getMessage();
+            var code = message != null ? SQLITE_RESULT_CODE.matcher(message) : null;
+            if (code != null && code.find())
+                return code.group(1);
+            root = cause;
+        }
+
+        return root.getClassName();
+    }
+
+    Map<String, Long> snapshot() {
+        var snapshot = new TreeMap<String, Long>();
+        this.counts.forEach((error, count) -> snapshot.put(error, count.sum()));
+        return snapshot;
+    }
+
+}
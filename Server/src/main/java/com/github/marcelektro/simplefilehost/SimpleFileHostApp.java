@@ -1,28 +1,50 @@
 package com.github.marcelektro.simplefilehost;
 
+import com.github.marcelektro.simplefilehost.cache.BlobCache;
 import com.github.marcelektro.simplefilehost.config.ConfigManager;
 import com.github.marcelektro.simplefilehost.console.ConsoleInputHandler;
 import com.github.marcelektro.simplefilehost.controller.auth.AuthController;
 import com.github.marcelektro.simplefilehost.controller.file.FileController;
 import com.github.marcelektro.simplefilehost.controller.sharing.SharingController;
+import com.github.marcelektro.simplefilehost.controller.upload.UploadController;
 import com.github.marcelektro.simplefilehost.dto.ErrorResponse;
+import com.github.marcelektro.simplefilehost.json.StreamingJsonMapper;
+import com.github.marcelektro.simplefilehost.metrics.JvmMetrics;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.metrics.MetricsServer;
+import com.github.marcelektro.simplefilehost.metrics.TransferMetrics;
 import com.github.marcelektro.simplefilehost.middleware.AuthMiddleware;
+import com.github.marcelektro.simplefilehost.middleware.RequestMetrics;
 import com.github.marcelektro.simplefilehost.roles.DefaultRoles;
+import com.github.marcelektro.simplefilehost.service.auth.AuthService;
 import com.github.marcelektro.simplefilehost.service.auth.AuthServiceImpl;
+import com.github.marcelektro.simplefilehost.service.auth.password.PasswordHasher;
+import com.github.marcelektro.simplefilehost.service.auth.password.PasswordHashingExecutor;
+import com.github.marcelektro.simplefilehost.service.db.DatabaseOverloadedException;
 import com.github.marcelektro.simplefilehost.service.db.SQLiteDatabaseService;
+import com.github.marcelektro.simplefilehost.service.file.BlobReaper;
+import com.github.marcelektro.simplefilehost.service.file.BlobScrubber;
 import com.github.marcelektro.simplefilehost.service.file.FileUploadServiceImpl;
+import com.github.marcelektro.simplefilehost.service.file.ResumableUploadServiceImpl;
+import com.github.marcelektro.simplefilehost.service.file.VolumeRebalancer;
+import com.github.marcelektro.simplefilehost.service.sharing.ShareLinkCache;
 import com.github.marcelektro.simplefilehost.service.sharing.ShareLinkServiceImpl;
+import com.github.marcelektro.simplefilehost.storage.BlobStore;
+import com.github.marcelektro.simplefilehost.storage.PackBlobStore;
+import com.github.marcelektro.simplefilehost.storage.PackCompactor;
+import com.github.marcelektro.simplefilehost.storage.VolumeBlobStore;
 import com.github.marcelektro.simplefilehost.util.LocalDateTimeTypeAdapter;
 import com.google.gson.GsonBuilder;
 import io.javalin.Javalin;
 import io.javalin.config.JavalinConfig;
 import io.javalin.http.HandlerType;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.staticfiles.Location;
-import io.javalin.json.JavalinGson;
 import io.javalin.validation.ValidationError;
 import io.javalin.validation.ValidationException;
 import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.time.LocalDateTime;
@@ -37,15 +59,36 @@ public class SimpleFileHostApp {
 
     private final AuthController authController;
     private final AuthMiddleware authMiddleware;
+    private final RequestMetrics requestMetrics;
     private final FileController fileController;
     private final SharingController sharingController;
+    private final UploadController uploadController;
 
     private final ConfigManager configManager;
 
+    private final MetricsRegistry metrics;
+    private final AuthService authService;
+    private final SQLiteDatabaseService dbService;
+    private final PasswordHashingExecutor passwordHashing;
+    private final @Nullable MetricsServer metricsServer;
+    private final ResumableUploadServiceImpl resumableUploadService;
+    private final BlobReaper blobReaper;
+    private final @Nullable VolumeRebalancer volumeRebalancer;
+    private final @Nullable PackCompactor packCompactor;
+    private final @Nullable BlobScrubber blobScrubber;
+    private final Javalin app;
+
 
     public SimpleFileHostApp() throws Exception {
+        this(new ConfigManager(new File("./config.json")), true);
+    }
+
+    /**
+     * @param consoleInput whether to read admin commands from stdin, off when embedded (e.g. by the load tests)
+     */
+    public SimpleFileHostApp(ConfigManager configManager, boolean consoleInput) throws Exception {
 
-        this.configManager = new ConfigManager(new File("./config.json"));
+        this.configManager = configManager;
         this.configManager.initConfig();
 
         var config = this.configManager.get();
@@ -61,19 +104,56 @@ public class SimpleFileHostApp {
         if (uploadedDataDirectory.mkdirs())
             log.info("Creating uploaded data directory: {}", uploadedDataDirectory.getAbsolutePath());
 
+        var stagingDirectory = new File(uploadedDataDirectory, ".staging");
         var databaseFile = new File(dataDirectory, "database.sqlite.db");
 
-        var dbService = new SQLiteDatabaseService(databaseFile.getPath());
-        dbService.initialSetup();
-        var authService = new AuthServiceImpl(dbService, config.jwtSecretKey);
-        var fileUploadService = new FileUploadServiceImpl(uploadedDataDirectory, dbService);
-        var shareLinkService = new ShareLinkServiceImpl(dbService);
-
-        new Thread(new ConsoleInputHandler(authService), "ConsoleInputHandler").start();
+        var metrics = new MetricsRegistry();
+        JvmMetrics.register(metrics);
+        var transfers = new TransferMetrics(metrics);
+        this.requestMetrics = new RequestMetrics(metrics);
 
-        this.authController = new AuthController(authService);
-        this.fileController = new FileController(fileUploadService);
+        var dbService = new SQLiteDatabaseService(databaseFile.getPath(), config.database, metrics);
+        this.dbService = dbService;
+        dbService.initialSetup();
+        var passwordHashing = new PasswordHashingExecutor(PasswordHasher.fromConfig(config.auth), config.auth, metrics);
+        this.passwordHashing = passwordHashing;
+        var authService = new AuthServiceImpl(dbService, passwordHashing, config.jwtSecretKey, config.cache.tokenMaxBytes, metrics);
+        var fileStore = BlobStore.fromConfig(config.storage, uploadedDataDirectory, metrics);
+        log.info("Storing blobs in the {} blob store", config.storage.backend);
+
+        PackBlobStore packStore = null;
+        if (config.packs.maxBlobBytes > 0) {
+            if (fileStore instanceof VolumeBlobStore) {
+                packStore = new PackBlobStore(fileStore, new File(dataDirectory, "packs"), dbService, config.packs, metrics);
+                log.info("Packing blobs of up to {} bytes", config.packs.maxBlobBytes);
+            } else {
+                log.warn("Pack files are only used with the local blob store, storing small blobs as they are");
+            }
+        }
+        var blobStore = packStore != null ? packStore : fileStore;
+
+        var shareLinkCache = new ShareLinkCache(dbService, config.cache.shareLinkMaxBytes, metrics);
+        var blobCache = new BlobCache(blobStore, config.cache.blobMaxBytes, config.cache.blobMaxEntryBytes, metrics, transfers);
+        var fileUploadService = new FileUploadServiceImpl(stagingDirectory, blobStore, dbService, config.upload, config.compression, shareLinkCache, blobCache, transfers);
+        this.resumableUploadService = new ResumableUploadServiceImpl(fileUploadService, dbService, config.upload, transfers);
+        this.blobReaper = new BlobReaper(fileUploadService, blobStore, dbService, config.blobReaper, metrics);
+        this.volumeRebalancer = fileStore instanceof VolumeBlobStore volumes && volumes.volumes().size() > 1 && config.storage.rebalanceThresholdPercent > 0
+                ? new VolumeRebalancer(fileUploadService, volumes, dbService, config.storage, metrics)
+                : null;
+        this.packCompactor = packStore != null && config.packs.compactDeadPercent > 0 && config.packs.compactIntervalSeconds > 0 ? new PackCompactor(packStore, config.packs, metrics) : null;
+        this.blobScrubber = config.scrubber.enabled ? new BlobScrubber(fileUploadService, blobStore, dbService, transfers, config.scrubber, metrics) : null;
+        var shareLinkService = new ShareLinkServiceImpl(dbService, shareLinkCache);
+
+        this.metrics = metrics;
+        this.authService = authService;
+
+        if (consoleInput)
+            new Thread(new ConsoleInputHandler(authService, metrics), "ConsoleInputHandler").start();
+
+        this.authController = new AuthController(authService, config.auth);
+        this.fileController = new FileController(fileUploadService, config.upload, blobStore, blobCache, transfers);
         this.sharingController = new SharingController(shareLinkService);
+        this.uploadController = new UploadController(this.resumableUploadService);
 
         this.authMiddleware = new AuthMiddleware(authService);
 
@@ -81,12 +161,61 @@ public class SimpleFileHostApp {
         var host = config.host;
         var port = config.port;
 
+        this.metricsServer = config.metrics.port > 0 ? new MetricsServer(config.metrics.host, config.metrics.port, metrics) : null;
+        if (this.metricsServer != null)
+            this.metricsServer.start();
+
         log.info("Starting server on {}:{}", host, port);
-        Javalin.create(this::config).start(host, port);
+        var app = Javalin.create(this::config);
+
+        // Javalin keeps a single request logger, and plugins (dev logging) set theirs while the app is created, so chain onto that
+        var pluginLogger = app.unsafeConfig().pvt.requestLogger;
+        app.unsafeConfig().requestLogger.http((ctx, executionTimeMs) -> {
+            this.requestMetrics.record(ctx, executionTimeMs);
+            if (pluginLogger != null)
+                pluginLogger.handle(ctx, executionTimeMs);
+        });
+
+        app.start(host, port);
+        this.app = app;
 
     }
 
 
+    /**
+     * The port actually listened on, differs from the configured one if that's 0.
+     */
+    public int port() {
+        return this.app.port();
+    }
+
+    public MetricsRegistry metrics() {
+        return this.metrics;
+    }
+
+    public AuthService authService() {
+        return this.authService;
+    }
+
+    public void stop() {
+        this.app.stop();
+        this.resumableUploadService.close();
+        this.blobReaper.close();
+        if (this.volumeRebalancer != null)
+            this.volumeRebalancer.close();
+        if (this.packCompactor != null)
+            this.packCompactor.close();
+        if (this.blobScrubber != null)
+            this.blobScrubber.close();
+        this.passwordHashing.close();
+        if (this.metricsServer != null)
+            this.metricsServer.stop();
+
+        // last, the workers above may still be finishing a write
+        this.dbService.close();
+    }
+
+
     private void config(JavalinConfig config) {
 
         config.useVirtualThreads = true;
@@ -105,8 +234,8 @@ public class SimpleFileHostApp {
                 .serializeNulls()
                 .create();
 
-        // Setup Json mapper
-        config.jsonMapper(new JavalinGson(gson, true));
+        // Setup Json mapper, Gson is kept for reading request bodies
+        config.jsonMapper(new StreamingJsonMapper(gson));
 
 
         var corsAllowedOrigins = this.configManager.get().corsAllowedOrigins;
@@ -140,6 +269,16 @@ public class SimpleFileHostApp {
             path("files", () -> {
                 get(fileController::handleListFiles, DefaultRoles.USER); // get files
                 post("upload", fileController::handleUploadFile, DefaultRoles.USER);
+                post("archive", fileController::handleDownloadArchive, DefaultRoles.USER); // many files as one zip
+                post("delete", fileController::handleDeleteFiles, DefaultRoles.USER); // many files at once
+
+                // resumable uploads
+                post("uploads", uploadController::handleCreateSession, DefaultRoles.USER);
+                get("uploads/{uploadId}", uploadController::handleGetSession, DefaultRoles.USER);
+                patch("uploads/{uploadId}", uploadController::handleWriteChunk, DefaultRoles.USER);
+                post("uploads/{uploadId}/finalize", uploadController::handleFinalize, DefaultRoles.USER);
+                delete("uploads/{uploadId}", uploadController::handleAbort, DefaultRoles.USER);
+
                 get("{fileId}", fileController::handleDownloadFile, DefaultRoles.USER);
                 delete("{fileId}", fileController::handleDeleteFile, DefaultRoles.USER);
                 get("{fileId}/shareLinks", sharingController::handleListShareLinksForFile, DefaultRoles.USER);
@@ -147,6 +286,7 @@ public class SimpleFileHostApp {
 
             path("sharing", () -> {
                 post(sharingController::handleCreateShareLink, DefaultRoles.USER);
+                post("batch", sharingController::handleCreateShareLinks, DefaultRoles.USER); // many links at once
                 put("{linkId}", sharingController::handleUpdateShareLink, DefaultRoles.USER);
                 delete("{linkId}", sharingController::handleDeleteShareLink, DefaultRoles.USER);
 
@@ -174,6 +314,11 @@ public class SimpleFileHostApp {
                         .json(ErrorResponse.of("INTERNAL_SERVER_ERROR", "an unhandled error has occurred (" + e.getClass().getSimpleName() + ")"));
             });
 
+            s.exception(DatabaseOverloadedException.class, (e, ctx) -> ctx.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(Header.RETRY_AFTER, String.valueOf(this.configManager.get().database.overloadRetryAfterSeconds))
+                    .json(ErrorResponse.of("OVERLOADED", e.getMessage()))
+            );
+
             s.exception(ValidationException.class, (e, ctx) -> ctx.status(HttpStatus.BAD_REQUEST)
                     .json(ErrorResponse.of("MALFORMED_REQUEST", e.getErrors().values().stream()
                             .map(ve -> ve.stream()
@@ -0,0 +1,381 @@
+package com.github.marcelektro.simplefilehost.cache;
+
+import com.github.marcelektro.simplefilehost.metrics.Counter;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.metrics.TransferMetrics;
+import com.github.marcelektro.simplefilehost.storage.BlobStore;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Off-heap copies of frequently downloaded blobs, so popular files are served from memory
+ * instead of being read again on every download (and lost whenever large uploads churn the page cache,
+ * or fetched from a remote store every time).
+ * <p>
+ * Admission follows W-TinyLFU: a blob is only loaded once it was asked for before, new entries go to a small LRU window,
+ * and entries leaving the window only make it into the main area if they were accessed more often than what they'd displace.
+ * The main area is a segmented LRU, entries hit there again are protected from eviction by one-off downloads.
+ * <p>
+ * Contents live in direct buffers. An evicted buffer is released once no response is still sending from it,
+ * so the budget bounds what's resident, not what's transiently in flight.
+ * Concurrent misses of the same blob share a single read.
+ */
+@Slf4j
+public class BlobCache {
+
+    private final BlobStore blobStore;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long windowMaxBytes;
+    private final long mainMaxBytes;
+    private final long protectedMaxBytes;
+
+    // guarded by this
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedArea = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+    private long generation;
+
+    private final ConcurrentHashMap<String, CompletableFuture<CachedBlob>> loading = new ConcurrentHashMap<>();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter loads;
+    private final Counter evictions;
+    private final Counter rejections;
+    private final TransferMetrics transfers;
+
+
+    /**
+     * @param maxBytes total budget, 0 disables caching
+     * @param maxEntryBytes larger blobs are never cached
+     */
+    public BlobCache(BlobStore blobStore, long maxBytes, long maxEntryBytes, MetricsRegistry metrics, TransferMetrics transfers) {
+        this.blobStore = blobStore;
+        this.maxBytes = maxBytes;
+        this.transfers = transfers;
+        // an entry must always fit into the window, and a few into the main area
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes / 8);
+        this.windowMaxBytes = Math.max(maxBytes / 100, this.maxEntryBytes);
+        this.mainMaxBytes = maxBytes - this.windowMaxBytes;
+        this.protectedMaxBytes = this.mainMaxBytes * 8 / 10;
+
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxBytes / (64 * 1024)));
+
+        this.hits = metrics.counter("sfh_cache_blobs_hits_total", "Downloads served from the blob cache");
+        this.misses = metrics.counter("sfh_cache_blobs_misses_total", "Downloads not served from the blob cache");
+        this.loads = metrics.counter("sfh_cache_blobs_loads_total", "Blobs read from the blob store into the cache");
+        this.evictions = metrics.counter("sfh_cache_blobs_evictions_total", "Blobs evicted to stay within the size budget");
+        this.rejections = metrics.counter("sfh_cache_blobs_rejections_total", "Blobs not admitted to the main area, being accessed less often than what they would displace");
+        metrics.gauge("sfh_cache_blobs_resident_bytes", "Size of all cached blobs", this::residentBytes);
+        metrics.gauge("sfh_cache_blobs_entries", "Number of cached blobs", this::size);
+        metrics.gauge("sfh_cache_blobs_hit_ratio", "Share of downloads served from the cache", () -> {
+            var hits = this.hits.get();
+            var total = hits + this.misses.get();
+            return total == 0 ? 0 : (double) hits / total;
+        });
+    }
+
+
+    /**
+     * A blob's content, read-only and shared between all responses sending it, so only ever read from through a {@link ByteBuffer#duplicate()}.
+     *
+     * @param lastModifiedMillis of the stored blob at the time it was read
+     */
+    public record CachedBlob(ByteBuffer content, long lastModifiedMillis) {
+
+        public long size() {
+            return this.content.capacity();
+        }
+
+        /**
+         * Reads {@code length} bytes starting at {@code position}.
+         */
+        public InputStream open(long position, long length) {
+            var region = this.content.duplicate()
+                    .position((int) position)
+                    .limit((int) Math.min(this.content.capacity(), position + length));
+
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return region.hasRemaining() ? region.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (!region.hasRemaining())
+                        return -1;
+
+                    var chunk = Math.min(len, region.remaining());
+                    region.get(b, off, chunk);
+                    return chunk;
+                }
+            };
+        }
+
+    }
+
+
+    /**
+     * Returns the cached content of a blob, loading it if it's been asked for often enough to be worth caching.
+     *
+     * @return the content, or null if the blob is to be read from the store as usual
+     */
+    public @Nullable CachedBlob get(String key) {
+        if (this.maxBytes <= 0)
+            return null;
+
+        long generation;
+        boolean frequent;
+        synchronized (this) {
+            this.sketch.increment(key);
+
+            var entry = this.entries.get(key);
+            if (entry != null) {
+                onHit(entry);
+                this.hits.increment();
+                return entry.blob;
+            }
+
+            generation = this.generation;
+            frequent = this.sketch.frequency(key) >= 2;
+        }
+
+        this.misses.increment();
+
+        // the first access only counts, one-off downloads would just flush out useful entries. Not even worth a stat (a HEAD on S3)
+        if (!frequent)
+            return null;
+
+        BlobStore.BlobStat stat;
+        try {
+            stat = this.blobStore.stat(key);
+        } catch (IOException e) {
+            log.debug("Failed to stat blob for the cache: {}", key, e);
+            return null;
+        }
+
+        if (stat == null || stat.size() == 0 || stat.size() > this.maxEntryBytes)
+            return null;
+
+        var future = new CompletableFuture<CachedBlob>();
+        var inFlight = this.loading.putIfAbsent(key, future);
+        if (inFlight != null)
+            return inFlight.join();
+
+        try {
+            var blob = load(key, stat, generation);
+            future.complete(blob);
+            return blob;
+        } catch (RuntimeException e) {
+            future.complete(null);
+            throw e;
+        } finally {
+            this.loading.remove(key, future);
+        }
+    }
+
+    /**
+     * The blob's content if it's resident already, without counting as an access. For bulk reads like archives,
+     * which would otherwise make every blob they contain look popular.
+     *
+     * @return the content, or null if the blob is to be read from the store as usual
+     */
+    public synchronized @Nullable CachedBlob peek(String key) {
+        var entry = this.entries.get(key);
+        return entry != null ? entry.blob : null;
+    }
+
+    /**
+     * Drops a blob, to be called when it's deleted.
+     */
+    public synchronized void invalidate(String key) {
+        this.generation++;
+
+        var entry = this.entries.get(key);
+        if (entry != null)
+            remove(entry);
+    }
+
+
+    public synchronized long residentBytes() {
+        return this.windowBytes + this.probationBytes + this.protectedBytes;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+
+    private @Nullable CachedBlob load(String key, BlobStore.BlobStat stat, long generation) {
+        synchronized (this) {
+            // loaded by someone else after we looked
+            var entry = this.entries.get(key);
+            if (entry != null)
+                return entry.blob;
+        }
+
+        CachedBlob blob;
+        try (var channel = Channels.newChannel(this.blobStore.get(key, 0, stat.size()))) {
+            var content = ByteBuffer.allocateDirect((int) stat.size());
+            while (content.hasRemaining()) {
+                var readStart = System.nanoTime();
+                var read = channel.read(content);
+                this.transfers.blobReadSeconds.observeNanosAsSeconds(System.nanoTime() - readStart);
+
+                if (read < 0)
+                    throw new IOException("Blob ended before the expected size, it was truncated?");
+            }
+
+            blob = new CachedBlob(content.flip().asReadOnlyBuffer(), stat.lastModifiedMillis());
+
+        } catch (IOException e) {
+            // the download reads the blob itself, and reports whatever is wrong with it
+            log.debug("Failed to load blob into the cache: {}", key, e);
+            return null;
+        }
+
+        this.loads.increment();
+
+        synchronized (this) {
+            // invalidated while we were reading, the blob may be gone already
+            if (this.generation != generation)
+                return blob;
+
+            var entry = new Entry(key, blob);
+            this.entries.put(key, entry);
+            this.window.put(key, entry);
+            this.windowBytes += entry.size();
+
+            evictFromWindow();
+        }
+
+        return blob;
+    }
+
+
+    // guarded by this
+
+    private void onHit(Entry entry) {
+        switch (entry.area) {
+            case WINDOW -> this.window.get(entry.key);
+            case PROTECTED -> this.protectedArea.get(entry.key);
+            case PROBATION -> {
+                // accessed again while on probation, it's proven its worth
+                this.probation.remove(entry.key);
+                this.probationBytes -= entry.size();
+
+                entry.area = Area.PROTECTED;
+                this.protectedArea.put(entry.key, entry);
+                this.protectedBytes += entry.size();
+
+                while (this.protectedBytes > this.protectedMaxBytes) {
+                    var demoted = eldest(this.protectedArea);
+                    this.protectedArea.remove(demoted.key);
+                    this.protectedBytes -= demoted.size();
+
+                    demoted.area = Area.PROBATION;
+                    this.probation.put(demoted.key, demoted);
+                    this.probationBytes += demoted.size();
+                }
+            }
+        }
+    }
+
+    private void evictFromWindow() {
+        while (this.windowBytes > this.windowMaxBytes) {
+            var candidate = eldest(this.window);
+            this.window.remove(candidate.key);
+            this.windowBytes -= candidate.size();
+
+            candidate.area = Area.PROBATION;
+            this.probation.put(candidate.key, candidate);
+            this.probationBytes += candidate.size();
+
+            evictFromMain(candidate);
+        }
+    }
+
+    /**
+     * Makes room in the main area, where the candidate that just entered it competes with the entries it would displace.
+     */
+    private void evictFromMain(Entry candidate) {
+        var candidateFrequency = this.sketch.frequency(candidate.key);
+
+        while (this.probationBytes + this.protectedBytes > this.mainMaxBytes) {
+            var victim = !this.probation.isEmpty() ? eldest(this.probation) : eldest(this.protectedArea);
+
+            if (victim != candidate && candidate.area != null && candidateFrequency <= this.sketch.frequency(victim.key)) {
+                remove(candidate);
+                this.rejections.increment();
+                continue;
+            }
+
+            remove(victim);
+            this.evictions.increment();
+        }
+    }
+
+    private void remove(Entry entry) {
+        this.entries.remove(entry.key);
+
+        switch (entry.area) {
+            case WINDOW -> {
+                this.window.remove(entry.key);
+                this.windowBytes -= entry.size();
+            }
+            case PROBATION -> {
+                this.probation.remove(entry.key);
+                this.probationBytes -= entry.size();
+            }
+            case PROTECTED -> {
+                this.protectedArea.remove(entry.key);
+                this.protectedBytes -= entry.size();
+            }
+        }
+
+        entry.area = null;
+    }
+
+    private static Entry eldest(LinkedHashMap<String, Entry> area) {
+        return area.values().iterator().next();
+    }
+
+
+    private enum Area {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    private static final class Entry {
+
+        private final String key;
+        private final CachedBlob blob;
+        private @Nullable Area area = Area.WINDOW; // null once removed
+
+        private Entry(String key, CachedBlob blob) {
+            this.key = key;
+            this.blob = blob;
+        }
+
+        private long size() {
+            return this.blob.size();
+        }
+
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.github.marcelektro.simplefilehost.cache;
+
+/**
+ * Approximate access frequency of keys (a count-min sketch of 4-bit counters), used to decide which entries are worth caching.
+ * <p>
+ * Counters are halved periodically, so frequencies reflect recent popularity rather than all-time totals.
+ * Not thread-safe, callers synchronize.
+ */
+final class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private final long[] table; // 16 counters per long
+    private final int mask;
+    private final int sampleSize;
+
+    private int additions;
+
+
+    /**
+     * @param expectedEntries roughly how many entries the cache holds, the sketch tracks about 16 times that many keys
+     */
+    FrequencySketch(int expectedEntries) {
+        var length = Integer.highestOneBit(Math.max(16, Math.min(expectedEntries, 1 << 24)) - 1) << 1;
+        this.table = new long[length];
+        this.mask = length - 1;
+        this.sampleSize = 10 * length;
+    }
+
+
+    int frequency(Object key) {
+        var hash = spread(key.hashCode());
+
+        var min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++)
+            min = Math.min(min, (int) ((this.table[slot(hash, i)] >>> shift(hash, i)) & 0xF));
+
+        return min;
+    }
+
+    void increment(Object key) {
+        var hash = spread(key.hashCode());
+
+        var added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            var slot = slot(hash, i);
+            var shift = shift(hash, i);
+
+            if (((this.table[slot] >>> shift) & 0xF) < MAX_COUNT) {
+                this.table[slot] += 1L << shift;
+                added = true;
+            }
+        }
+
+        if (added && ++this.additions == this.sampleSize)
+            age();
+    }
+
+
+    private void age() {
+        for (int i = 0; i < this.table.length; i++)
+            this.table[i] = (this.table[i] >>> 1) & 0x7777777777777777L;
+
+        this.additions /= 2;
+    }
+
+    private int slot(int hash, int row) {
+        var h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & this.mask;
+    }
+
+    private static int shift(int hash, int row) {
+        // which of the 16 counters in the slot, a different one per row
+        return ((hash >>> (row << 3)) & 0xF) << 2;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+}
@@ -0,0 +1,180 @@
+package com.github.marcelektro.simplefilehost.cache;
+
+import com.github.marcelektro.simplefilehost.metrics.Counter;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded in-memory cache, evicting least recently used entries once the total weight (roughly their size in bytes) exceeds the budget.
+ * <p>
+ * Split into independently locked segments by key hash, so lookups of different keys rarely contend.
+ * Loads race safely with invalidations: a value loaded before an invalidation of its segment is not stored,
+ * so a reader can never put back what a writer just invalidated.
+ */
+public class WeightedLruCache<K, V> {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment<K, V>[] segments;
+    private final ToLongFunction<V> weigher;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+    private final Counter invalidations;
+
+
+    /**
+     * @param name used in the metric names, {@code sfh_cache_<name>_...}
+     * @param maxWeight total budget, 0 disables caching
+     */
+    @SuppressWarnings("unchecked")
+    public WeightedLruCache(String name, long maxWeight, ToLongFunction<V> weigher, MetricsRegistry metrics) {
+        this.weigher = weigher;
+
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            this.segments[i] = new Segment<>(maxWeight / SEGMENTS);
+
+        var prefix = "sfh_cache_" + name;
+        this.hits = metrics.counter(prefix + "_hits_total", "Lookups served from the cache");
+        this.misses = metrics.counter(prefix + "_misses_total", "Lookups not found in the cache");
+        this.evictions = metrics.counter(prefix + "_evictions_total", "Entries evicted to stay within the size budget");
+        this.invalidations = metrics.counter(prefix + "_invalidations_total", "Entries removed because their data changed");
+        metrics.gauge(prefix + "_weight_bytes", "Approximate size of all cached entries", this::weight);
+        metrics.gauge(prefix + "_entries", "Number of cached entries", this::size);
+    }
+
+
+    @FunctionalInterface
+    public interface Loader<K, V> {
+        @Nullable V load(K key) throws Exception;
+    }
+
+    /**
+     * Returns the cached value, or loads and caches it. A null from the loader is returned but not cached.
+     */
+    public @Nullable V get(K key, Loader<K, V> loader) throws Exception {
+        var segment = segmentFor(key);
+
+        long generation;
+        synchronized (segment) {
+            var cached = segment.map.get(key);
+            if (cached != null) {
+                this.hits.increment();
+                return cached.value;
+            }
+            generation = segment.generation;
+        }
+
+        this.misses.increment();
+
+        var value = loader.load(key);
+        if (value == null)
+            return null;
+
+        var weight = this.weigher.applyAsLong(value);
+
+        synchronized (segment) {
+            // invalidated while we were loading, what we have may already be stale
+            if (segment.generation != generation || weight > segment.maxWeight)
+                return value;
+
+            var previous = segment.map.put(key, new Entry<>(value, weight));
+            segment.weight += weight - (previous != null ? previous.weight : 0);
+
+            var it = segment.map.values().iterator();
+            while (segment.weight > segment.maxWeight && it.hasNext()) {
+                segment.weight -= it.next().weight;
+                it.remove();
+                this.evictions.increment();
+            }
+        }
+
+        return value;
+    }
+
+    public void invalidate(K key) {
+        var segment = segmentFor(key);
+
+        synchronized (segment) {
+            segment.generation++;
+
+            var removed = segment.map.remove(key);
+            if (removed != null) {
+                segment.weight -= removed.weight;
+                this.invalidations.increment();
+            }
+        }
+    }
+
+    /**
+     * Invalidates all entries matching the predicate. Scans the whole cache, meant for rare, broad changes.
+     */
+    public void invalidateIf(Predicate<V> predicate) {
+        for (var segment : this.segments) {
+            synchronized (segment) {
+                segment.generation++;
+
+                var it = segment.map.values().iterator();
+                while (it.hasNext()) {
+                    var entry = it.next();
+                    if (predicate.test(entry.value)) {
+                        segment.weight -= entry.weight;
+                        it.remove();
+                        this.invalidations.increment();
+                    }
+                }
+            }
+        }
+    }
+
+
+    public long weight() {
+        long weight = 0;
+        for (var segment : this.segments) {
+            synchronized (segment) {
+                weight += segment.weight;
+            }
+        }
+        return weight;
+    }
+
+    public int size() {
+        var size = 0;
+        for (var segment : this.segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
+        }
+        return size;
+    }
+
+
+    private Segment<K, V> segmentFor(K key) {
+        var hash = key.hashCode();
+        return this.segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+
+    private static final class Segment<K, V> {
+
+        private final long maxWeight;
+        private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true); // access order, eldest first
+
+        private long weight;
+        private long generation;
+
+        private Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+    }
+
+    private record Entry<V>(V value, long weight) {}
+
+}
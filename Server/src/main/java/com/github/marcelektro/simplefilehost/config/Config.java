@@ -23,7 +23,190 @@ public class Config {
 
     public final List<String> corsAllowedOrigins;
 
+    public final Upload upload;
 
+    public final Database database;
+
+    public final Cache cache;
+
+    public final Auth auth;
+
+    public final Metrics metrics;
+
+    public final BlobReaper blobReaper;
+
+    public final Storage storage;
+
+    public final Packs packs;
+
+    public final Compression compression;
+
+    public final Scrubber scrubber;
+
+
+    @SuppressWarnings("ClassCanBeRecord")
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class Upload {
+
+        public final long maxFileSize; // in bytes, 0 = unlimited
+        public final int bufferSize; // in bytes, used for reading the multipart body and writing blobs
+        public final int maxPartHeaderSize; // in bytes, max size of a single multipart part's header block
+
+        public final long sessionTtlSeconds; // resumable upload sessions expire after this long without activity
+        public final long maxChunkSize; // in bytes, max size of a single resumable upload chunk
+
+    }
+
+
+    @SuppressWarnings("ClassCanBeRecord")
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class Database {
+
+        public final int readPoolSize; // read-only connections, all writes go through a single writer connection
+        public final String synchronous; // SQLite `synchronous` pragma. FULL syncs every commit, NORMAL risks losing the last commits on power loss in WAL mode
+        public final long mmapSize; // in bytes, SQLite `mmap_size` pragma
+        public final int cacheSizeKiB; // page cache per connection
+        public final int busyTimeoutMillis;
+        public final int groupCommitMaxBatchSize; // writes committed together in one transaction at most
+        public final int groupCommitMaxWaitMicros; // how long the writer waits for more writes to join a batch, 0 only batches what's already queued
+        public final int writeQueueSize; // writes waiting for the writer at most, beyond that further writes wait for room
+        public final int writeQueueTimeoutMillis; // how long a write waits for room in the queue before it's answered with 503
+        public final int overloadRetryAfterSeconds; // Retry-After sent along with that 503
+
+    }
+
+
+    @SuppressWarnings("ClassCanBeRecord")
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class Cache {
+
+        public final long shareLinkMaxBytes; // resolved share links, for the anonymous download path. 0 disables the cache
+        public final long blobMaxBytes; // off-heap copies of frequently downloaded blobs. 0 disables the cache
+        public final long blobMaxEntryBytes; // larger blobs are never cached, they're sent memory-mapped instead
+        public final long tokenMaxBytes; // already verified auth tokens, roughly 256 bytes each. 0 disables the cache
+
+    }
+
+
+    @SuppressWarnings("ClassCanBeRecord")
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class Auth {
+
+        public final String passwordHashAlgorithm; // pbkdf2-sha256 or pbkdf2-sha512. Changing it, or the cost, rehashes passwords on their next login
+        public final int passwordHashIterations; // cost, the slower the hash the fewer logins per second
+        public final int hashingThreads; // dedicated to password hashing, 0 = one per CPU core
+        public final int hashingQueueSize; // logins waiting for a hashing thread at most, beyond that they're answered with 503
+        public final int overloadRetryAfterSeconds; // Retry-After sent along with that 503
+
+    }
+
+
+    @SuppressWarnings("ClassCanBeRecord")
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class Metrics {
+
+        public final String host; // /metrics is served on a port of its own, keep it reachable for the scraper only
+        public final int port; // 0 disables the endpoint
+
+    }
+
+
+    @SuppressWarnings("ClassCanBeRecord")
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class BlobReaper {
+
+        public final int threads; // unlinking blob files of deleted content, in the background
+        public final int batchSize; // tombstones picked up per round
+        public final int maxDeletesPerSecond; // across all threads, keeps deletion storms from starving downloads of disk I/O. 0 = unlimited
+        public final int intervalSeconds; // between rounds, when there was nothing left to do. 0 disables, tombstones are kept until it's enabled again
+        public final int retryBaseDelaySeconds; // first retry of a failed unlink, doubling with every further failure
+        public final int retryMaxDelaySeconds;
+
+    }
+
+
+    @SuppressWarnings("ClassCanBeRecord")
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class Storage {
+
+        public final String backend; // local (in the data directory) or s3 (any S3-compatible service, for sharing blobs between nodes)
+
+        public final String s3Endpoint; // e.g. https://s3.eu-central-1.amazonaws.com, buckets are addressed path-style
+        public final String s3Region;
+        public final String s3Bucket;
+        public final String s3KeyPrefix; // prepended to every blob key, for sharing a bucket
+        public final String s3AccessKey;
+        public final String s3SecretKey;
+        public final int s3PartSize; // in bytes, larger blobs are uploaded in parts of this size. At least 5 MiB
+        public final int s3UploadConcurrency; // parts of one blob uploaded at once, each holds a part-sized buffer
+
+        public final List<Volume> volumes; // more blob roots for the local backend, besides the data directory. New blobs are spread over all of them
+        public final int rebalanceThresholdPercent; // blobs are moved between volumes whose fill levels differ by more than this, e.g. after adding a disk. 0 disables
+        public final long rebalanceMaxBytesPerSecond; // copied between volumes, keeps a rebalance from starving downloads of disk I/O
+        public final int rebalanceIntervalSeconds; // between checks whether the volumes need rebalancing
+
+    }
+
+
+    @SuppressWarnings("ClassCanBeRecord")
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class Volume {
+
+        public final String name; // recorded with every blob on it, never rename a volume holding blobs. Letters, digits, - and _
+        public final String path; // ideally a disk of its own
+
+    }
+
+
+    @SuppressWarnings("ClassCanBeRecord")
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class Packs {
+
+        public final int maxBlobBytes; // blobs up to this size are appended to pack files instead of getting a file each, local backend only. 0 disables
+        public final long segmentBytes; // a pack file is sealed once it reaches this size, only sealed ones are compacted
+        public final int openFiles; // pack files kept open for reading
+        public final int compactDeadPercent; // a sealed pack is rewritten once this share of it belongs to deleted blobs. 0 disables compaction
+        public final int compactIntervalSeconds; // between checks for packs to compact. 0 disables compaction as well
+
+    }
+
+
+    @SuppressWarnings("ClassCanBeRecord")
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class Compression {
+
+        public final boolean enabled; // stores compressible uploads compressed, sent as they are to clients accepting gzip
+        public final int level; // deflate level, 1 (fastest) to 9 (smallest)
+        public final int frameSize; // in bytes of content, a range is decoded from whole frames. Smaller frames compress a bit worse
+        public final long minBlobBytes; // smaller blobs aren't worth it
+        public final int sampleBytes; // from the beginning of an upload, compressed on trial to decide
+        public final int maxRatioPercent; // compressed size of the sample relative to the original, at most, for the upload to be compressed
+
+    }
+
+    @SuppressWarnings("ClassCanBeRecord")
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class Scrubber {
+
+        public final boolean enabled; // verifies stored blobs against their digest in the background and cleans up blobs nothing references
+        public final long maxBytesPerSecond; // read for verifying, keeps scrubbing from starving downloads of disk I/O
+        public final int pauseAboveActiveDownloads; // scrubbing waits while more downloads than this are being sent. 0 = never waits
+        public final int batchSize; // blobs verified, or stored keys checked, between saving progress
+        public final int passIntervalHours; // a pass over all blobs starts at most this often, a pass cut short resumes after a restart
+        public final int orphanGraceHours; // unreferenced blobs are only deleted once older than this, uploads and moves in progress write them before recording them
+
+    }
 
 
     public static Config defaultConfig() {
@@ -33,7 +216,89 @@ public class Config {
                 8080,
                 "data",
                 "replaceMe_" + UUID.randomUUID().toString().replace("-", ""),
-                List.of("http://localhost:3000", "http://localhost:8080")
+                List.of("http://localhost:3000", "http://localhost:8080"),
+                new Upload(
+                        0,
+                        64 * 1024,
+                        16 * 1024,
+                        24 * 60 * 60,
+                        64 * 1024 * 1024
+                ),
+                new Database(
+                        8,
+                        "FULL",
+                        256L * 1024 * 1024,
+                        16 * 1024,
+                        5000,
+                        128,
+                        500,
+                        4096,
+                        2000,
+                        1
+                ),
+                new Cache(
+                        16L * 1024 * 1024,
+                        256L * 1024 * 1024,
+                        4L * 1024 * 1024,
+                        4L * 1024 * 1024
+                ),
+                new Auth(
+                        "pbkdf2-sha256",
+                        600_000,
+                        0,
+                        64,
+                        1
+                ),
+                new Metrics(
+                        "localhost",
+                        9464
+                ),
+                new BlobReaper(
+                        2,
+                        256,
+                        200,
+                        5,
+                        30,
+                        60 * 60
+                ),
+                new Storage(
+                        "local",
+                        "http://localhost:9000",
+                        "us-east-1",
+                        "simplefilehost",
+                        "",
+                        "",
+                        "",
+                        8 * 1024 * 1024,
+                        4,
+                        List.of(),
+                        10,
+                        64L * 1024 * 1024,
+                        5 * 60
+                ),
+                new Packs(
+                        0,
+                        256L * 1024 * 1024,
+                        64,
+                        30,
+                        10 * 60
+                ),
+                new Compression(
+                        false,
+                        6,
+                        256 * 1024,
+                        4 * 1024,
+                        256 * 1024,
+                        80
+                ),
+                new Scrubber(
+                        true,
+                        16L * 1024 * 1024,
+                        8,
+                        100,
+                        7 * 24,
+                        24
+                )
         );
     }
 
@@ -2,6 +2,8 @@ package com.github.marcelektro.simplefilehost.config;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
@@ -36,13 +38,46 @@ public class ConfigManager {
         }
 
         log.debug("Loading config file: {}", this.file);
-        try {
-            this.config = GSON.fromJson(new FileReader(this.file), Config.class);
+        boolean addedDefaults;
+        try (var reader = new FileReader(this.file)) {
+            var fileJson = JsonParser.parseReader(reader).getAsJsonObject();
+
+            // options added in newer versions are missing from older config files, fill them in from the defaults
+            addedDefaults = mergeMissing(fileJson, GSON.toJsonTree(Config.defaultConfig()).getAsJsonObject());
+
+            this.config = GSON.fromJson(fileJson, Config.class);
 
         } catch (IOException e) {
             log.error("Error reading config file: {}", this.file.getAbsolutePath(), e);
             throw new RuntimeException("Failed to read config file", e);
         }
+
+        if (addedDefaults) {
+            log.info("Config file is missing some options, adding their default values: {}", this.file.getAbsolutePath());
+            saveConfig();
+        }
+    }
+
+
+    /**
+     * Recursively copies entries present in {@code defaults} but missing in {@code target}.
+     * @return whether anything was added
+     */
+    private static boolean mergeMissing(JsonObject target, JsonObject defaults) {
+        var added = false;
+
+        for (var entry : defaults.entrySet()) {
+            var existing = target.get(entry.getKey());
+
+            if (existing == null) {
+                target.add(entry.getKey(), entry.getValue());
+                added = true;
+            } else if (existing.isJsonObject() && entry.getValue().isJsonObject()) {
+                added |= mergeMissing(existing.getAsJsonObject(), entry.getValue().getAsJsonObject());
+            }
+        }
+
+        return added;
     }
 
 
@@ -1,5 +1,6 @@
 package com.github.marcelektro.simplefilehost.console;
 
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
 import com.github.marcelektro.simplefilehost.service.auth.AuthService;
 import lombok.extern.slf4j.Slf4j;
 
@@ -10,9 +11,11 @@ import java.util.Scanner;
 public class ConsoleInputHandler implements Runnable {
 
     private final AuthService authService;
+    private final MetricsRegistry metrics;
 
-    public ConsoleInputHandler(AuthService authService) {
+    public ConsoleInputHandler(AuthService authService, MetricsRegistry metrics) {
         this.authService = authService;
+        this.metrics = metrics;
     }
 
 
@@ -39,7 +42,8 @@ public class ConsoleInputHandler implements Runnable {
             case "help" -> log.info("""
                     Available commands:
                     - exit
-                    - createUser <id> <username> <password>"""
+                    - createUser <id> <username> <password>
+                    - metrics"""
             );
 
             case "exit", "quit" -> {
@@ -74,6 +78,8 @@ public class ConsoleInputHandler implements Runnable {
 
             }
 
+            case "metrics" -> log.info("Metrics:\n{}", metrics.scrape());
+
             default -> log.warn("Unknown command: {}. Use `help` for help.", cmd);
         }
     }
@@ -1,5 +1,6 @@
 package com.github.marcelektro.simplefilehost.controller.auth;
 
+import com.github.marcelektro.simplefilehost.config.Config;
 import com.github.marcelektro.simplefilehost.dto.ErrorResponse;
 import com.github.marcelektro.simplefilehost.dto.auth.LoginRequestDto;
 import com.github.marcelektro.simplefilehost.dto.auth.LoginResponseDto;
@@ -7,14 +8,17 @@ import com.github.marcelektro.simplefilehost.dto.auth.MeResponseDto;
 import com.github.marcelektro.simplefilehost.service.auth.AuthService;
 import com.github.marcelektro.simplefilehost.util.Checks;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 
 public class AuthController {
 
     private final AuthService authService;
+    private final Config.Auth authConfig;
 
-    public AuthController(AuthService authService) {
+    public AuthController(AuthService authService, Config.Auth authConfig) {
         this.authService = authService;
+        this.authConfig = authConfig;
     }
 
 
@@ -31,6 +35,9 @@ public class AuthController {
 
             switch (res.getErrorCode()) {
                 case "INVALID_CREDENTIALS" -> ctx.status(HttpStatus.UNAUTHORIZED).json(ErrorResponse.of("UNAUTHORIZED", "Invalid username or password"));
+                case "HASHING_OVERLOADED" -> ctx.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(Header.RETRY_AFTER, String.valueOf(this.authConfig.overloadRetryAfterSeconds))
+                        .json(ErrorResponse.of("OVERLOADED", res.getMessage()));
 
                 default -> ctx.status(HttpStatus.BAD_REQUEST).json(ErrorResponse.of(res.getErrorCode(), res.getMessage()));
             }
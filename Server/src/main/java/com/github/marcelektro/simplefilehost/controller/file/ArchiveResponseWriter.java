@@ -0,0 +1,160 @@
+package com.github.marcelektro.simplefilehost.controller.file;
+
+import com.github.marcelektro.simplefilehost.cache.BlobCache;
+import com.github.marcelektro.simplefilehost.metrics.TransferMetrics;
+import com.github.marcelektro.simplefilehost.service.file.FileUploadService;
+import com.github.marcelektro.simplefilehost.storage.BlobStore;
+import com.github.marcelektro.simplefilehost.storage.FramedGzip;
+import com.github.marcelektro.simplefilehost.util.ZipStreamWriter;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes files to the response as one ZIP archive, each one as it comes in, so neither the archive nor an entry is ever held as a whole.
+ * The archive's size isn't known upfront, it's sent without a Content-Length.
+ * <p>
+ * Nothing is written before the first file (or {@link #finish}), so an error found before that can still be sent as a regular error response.
+ */
+@Slf4j
+class ArchiveResponseWriter {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Context ctx;
+    private final BlobStore blobStore;
+    private final BlobCache blobCache;
+    private final TransferMetrics transfers;
+    private final boolean deflate;
+
+    private final Set<String> entryNames = new HashSet<>();
+    private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+    private @Nullable ZipStreamWriter zip;
+
+
+    ArchiveResponseWriter(Context ctx, BlobStore blobStore, BlobCache blobCache, TransferMetrics transfers, boolean deflate) {
+        this.ctx = ctx;
+        this.blobStore = blobStore;
+        this.blobCache = blobCache;
+        this.transfers = transfers;
+        this.deflate = deflate;
+    }
+
+
+    void write(FileUploadService.ArchivedFile file) throws IOException {
+        // a bulk read, it doesn't make its files any more popular
+        var cached = this.blobCache.peek(file.blobKey());
+        var encoding = file.encoding();
+
+        if (cached != null && encoding == null) {
+            try (var entry = start().putEntry(entryName(file.filename()), file.uploadDate(), this.deflate)) {
+                writeCached(entry, cached);
+            }
+            return;
+        }
+
+        InputStream in;
+        try {
+            if (encoding != null) {
+                FramedGzip.StoredRange stored = cached != null
+                        ? cached::open
+                        : (position, length) -> this.blobStore.get(file.blobKey(), position, length);
+                in = FramedGzip.decode(stored, encoding, 0, encoding.size());
+            } else {
+                in = this.blobStore.get(file.blobKey(), 0, -1);
+            }
+        } catch (NoSuchFileException e) {
+            // deleted since it was looked up, as if it had been deleted just before
+            log.debug("Skipping file deleted while archiving: {}", file.fileId());
+            return;
+        }
+
+        try (in; var entry = start().putEntry(entryName(file.filename()), file.uploadDate(), this.deflate)) {
+            writeBlob(entry, in);
+        }
+    }
+
+    /**
+     * Completes the archive. An archive cut short lacks the central directory, so clients reject it rather than take it for complete.
+     */
+    void finish() throws IOException {
+        start().finish();
+        this.ctx.res().getOutputStream().close();
+    }
+
+    boolean started() {
+        return this.zip != null;
+    }
+
+
+    private ZipStreamWriter start() {
+        if (this.zip != null)
+            return this.zip;
+
+        this.ctx.status(HttpStatus.OK);
+        this.ctx.contentType("application/zip");
+        this.ctx.header("Content-Disposition", "attachment; filename=\"files.zip\"");
+
+        try {
+            this.zip = new ZipStreamWriter(this.ctx.res().getOutputStream());
+        } catch (IOException e) {
+            throw new IllegalStateException("Response output is not available", e);
+        }
+        return this.zip;
+    }
+
+    private void writeCached(OutputStream entry, BlobCache.CachedBlob cached) throws IOException {
+        var content = cached.content().duplicate();
+        while (content.hasRemaining()) {
+            var chunk = Math.min(this.buffer.length, content.remaining());
+            content.get(this.buffer, 0, chunk);
+            entry.write(this.buffer, 0, chunk);
+        }
+
+        this.transfers.downloadedBytes.add(cached.size());
+    }
+
+    private void writeBlob(OutputStream entry, InputStream in) throws IOException {
+        while (true) {
+            var readStart = System.nanoTime();
+            var read = in.read(this.buffer);
+            this.transfers.blobReadSeconds.observeNanosAsSeconds(System.nanoTime() - readStart);
+            if (read < 0)
+                break;
+
+            entry.write(this.buffer, 0, read);
+            this.transfers.downloadedBytes.add(read);
+        }
+    }
+
+    /**
+     * Filenames are flat, they must not be taken for paths within the archive, and entries must have unique names.
+     */
+    private String entryName(String filename) {
+        var name = filename.replace('/', '_').replace('\\', '_');
+        if (name.isEmpty() || name.equals(".") || name.equals(".."))
+            name = "_" + name;
+
+        if (this.entryNames.add(name))
+            return name;
+
+        var dot = name.lastIndexOf('.');
+        var base = dot > 0 ? name.substring(0, dot) : name;
+        var extension = dot > 0 ? name.substring(dot) : "";
+
+        for (int i = 2; ; i++) {
+            var candidate = base + " (" + i + ")" + extension;
+            if (this.entryNames.add(candidate))
+                return candidate;
+        }
+    }
+
+}
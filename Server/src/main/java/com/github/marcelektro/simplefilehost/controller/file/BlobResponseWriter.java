@@ -0,0 +1,451 @@
+package com.github.marcelektro.simplefilehost.controller.file;
+
+import com.github.marcelektro.simplefilehost.cache.BlobCache;
+import com.github.marcelektro.simplefilehost.dto.ErrorResponse;
+import com.github.marcelektro.simplefilehost.metrics.TransferMetrics;
+import com.github.marcelektro.simplefilehost.storage.BlobEncoding;
+import com.github.marcelektro.simplefilehost.storage.BlobStore;
+import com.github.marcelektro.simplefilehost.storage.FramedGzip;
+import com.github.marcelektro.simplefilehost.util.HttpRange;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import org.eclipse.jetty.server.HttpOutput;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes blobs as download responses.
+ * <p>
+ * Instead of handing Javalin an InputStream (copied through a heap buffer and sent chunk-encoded),
+ * a local blob file is given to Jetty as file-backed buffers: large regions as memory-mapped segments, written to the socket
+ * straight from the page cache, small ones read positionally. Blobs in a remote store are streamed through, each range read on its own.
+ * The length is always known upfront, so responses carry a Content-Length.
+ * Blobs resident in the {@link BlobCache} are sent from there, without touching the store.
+ * <p>
+ * Supports {@code Range} (single and multipart/byteranges) and {@code If-Range} with the ETag / Last-Modified validators sent here.
+ * <p>
+ * Blobs stored compressed are sent as they are, with {@code Content-Encoding: gzip}, to clients accepting that and asking for all of it.
+ * Everyone else gets them decoded, ranges decoding only the frames they fall into.
+ */
+public class BlobResponseWriter {
+
+    // below this, mapping costs more than a plain read
+    private static final long MAPPING_THRESHOLD = 4L * 1024 * 1024;
+    private static final long MAPPED_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+
+    private final BlobStore blobStore;
+    private final BlobCache blobCache;
+    private final TransferMetrics transfers;
+
+    public BlobResponseWriter(BlobStore blobStore, BlobCache blobCache, TransferMetrics transfers) {
+        this.blobStore = blobStore;
+        this.blobCache = blobCache;
+        this.transfers = transfers;
+    }
+
+
+    /**
+     * @param encoding how the blob is stored, null if it's stored as it is
+     * @throws NoSuchFileException if the blob is missing from the store
+     */
+    public void writeDownload(Context ctx, String blobKey, @Nullable BlobEncoding encoding, String originalFilename) throws IOException {
+        this.transfers.downloadStarted();
+        try {
+            var cached = this.blobCache.get(blobKey);
+            if (cached != null) {
+                writeDownload(ctx, blobKey, originalFilename, new CachedSource(cached), encoding);
+                return;
+            }
+
+            var blobFile = this.blobStore.localFile(blobKey);
+            if (blobFile != null) {
+                try (var channel = FileChannel.open(blobFile.toPath(), StandardOpenOption.READ)) {
+                    var lastModifiedMillis = Files.getLastModifiedTime(blobFile.toPath()).toMillis();
+                    writeDownload(ctx, blobKey, originalFilename, new FileSource(this.blobStore, blobKey, channel, channel.size(), lastModifiedMillis, this.transfers), encoding);
+                }
+                return;
+            }
+
+            var stat = this.blobStore.stat(blobKey);
+            if (stat == null)
+                throw new NoSuchFileException(blobKey);
+
+            writeDownload(ctx, blobKey, originalFilename, new StoreSource(this.blobStore, blobKey, stat.size(), stat.lastModifiedMillis(), this.transfers), encoding);
+
+        } finally {
+            this.transfers.downloadFinished();
+        }
+    }
+
+    private void writeDownload(Context ctx, String blobKey, String originalFilename, BlobSource stored, @Nullable BlobEncoding encoding) throws IOException {
+        var source = stored;
+        var passthrough = false;
+
+        if (encoding != null) {
+            ctx.header(Header.VARY, Header.ACCEPT_ENCODING);
+
+            passthrough = ctx.header(Header.RANGE) == null && acceptsGzip(ctx.header(Header.ACCEPT_ENCODING));
+            if (passthrough)
+                ctx.header(Header.CONTENT_ENCODING, "gzip");
+            else
+                source = new DecodedSource(stored, encoding);
+        }
+
+        var size = source.size();
+
+        // HTTP dates only have second precision, compare and send validators at that precision
+        var lastModifiedSeconds = source.lastModifiedMillis() / 1000;
+        // blobs are never modified in place, their name, size and mtime identify the content, the gzip encoded representation has a tag of its own
+        var etag = "\"" + blobKey.substring(blobKey.lastIndexOf('/') + 1) + "-" + Long.toHexString(size) + "-" + Long.toHexString(lastModifiedSeconds)
+                + (passthrough ? "-gz" : "") + "\"";
+
+        ctx.header(Header.ACCEPT_RANGES, "bytes");
+        ctx.header(Header.ETAG, etag);
+        ctx.header(Header.LAST_MODIFIED, HTTP_DATE.format(Instant.ofEpochSecond(lastModifiedSeconds)));
+
+        var ranges = ifRangeMatches(ctx.header(Header.IF_RANGE), etag, lastModifiedSeconds)
+                ? HttpRange.parse(ctx.header(Header.RANGE), size)
+                : null;
+
+        if (ranges != null && ranges.isEmpty()) {
+            ctx.header(Header.CONTENT_RANGE, "bytes */" + size);
+            ctx.status(HttpStatus.RANGE_NOT_SATISFIABLE)
+                    .json(ErrorResponse.of("RANGE_NOT_SATISFIABLE", "None of the requested ranges are within the file"));
+            return;
+        }
+
+        ctx.header("Content-Disposition", "attachment; filename=\"" + originalFilename + "\"");
+
+        var out = ctx.res().getOutputStream();
+
+        if (ranges == null) {
+            ctx.contentType("application/octet-stream");
+            ctx.status(HttpStatus.OK);
+            ctx.res().setContentLengthLong(size);
+
+            source.writeAll(out);
+            this.transfers.downloadedBytes.add(size);
+
+        } else if (ranges.size() == 1) {
+            var range = ranges.getFirst();
+
+            ctx.contentType("application/octet-stream");
+            ctx.status(HttpStatus.PARTIAL_CONTENT);
+            ctx.header(Header.CONTENT_RANGE, range.toContentRange(size));
+            ctx.res().setContentLengthLong(range.length());
+
+            source.writeRegion(out, range.start(), range.length());
+            this.transfers.downloadedBytes.add(range.length());
+
+        } else {
+            writeMultipart(ctx, out, source, size, ranges);
+        }
+
+        out.close();
+    }
+
+
+    private void writeMultipart(Context ctx, OutputStream out, BlobSource source, long size, List<HttpRange.ByteRange> ranges) throws IOException {
+        var boundary = HexFormat.of().toHexDigits(ThreadLocalRandom.current().nextLong());
+
+        var partHeaders = new ArrayList<byte[]>(ranges.size());
+        long contentLength = 0;
+
+        for (int i = 0; i < ranges.size(); i++) {
+            var range = ranges.get(i);
+            var partHeader = (i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Content-Range: " + range.toContentRange(size) + "\r\n"
+                    + "\r\n";
+
+            var bytes = partHeader.getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(bytes);
+            contentLength += bytes.length + range.length();
+        }
+
+        var closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += closing.length;
+
+        ctx.contentType("multipart/byteranges; boundary=" + boundary);
+        ctx.status(HttpStatus.PARTIAL_CONTENT);
+        ctx.res().setContentLengthLong(contentLength);
+
+        for (int i = 0; i < ranges.size(); i++) {
+            var range = ranges.get(i);
+            out.write(partHeaders.get(i));
+            source.writeRegion(out, range.start(), range.length());
+            this.transfers.downloadedBytes.add(range.length());
+        }
+
+        out.write(closing);
+    }
+
+
+    /**
+     * Where a download's bytes come from, the blob's local file, the store or its copy in the {@link BlobCache}.
+     */
+    private interface BlobSource {
+
+        long size();
+
+        long lastModifiedMillis();
+
+        void writeAll(OutputStream out) throws IOException;
+
+        /**
+         * Writes {@code length} bytes starting at {@code position}.
+         */
+        void writeRegion(OutputStream out, long position, long length) throws IOException;
+
+        /**
+         * Reads {@code length} bytes starting at {@code position}.
+         */
+        InputStream open(long position, long length) throws IOException;
+
+    }
+
+    /**
+     * Reads of the file don't go through the store, they're reported to it once done.
+     */
+    private record FileSource(BlobStore store, String key, FileChannel channel, long size, long lastModifiedMillis, TransferMetrics transfers) implements BlobSource {
+
+        @Override
+        public void writeAll(OutputStream out) throws IOException {
+            if (out instanceof HttpOutput httpOutput && this.size < MAPPING_THRESHOLD) {
+                httpOutput.sendContent(this.channel);
+                this.store.localFileRead(this.key, this.size);
+                return;
+            }
+
+            writeRegion(out, 0, this.size);
+        }
+
+        @Override
+        public void writeRegion(OutputStream out, long position, long length) throws IOException {
+            // positional reads only, the channel's own position is left alone
+            var end = position + length;
+
+            if (out instanceof HttpOutput httpOutput && length >= MAPPING_THRESHOLD) {
+                // Jetty passes large direct buffers through to the socket without aggregating them into its own buffer
+                while (position < end) {
+                    var segmentLength = Math.min(end - position, MAPPED_SEGMENT_SIZE);
+                    httpOutput.write(this.channel.map(FileChannel.MapMode.READ_ONLY, position, segmentLength));
+                    position += segmentLength;
+                }
+                this.store.localFileRead(this.key, length);
+                return;
+            }
+
+            var buffer = new byte[(int) Math.min(length, READ_BUFFER_SIZE)];
+            var byteBuffer = ByteBuffer.wrap(buffer);
+
+            while (position < end) {
+                byteBuffer.clear().limit((int) Math.min(buffer.length, end - position));
+
+                var readStart = System.nanoTime();
+                var read = this.channel.read(byteBuffer, position);
+                this.transfers.blobReadSeconds.observeNanosAsSeconds(System.nanoTime() - readStart);
+                if (read < 0)
+                    throw new IOException("Blob file ended before the expected size, it was truncated?");
+
+                out.write(buffer, 0, read);
+                position += read;
+            }
+            this.store.localFileRead(this.key, length);
+        }
+
+        @Override
+        public InputStream open(long position, long length) throws IOException {
+            return this.store.get(this.key, position, length);
+        }
+
+    }
+
+    private record StoreSource(BlobStore blobStore, String key, long size, long lastModifiedMillis, TransferMetrics transfers) implements BlobSource {
+
+        @Override
+        public void writeAll(OutputStream out) throws IOException {
+            writeRegion(out, 0, this.size);
+        }
+
+        @Override
+        public void writeRegion(OutputStream out, long position, long length) throws IOException {
+            var buffer = new byte[(int) Math.min(length, READ_BUFFER_SIZE)];
+
+            try (var in = this.blobStore.get(this.key, position, length)) {
+                while (length > 0) {
+                    var readStart = System.nanoTime();
+                    var read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+                    this.transfers.blobReadSeconds.observeNanosAsSeconds(System.nanoTime() - readStart);
+                    if (read < 0)
+                        throw new IOException("Blob ended before the expected size, it was truncated?");
+
+                    out.write(buffer, 0, read);
+                    length -= read;
+                }
+            }
+        }
+
+        @Override
+        public InputStream open(long position, long length) throws IOException {
+            return this.blobStore.get(this.key, position, length);
+        }
+
+    }
+
+    private record CachedSource(BlobCache.CachedBlob blob) implements BlobSource {
+
+        @Override
+        public long size() {
+            return this.blob.size();
+        }
+
+        @Override
+        public long lastModifiedMillis() {
+            return this.blob.lastModifiedMillis();
+        }
+
+        @Override
+        public void writeAll(OutputStream out) throws IOException {
+            writeRegion(out, 0, size());
+        }
+
+        @Override
+        public void writeRegion(OutputStream out, long position, long length) throws IOException {
+            var region = this.blob.content().duplicate()
+                    .position((int) position)
+                    .limit((int) (position + length));
+
+            if (out instanceof HttpOutput httpOutput) {
+                httpOutput.write(region);
+                return;
+            }
+
+            var buffer = new byte[(int) Math.min(length, READ_BUFFER_SIZE)];
+            while (region.hasRemaining()) {
+                var chunk = Math.min(buffer.length, region.remaining());
+                region.get(buffer, 0, chunk);
+                out.write(buffer, 0, chunk);
+            }
+        }
+
+        @Override
+        public InputStream open(long position, long length) {
+            return this.blob.open(position, length);
+        }
+
+    }
+
+    /**
+     * The content of a compressed blob, decoded from the stored one.
+     */
+    private record DecodedSource(BlobSource stored, BlobEncoding encoding) implements BlobSource {
+
+        @Override
+        public long size() {
+            return this.encoding.size();
+        }
+
+        @Override
+        public long lastModifiedMillis() {
+            return this.stored.lastModifiedMillis();
+        }
+
+        @Override
+        public void writeAll(OutputStream out) throws IOException {
+            writeRegion(out, 0, size());
+        }
+
+        @Override
+        public void writeRegion(OutputStream out, long position, long length) throws IOException {
+            try (var in = open(position, length)) {
+                in.transferTo(out);
+            }
+        }
+
+        @Override
+        public InputStream open(long position, long length) throws IOException {
+            return FramedGzip.decode(this.stored::open, this.encoding, position, length);
+        }
+
+    }
+
+
+    /**
+     * Whether gzip is among the accepted content codings, explicitly or through a wildcard, and not refused with {@code q=0}.
+     */
+    private static boolean acceptsGzip(@Nullable String acceptEncoding) {
+        if (acceptEncoding == null)
+            return false;
+
+        for (var coding : acceptEncoding.split(",")) {
+            var parameters = coding.split(";");
+            var name = parameters[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equalsIgnoreCase("x-gzip") && !name.equals("*"))
+                continue;
+
+            var accepted = true;
+            for (int i = 1; i < parameters.length; i++) {
+                var parameter = parameters[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        accepted = Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+
+            if (accepted)
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * An If-Range header makes the Range conditional on the validator still matching,
+     * otherwise the full, current content is sent.
+     */
+    private static boolean ifRangeMatches(@Nullable String ifRange, String etag, long lastModifiedSeconds) {
+        if (ifRange == null)
+            return true;
+
+        ifRange = ifRange.trim();
+
+        if (ifRange.startsWith("W/"))
+            return false; // weak validators never match for ranges
+        if (ifRange.startsWith("\""))
+            return ifRange.equals(etag);
+
+        try {
+            return ZonedDateTime.parse(ifRange, HTTP_DATE).toEpochSecond() == lastModifiedSeconds;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+}
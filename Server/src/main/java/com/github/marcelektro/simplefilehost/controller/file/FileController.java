@@ -1,23 +1,45 @@
 package com.github.marcelektro.simplefilehost.controller.file;
 
+import com.github.marcelektro.simplefilehost.cache.BlobCache;
+import com.github.marcelektro.simplefilehost.config.Config;
 import com.github.marcelektro.simplefilehost.dto.ErrorResponse;
+import com.github.marcelektro.simplefilehost.dto.file.DeleteFilesRequestDto;
+import com.github.marcelektro.simplefilehost.dto.file.DeleteFilesResponseDto;
+import com.github.marcelektro.simplefilehost.dto.file.DownloadArchiveRequestDto;
 import com.github.marcelektro.simplefilehost.dto.file.FileMetaDto;
-import com.github.marcelektro.simplefilehost.dto.file.ListFilesResponseDto;
 import com.github.marcelektro.simplefilehost.dto.file.UploadFileResponseDto;
+import com.github.marcelektro.simplefilehost.metrics.TransferMetrics;
 import com.github.marcelektro.simplefilehost.service.file.FileUploadService;
+import com.github.marcelektro.simplefilehost.storage.BlobStore;
+import com.github.marcelektro.simplefilehost.util.Checks;
+import com.github.marcelektro.simplefilehost.util.MultipartStreamReader;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 
-import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.stream.Collectors;
 
 public class FileController {
 
+    private static final int MAX_LIST_LIMIT = 1000;
+    private static final int MAX_ARCHIVE_FILES = 10_000;
+    private static final int MAX_BATCH_SIZE = 10_000;
+
     private final FileUploadService fileUploadService;
+    private final Config.Upload uploadConfig;
+    private final BlobStore blobStore;
+    private final BlobCache blobCache;
+    private final TransferMetrics transfers;
+    private final BlobResponseWriter blobResponseWriter;
 
-    public FileController(FileUploadService fileUploadService) {
+    public FileController(FileUploadService fileUploadService, Config.Upload uploadConfig, BlobStore blobStore, BlobCache blobCache, TransferMetrics transfers) {
         this.fileUploadService = fileUploadService;
+        this.uploadConfig = uploadConfig;
+        this.blobStore = blobStore;
+        this.blobCache = blobCache;
+        this.transfers = transfers;
+        this.blobResponseWriter = new BlobResponseWriter(blobStore, blobCache, transfers);
     }
 
 
@@ -27,26 +49,51 @@ public class FileController {
         if (userId == null)
             throw new IllegalStateException("userId not found in context. Ensure authentication middleware is applied before this handler.");
 
-        var uploaded = ctx.uploadedFile("file");
-
-        if (uploaded == null) {
-            ctx.status(HttpStatus.BAD_REQUEST).json(ErrorResponse.of("FILE_MISSING", "No file uploaded as \"file\" form field"));
+        var boundary = MultipartStreamReader.extractBoundary(ctx.contentType());
+        if (boundary == null) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(ErrorResponse.of("NOT_MULTIPART", "Request must be multipart/form-data with a boundary"));
             return;
         }
 
-        var originalFilename = uploaded.filename();
-        var size = uploaded.size();
+        // Parse the body ourselves instead of `ctx.uploadedFile`, which would spool the whole part to a temp file first
+        var reader = new MultipartStreamReader(
+                ctx.req().getInputStream(),
+                boundary,
+                this.uploadConfig.bufferSize,
+                this.uploadConfig.maxPartHeaderSize
+        );
+
+        try {
+            MultipartStreamReader.Part part;
+            while ((part = reader.nextPart()) != null) {
+                if ("file".equals(part.name()) && part.filename() != null)
+                    break;
+            }
 
-        try (var inputStream = uploaded.content()) {
-            var fileRes = this.fileUploadService.uploadFile(userId, originalFilename, size, inputStream);
+            if (part == null) {
+                ctx.status(HttpStatus.BAD_REQUEST).json(ErrorResponse.of("FILE_MISSING", "No file uploaded as \"file\" form field"));
+                return;
+            }
+
+            var fileRes = this.fileUploadService.uploadFile(userId, part.filename(), part.content());
 
             if (!fileRes.isSuccess()) {
-                ctx.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                        .json(ErrorResponse.of(fileRes.getErrorCode(), fileRes.getMessage()));
+
+                switch (fileRes.getErrorCode()) {
+                    case "FILE_TOO_LARGE" -> ctx.status(HttpStatus.CONTENT_TOO_LARGE)
+                            .json(ErrorResponse.of(fileRes.getErrorCode(), fileRes.getMessage()));
+
+                    default -> ctx.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                            .json(ErrorResponse.of(fileRes.getErrorCode(), fileRes.getMessage()));
+                }
+
                 return;
             }
 
             ctx.status(HttpStatus.CREATED).json(new UploadFileResponseDto(fileRes.getData()));
+
+        } catch (MultipartStreamReader.MalformedMultipartException e) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(ErrorResponse.of("MALFORMED_MULTIPART", e.getMessage()));
         }
     }
 
@@ -76,9 +123,7 @@ public class FileController {
             return;
         }
 
-        ctx.header("Content-Disposition", "attachment; filename=\"" + result.getData().originalFilename() + "\"");
-        ctx.contentType("application/octet-stream");
-        ctx.status(HttpStatus.OK).result(Files.newInputStream(result.getData().file().toPath()));
+        this.blobResponseWriter.writeDownload(ctx, result.getData().blobKey(), result.getData().encoding(), result.getData().originalFilename());
 
     }
 
@@ -111,9 +156,49 @@ public class FileController {
             return;
         }
 
-        ctx.header("Content-Disposition", "attachment; filename=\"" + res.getData().originalFilename() + "\"");
-        ctx.contentType("application/octet-stream");
-        ctx.status(HttpStatus.OK).result(Files.newInputStream(res.getData().file().toPath()));
+        this.blobResponseWriter.writeDownload(ctx, res.getData().blobKey(), res.getData().encoding(), res.getData().originalFilename());
+    }
+
+
+    public void handleDownloadArchive(Context ctx) throws Exception {
+        String userId = ctx.attribute("userId");
+        if (userId == null)
+            throw new IllegalStateException("userId not found in context. Ensure authentication middleware is applied before this handler.");
+
+        var req = ctx.bodyValidator(DownloadArchiveRequestDto.class)
+                .check(r -> r.isAll() != (r.getFileIds() != null && !r.getFileIds().isEmpty()), "Either file IDs or all files must be requested")
+                .get();
+
+        if (req.getFileIds() != null && req.getFileIds().size() > MAX_ARCHIVE_FILES) {
+            ctx.status(HttpStatus.BAD_REQUEST)
+                    .json(ErrorResponse.of("TOO_MANY_FILES", "At most " + MAX_ARCHIVE_FILES + " files can be downloaded at once"));
+            return;
+        }
+
+        this.transfers.downloadStarted();
+        try {
+            var writer = new ArchiveResponseWriter(ctx, this.blobStore, this.blobCache, this.transfers, req.isDeflate());
+
+            var res = fileUploadService.archiveFiles(userId, req.isAll() ? null : req.getFileIds(), writer::write);
+
+            if (!res.isSuccess()) {
+                if (writer.started())
+                    throw new IllegalStateException("Archive failed after it was partially sent: " + res.getErrorCode());
+
+                switch (res.getErrorCode()) {
+                    case "FILE_NOT_FOUND" -> ctx.status(HttpStatus.NOT_FOUND).json(ErrorResponse.of("FILE_NOT_FOUND", "File not found or access denied"));
+
+                    default -> ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).json(ErrorResponse.of(res.getErrorCode(), res.getMessage()));
+                }
+
+                return;
+            }
+
+            writer.finish();
+
+        } finally {
+            this.transfers.downloadFinished();
+        }
     }
 
 
@@ -137,18 +222,33 @@ public class FileController {
         }
 
 
-        var filesRes = fileUploadService.listFiles(userId, sortBy);
-
-        var res = filesRes.getData().stream()
-                .map(uploadedFileSummary -> new FileMetaDto(
-                        uploadedFileSummary.fileId,
-                        uploadedFileSummary.filename,
-                        uploadedFileSummary.size,
-                        uploadedFileSummary.uploadDate,
-                        uploadedFileSummary.sharedLinksCount
-                )).toList();
+        var limit = ctx.queryParamAsClass("limit", Integer.class)
+                .check(l -> l > 0 && l <= MAX_LIST_LIMIT, "Limit must be between 1 and " + MAX_LIST_LIMIT)
+                .getOrDefault(0);
+
+        try (var writer = new FileListJsonWriter(ctx)) {
+            var res = fileUploadService.listFiles(userId, sortBy, ctx.queryParam("cursor"), limit, summary -> writer.write(new FileMetaDto(
+                    summary.fileId,
+                    summary.filename,
+                    summary.size,
+                    summary.uploadDate,
+                    summary.sharedLinksCount
+            )));
+
+            if (!res.isSuccess()) {
+                if (writer.started())
+                    throw new IllegalStateException("Listing failed after it was partially sent: " + res.getErrorCode());
+
+                var status = switch (res.getErrorCode()) {
+                    case "INVALID_CURSOR" -> HttpStatus.BAD_REQUEST;
+                    default -> HttpStatus.INTERNAL_SERVER_ERROR;
+                };
+                ctx.status(status).json(ErrorResponse.of(res.getErrorCode(), res.getMessage()));
+                return;
+            }
 
-        ctx.json(new ListFilesResponseDto(res));
+            writer.finish(res.getData());
+        }
 
     }
 
@@ -179,5 +279,38 @@ public class FileController {
 
     }
 
+    public void handleDeleteFiles(Context ctx) throws Exception {
+        String userId = ctx.attribute("userId");
+        if (userId == null)
+            throw new IllegalStateException("userId not found in context. Ensure authentication middleware is applied before this handler.");
+
+        var req = ctx.bodyValidator(DeleteFilesRequestDto.class)
+                .check(r -> r.getFileIds() != null && !r.getFileIds().isEmpty(), "File IDs must not be empty")
+                // every check runs, even after the one above failed
+                .check(r -> r.getFileIds() == null || r.getFileIds().stream().allMatch(Checks::nonEmpty), "File IDs must not be empty")
+                .get();
+
+        if (req.getFileIds().size() > MAX_BATCH_SIZE) {
+            ctx.status(HttpStatus.BAD_REQUEST)
+                    .json(ErrorResponse.of("TOO_MANY_FILES", "At most " + MAX_BATCH_SIZE + " files can be deleted at once"));
+            return;
+        }
+
+        var res = fileUploadService.deleteFiles(userId, req.getFileIds());
+
+        if (!res.isSuccess()) {
+            ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).json(ErrorResponse.of(res.getErrorCode(), res.getMessage()));
+            return;
+        }
+
+        var results = new ArrayList<DeleteFilesResponseDto.Result>(res.getData().size());
+        for (int i = 0; i < res.getData().size(); i++) {
+            var item = res.getData().get(i);
+            results.add(new DeleteFilesResponseDto.Result(req.getFileIds().get(i), item.isSuccess(), item.getErrorCode()));
+        }
+
+        ctx.status(HttpStatus.OK).json(new DeleteFilesResponseDto(results));
+    }
+
 
 }
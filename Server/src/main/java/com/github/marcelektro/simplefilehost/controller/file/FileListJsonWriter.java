@@ -0,0 +1,68 @@
+package com.github.marcelektro.simplefilehost.controller.file;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.github.marcelektro.simplefilehost.dto.file.FileMetaDto;
+import com.github.marcelektro.simplefilehost.json.StreamingJsonMapper;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Writes the file listing ({@code {"files": [...], "nextCursor": ...}}) to the response as the files come in,
+ * so the listing is never held in memory as a whole.
+ * <p>
+ * Nothing is written before the first file (or {@link #finish}), so an error found before that can still be sent as a regular error response.
+ */
+class FileListJsonWriter implements AutoCloseable {
+
+    private final Context ctx;
+    private @Nullable JsonGenerator generator;
+
+
+    FileListJsonWriter(Context ctx) {
+        this.ctx = ctx;
+    }
+
+
+    void write(FileMetaDto file) throws IOException {
+        var gen = start();
+
+        StreamingJsonMapper.writeValue(gen, file);
+    }
+
+    void finish(@Nullable String nextCursor) throws IOException {
+        var gen = start();
+
+        gen.writeEndArray();
+        gen.writeStringField("nextCursor", nextCursor);
+        gen.writeEndObject();
+    }
+
+    boolean started() {
+        return this.generator != null;
+    }
+
+    private JsonGenerator start() throws IOException {
+        if (this.generator != null)
+            return this.generator;
+
+        this.ctx.status(HttpStatus.OK);
+        this.ctx.contentType("application/json");
+
+        this.generator = StreamingJsonMapper.JSON_FACTORY.createGenerator(this.ctx.res().getOutputStream());
+        this.generator.writeStartObject();
+        this.generator.writeArrayFieldStart("files");
+
+        return this.generator;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        if (this.generator != null)
+            this.generator.close();
+    }
+
+}
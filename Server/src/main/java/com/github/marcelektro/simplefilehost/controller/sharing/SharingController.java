@@ -7,8 +7,12 @@ import com.github.marcelektro.simplefilehost.util.Checks;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 
+import java.util.ArrayList;
+
 public class SharingController {
 
+    private static final int MAX_BATCH_SIZE = 10_000;
+
     private final ShareLinkService shareLinkService;
 
     public SharingController(ShareLinkService shareLinkService) {
@@ -49,6 +53,46 @@ public class SharingController {
     }
 
 
+    public void handleCreateShareLinks(Context ctx) throws Exception {
+        String userId = ctx.attribute("userId");
+        if (userId == null)
+            throw new IllegalStateException("userId not found in context. Ensure authentication middleware is applied before this handler.");
+
+        var req = ctx.bodyValidator(CreateShareLinksRequestDto.class)
+                .check(r -> r.getLinks() != null && !r.getLinks().isEmpty(), "Links must not be empty")
+                // every check runs, even after the one above failed
+                .check(r -> r.getLinks() == null || r.getLinks().stream().allMatch(l -> l != null && Checks.nonEmpty(l.getFileId())), "File ID must not be empty")
+                .get();
+
+        if (req.getLinks().size() > MAX_BATCH_SIZE) {
+            ctx.status(HttpStatus.BAD_REQUEST)
+                    .json(ErrorResponse.of("TOO_MANY_LINKS", "At most " + MAX_BATCH_SIZE + " links can be created at once"));
+            return;
+        }
+
+        var links = req.getLinks().stream()
+                .map(l -> new ShareLinkService.NewShareLink(l.getFileId(), l.getPassword(), l.getExpiry()))
+                .toList();
+
+        var res = shareLinkService.createShareLinks(userId, links);
+
+        if (!res.isSuccess()) {
+            ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).json(ErrorResponse.of(res.getErrorCode(), res.getMessage()));
+            return;
+        }
+
+        var results = new ArrayList<CreateShareLinksResponseDto.Result>(res.getData().size());
+        for (int i = 0; i < res.getData().size(); i++) {
+            var item = res.getData().get(i);
+            // reported like the single create does
+            var errorType = "ACCESS_DENIED".equals(item.getErrorCode()) ? "FILE_NOT_FOUND" : item.getErrorCode();
+            results.add(new CreateShareLinksResponseDto.Result(links.get(i).fileId(), item.getData(), errorType));
+        }
+
+        ctx.status(HttpStatus.CREATED).json(new CreateShareLinksResponseDto(results));
+    }
+
+
     public void handleUpdateShareLink(Context ctx) throws Exception {
         String userId = ctx.attribute("userId");
         if (userId == null)
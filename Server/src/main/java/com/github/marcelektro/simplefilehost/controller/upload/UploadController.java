@@ -0,0 +1,139 @@
+package com.github.marcelektro.simplefilehost.controller.upload;
+
+import com.github.marcelektro.simplefilehost.dto.ErrorResponse;
+import com.github.marcelektro.simplefilehost.dto.upload.CreateUploadSessionRequestDto;
+import com.github.marcelektro.simplefilehost.dto.upload.FinalizeUploadResponseDto;
+import com.github.marcelektro.simplefilehost.dto.upload.UploadSessionDto;
+import com.github.marcelektro.simplefilehost.service.ServiceResult;
+import com.github.marcelektro.simplefilehost.service.file.ResumableUploadService;
+import com.github.marcelektro.simplefilehost.util.Checks;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+public class UploadController {
+
+    private final ResumableUploadService uploadService;
+
+    public UploadController(ResumableUploadService uploadService) {
+        this.uploadService = uploadService;
+    }
+
+
+    public void handleCreateSession(Context ctx) throws Exception {
+        String userId = ctx.attribute("userId");
+        if (userId == null)
+            throw new IllegalStateException("userId not found in context. Ensure authentication middleware is applied before this handler.");
+
+        var req = ctx.bodyValidator(CreateUploadSessionRequestDto.class)
+                .check(r -> Checks.nonEmpty(r.getFilename()), "Filename must not be empty")
+                .check(r -> r.getSize() >= 0, "Size must not be negative")
+                .get();
+
+        var res = this.uploadService.createSession(userId, req.getFilename(), req.getSize());
+
+        if (!res.isSuccess()) {
+            respondWithError(ctx, res);
+            return;
+        }
+
+        ctx.status(HttpStatus.CREATED).json(toDto(res.getData()));
+    }
+
+
+    public void handleGetSession(Context ctx) throws Exception {
+        String userId = ctx.attribute("userId");
+        if (userId == null)
+            throw new IllegalStateException("userId not found in context. Ensure authentication middleware is applied before this handler.");
+
+        var res = this.uploadService.getSession(userId, ctx.pathParam("uploadId"));
+
+        if (!res.isSuccess()) {
+            respondWithError(ctx, res);
+            return;
+        }
+
+        ctx.status(HttpStatus.OK).json(toDto(res.getData()));
+    }
+
+
+    public void handleWriteChunk(Context ctx) throws Exception {
+        String userId = ctx.attribute("userId");
+        if (userId == null)
+            throw new IllegalStateException("userId not found in context. Ensure authentication middleware is applied before this handler.");
+
+        var offset = ctx.queryParamAsClass("offset", Long.class)
+                .check(o -> o >= 0, "Offset must not be negative")
+                .get();
+
+        // -1 for chunked transfer encoding, the service then reads until the end of the body
+        var length = ctx.req().getContentLengthLong();
+
+        var res = this.uploadService.writeChunk(userId, ctx.pathParam("uploadId"), offset, length, ctx.req().getInputStream());
+
+        if (!res.isSuccess()) {
+            respondWithError(ctx, res);
+            return;
+        }
+
+        ctx.status(HttpStatus.OK).json(toDto(res.getData()));
+    }
+
+
+    public void handleFinalize(Context ctx) throws Exception {
+        String userId = ctx.attribute("userId");
+        if (userId == null)
+            throw new IllegalStateException("userId not found in context. Ensure authentication middleware is applied before this handler.");
+
+        var res = this.uploadService.finalizeSession(userId, ctx.pathParam("uploadId"));
+
+        if (!res.isSuccess()) {
+            respondWithError(ctx, res);
+            return;
+        }
+
+        ctx.status(HttpStatus.CREATED).json(new FinalizeUploadResponseDto(res.getData()));
+    }
+
+
+    public void handleAbort(Context ctx) throws Exception {
+        String userId = ctx.attribute("userId");
+        if (userId == null)
+            throw new IllegalStateException("userId not found in context. Ensure authentication middleware is applied before this handler.");
+
+        var res = this.uploadService.abortSession(userId, ctx.pathParam("uploadId"));
+
+        if (!res.isSuccess()) {
+            respondWithError(ctx, res);
+            return;
+        }
+
+        ctx.status(HttpStatus.NO_CONTENT);
+    }
+
+
+    private static void respondWithError(Context ctx, ServiceResult<?> res) {
+        var status = switch (res.getErrorCode()) {
+            case "SESSION_NOT_FOUND" -> HttpStatus.NOT_FOUND;
+            case "INVALID_SIZE", "INVALID_OFFSET", "CHUNK_OUT_OF_BOUNDS" -> HttpStatus.BAD_REQUEST;
+            case "FILE_TOO_LARGE", "CHUNK_TOO_LARGE" -> HttpStatus.CONTENT_TOO_LARGE;
+            case "SESSION_CLOSING", "UPLOAD_INCOMPLETE" -> HttpStatus.CONFLICT;
+            case "FINALIZE_FAILED" -> HttpStatus.SERVICE_UNAVAILABLE;
+
+            default -> HttpStatus.INTERNAL_SERVER_ERROR;
+        };
+
+        ctx.status(status).json(ErrorResponse.of(res.getErrorCode(), res.getMessage()));
+    }
+
+    private static UploadSessionDto toDto(ResumableUploadService.UploadSession session) {
+        return new UploadSessionDto(
+                session.uploadId(),
+                session.originalFilename(),
+                session.size(),
+                session.offset(),
+                session.receivedBytes(),
+                session.expiresAt()
+        );
+    }
+
+}
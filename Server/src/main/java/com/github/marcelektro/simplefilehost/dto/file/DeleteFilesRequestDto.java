@@ -7,8 +7,8 @@ import java.util.List;
 
 @Data
 @AllArgsConstructor
-public class ListFilesResponseDto {
+public class DeleteFilesRequestDto {
 
-    private List<FileMetaDto> files;
+    private List<String> fileIds;
 
 }
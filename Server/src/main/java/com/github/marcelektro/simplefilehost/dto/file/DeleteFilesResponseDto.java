@@ -0,0 +1,32 @@
+package com.github.marcelektro.simplefilehost.dto.file;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class DeleteFilesResponseDto {
+
+    /**
+     * One per requested file, in the same order.
+     */
+    private List<Result> results;
+
+
+    @Data
+    @AllArgsConstructor
+    public static class Result {
+
+        private String fileId;
+
+        private boolean deleted;
+
+        @Nullable
+        private String errorType;
+
+    }
+
+}
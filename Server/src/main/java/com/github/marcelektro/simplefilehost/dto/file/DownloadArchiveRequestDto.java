@@ -0,0 +1,26 @@
+package com.github.marcelektro.simplefilehost.dto.file;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class DownloadArchiveRequestDto {
+
+    /**
+     * The files to include, in this order. Either these or {@link #all}.
+     */
+    @Nullable
+    private List<String> fileIds;
+
+    private boolean all;
+
+    /**
+     * Compress the entries, otherwise they're stored as is.
+     */
+    private boolean deflate;
+
+}
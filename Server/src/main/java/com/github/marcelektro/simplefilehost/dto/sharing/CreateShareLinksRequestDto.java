@@ -0,0 +1,14 @@
+package com.github.marcelektro.simplefilehost.dto.sharing;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class CreateShareLinksRequestDto {
+
+    private List<CreateShareLinkRequestDto> links;
+
+}
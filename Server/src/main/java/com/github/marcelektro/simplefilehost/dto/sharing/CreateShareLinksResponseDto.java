@@ -0,0 +1,36 @@
+package com.github.marcelektro.simplefilehost.dto.sharing;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class CreateShareLinksResponseDto {
+
+    /**
+     * One per requested link, in the same order.
+     */
+    private List<Result> results;
+
+
+    @Data
+    @AllArgsConstructor
+    public static class Result {
+
+        private String fileId;
+
+        /**
+         * Null if the link wasn't created.
+         */
+        @Nullable
+        private String shareLinkId;
+
+        @Nullable
+        private String errorType;
+
+    }
+
+}
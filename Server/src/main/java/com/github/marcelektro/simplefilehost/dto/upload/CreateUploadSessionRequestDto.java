@@ -0,0 +1,14 @@
+package com.github.marcelektro.simplefilehost.dto.upload;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class CreateUploadSessionRequestDto {
+
+    private String filename;
+
+    private long size;
+
+}
@@ -0,0 +1,12 @@
+package com.github.marcelektro.simplefilehost.dto.upload;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class FinalizeUploadResponseDto {
+
+    private String fileId;
+
+}
@@ -0,0 +1,19 @@
+package com.github.marcelektro.simplefilehost.dto.upload;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+@AllArgsConstructor
+public class UploadSessionDto {
+
+    private String uploadId;
+    private String filename;
+    private long size;
+    private long offset;
+    private long receivedBytes;
+    private LocalDateTime expiresAt;
+
+}
@@ -0,0 +1,54 @@
+package com.github.marcelektro.simplefilehost.json;
+
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.CharacterEscapes;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Escapes strings exactly like Gson does by default, so responses stay byte for byte what they were:
+ * HTML-sensitive characters and the JavaScript line separators are escaped too, and hex escapes are lowercase.
+ */
+final class GsonCompatibleEscapes extends CharacterEscapes {
+
+    private static final int[] ASCII_ESCAPES = CharacterEscapes.standardAsciiEscapesForJSON();
+    private static final SerializableString[] ASCII_SEQUENCES = new SerializableString[128];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            // Jackson's own hex escapes are uppercase, the short ones (\n etc.) are the same as Gson's
+            if (ASCII_ESCAPES[c] == CharacterEscapes.ESCAPE_STANDARD)
+                escape(c);
+        }
+
+        for (var c : new char[]{'<', '>', '&', '=', '\''})
+            escape(c);
+    }
+
+    private static final SerializableString LINE_SEPARATOR = new SerializedString("\\u2028");
+    private static final SerializableString PARAGRAPH_SEPARATOR = new SerializedString("\\u2029");
+
+
+    private static void escape(int c) {
+        ASCII_ESCAPES[c] = CharacterEscapes.ESCAPE_CUSTOM;
+        ASCII_SEQUENCES[c] = new SerializedString(String.format("\\u%04x", c));
+    }
+
+
+    @Override
+    public int[] getEscapeCodesForAscii() {
+        return ASCII_ESCAPES;
+    }
+
+    @Override
+    public SerializableString getEscapeSequence(int c) {
+        if (c < 128)
+            return ASCII_SEQUENCES[c];
+
+        return switch (c) {
+            case 0x2028 -> LINE_SEPARATOR;
+            case 0x2029 -> PARAGRAPH_SEPARATOR;
+            default -> null;
+        };
+    }
+
+}
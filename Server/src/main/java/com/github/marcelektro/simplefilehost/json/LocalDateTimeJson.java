@@ -0,0 +1,76 @@
+package com.github.marcelektro.simplefilehost.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Writes dates in {@link DateTimeFormatter#ISO_LOCAL_DATE_TIME}, the format the API has always used,
+ * straight into the generator instead of formatting a String for each one.
+ */
+public final class LocalDateTimeJson {
+
+    // yyyy-MM-ddTHH:mm:ss.nnnnnnnnn
+    private static final int MAX_LENGTH = 29;
+
+
+    private LocalDateTimeJson() {
+    }
+
+
+    public static void write(JsonGenerator gen, @Nullable LocalDateTime date) throws IOException {
+        if (date == null) {
+            gen.writeNull();
+            return;
+        }
+
+        // years beyond four digits get a sign, leave those to the formatter
+        if (date.getYear() < 0 || date.getYear() > 9999) {
+            gen.writeString(date.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+            return;
+        }
+
+        var buf = new char[MAX_LENGTH];
+        var pos = digits(buf, 0, date.getYear(), 4);
+        buf[pos++] = '-';
+        pos = digits(buf, pos, date.getMonthValue(), 2);
+        buf[pos++] = '-';
+        pos = digits(buf, pos, date.getDayOfMonth(), 2);
+        buf[pos++] = 'T';
+        pos = digits(buf, pos, date.getHour(), 2);
+        buf[pos++] = ':';
+        pos = digits(buf, pos, date.getMinute(), 2);
+        buf[pos++] = ':';
+        pos = digits(buf, pos, date.getSecond(), 2);
+
+        var nanos = date.getNano();
+        if (nanos > 0) {
+            // as many fraction digits as needed, no trailing zeros
+            var fractionDigits = 9;
+            while (nanos % 10 == 0) {
+                nanos /= 10;
+                fractionDigits--;
+            }
+
+            buf[pos++] = '.';
+            pos = digits(buf, pos, nanos, fractionDigits);
+        }
+
+        gen.writeString(buf, 0, pos);
+    }
+
+    /**
+     * Writes the value zero padded to the given number of digits.
+     */
+    private static int digits(char[] buf, int pos, int value, int count) {
+        for (int i = pos + count - 1; i >= pos; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + count;
+    }
+
+}
@@ -0,0 +1,284 @@
+package com.github.marcelektro.simplefilehost.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonFactoryBuilder;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.json.JsonWriteFeature;
+import com.github.marcelektro.simplefilehost.dto.ErrorResponse;
+import com.github.marcelektro.simplefilehost.dto.auth.LoginResponseDto;
+import com.github.marcelektro.simplefilehost.dto.auth.MeResponseDto;
+import com.github.marcelektro.simplefilehost.dto.file.FileDownloadErrorResponseDto;
+import com.github.marcelektro.simplefilehost.dto.file.FileMetaDto;
+import com.github.marcelektro.simplefilehost.dto.file.UploadFileResponseDto;
+import com.github.marcelektro.simplefilehost.dto.sharing.*;
+import com.github.marcelektro.simplefilehost.dto.upload.FinalizeUploadResponseDto;
+import com.github.marcelektro.simplefilehost.dto.upload.UploadSessionDto;
+import com.google.gson.Gson;
+import io.javalin.json.JsonMapper;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Serializes responses with hand-written writers per DTO straight onto a jackson-core generator,
+ * instead of Gson's reflective walk, while producing exactly the JSON Gson did.
+ * <p>
+ * Request bodies are still read by Gson, as are responses of types without a writer here.
+ */
+public class StreamingJsonMapper implements JsonMapper {
+
+    /**
+     * Configured to escape like Gson, use this for any JSON written to responses.
+     */
+    public static final JsonFactory JSON_FACTORY = new JsonFactoryBuilder()
+            .characterEscapes(new GsonCompatibleEscapes())
+            // otherwise characters outside the BMP come out as escaped surrogate pairs, Gson writes them as they are
+            .enable(JsonWriteFeature.COMBINE_UNICODE_SURROGATES_IN_UTF8)
+            .build();
+
+    private static final Map<Class<?>, ValueWriter<?>> WRITERS = new HashMap<>();
+
+    private final Gson gson;
+
+
+    /**
+     * @param gson reads request bodies and writes whatever there's no writer for, configured as before
+     */
+    public StreamingJsonMapper(Gson gson) {
+        this.gson = gson;
+    }
+
+
+    @FunctionalInterface
+    private interface ValueWriter<T> {
+        void write(JsonGenerator gen, T value) throws IOException;
+    }
+
+    private static <T> void register(Class<T> type, ValueWriter<T> writer) {
+        WRITERS.put(type, writer);
+    }
+
+    /**
+     * Writes a DTO, in the same field order Gson uses (declaration order).
+     *
+     * @throws IllegalArgumentException if there's no writer for its type
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> void writeValue(JsonGenerator gen, T value) throws IOException {
+        var writer = (ValueWriter<T>) WRITERS.get(value.getClass());
+        if (writer == null)
+            throw new IllegalArgumentException("No JSON writer for " + value.getClass().getName());
+
+        writer.write(gen, value);
+    }
+
+    static boolean hasWriter(Class<?> type) {
+        return WRITERS.containsKey(type);
+    }
+
+
+    static {
+        register(ErrorResponse.class, (gen, dto) -> {
+            gen.writeStartObject();
+            gen.writeStringField("errorType", dto.getErrorType());
+            gen.writeStringField("errorMessage", dto.getErrorMessage());
+            gen.writeEndObject();
+        });
+
+        register(LoginResponseDto.class, (gen, dto) -> {
+            gen.writeStartObject();
+            gen.writeNumberField("userId", dto.getUserId());
+            gen.writeStringField("username", dto.getUsername());
+            gen.writeStringField("token", dto.getToken());
+            gen.writeEndObject();
+        });
+
+        register(MeResponseDto.class, (gen, dto) -> {
+            gen.writeStartObject();
+            gen.writeNumberField("userId", dto.getUserId());
+            gen.writeEndObject();
+        });
+
+        register(FileDownloadErrorResponseDto.class, (gen, dto) -> {
+            gen.writeStartObject();
+            gen.writeStringField("errorMessage", dto.getErrorMessage());
+            gen.writeEndObject();
+        });
+
+        register(FileMetaDto.class, (gen, dto) -> {
+            gen.writeStartObject();
+            gen.writeStringField("fileId", dto.getFileId());
+            gen.writeStringField("filename", dto.getFilename());
+            gen.writeNumberField("size", dto.getSize());
+            gen.writeFieldName("uploadedAt");
+            LocalDateTimeJson.write(gen, dto.getUploadedAt());
+            gen.writeNumberField("sharedLinksCount", dto.getSharedLinksCount());
+            gen.writeEndObject();
+        });
+
+        register(UploadFileResponseDto.class, (gen, dto) -> {
+            gen.writeStartObject();
+            gen.writeStringField("fileId", dto.getFileId());
+            gen.writeEndObject();
+        });
+
+        register(CreateShareLinkResponseDto.class, (gen, dto) -> {
+            gen.writeStartObject();
+            gen.writeStringField("shareLinkId", dto.getShareLinkId());
+            gen.writeEndObject();
+        });
+
+        register(ShareLinkDto.class, (gen, dto) -> {
+            gen.writeStartObject();
+            gen.writeStringField("shareLinkId", dto.getShareLinkId());
+            gen.writeFieldName("expiry");
+            LocalDateTimeJson.write(gen, dto.getExpiry());
+            gen.writeStringField("password", dto.getPassword());
+            gen.writeEndObject();
+        });
+
+        register(ListShareLinksResponseDto.class, (gen, dto) -> {
+            gen.writeStartObject();
+            gen.writeStringField("fileId", dto.getFileId());
+            gen.writeFieldName("links");
+            if (dto.getLinks() == null) {
+                gen.writeNull();
+            } else {
+                gen.writeStartArray();
+                for (var link : dto.getLinks())
+                    writeValue(gen, link);
+                gen.writeEndArray();
+            }
+            gen.writeEndObject();
+        });
+
+        register(ShareLinkInfoDto.class, (gen, dto) -> {
+            gen.writeStartObject();
+            gen.writeStringField("shareLinkId", dto.getShareLinkId());
+            gen.writeStringField("fileId", dto.getFileId());
+            gen.writeStringField("password", dto.getPassword());
+            gen.writeFieldName("expiry");
+            LocalDateTimeJson.write(gen, dto.getExpiry());
+            gen.writeEndObject();
+        });
+
+        register(ShareLinkValidationResultDto.class, (gen, dto) -> {
+            gen.writeStartObject();
+            gen.writeStringField("linkId", dto.getLinkId());
+            gen.writeStringField("fileId", dto.getFileId());
+            gen.writeStringField("filename", dto.getFilename());
+            gen.writeNumberField("fileSize", dto.getFileSize());
+            gen.writeBooleanField("hasPassword", dto.isHasPassword());
+            gen.writeBooleanField("validPassword", dto.isValidPassword());
+            gen.writeFieldName("expiry");
+            LocalDateTimeJson.write(gen, dto.getExpiry());
+            gen.writeBooleanField("hasExpired", dto.isHasExpired());
+            gen.writeEndObject();
+        });
+
+        register(FinalizeUploadResponseDto.class, (gen, dto) -> {
+            gen.writeStartObject();
+            gen.writeStringField("fileId", dto.getFileId());
+            gen.writeEndObject();
+        });
+
+        register(UploadSessionDto.class, (gen, dto) -> {
+            gen.writeStartObject();
+            gen.writeStringField("uploadId", dto.getUploadId());
+            gen.writeStringField("filename", dto.getFilename());
+            gen.writeNumberField("size", dto.getSize());
+            gen.writeNumberField("offset", dto.getOffset());
+            gen.writeNumberField("receivedBytes", dto.getReceivedBytes());
+            gen.writeFieldName("expiresAt");
+            LocalDateTimeJson.write(gen, dto.getExpiresAt());
+            gen.writeEndObject();
+        });
+    }
+
+
+    @NotNull
+    @Override
+    public String toJsonString(@NotNull Object obj, @NotNull Type type) {
+        if (!hasWriter(obj.getClass()))
+            return this.gson.toJson(obj, type);
+
+        var out = new StringWriter(128);
+        try (var gen = JSON_FACTORY.createGenerator(out)) {
+            writeValue(gen, obj);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes UTF-8 directly, skipping the String and its encoding that {@link #toJsonString} costs.
+     */
+    @NotNull
+    @Override
+    public InputStream toJsonStream(@NotNull Object obj, @NotNull Type type) {
+        if (!hasWriter(obj.getClass()))
+            return new ByteArrayInputStream(this.gson.toJson(obj, type).getBytes(StandardCharsets.UTF_8));
+
+        var out = new ExposedByteArrayOutputStream();
+        try (var gen = JSON_FACTORY.createGenerator(out)) {
+            writeValue(gen, obj);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toInputStream();
+    }
+
+    @Override
+    public void writeToOutputStream(@NotNull Stream<?> stream, @NotNull OutputStream outputStream) {
+        try (var gen = JSON_FACTORY.createGenerator(outputStream)) {
+            gen.writeStartArray();
+
+            for (var it = stream.iterator(); it.hasNext(); ) {
+                var value = it.next();
+                if (hasWriter(value.getClass()))
+                    writeValue(gen, value);
+                else
+                    gen.writeRawValue(this.gson.toJson(value));
+            }
+
+            gen.writeEndArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @NotNull
+    @Override
+    public <T> T fromJsonString(@NotNull String json, @NotNull Type targetType) {
+        return this.gson.fromJson(json, targetType);
+    }
+
+    @NotNull
+    @Override
+    public <T> T fromJsonStream(@NotNull InputStream json, @NotNull Type targetType) {
+        return this.gson.fromJson(new InputStreamReader(json, StandardCharsets.UTF_8), targetType);
+    }
+
+
+    /**
+     * Hands its buffer to the input stream as is, instead of copying it.
+     */
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        private ExposedByteArrayOutputStream() {
+            super(256);
+        }
+
+        private InputStream toInputStream() {
+            return new ByteArrayInputStream(this.buf, 0, this.count);
+        }
+
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.github.marcelektro.simplefilehost.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonically increasing count, rendered as a Prometheus {@code counter}.
+ */
+public class Counter implements Metric {
+
+    private final String name;
+    private final String help;
+    private final String labels;
+    private final LongAdder value = new LongAdder();
+
+
+    Counter(String name, String help, String labels) {
+        this.name = name;
+        this.help = help;
+        this.labels = labels;
+    }
+
+
+    public void increment() {
+        this.value.increment();
+    }
+
+    public void add(long amount) {
+        this.value.add(amount);
+    }
+
+    public long get() {
+        return this.value.sum();
+    }
+
+
+    @Override
+    public String name() {
+        return this.name;
+    }
+
+    @Override
+    public String help() {
+        return this.help;
+    }
+
+    @Override
+    public String type() {
+        return "counter";
+    }
+
+    @Override
+    public String labels() {
+        return this.labels;
+    }
+
+    @Override
+    public void writeSamples(StringBuilder out) {
+        MetricsRegistry.appendSampleName(out, this.name, this.labels);
+        out.append(' ').append(get()).append('\n');
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.github.marcelektro.simplefilehost.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value read from its owner at scrape time, rendered as a Prometheus {@code gauge}.
+ */
+public class Gauge implements Metric {
+
+    private final String name;
+    private final String help;
+    private final String labels;
+    private final DoubleSupplier value;
+
+
+    Gauge(String name, String help, String labels, DoubleSupplier value) {
+        this.name = name;
+        this.help = help;
+        this.labels = labels;
+        this.value = value;
+    }
+
+
+    @Override
+    public String name() {
+        return this.name;
+    }
+
+    @Override
+    public String help() {
+        return this.help;
+    }
+
+    @Override
+    public String type() {
+        return "gauge";
+    }
+
+    @Override
+    public String labels() {
+        return this.labels;
+    }
+
+    @Override
+    public void writeSamples(StringBuilder out) {
+        MetricsRegistry.appendSampleName(out, this.name, this.labels);
+        out.append(' ').append(this.value.getAsDouble()).append('\n');
+    }
+
+}
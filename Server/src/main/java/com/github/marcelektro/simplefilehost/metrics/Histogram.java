@@ -0,0 +1,126 @@
+package com.github.marcelektro.simplefilehost.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket histogram, rendered as a Prometheus {@code histogram}.
+ * Observing is lock-free and doesn't allocate.
+ */
+public class Histogram implements Metric {
+
+    private final String name;
+    private final String help;
+    private final String labels;
+
+    private final double[] upperBounds;
+    private final LongAdder[] bucketCounts; // one more than bounds, the last is +Inf
+    private final DoubleAdder sum = new DoubleAdder();
+
+
+    Histogram(String name, String help, String labels, double[] upperBounds) {
+        this.name = name;
+        this.help = help;
+        this.labels = labels;
+        this.upperBounds = upperBounds.clone();
+        Arrays.sort(this.upperBounds);
+
+        this.bucketCounts = new LongAdder[this.upperBounds.length + 1];
+        for (int i = 0; i < this.bucketCounts.length; i++)
+            this.bucketCounts[i] = new LongAdder();
+    }
+
+
+    public void observe(double value) {
+        var index = Arrays.binarySearch(this.upperBounds, value);
+        if (index < 0)
+            index = -index - 1; // first bound greater than the value
+
+        this.bucketCounts[index].increment();
+        this.sum.add(value);
+    }
+
+    public void observeNanosAsSeconds(long nanos) {
+        observe(nanos / 1e9);
+    }
+
+
+    public long count() {
+        long count = 0;
+        for (var bucket : this.bucketCounts)
+            count += bucket.sum();
+        return count;
+    }
+
+    public double sum() {
+        return this.sum.sum();
+    }
+
+
+    @Override
+    public String name() {
+        return this.name;
+    }
+
+    @Override
+    public String help() {
+        return this.help;
+    }
+
+    @Override
+    public String type() {
+        return "histogram";
+    }
+
+    @Override
+    public String labels() {
+        return this.labels;
+    }
+
+    @Override
+    public void writeSamples(StringBuilder out) {
+        var bucketLabels = this.labels.isEmpty() ? "le=\"" : this.labels + ",le=\"";
+
+        // Prometheus buckets are cumulative
+        long cumulative = 0;
+        for (int i = 0; i < this.upperBounds.length; i++) {
+            cumulative += this.bucketCounts[i].sum();
+            out.append(this.name).append("_bucket{").append(bucketLabels).append(formatBound(this.upperBounds[i])).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += this.bucketCounts[this.upperBounds.length].sum();
+
+        out.append(this.name).append("_bucket{").append(bucketLabels).append("+Inf\"} ").append(cumulative).append('\n');
+        MetricsRegistry.appendSampleName(out, this.name + "_sum", this.labels);
+        out.append(' ').append(sum()).append('\n');
+        MetricsRegistry.appendSampleName(out, this.name + "_count", this.labels);
+        out.append(' ').append(cumulative).append('\n');
+    }
+
+    private static String formatBound(double bound) {
+        return bound == Math.rint(bound) ? String.valueOf((long) bound) : String.valueOf(bound);
+    }
+
+
+    /**
+     * Log-scale bounds for request and I/O latencies in seconds, from 0.1ms to about 70s,
+     * two per doubling, so any value lands in a bucket at most ~41% wider than itself.
+     */
+    public static double[] latencyBuckets() {
+        return exponentialBuckets(0.0001, Math.sqrt(2), 40);
+    }
+
+    /**
+     * Bounds growing by {@code factor}, starting at {@code start}.
+     */
+    public static double[] exponentialBuckets(double start, double factor, int count) {
+        var bounds = new double[count];
+        var bound = start;
+        for (int i = 0; i < count; i++) {
+            bounds[i] = bound;
+            bound *= factor;
+        }
+        return bounds;
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.github.marcelektro.simplefilehost.metrics;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Memory, GC, thread and process metrics of the JVM itself, all read from the platform MXBeans at scrape time.
+ */
+public final class JvmMetrics {
+
+    private JvmMetrics() {}
+
+
+    public static void register(MetricsRegistry metrics) {
+        var memory = ManagementFactory.getMemoryMXBean();
+        var heap = MetricsRegistry.labels("area", "heap");
+        var nonHeap = MetricsRegistry.labels("area", "nonheap");
+
+        metrics.gauge("sfh_jvm_memory_used_bytes", "Used memory", heap, () -> memory.getHeapMemoryUsage().getUsed());
+        metrics.gauge("sfh_jvm_memory_used_bytes", "Used memory", nonHeap, () -> memory.getNonHeapMemoryUsage().getUsed());
+        metrics.gauge("sfh_jvm_memory_committed_bytes", "Memory committed by the JVM", heap, () -> memory.getHeapMemoryUsage().getCommitted());
+        metrics.gauge("sfh_jvm_memory_committed_bytes", "Memory committed by the JVM", nonHeap, () -> memory.getNonHeapMemoryUsage().getCommitted());
+        metrics.gauge("sfh_jvm_memory_max_bytes", "Maximum memory, -1 if unbounded", heap, () -> memory.getHeapMemoryUsage().getMax());
+
+        // direct buffers hold the blob cache, mapped ones are large downloads in flight
+        for (var pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            var labels = MetricsRegistry.labels("pool", pool.getName());
+            metrics.gauge("sfh_jvm_buffer_pool_used_bytes", "Memory used by NIO buffers", labels, pool::getMemoryUsed);
+            metrics.gauge("sfh_jvm_buffer_pool_buffers", "Number of NIO buffers", labels, pool::getCount);
+        }
+
+        for (var gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            var labels = MetricsRegistry.labels("gc", gc.getName());
+            metrics.gauge("sfh_jvm_gc_collections", "Collections run since start", labels, gc::getCollectionCount);
+            metrics.gauge("sfh_jvm_gc_collection_seconds", "Time spent collecting since start", labels, () -> gc.getCollectionTime() / 1000.0);
+        }
+
+        var threads = ManagementFactory.getThreadMXBean();
+        metrics.gauge("sfh_jvm_threads_live", "Live platform threads, virtual threads aren't included", threads::getThreadCount);
+        metrics.gauge("sfh_jvm_threads_daemon", "Live platform daemon threads", threads::getDaemonThreadCount);
+        metrics.gauge("sfh_jvm_threads_peak", "Most live platform threads at once since start", threads::getPeakThreadCount);
+
+        var runtime = ManagementFactory.getRuntimeMXBean();
+        metrics.gauge("sfh_jvm_uptime_seconds", "Time since the JVM started", () -> runtime.getUptime() / 1000.0);
+
+        var os = ManagementFactory.getOperatingSystemMXBean();
+        metrics.gauge("sfh_process_cpu_load", "CPU load of the process, 0 to 1 across all cores", () -> os instanceof com.sun.management.OperatingSystemMXBean sunOs ? sunOs.getProcessCpuLoad() : -1);
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean unixOs)
+            metrics.gauge("sfh_process_open_fds", "Open file descriptors", unixOs::getOpenFileDescriptorCount);
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.github.marcelektro.simplefilehost.metrics;
+
+public interface Metric {
+
+    String name();
+
+    String help();
+
+    /**
+     * Prometheus type, {@code counter}, {@code gauge} or {@code histogram}.
+     */
+    String type();
+
+    /**
+     * Labels distinguishing this metric from others of the same name, formatted by {@link MetricsRegistry#labels}. Empty if none.
+     */
+    String labels();
+
+    /**
+     * Appends this metric's samples in the Prometheus text exposition format, without the HELP and TYPE lines its family shares.
+     */
+    void writeSamples(StringBuilder out);
+
+}
@@ -0,0 +1,115 @@
+package com.github.marcelektro.simplefilehost.metrics;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Holds all metrics of the application. Metrics are created once, at construction time of whoever records them,
+ * and then recorded to directly, so the registry itself is never on a hot path.
+ * <p>
+ * Metrics of the same name but different labels form a family, rendered together.
+ */
+public class MetricsRegistry {
+
+    // name -> labels -> metric
+    private final ConcurrentSkipListMap<String, ConcurrentSkipListMap<String, Metric>> families = new ConcurrentSkipListMap<>();
+
+
+    public Counter counter(String name, String help) {
+        return counter(name, help, "");
+    }
+
+    public Counter counter(String name, String help, String labels) {
+        return register(new Counter(name, help, labels));
+    }
+
+    public Gauge gauge(String name, String help, DoubleSupplier value) {
+        return gauge(name, help, "", value);
+    }
+
+    public Gauge gauge(String name, String help, String labels, DoubleSupplier value) {
+        return register(new Gauge(name, help, labels, value));
+    }
+
+    public Histogram histogram(String name, String help, double[] upperBounds) {
+        return histogram(name, help, "", upperBounds);
+    }
+
+    public Histogram histogram(String name, String help, String labels, double[] upperBounds) {
+        return register(new Histogram(name, help, labels, upperBounds));
+    }
+
+
+    private <T extends Metric> T register(T metric) {
+        var family = this.families.computeIfAbsent(metric.name(), name -> new ConcurrentSkipListMap<>());
+
+        synchronized (family) {
+            if (!family.isEmpty() && !family.firstEntry().getValue().type().equals(metric.type()))
+                throw new IllegalArgumentException("Metric " + metric.name() + " already registered as another type");
+
+            if (family.putIfAbsent(metric.labels(), metric) != null)
+                throw new IllegalArgumentException("Metric already registered: " + metric.name() + "{" + metric.labels() + "}");
+        }
+
+        return metric;
+    }
+
+
+    /**
+     * Formats labels for registering a metric with them.
+     *
+     * @param namesAndValues alternating label names and values
+     */
+    public static String labels(String... namesAndValues) {
+        if (namesAndValues.length % 2 != 0)
+            throw new IllegalArgumentException("Labels must come in name/value pairs");
+
+        var out = new StringBuilder();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            if (i > 0)
+                out.append(',');
+
+            out.append(namesAndValues[i]).append("=\"");
+            for (var c : namesAndValues[i + 1].toCharArray()) {
+                switch (c) {
+                    case '\\' -> out.append("\\\\");
+                    case '"' -> out.append("\\\"");
+                    case '\n' -> out.append("\\n");
+                    default -> out.append(c);
+                }
+            }
+            out.append('"');
+        }
+        return out.toString();
+    }
+
+    static void appendSampleName(StringBuilder out, String name, String labels) {
+        out.append(name);
+        if (!labels.isEmpty())
+            out.append('{').append(labels).append('}');
+    }
+
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format.
+     */
+    public String scrape() {
+        var out = new StringBuilder();
+
+        for (var family : this.families.values()) {
+            var metrics = family.values();
+            if (metrics.isEmpty())
+                continue;
+
+            var first = metrics.iterator().next();
+            out.append("# HELP ").append(first.name()).append(' ').append(first.help()).append('\n');
+            out.append("# TYPE ").append(first.name()).append(' ').append(first.type()).append('\n');
+
+            for (var metric : metrics)
+                metric.writeSamples(out);
+        }
+
+        return out.toString();
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.github.marcelektro.simplefilehost.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves {@code /metrics} in the Prometheus text format on a port of its own, kept apart from the public API.
+ * Scrapes are rare, a single thread serves them.
+ */
+@Slf4j
+public class MetricsServer {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "MetricsServer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    public MetricsServer(String host, int port, MetricsRegistry metrics) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+
+        this.server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+
+                var body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        });
+
+        this.server.setExecutor(this.executor);
+    }
+
+
+    public void start() {
+        this.server.start();
+        log.info("Serving metrics on http://{}:{}/metrics", this.server.getAddress().getHostString(), this.server.getAddress().getPort());
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+}
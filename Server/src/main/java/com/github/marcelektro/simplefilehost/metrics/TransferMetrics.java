@@ -0,0 +1,62 @@
+package com.github.marcelektro.simplefilehost.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Upload and download volume, transfers in progress and blob disk I/O latency, shared by everything moving blob content.
+ */
+public class TransferMetrics {
+
+    public final Counter uploadedBytes;
+    public final Counter downloadedBytes;
+
+    /**
+     * A single read of blob content from disk, for downloads or into the blob cache.
+     * Memory-mapped sends aren't included, their reads happen as the kernel sends the pages.
+     */
+    public final Histogram blobReadSeconds;
+    /**
+     * A single write of uploaded content to disk.
+     */
+    public final Histogram blobWriteSeconds;
+
+    public final Counter compressedBlobs;
+    public final Counter compressionSavedBytes;
+
+    private final AtomicInteger activeUploads = new AtomicInteger();
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+
+
+    public TransferMetrics(MetricsRegistry metrics) {
+        this.uploadedBytes = metrics.counter("sfh_upload_bytes_total", "Bytes of file content received");
+        this.downloadedBytes = metrics.counter("sfh_download_bytes_total", "Bytes of file content sent");
+        this.blobReadSeconds = metrics.histogram("sfh_blob_read_seconds", "Time of a single blob content read from disk", Histogram.latencyBuckets());
+        this.blobWriteSeconds = metrics.histogram("sfh_blob_write_seconds", "Time of a single blob content write to disk", Histogram.latencyBuckets());
+        this.compressedBlobs = metrics.counter("sfh_blob_compressed_total", "New blobs stored compressed");
+        this.compressionSavedBytes = metrics.counter("sfh_blob_compression_saved_bytes_total", "Bytes saved by storing new blobs compressed");
+        metrics.gauge("sfh_uploads_active", "Uploads (and resumable upload chunks) currently being received", this.activeUploads::get);
+        metrics.gauge("sfh_downloads_active", "Downloads currently being sent", this.activeDownloads::get);
+    }
+
+
+    public void uploadStarted() {
+        this.activeUploads.incrementAndGet();
+    }
+
+    public void uploadFinished() {
+        this.activeUploads.decrementAndGet();
+    }
+
+    public void downloadStarted() {
+        this.activeDownloads.incrementAndGet();
+    }
+
+    public void downloadFinished() {
+        this.activeDownloads.decrementAndGet();
+    }
+
+    public int activeDownloads() {
+        return this.activeDownloads.get();
+    }
+
+}
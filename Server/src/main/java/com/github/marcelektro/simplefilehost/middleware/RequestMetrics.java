@@ -0,0 +1,93 @@
+package com.github.marcelektro.simplefilehost.middleware;
+
+import com.github.marcelektro.simplefilehost.metrics.Counter;
+import com.github.marcelektro.simplefilehost.metrics.Histogram;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records latency and response status of every request, per route.
+ * <p>
+ * Routes are identified by their path template ({@code /api/files/{fileId}}), so the number of metrics stays bounded.
+ * Metrics of a route are created on its first request, after that recording only looks them up.
+ */
+public class RequestMetrics {
+
+    private static final String UNMATCHED_ROUTE = "unmatched"; // 404s, CORS preflights, static files
+
+    private final MetricsRegistry metrics;
+
+    // by method ordinal, then route
+    private final ConcurrentHashMap<String, RouteMetrics>[] routes;
+
+
+    @SuppressWarnings("unchecked")
+    public RequestMetrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+
+        this.routes = new ConcurrentHashMap[HandlerType.values().length];
+        for (int i = 0; i < this.routes.length; i++)
+            this.routes[i] = new ConcurrentHashMap<>();
+    }
+
+
+    /**
+     * @param executionTimeMs as measured by Javalin, the whole request including the response body
+     */
+    public void record(Context ctx, float executionTimeMs) {
+        var method = ctx.method();
+
+        var route = ctx.endpointHandlerPath();
+        if (!route.startsWith("/"))
+            route = UNMATCHED_ROUTE; // Javalin reports an explanation instead
+
+        var routeMetrics = this.routes[method.ordinal()].get(route);
+        if (routeMetrics == null)
+            routeMetrics = this.routes[method.ordinal()].computeIfAbsent(route, r -> new RouteMetrics(method, r));
+
+        routeMetrics.latency.observe(executionTimeMs / 1000.0);
+        routeMetrics.status(ctx.statusCode()).increment();
+    }
+
+
+    private final class RouteMetrics {
+
+        private final HandlerType method;
+        private final String route;
+        private final Histogram latency;
+        private final AtomicReferenceArray<Counter> statusCounters = new AtomicReferenceArray<>(600);
+
+        private RouteMetrics(HandlerType method, String route) {
+            this.method = method;
+            this.route = route;
+            this.latency = RequestMetrics.this.metrics.histogram("sfh_http_request_seconds", "Time to handle a request, including sending the response",
+                    MetricsRegistry.labels("method", method.name(), "route", route),
+                    Histogram.latencyBuckets());
+        }
+
+        private Counter status(int status) {
+            if (status < 100 || status >= 600)
+                status = 500;
+
+            var counter = this.statusCounters.get(status);
+            if (counter != null)
+                return counter;
+
+            synchronized (this) {
+                counter = this.statusCounters.get(status);
+                if (counter == null) {
+                    counter = RequestMetrics.this.metrics.counter("sfh_http_requests_total", "Requests handled, by response status",
+                            MetricsRegistry.labels("method", this.method.name(), "route", this.route, "status", String.valueOf(status)));
+                    this.statusCounters.set(status, counter);
+                }
+                return counter;
+            }
+        }
+
+    }
+
+}
@@ -1,27 +1,59 @@
 package com.github.marcelektro.simplefilehost.service.auth;
 
+import com.github.marcelektro.simplefilehost.cache.WeightedLruCache;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
 import com.github.marcelektro.simplefilehost.service.ServiceResult;
+import com.github.marcelektro.simplefilehost.service.auth.password.PasswordHashingExecutor;
 import com.github.marcelektro.simplefilehost.service.db.DatabaseService;
 import com.github.marcelektro.simplefilehost.util.Checks;
-import com.github.marcelektro.simplefilehost.util.HashUtil;
 import io.jsonwebtoken.ExpiredJwtException;
 import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.security.Keys;
+import lombok.extern.slf4j.Slf4j;
 
 import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
-import java.time.Instant;
+import java.time.Clock;
 import java.util.Date;
+import java.util.HexFormat;
+import java.util.concurrent.RejectedExecutionException;
 
+@Slf4j
 public class AuthServiceImpl implements AuthService {
 
     private final DatabaseService dbService;
+    private final PasswordHashingExecutor passwordHashing;
     private final SecretKey jwtKey;
+    private final JwtParser jwtParser;
+    private final Clock clock;
 
-    public AuthServiceImpl(DatabaseService dbService, String jwtSecret) {
+    // Tokens already verified, by digest of the token. Each is presented on every request of its session,
+    // the cache spares those the signature check and claims parsing.
+    private final WeightedLruCache<String, VerifiedToken> tokenCache;
+
+    public AuthServiceImpl(DatabaseService dbService, PasswordHashingExecutor passwordHashing, String jwtSecret, long tokenCacheMaxBytes, MetricsRegistry metrics) {
+        this(dbService, passwordHashing, jwtSecret, tokenCacheMaxBytes, metrics, Clock.systemUTC());
+    }
+
+    /**
+     * @param clock decides when tokens expire, both those issued and those presented
+     */
+    public AuthServiceImpl(DatabaseService dbService, PasswordHashingExecutor passwordHashing, String jwtSecret, long tokenCacheMaxBytes, MetricsRegistry metrics,
+                           Clock clock) {
         this.dbService = dbService;
+        this.passwordHashing = passwordHashing;
+        this.clock = clock;
         this.jwtKey = Keys.hmacShaKeyFor(jwtSecret.getBytes());
+        this.jwtParser = Jwts.parser()
+                .verifyWith(this.jwtKey)
+                .clock(() -> Date.from(clock.instant()))
+                .build();
+        this.tokenCache = new WeightedLruCache<>("tokens", tokenCacheMaxBytes, token -> VerifiedToken.ESTIMATED_SIZE, metrics);
     }
 
 
@@ -31,52 +63,52 @@ public class AuthServiceImpl implements AuthService {
             return ServiceResult.failure("INVALID_INPUT", "Username and password must not be empty");
         }
 
-        try (final var conn = dbService.getConnection()) {
-            conn.setAutoCommit(false);
-            try {
-                var stmt = conn.prepareStatement("""
-                                                SELECT 1
-                                                FROM users
-                                                WHERE username = ? OR id = ?
-                                                """);
-                stmt.setString(1, username);
-                stmt.setString(2, id);
-                var rs = stmt.executeQuery();
-
-                if (rs.next()) {
-                    return ServiceResult.failure("USERNAME_OR_ID_TAKEN", "Username or id is already taken");
-                }
-
-                var salt = HashUtil.generateSalt();
-                var passwordHash = HashUtil.hashPassword(password, salt);
+        // hashing is deliberately slow, keep it out of the write queue
+        String passwordHash;
+        try {
+            passwordHash = this.passwordHashing.hash(password);
+        } catch (RejectedExecutionException e) {
+            return ServiceResult.failure("HASHING_OVERLOADED", "Too many password operations in progress, try again shortly");
+        }
 
-                stmt = conn.prepareStatement("""
-                                                INSERT INTO users (id, username, passwordHash, passwordSalt)
-                                                VALUES (?, ?, ?, ?)
-                                                """);
-                stmt.setString(1, id);
-                stmt.setString(2, username);
-                stmt.setString(3, passwordHash);
-                stmt.setString(4, salt);
-                stmt.executeUpdate();
+        return dbService.write(conn -> {
+            var stmt = conn.prepareStatement("""
+                                            SELECT 1
+                                            FROM users
+                                            WHERE username = ? OR id = ?
+                                            """);
+            stmt.setString(1, username);
+            stmt.setString(2, id);
+            var rs = stmt.executeQuery();
 
-                return ServiceResult.success(id);
+            if (rs.next()) {
+                return ServiceResult.failure("USERNAME_OR_ID_TAKEN", "Username or id is already taken");
+            }
 
-            } catch (Exception e) {
-                conn.rollback();
-                throw e;
+            // the salt is part of the hash now, the column is only still filled for legacy hashes
+            stmt = conn.prepareStatement("""
+                                            INSERT INTO users (id, username, passwordHash, passwordSalt)
+                                            VALUES (?, ?, ?, '')
+                                            """);
+            stmt.setString(1, id);
+            stmt.setString(2, username);
+            stmt.setString(3, passwordHash);
+            stmt.executeUpdate();
 
-            } finally {
-                conn.commit();
-                conn.setAutoCommit(true);
-            }
-        }
+            return ServiceResult.success(id);
+        });
     }
 
 
     @Override
     public ServiceResult<AuthResult> login(String username, String password) throws Exception {
-        try (final var conn = dbService.getConnection()) {
+        String userId;
+        String userName;
+        String passwordHash;
+        String passwordSalt;
+
+        // not holding on to the connection while hashing
+        try (final var conn = dbService.getReadConnection()) {
             var stmt = conn.prepareStatement("""
                                             SELECT users.id, users.username, users.passwordHash, users.passwordSalt
                                             FROM users
@@ -86,46 +118,95 @@ public class AuthServiceImpl implements AuthService {
             var rs = stmt.executeQuery();
 
             if (!rs.next()) {
-                return ServiceResult.failure("INVALID_CREDENTIALS", "Invalid username or password");
+                userId = null;
+                userName = null;
+                passwordHash = null;
+                passwordSalt = null;
+            } else {
+                userId = rs.getString("id");
+                userName = rs.getString("username");
+                passwordHash = rs.getString("passwordHash");
+                passwordSalt = rs.getString("passwordSalt");
             }
 
-            var userId = rs.getString("id");
-            var userName = rs.getString("username");
-            var passwordHash = rs.getString("passwordHash");
-            var passwordSalt = rs.getString("passwordSalt");
+        } catch (SQLException e) {
+            throw new Exception("Database error during login", e);
+        }
 
-            if (!HashUtil.verifyPassword(password, passwordHash, passwordSalt)) {
-                return ServiceResult.failure("INVALID_CREDENTIALS", "Invalid username or password");
+        // hashed all the same, the response time mustn't tell which usernames exist
+        if (userId == null) {
+            try {
+                this.passwordHashing.verifyUnknownUser(password);
+            } catch (RejectedExecutionException e) {
+                return ServiceResult.failure("HASHING_OVERLOADED", "Too many logins in progress, try again shortly");
             }
+            return ServiceResult.failure("INVALID_CREDENTIALS", "Invalid username or password");
+        }
 
-            var token = generateToken(userId);
+        PasswordHashingExecutor.Verification verification;
+        try {
+            verification = this.passwordHashing.verify(password, passwordHash, passwordSalt);
+        } catch (RejectedExecutionException e) {
+            return ServiceResult.failure("HASHING_OVERLOADED", "Too many logins in progress, try again shortly");
+        }
 
-            var result = new AuthResult(
-                    Integer.parseInt(userId),
-                    token,
-                    userName
-            );
+        if (!verification.valid()) {
+            return ServiceResult.failure("INVALID_CREDENTIALS", "Invalid username or password");
+        }
 
-            return ServiceResult.success(result);
+        if (verification.rehashed() != null)
+            updatePasswordHash(userId, passwordHash, verification.rehashed());
 
-        } catch (SQLException e) {
-            throw new Exception("Database error during login", e);
+        var token = generateToken(userId);
+
+        var result = new AuthResult(
+                Integer.parseInt(userId),
+                token,
+                userName
+        );
+
+        return ServiceResult.success(result);
+    }
+
+    /**
+     * Replaces a hash made with outdated parameters. Best effort, the login itself succeeded either way.
+     */
+    private void updatePasswordHash(String userId, String oldHash, String newHash) {
+        try {
+            dbService.write(conn -> {
+                // unless the password was changed in the meantime
+                var stmt = conn.prepareStatement("""
+                                                UPDATE users
+                                                SET passwordHash = ?, passwordSalt = ''
+                                                WHERE id = ? AND passwordHash = ?
+                                                """);
+                stmt.setString(1, newHash);
+                stmt.setString(2, userId);
+                stmt.setString(3, oldHash);
+                return stmt.executeUpdate();
+            });
+
+        } catch (Exception e) {
+            log.warn("Failed to update outdated password hash of user {}", userId, e);
         }
     }
 
     @Override
-    public ServiceResult<Integer> validateTokenAndGetUserId(String token) {
+    public ServiceResult<Integer> validateTokenAndGetUserId(String token) throws Exception {
+        var digest = tokenDigest(token);
+
         try {
-            var claims = Jwts.parser()
-                    .verifyWith(this.jwtKey)
-                    .build()
-                    .parseSignedClaims(token);
+            var verified = this.tokenCache.get(digest, key -> verifyToken(token));
 
-            var userId = Integer.parseInt(claims.getPayload().getSubject());
+            // the signature stays valid, but a cached token must still stop working once it expires
+            if (verified.expiresAt() <= this.clock.millis()) {
+                this.tokenCache.invalidate(digest);
+                return ServiceResult.failure("EXPIRED_TOKEN", "Token expired");
+            }
 
-            return ServiceResult.success(userId);
+            return ServiceResult.success(verified.userId());
 
-        } catch (JwtException e) { // TODO: Better error handling
+        } catch (JwtException | NumberFormatException e) { // TODO: Better error handling
 
             if (e instanceof ExpiredJwtException)
                 return ServiceResult.failure("EXPIRED_TOKEN", "Token expired");
@@ -134,8 +215,24 @@ public class AuthServiceImpl implements AuthService {
         }
     }
 
+    private VerifiedToken verifyToken(String token) {
+        var claims = this.jwtParser.parseSignedClaims(token).getPayload();
+
+        var expiration = claims.getExpiration();
+
+        return new VerifiedToken(
+                Integer.parseInt(claims.getSubject()),
+                expiration != null ? expiration.getTime() : Long.MAX_VALUE
+        );
+    }
+
+    private static String tokenDigest(String token) throws NoSuchAlgorithmException {
+        var digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest);
+    }
+
     private String generateToken(String userId) {
-        var now = Instant.now();
+        var now = this.clock.instant();
 
         return Jwts.builder()
                 .subject(userId)
@@ -145,4 +242,12 @@ public class AuthServiceImpl implements AuthService {
                 .compact();
     }
 
+
+    private record VerifiedToken(int userId, long expiresAt) {
+
+        // the digest key, the record and both map entries
+        private static final long ESTIMATED_SIZE = 256;
+
+    }
+
 }
@@ -0,0 +1,36 @@
+package com.github.marcelektro.simplefilehost.service.auth.password;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+
+/**
+ * A password key derivation function. Hashes are self-describing, they carry the algorithm, its parameters and the salt,
+ * so the parameters can be changed without invalidating hashes made with the old ones.
+ */
+public interface PasswordHasher {
+
+    /**
+     * @return the hash of the password, with a new random salt
+     */
+    String hash(String password);
+
+    /**
+     * @param encodedHash as returned by {@link #hash}, possibly by a hasher with other parameters
+     */
+    boolean verify(String password, String encodedHash);
+
+    /**
+     * @return whether the hash was made with other parameters than this hasher uses, and should be replaced on the next successful login
+     */
+    boolean needsRehash(String encodedHash);
+
+
+    static PasswordHasher fromConfig(Config.Auth authConfig) {
+        return switch (authConfig.passwordHashAlgorithm) {
+            case Pbkdf2PasswordHasher.SHA256 -> new Pbkdf2PasswordHasher(Pbkdf2PasswordHasher.SHA256, authConfig.passwordHashIterations);
+            case Pbkdf2PasswordHasher.SHA512 -> new Pbkdf2PasswordHasher(Pbkdf2PasswordHasher.SHA512, authConfig.passwordHashIterations);
+
+            default -> throw new IllegalArgumentException("Unknown password hash algorithm: " + authConfig.passwordHashAlgorithm);
+        };
+    }
+
+}
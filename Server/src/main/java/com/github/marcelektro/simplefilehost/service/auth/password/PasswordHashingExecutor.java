@@ -0,0 +1,155 @@
+package com.github.marcelektro.simplefilehost.service.auth.password;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.Counter;
+import com.github.marcelektro.simplefilehost.metrics.Histogram;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.util.HashUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs password hashing on a small pool of platform threads of its own, with a bounded queue.
+ * <p>
+ * Hashing is deliberately slow and CPU bound. Done on request threads, a burst of logins would pin all carrier threads
+ * and stall every other request. Here it can use at most the pool's threads, and once the queue is full,
+ * further requests are turned away right away ({@link RejectedExecutionException}) instead of piling up.
+ */
+public class PasswordHashingExecutor implements AutoCloseable {
+
+    private final PasswordHasher hasher;
+    private final ThreadPoolExecutor executor;
+
+    private final Histogram hashLatencyHistogram;
+    private final Histogram queueWaitHistogram;
+    private final Counter rejections;
+
+    private volatile @Nullable String dummyHash; // of no one's password, for unknown users. Made on first use, with the current parameters
+
+
+    public PasswordHashingExecutor(PasswordHasher hasher, Config.Auth authConfig, MetricsRegistry metrics) {
+        this.hasher = hasher;
+
+        var threads = authConfig.hashingThreads > 0 ? authConfig.hashingThreads : Runtime.getRuntime().availableProcessors();
+        var threadCounter = new AtomicInteger();
+
+        this.executor = new ThreadPoolExecutor(
+                threads, threads,
+                0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(authConfig.hashingQueueSize),
+                r -> {
+                    var thread = new Thread(r, "PasswordHashing-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+
+        this.hashLatencyHistogram = metrics.histogram("sfh_auth_password_hash_seconds", "Time spent hashing a single password",
+                Histogram.exponentialBuckets(0.001, 2, 14));
+        this.queueWaitHistogram = metrics.histogram("sfh_auth_password_hash_queue_seconds", "Time password hashing requests waited for a free thread",
+                Histogram.exponentialBuckets(0.0001, 2, 16));
+        this.rejections = metrics.counter("sfh_auth_password_hash_rejected_total", "Password hashing requests turned away because the queue was full");
+        metrics.gauge("sfh_auth_password_hash_queue_depth", "Password hashing requests waiting for a free thread", () -> this.executor.getQueue().size());
+        metrics.gauge("sfh_auth_password_hash_active", "Password hashing requests being processed", this.executor::getActiveCount);
+    }
+
+
+    /**
+     * @param rehashed the password hashed with the current parameters, if the stored hash used other ones. Null if it's up to date, or the password didn't match
+     */
+    public record Verification(boolean valid, @Nullable String rehashed) {}
+
+
+    /**
+     * @throws RejectedExecutionException if too many requests are queued already
+     */
+    public String hash(String password) throws InterruptedException {
+        return run(() -> timed(() -> this.hasher.hash(password)));
+    }
+
+    /**
+     * Verifies the password against a stored hash, and rehashes it with the current parameters if they've changed since.
+     *
+     * @param storedSalt only used by hashes from before hashes were self-describing, empty otherwise
+     * @throws RejectedExecutionException if too many requests are queued already
+     */
+    public Verification verify(String password, String storedHash, String storedSalt) throws InterruptedException {
+        return run(() -> {
+            boolean legacy = !storedSalt.isEmpty();
+
+            boolean valid = legacy
+                    ? timed(() -> HashUtil.verifyPassword(password, storedHash, storedSalt))
+                    : timed(() -> this.hasher.verify(password, storedHash));
+
+            if (!valid)
+                return new Verification(false, null);
+
+            if (!legacy && !this.hasher.needsRehash(storedHash))
+                return new Verification(true, null);
+
+            return new Verification(true, timed(() -> this.hasher.hash(password)));
+        });
+    }
+
+
+    /**
+     * Costs as much as a {@link #verify} of a hash with the current parameters, and is admitted the same way.
+     * For logins of unknown users, whose response time mustn't tell that the username doesn't exist.
+     *
+     * @throws RejectedExecutionException if too many requests are queued already
+     */
+    public void verifyUnknownUser(String password) throws InterruptedException {
+        run(() -> {
+            var dummyHash = this.dummyHash;
+            if (dummyHash == null)
+                this.dummyHash = dummyHash = timed(() -> this.hasher.hash(UUID.randomUUID().toString()));
+
+            var hash = dummyHash;
+            return timed(() -> this.hasher.verify(password, hash));
+        });
+    }
+
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+
+    private <T> T run(Callable<T> task) throws InterruptedException {
+        var queuedAt = System.nanoTime();
+
+        Future<T> future;
+        try {
+            future = this.executor.submit(() -> {
+                this.queueWaitHistogram.observeNanosAsSeconds(System.nanoTime() - queuedAt);
+                return task.call();
+            });
+        } catch (RejectedExecutionException e) {
+            this.rejections.increment();
+            throw e;
+        }
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException re)
+                throw re;
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        }
+    }
+
+    private <T> T timed(Callable<T> hashing) throws Exception {
+        var start = System.nanoTime();
+        try {
+            return hashing.call();
+        } finally {
+            this.hashLatencyHistogram.observeNanosAsSeconds(System.nanoTime() - start);
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.github.marcelektro.simplefilehost.service.auth.password;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * PBKDF2, as shipped with the JDK. Hashes are encoded as {@code <algorithm>$<iterations>$<salt>$<hash>}, salt and hash in base64.
+ */
+public class Pbkdf2PasswordHasher implements PasswordHasher {
+
+    public static final String SHA256 = "pbkdf2-sha256";
+    public static final String SHA512 = "pbkdf2-sha512";
+
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    private final String algorithm;
+    private final int iterations;
+
+
+    /**
+     * @param algorithm {@link #SHA256} or {@link #SHA512}
+     */
+    public Pbkdf2PasswordHasher(String algorithm, int iterations) {
+        if (!algorithm.equals(SHA256) && !algorithm.equals(SHA512))
+            throw new IllegalArgumentException("Unknown PBKDF2 variant: " + algorithm);
+        if (iterations < 1)
+            throw new IllegalArgumentException("Iterations must be positive");
+
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+    }
+
+
+    @Override
+    public String hash(String password) {
+        var salt = new byte[SALT_LENGTH];
+        secureRandom.nextBytes(salt);
+
+        var hash = derive(this.algorithm, password, salt, this.iterations, HASH_LENGTH);
+
+        return this.algorithm + "$" + this.iterations
+                + "$" + Base64.getEncoder().withoutPadding().encodeToString(salt)
+                + "$" + Base64.getEncoder().withoutPadding().encodeToString(hash);
+    }
+
+    @Override
+    public boolean verify(String password, String encodedHash) {
+        var parts = encodedHash.split("\\$");
+        if (parts.length != 4 || (!parts[0].equals(SHA256) && !parts[0].equals(SHA512)))
+            return false;
+
+        try {
+            var iterations = Integer.parseInt(parts[1]);
+            var salt = Base64.getDecoder().decode(parts[2]);
+            var expected = Base64.getDecoder().decode(parts[3]);
+
+            var actual = derive(parts[0], password, salt, iterations, expected.length);
+            return MessageDigest.isEqual(actual, expected);
+
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean needsRehash(String encodedHash) {
+        return !encodedHash.startsWith(this.algorithm + "$" + this.iterations + "$");
+    }
+
+
+    private static byte[] derive(String algorithm, String password, byte[] salt, int iterations, int length) {
+        var spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+        try {
+            var factory = SecretKeyFactory.getInstance(algorithm.equals(SHA512) ? "PBKDF2WithHmacSHA512" : "PBKDF2WithHmacSHA256");
+            return factory.generateSecret(spec).getEncoded();
+
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+}
@@ -0,0 +1,14 @@
+package com.github.marcelektro.simplefilehost.service.db;
+
+import java.sql.SQLTransientException;
+
+/**
+ * Too many writes are queued for the writer already, this one was turned away without running. Trying again later may succeed.
+ */
+public class DatabaseOverloadedException extends SQLTransientException {
+
+    public DatabaseOverloadedException(String message) {
+        super(message);
+    }
+
+}
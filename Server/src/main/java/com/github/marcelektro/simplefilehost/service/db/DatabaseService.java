@@ -5,7 +5,23 @@ import java.sql.SQLException;
 
 public interface DatabaseService {
 
-    Connection getConnection() throws SQLException;
+    /**
+     * Returns a pooled, read-only connection. Anything modifying the database must go through {@link #write(SqlWork)}.
+     */
+    Connection getReadConnection() throws SQLException;
+
+    /**
+     * Runs the work in a transaction on the writer connection, committing if it returns normally and rolling back if it throws.
+     * Blocks until the transaction is complete.
+     */
+    <T> T write(SqlWork<T> work) throws Exception;
+
     void initialSetup() throws Exception;
 
+
+    @FunctionalInterface
+    interface SqlWork<T> {
+        T run(Connection conn) throws Exception;
+    }
+
 }
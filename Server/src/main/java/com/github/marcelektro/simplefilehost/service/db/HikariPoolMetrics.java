@@ -0,0 +1,61 @@
+package com.github.marcelektro.simplefilehost.service.db;
+
+import com.github.marcelektro.simplefilehost.metrics.Counter;
+import com.github.marcelektro.simplefilehost.metrics.Histogram;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+/**
+ * Reports a Hikari pool's wait times, connection usage and size to the metrics registry.
+ */
+class HikariPoolMetrics implements MetricsTrackerFactory {
+
+    private final MetricsRegistry metrics;
+
+
+    HikariPoolMetrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        var labels = MetricsRegistry.labels("pool", poolName);
+
+        this.metrics.gauge("sfh_db_pool_connections_active", "Connections in use", labels, poolStats::getActiveConnections);
+        this.metrics.gauge("sfh_db_pool_connections_idle", "Connections idle in the pool", labels, poolStats::getIdleConnections);
+        this.metrics.gauge("sfh_db_pool_connections_max", "Maximum size of the pool", labels, poolStats::getMaxConnections);
+        this.metrics.gauge("sfh_db_pool_pending_threads", "Threads waiting for a connection", labels, poolStats::getPendingThreads);
+
+        return new Tracker(
+                this.metrics.histogram("sfh_db_pool_acquire_seconds", "Time waited for a connection from the pool", labels,
+                        Histogram.latencyBuckets()),
+                this.metrics.histogram("sfh_db_pool_usage_seconds", "Time a connection was borrowed from the pool, i.e. spent on its queries", labels,
+                        Histogram.latencyBuckets()),
+                this.metrics.counter("sfh_db_pool_timeouts_total", "Connection requests that timed out waiting", labels)
+        );
+    }
+
+
+    private record Tracker(Histogram acquire, Histogram usage, Counter timeouts) implements IMetricsTracker {
+
+        @Override
+        public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+            this.acquire.observeNanosAsSeconds(elapsedAcquiredNanos);
+        }
+
+        @Override
+        public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+            this.usage.observe(elapsedBorrowedMillis / 1000.0);
+        }
+
+        @Override
+        public void recordConnectionTimeout() {
+            this.timeouts.increment();
+        }
+
+    }
+
+}
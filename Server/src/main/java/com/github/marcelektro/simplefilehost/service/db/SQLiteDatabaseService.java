@@ -1,88 +1,397 @@
 package com.github.marcelektro.simplefilehost.service.db;
 
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.Counter;
+import com.github.marcelektro.simplefilehost.metrics.Histogram;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.service.db.migration.*;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+import org.sqlite.SQLiteConfig;
 
+import java.io.File;
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * SQLite in WAL mode, which lets readers run concurrently with the (single) writer.
+ * <p>
+ * Reads use a pool of read-only connections. Writes are queued and executed one after another
+ * on a dedicated thread owning the only writable connection, so writers never contend for the database lock
+ * and never fail with SQLITE_BUSY among themselves.
+ * <p>
+ * Writes queued at the same time are group committed: the writer collects up to a batch of them, runs each in its own
+ * savepoint (a failing one is rolled back alone) and commits them in a single transaction, so the batch shares one commit and,
+ * with {@code synchronous} at FULL, one fsync of the WAL. Callers only return once the transaction containing their work is committed,
+ * at FULL that means it's on disk. NORMAL doesn't sync on commit in WAL mode, the last commits can be lost on power loss.
+ * <p>
+ * The queue is bounded: once the writer falls that far behind, a write waits a short while for room and is then turned away
+ * with {@link DatabaseOverloadedException}, so overload reaches clients as 503s instead of requests piling up without end.
+ */
 @Slf4j
-public class SQLiteDatabaseService implements DatabaseService {
+public class SQLiteDatabaseService implements DatabaseService, AutoCloseable {
 
-    private final HikariDataSource dataSource;
+    private static final List<Migration> MIGRATIONS = List.of(
+            new V1Baseline(),
+            new V2EpochMillisDates(),
+            new V3Indexes(),
+            new V4BlobTombstones(),
+            new V5BlobKeys(),
+            new V6PackFiles(),
+            new V7BlobEncoding(),
+            new V8BlobScrubbing()
+    );
 
+    private final String dbFilePath;
+
+    private final HikariDataSource readDataSource;
+
+    private final Connection writeConnection;
+    private final BlockingQueue<WriteTask<?>> writeQueue;
+    private final Thread writerThread;
+
+    private final int maxBatchSize;
+    private final long maxBatchWaitNanos;
+    private final long writeQueueTimeoutMillis;
+
+    private final Histogram batchSizeHistogram;
+    private final Histogram commitLatencyHistogram;
+    private final Histogram writeLatencyHistogram;
+    private final Histogram writeExecuteHistogram;
+    private final Counter rejectedWrites;
+
+    private volatile boolean closed;
+
+
+    public SQLiteDatabaseService(String dbFilePath, Config.Database dbConfig, MetricsRegistry metrics) throws Exception {
+        this.maxBatchSize = Math.max(1, dbConfig.groupCommitMaxBatchSize);
+        this.maxBatchWaitNanos = TimeUnit.MICROSECONDS.toNanos(dbConfig.groupCommitMaxWaitMicros);
+        this.writeQueue = new LinkedBlockingQueue<>(Math.max(1, dbConfig.writeQueueSize));
+        this.writeQueueTimeoutMillis = dbConfig.writeQueueTimeoutMillis;
+
+        this.batchSizeHistogram = metrics.histogram("sfh_db_write_batch_size", "Writes committed per group commit",
+                Histogram.exponentialBuckets(1, 2, 10));
+        this.commitLatencyHistogram = metrics.histogram("sfh_db_commit_seconds", "Time spent committing a group of writes",
+                Histogram.exponentialBuckets(0.0001, 2, 16));
+        this.writeLatencyHistogram = metrics.histogram("sfh_db_write_seconds", "Time from queueing a write until it is committed",
+                Histogram.exponentialBuckets(0.0001, 2, 16));
+        this.writeExecuteHistogram = metrics.histogram("sfh_db_write_execute_seconds", "Time the writer spent running a single write's statements",
+                Histogram.latencyBuckets());
+        metrics.gauge("sfh_db_write_queue_depth", "Writes waiting for the writer thread", this.writeQueue::size);
+        this.rejectedWrites = metrics.counter("sfh_db_writes_rejected_total", "Writes turned away because the write queue stayed full");
+
+        this.dbFilePath = dbFilePath;
+        var jdbcUrl = "jdbc:sqlite:" + dbFilePath;
+
+        try {
+            // The writer has to come first, switching to WAL needs write access (and then persists in the database file)
+            var writeConfig = baseConfig(dbConfig);
+            writeConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+            writeConfig.setSynchronous(SQLiteConfig.SynchronousMode.valueOf(dbConfig.synchronous.toUpperCase(Locale.ROOT)));
+
+            this.writeConnection = DriverManager.getConnection(jdbcUrl, writeConfig.toProperties());
+            this.writeConnection.setAutoCommit(false);
+
+        } catch (Exception e) {
+            throw new Exception("Failed to open SQLite writer connection", e);
+        }
 
-    public SQLiteDatabaseService(String dbFilePath) throws Exception {
         try {
+            var readConfig = baseConfig(dbConfig);
+            readConfig.setReadOnly(true);
+
             final var config = new HikariConfig();
 
-            config.setJdbcUrl("jdbc:sqlite:" + dbFilePath);
-            config.setMaximumPoolSize(10);
-            config.setPoolName("SimpleFileHostDBPool");
+            config.setJdbcUrl(jdbcUrl);
+            config.setDataSourceProperties(readConfig.toProperties());
+            config.setMaximumPoolSize(dbConfig.readPoolSize);
+            config.setReadOnly(true); // Hikari applies this to every connection, sqlite only accepts it if it matches the open mode
+            config.setPoolName("SimpleFileHostDBReadPool");
             config.setConnectionTestQuery("SELECT 1");
+            config.setMetricsTrackerFactory(new HikariPoolMetrics(metrics));
 
-            this.dataSource = new HikariDataSource(config);
+            this.readDataSource = new HikariDataSource(config);
 
         } catch (Exception e) {
             throw new Exception("Failed to initialize HikariCP with SQLite", e);
         }
+
+        this.writerThread = new Thread(this::runWriter, "SQLiteWriter");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    private static SQLiteConfig baseConfig(Config.Database dbConfig) {
+        var config = new SQLiteConfig();
+        config.setBusyTimeout(dbConfig.busyTimeoutMillis);
+        config.setCacheSize(-dbConfig.cacheSizeKiB); // negative means KiB instead of pages
+        config.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, String.valueOf(dbConfig.mmapSize));
+        config.setTempStore(SQLiteConfig.TempStore.MEMORY);
+        return config;
     }
 
 
     @Override
-    public Connection getConnection() throws SQLException {
-        return this.dataSource.getConnection();
+    public Connection getReadConnection() throws SQLException {
+        return this.readDataSource.getConnection();
+    }
+
+    @Override
+    public <T> T write(SqlWork<T> work) throws Exception {
+        // already inside a write, e.g. a helper issuing its own write, just join the current transaction
+        if (Thread.currentThread() == this.writerThread)
+            return work.run(this.writeConnection);
+
+        if (this.closed)
+            throw new SQLException("Database is closed");
+
+        var task = new WriteTask<>(work);
+        if (!this.writeQueue.offer(task, this.writeQueueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            this.rejectedWrites.increment();
+            throw new DatabaseOverloadedException("Too many database writes queued, try again shortly");
+        }
+
+        // closed while queueing, the writer may be gone already
+        if (this.closed && this.writeQueue.remove(task))
+            throw new SQLException("Database is closed");
+
+        try {
+            return task.future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+
+    private void runWriter() {
+        var batch = new ArrayList<WriteTask<?>>(this.maxBatchSize);
+
+        // a write may swallow the interrupt, closing doesn't rely on it alone
+        while (!this.closed && !Thread.currentThread().isInterrupted()) {
+            try {
+                collectBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                // whatever was collected still gets written
+            }
+
+            if (!batch.isEmpty())
+                executeBatch(batch);
+
+            batch.clear();
+        }
+    }
+
+    /**
+     * Blocks for the first write, then keeps collecting until the batch is full or the max wait since the first write has passed.
+     */
+    private void collectBatch(List<WriteTask<?>> batch) throws InterruptedException {
+        batch.add(this.writeQueue.take());
+        this.writeQueue.drainTo(batch, this.maxBatchSize - batch.size());
+
+        var deadline = System.nanoTime() + this.maxBatchWaitNanos;
+
+        while (batch.size() < this.maxBatchSize) {
+            var remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                break;
+
+            var next = this.writeQueue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null)
+                break;
+
+            batch.add(next);
+            this.writeQueue.drainTo(batch, this.maxBatchSize - batch.size());
+        }
+    }
+
+    private void executeBatch(List<WriteTask<?>> batch) {
+        var committed = new ArrayList<WriteTask<?>>(batch.size());
+
+        for (var task : batch) {
+            // failed tasks are finished right away, there is nothing of theirs to wait for
+            if (executeInSavepoint(task))
+                committed.add(task);
+        }
+
+        if (committed.isEmpty()) {
+            rollbackQuietly(null);
+            return;
+        }
+
+        var commitStart = System.nanoTime();
+        try {
+            this.writeConnection.commit();
+
+        } catch (Throwable t) {
+            rollbackQuietly(t);
+            for (var task : committed)
+                task.future.completeExceptionally(t);
+            return;
+        }
+
+        var now = System.nanoTime();
+        this.commitLatencyHistogram.observeNanosAsSeconds(now - commitStart);
+        this.batchSizeHistogram.observe(committed.size());
+
+        for (var task : committed) {
+            this.writeLatencyHistogram.observeNanosAsSeconds(now - task.queuedAt);
+            task.complete();
+        }
+    }
+
+    /**
+     * @return true if the task succeeded and only waits for the commit
+     */
+    private boolean executeInSavepoint(WriteTask<?> task) {
+        Savepoint savepoint = null;
+        try {
+            savepoint = this.writeConnection.setSavepoint();
+
+            var start = System.nanoTime();
+            task.run(this.writeConnection);
+            this.writeExecuteHistogram.observeNanosAsSeconds(System.nanoTime() - start);
+
+            this.writeConnection.releaseSavepoint(savepoint);
+            return true;
+
+        } catch (Throwable t) {
+            if (savepoint != null) {
+                try {
+                    this.writeConnection.rollback(savepoint);
+                    this.writeConnection.releaseSavepoint(savepoint);
+                } catch (SQLException e) {
+                    log.error("Failed to roll back write savepoint", e);
+                    t.addSuppressed(e);
+                }
+            }
+            this.writeLatencyHistogram.observeNanosAsSeconds(System.nanoTime() - task.queuedAt);
+            task.future.completeExceptionally(t);
+            return false;
+        }
+    }
+
+    private void rollbackQuietly(@Nullable Throwable cause) {
+        try {
+            this.writeConnection.rollback();
+        } catch (SQLException e) {
+            log.error("Failed to roll back write transaction", e);
+            if (cause != null)
+                cause.addSuppressed(e);
+        }
     }
 
 
+    /**
+     * Stops the writer once the batch it's on is committed, fails the writes still queued, and closes all connections.
+     */
     @Override
-    public void initialSetup() throws SQLException {
-        try (final var conn = this.getConnection();
-             final var stmt = conn.createStatement()) {
-
-            // User
-            stmt.execute("""
-                CREATE TABLE IF NOT EXISTS users (
-                    id TEXT PRIMARY KEY,
-                    username TEXT UNIQUE NOT NULL,
-                    passwordHash TEXT NOT NULL,
-                    passwordSalt TEXT NOT NULL
-                );
-            """);
-
-            // FileUpload
-            stmt.execute("""
-                CREATE TABLE IF NOT EXISTS uploaded_files (
-                    id TEXT PRIMARY KEY,
-                    userId TEXT NOT NULL,
-                    filename TEXT NOT NULL,
-                    size INTEGER,
-                    uploadDate TEXT NOT NULL,
-                    path TEXT NOT NULL,
-            
-                    FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE
-                );
-            """);
-
-            // SharedLink
-            stmt.execute("""
-                CREATE TABLE IF NOT EXISTS shared_links (
-                    id TEXT PRIMARY KEY,
-                    fileId TEXT NOT NULL,
-                    expiry TEXT,
-                    password TEXT,
-            
-                    FOREIGN KEY (fileId) REFERENCES uploaded_files(id) ON DELETE CASCADE
-                );
-            """);
-
-            log.info("Database tables created successfully.");
+    public void close() {
+        this.closed = true;
+
+        this.writerThread.interrupt();
+        try {
+            this.writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
+        WriteTask<?> task;
+        while ((task = this.writeQueue.poll()) != null)
+            task.future.completeExceptionally(new SQLException("Database is closed"));
+
+        this.readDataSource.close();
+        try {
+            this.writeConnection.close();
         } catch (SQLException e) {
-            log.error("Failed to create database tables", e);
-            throw e;
+            log.warn("Failed to close SQLite writer connection", e);
+        }
+    }
+
+
+    private static final class WriteTask<T> {
+
+        private final SqlWork<T> work;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final long queuedAt = System.nanoTime();
+
+        private T result;
+
+        private WriteTask(SqlWork<T> work) {
+            this.work = work;
+        }
+
+        private void run(Connection conn) throws Exception {
+            this.result = this.work.run(conn);
+        }
+
+        private void complete() {
+            this.future.complete(this.result);
+        }
+
+    }
+
+
+    @Override
+    public void initialSetup() throws Exception {
+        var runner = new MigrationRunner(this, MIGRATIONS);
+
+        var currentVersion = runner.currentVersion();
+        if (currentVersion > runner.latestVersion())
+            throw new IllegalStateException("Database schema version " + currentVersion + " is newer than this server supports (" + runner.latestVersion() + "), refusing to start");
+
+        var pending = runner.pending(currentVersion);
+        if (pending.isEmpty()) {
+            log.info("Database schema is up to date (version {}).", currentVersion);
+            return;
         }
+
+        if (hasTables())
+            backup(currentVersion);
+
+        runner.apply(pending);
+        log.info("Database schema migrated from version {} to {}.", currentVersion, runner.latestVersion());
+    }
+
+    /**
+     * Whether the database holds anything besides the migration bookkeeping, i.e. isn't being created right now.
+     */
+    private boolean hasTables() throws SQLException {
+        try (var conn = getReadConnection();
+             var stmt = conn.createStatement()) {
+            var rs = stmt.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name NOT LIKE 'sqlite_%' AND name != 'schema_migrations' LIMIT 1");
+            return rs.next();
+        }
+    }
+
+    /**
+     * Snapshots the database next to itself before migrating, a consistent copy even while it's in use.
+     */
+    private void backup(int currentVersion) throws SQLException {
+        var backupFile = new File(this.dbFilePath + ".pre-migration-v" + currentVersion + "-" + System.currentTimeMillis() + ".bak");
+
+        // VACUUM can't run inside a transaction, the read connections are in autocommit mode
+        try (var conn = getReadConnection();
+             var ps = conn.prepareStatement("VACUUM INTO ?")) {
+            ps.setString(1, backupFile.getAbsolutePath());
+            ps.execute();
+        }
+
+        log.info("Backed up the database to {} before migrating.", backupFile.getAbsolutePath());
     }
 
 }
@@ -0,0 +1,17 @@
+package com.github.marcelektro.simplefilehost.service.db.migration;
+
+import java.sql.Connection;
+
+/**
+ * One step of the schema history. Applied exactly once, in its own transaction together with recording its version.
+ * Once released, a migration must never be changed, only followed by new ones.
+ */
+public interface Migration {
+
+    int version();
+
+    String description();
+
+    void apply(Connection conn) throws Exception;
+
+}
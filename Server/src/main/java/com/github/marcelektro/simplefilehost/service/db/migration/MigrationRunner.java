@@ -0,0 +1,87 @@
+package com.github.marcelektro.simplefilehost.service.db.migration;
+
+import com.github.marcelektro.simplefilehost.service.db.DatabaseService;
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Brings the schema up to date by applying every migration newer than the version recorded in {@code schema_migrations}.
+ * Each migration runs in its own transaction, together with recording its version, so an interrupted run
+ * leaves the database at the last fully applied version and simply continues from there next time.
+ */
+@Slf4j
+public class MigrationRunner {
+
+    private final DatabaseService dbService;
+    private final List<Migration> migrations;
+
+
+    public MigrationRunner(DatabaseService dbService, List<Migration> migrations) {
+        this.dbService = dbService;
+        this.migrations = migrations.stream()
+                .sorted(Comparator.comparingInt(Migration::version))
+                .toList();
+
+        for (int i = 1; i < this.migrations.size(); i++) {
+            if (this.migrations.get(i).version() == this.migrations.get(i - 1).version())
+                throw new IllegalArgumentException("Duplicate migration version " + this.migrations.get(i).version());
+        }
+    }
+
+
+    public int latestVersion() {
+        return this.migrations.isEmpty() ? 0 : this.migrations.getLast().version();
+    }
+
+    /**
+     * @return the version of the schema, 0 if no migration has ever been applied
+     */
+    public int currentVersion() throws Exception {
+        return this.dbService.write(conn -> {
+            try (var stmt = conn.createStatement()) {
+                stmt.execute("""
+                    CREATE TABLE IF NOT EXISTS schema_migrations (
+                        version INTEGER PRIMARY KEY,
+                        description TEXT NOT NULL,
+                        appliedAt INTEGER NOT NULL
+                    );
+                """);
+
+                var rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_migrations");
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        });
+    }
+
+    public List<Migration> pending(int currentVersion) {
+        return this.migrations.stream()
+                .filter(m -> m.version() > currentVersion)
+                .toList();
+    }
+
+    public void apply(List<Migration> pending) throws Exception {
+        for (var migration : pending) {
+            log.info("Applying database migration {}: {}", migration.version(), migration.description());
+
+            try {
+                this.dbService.write(conn -> {
+                    migration.apply(conn);
+
+                    try (var ps = conn.prepareStatement("INSERT INTO schema_migrations (version, description, appliedAt) VALUES (?, ?, ?)")) {
+                        ps.setInt(1, migration.version());
+                        ps.setString(2, migration.description());
+                        ps.setLong(3, System.currentTimeMillis());
+                        ps.executeUpdate();
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                throw new SQLException("Database migration " + migration.version() + " (" + migration.description() + ") failed, it was rolled back", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.github.marcelektro.simplefilehost.service.db.migration;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * The schema as it was created before versioned migrations. Everything here is idempotent,
+ * so databases created by any earlier version are brought to the same state, whatever they already have.
+ */
+@Slf4j
+public class V1Baseline implements Migration {
+
+    @Override
+    public int version() {
+        return 1;
+    }
+
+    @Override
+    public String description() {
+        return "baseline schema";
+    }
+
+    @Override
+    public void apply(Connection conn) throws Exception {
+        try (final var stmt = conn.createStatement()) {
+
+            // User
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS users (
+                    id TEXT PRIMARY KEY,
+                    username TEXT UNIQUE NOT NULL,
+                    passwordHash TEXT NOT NULL,
+                    passwordSalt TEXT NOT NULL
+                );
+            """);
+
+            // FileUpload
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS uploaded_files (
+                    id TEXT PRIMARY KEY,
+                    userId TEXT NOT NULL,
+                    filename TEXT NOT NULL,
+                    size INTEGER,
+                    uploadDate TEXT NOT NULL,
+                    path TEXT NOT NULL,
+
+                    FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE
+                );
+            """);
+
+            // Content-addressed blob, shared by all uploads of the same content
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS blobs (
+                    digest TEXT PRIMARY KEY,
+                    path TEXT NOT NULL,
+                    size INTEGER NOT NULL,
+                    refCount INTEGER NOT NULL
+                );
+            """);
+
+            // files uploaded before content addressing have no digest and own their blob exclusively
+            addColumnIfMissing(conn, "uploaded_files", "blobDigest", "TEXT REFERENCES blobs(digest)");
+
+            // SharedLink
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS shared_links (
+                    id TEXT PRIMARY KEY,
+                    fileId TEXT NOT NULL,
+                    expiry TEXT,
+                    password TEXT,
+
+                    FOREIGN KEY (fileId) REFERENCES uploaded_files(id) ON DELETE CASCADE
+                );
+            """);
+
+            // Resumable upload session
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS upload_sessions (
+                    id TEXT PRIMARY KEY,
+                    userId TEXT NOT NULL,
+                    filename TEXT NOT NULL,
+                    size INTEGER NOT NULL,
+                    receivedRanges TEXT NOT NULL,
+                    createdAt TEXT NOT NULL,
+                    expiresAt TEXT NOT NULL,
+
+                    FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE
+                );
+            """);
+        }
+    }
+
+
+    private static void addColumnIfMissing(Connection conn, String table, String column, String definition) throws SQLException {
+        try (var stmt = conn.createStatement()) {
+            var rs = stmt.executeQuery("PRAGMA table_info(" + table + ")");
+            while (rs.next()) {
+                if (rs.getString("name").equalsIgnoreCase(column))
+                    return;
+            }
+
+            stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+            log.info("Added column {}.{}", table, column);
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.github.marcelektro.simplefilehost.service.db.migration;
+
+import com.github.marcelektro.simplefilehost.util.EpochMillis;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Replaces the ISO-8601 TEXT dates with INTEGER epoch milliseconds, which compare and sort natively
+ * instead of being parsed for every row read.
+ * <p>
+ * The old values are LocalDateTime strings in the server's time zone, they are converted in that zone.
+ */
+public class V2EpochMillisDates implements Migration {
+
+    @Override
+    public int version() {
+        return 2;
+    }
+
+    @Override
+    public String description() {
+        return "store dates as epoch millis";
+    }
+
+    @Override
+    public void apply(Connection conn) throws Exception {
+        try (var stmt = conn.createStatement()) {
+
+            // uploaded_files.uploadDate -> uploadedAt
+            stmt.execute("ALTER TABLE uploaded_files ADD COLUMN uploadedAt INTEGER NOT NULL DEFAULT 0");
+            convert(conn, "uploaded_files", "uploadDate", "uploadedAt");
+            stmt.execute("ALTER TABLE uploaded_files DROP COLUMN uploadDate");
+
+            // shared_links.expiry -> expiresAt, null meaning no expiry as before
+            stmt.execute("ALTER TABLE shared_links ADD COLUMN expiresAt INTEGER");
+            convert(conn, "shared_links", "expiry", "expiresAt");
+            stmt.execute("ALTER TABLE shared_links DROP COLUMN expiry");
+
+            // upload sessions keep their column names, so the (small) table is rebuilt instead
+            stmt.execute("""
+                CREATE TABLE upload_sessions_new (
+                    id TEXT PRIMARY KEY,
+                    userId TEXT NOT NULL,
+                    filename TEXT NOT NULL,
+                    size INTEGER NOT NULL,
+                    receivedRanges TEXT NOT NULL,
+                    createdAt INTEGER NOT NULL,
+                    expiresAt INTEGER NOT NULL,
+
+                    FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE
+                );
+            """);
+            stmt.execute("""
+                INSERT INTO upload_sessions_new (id, userId, filename, size, receivedRanges, createdAt, expiresAt)
+                SELECT id, userId, filename, size, receivedRanges, 0, 0
+                FROM upload_sessions
+            """);
+            convertFrom(conn, "upload_sessions", "upload_sessions_new", "createdAt", "createdAt");
+            convertFrom(conn, "upload_sessions", "upload_sessions_new", "expiresAt", "expiresAt");
+            stmt.execute("DROP TABLE upload_sessions");
+            stmt.execute("ALTER TABLE upload_sessions_new RENAME TO upload_sessions");
+        }
+    }
+
+
+    private static void convert(Connection conn, String table, String fromColumn, String toColumn) throws SQLException {
+        convertFrom(conn, table, table, fromColumn, toColumn);
+    }
+
+    private static void convertFrom(Connection conn, String fromTable, String toTable, String fromColumn, String toColumn) throws SQLException {
+        var selectSql = "SELECT id, " + fromColumn + " FROM " + fromTable + " WHERE " + fromColumn + " IS NOT NULL";
+        var updateSql = "UPDATE " + toTable + " SET " + toColumn + " = ? WHERE id = ?";
+
+        try (var select = conn.prepareStatement(selectSql);
+             var update = conn.prepareStatement(updateSql)) {
+
+            var rs = select.executeQuery();
+            while (rs.next()) {
+                var id = rs.getString(1);
+                var value = rs.getString(2);
+
+                long millis;
+                try {
+                    millis = EpochMillis.of(LocalDateTime.parse(value));
+                } catch (DateTimeParseException e) {
+                    throw new SQLException("Unparsable date in " + fromTable + "." + fromColumn + " of row " + id + ": " + value, e);
+                }
+
+                update.setLong(1, millis);
+                update.setString(2, id);
+                update.addBatch();
+            }
+
+            update.executeBatch();
+        }
+    }
+
+}
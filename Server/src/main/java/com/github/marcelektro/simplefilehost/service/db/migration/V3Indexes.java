@@ -0,0 +1,37 @@
+package com.github.marcelektro.simplefilehost.service.db.migration;
+
+import java.sql.Connection;
+
+/**
+ * Indexes for every lookup that used to scan a whole table: listing a user's files (one per sort mode,
+ * ending in id to match the keyset pagination order), share links of a file, and expired upload sessions.
+ */
+public class V3Indexes implements Migration {
+
+    @Override
+    public int version() {
+        return 3;
+    }
+
+    @Override
+    public String description() {
+        return "indexes for listing, share links and session expiry";
+    }
+
+    @Override
+    public void apply(Connection conn) throws Exception {
+        try (var stmt = conn.createStatement()) {
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_uploaded_files_user_filename ON uploaded_files (userId, filename, id)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_uploaded_files_user_uploaded_at ON uploaded_files (userId, uploadedAt, id)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_uploaded_files_user_size ON uploaded_files (userId, size, id)");
+
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_shared_links_file ON shared_links (fileId)");
+
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_upload_sessions_expires_at ON upload_sessions (expiresAt)");
+
+            // lets the planner actually pick them
+            stmt.execute("ANALYZE");
+        }
+    }
+
+}
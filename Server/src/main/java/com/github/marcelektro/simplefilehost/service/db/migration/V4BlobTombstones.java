@@ -0,0 +1,41 @@
+package com.github.marcelektro.simplefilehost.service.db.migration;
+
+import java.sql.Connection;
+
+/**
+ * Blob files no longer referenced by anything, waiting to be unlinked in the background.
+ * A tombstone is written in the same transaction that drops the last reference, so none get lost across restarts.
+ */
+public class V4BlobTombstones implements Migration {
+
+    @Override
+    public int version() {
+        return 4;
+    }
+
+    @Override
+    public String description() {
+        return "tombstones for asynchronous blob deletion";
+    }
+
+    @Override
+    public void apply(Connection conn) throws Exception {
+        try (var stmt = conn.createStatement()) {
+            // digest is null for blobs of files uploaded before content addressing
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS blob_tombstones (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    path TEXT NOT NULL,
+                    digest TEXT,
+                    deletedAt INTEGER NOT NULL,
+                    attempts INTEGER NOT NULL DEFAULT 0,
+                    nextAttemptAt INTEGER NOT NULL
+                );
+            """);
+
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_blob_tombstones_next_attempt_at ON blob_tombstones (nextAttemptAt)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_blob_tombstones_path ON blob_tombstones (path)");
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.github.marcelektro.simplefilehost.service.db.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Blob locations become keys relative to the blob store instead of absolute paths on the local disk,
+ * so they stay valid when the data directory moves or the blobs live in a remote store.
+ * <p>
+ * Every blob so far lies in a shard directory right below the blob root, its key is the last two segments of its path.
+ * The {@code path} columns keep their names, they hold keys from now on.
+ */
+public class V5BlobKeys implements Migration {
+
+    @Override
+    public int version() {
+        return 5;
+    }
+
+    @Override
+    public String description() {
+        return "store blob keys instead of absolute paths";
+    }
+
+    @Override
+    public void apply(Connection conn) throws Exception {
+        convert(conn, "uploaded_files");
+        convert(conn, "blobs");
+        convert(conn, "blob_tombstones");
+    }
+
+
+    private static void convert(Connection conn, String table) throws SQLException {
+        var selectSql = "SELECT rowid, path FROM " + table;
+        var updateSql = "UPDATE " + table + " SET path = ? WHERE rowid = ?";
+
+        try (var select = conn.prepareStatement(selectSql);
+             var update = conn.prepareStatement(updateSql)) {
+
+            var rs = select.executeQuery();
+            while (rs.next()) {
+                var path = rs.getString(2);
+                if (path == null)
+                    continue;
+
+                update.setString(1, keyOf(path));
+                update.setLong(2, rs.getLong(1));
+                update.addBatch();
+            }
+
+            update.executeBatch();
+        }
+    }
+
+    private static String keyOf(String path) {
+        // written on whatever OS the server ran on
+        var normalized = path.replace('\\', '/');
+
+        var nameStart = normalized.lastIndexOf('/');
+        if (nameStart <= 0)
+            return normalized;
+
+        var shardStart = normalized.lastIndexOf('/', nameStart - 1);
+        return normalized.substring(shardStart + 1);
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.github.marcelektro.simplefilehost.service.db.migration;
+
+import java.sql.Connection;
+
+/**
+ * Small blobs appended to shared pack files instead of getting a file each, located through an index of their own.
+ * A pack's {@code size} is how far it's been written as of the last committed entry, everything in it not referenced
+ * by an entry (deleted, replaced or never committed) is dead and goes away when the pack is compacted.
+ */
+public class V6PackFiles implements Migration {
+
+    @Override
+    public int version() {
+        return 6;
+    }
+
+    @Override
+    public String description() {
+        return "index of blobs stored in pack files";
+    }
+
+    @Override
+    public void apply(Connection conn) throws Exception {
+        try (var stmt = conn.createStatement()) {
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS packs (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    size INTEGER NOT NULL DEFAULT 0,
+                    liveBytes INTEGER NOT NULL DEFAULT 0,
+                    sealed INTEGER NOT NULL DEFAULT 0,
+                    createdAt INTEGER NOT NULL
+                );
+            """);
+
+            // path is the blob's key, like the path columns of the other tables
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS pack_entries (
+                    path TEXT PRIMARY KEY,
+                    packId INTEGER NOT NULL,
+                    position INTEGER NOT NULL,
+                    length INTEGER NOT NULL,
+                    checksum INTEGER NOT NULL,
+                    createdAt INTEGER NOT NULL
+                );
+            """);
+
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_pack_entries_pack_position ON pack_entries (packId, position)");
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.github.marcelektro.simplefilehost.service.db.migration;
+
+import java.sql.Connection;
+
+/**
+ * Blobs can be stored compressed. {@code blobs.size} stays the size of the content as uploaded,
+ * the new columns say how it's encoded and are null for blobs stored as they are, which all existing ones are.
+ */
+public class V7BlobEncoding implements Migration {
+
+    @Override
+    public int version() {
+        return 7;
+    }
+
+    @Override
+    public String description() {
+        return "encoding of compressed blobs";
+    }
+
+    @Override
+    public void apply(Connection conn) throws Exception {
+        try (var stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE blobs ADD COLUMN codec TEXT");
+            stmt.execute("ALTER TABLE blobs ADD COLUMN frameSize INTEGER");
+            // compressed length of every frame, 4 bytes each
+            stmt.execute("ALTER TABLE blobs ADD COLUMN frameIndex BLOB");
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.github.marcelektro.simplefilehost.service.db.migration;
+
+import java.sql.Connection;
+
+/**
+ * State of the background integrity scrubber: how far each of its walks got, so a pass resumes where it stopped after a restart,
+ * and the problems it found, one per blob key until the blob verifies again or goes away.
+ * <p>
+ * Looking up keys found in the store needs the path columns indexed, of blobs and of the files that own their blob.
+ */
+public class V8BlobScrubbing implements Migration {
+
+    @Override
+    public int version() {
+        return 8;
+    }
+
+    @Override
+    public String description() {
+        return "blob scrubbing progress and problems";
+    }
+
+    @Override
+    public void apply(Connection conn) throws Exception {
+        try (var stmt = conn.createStatement()) {
+            // cursor is the last digest, file ID or key done in the current pass, empty at its start
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS scrub_progress (
+                    walk TEXT PRIMARY KEY,
+                    cursor TEXT NOT NULL,
+                    passStartedAt INTEGER NOT NULL,
+                    passFinishedAt INTEGER
+                );
+            """);
+
+            // digest is null for blobs of files uploaded before content addressing
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS blob_problems (
+                    path TEXT PRIMARY KEY,
+                    digest TEXT,
+                    problem TEXT NOT NULL,
+                    detail TEXT,
+                    foundAt INTEGER NOT NULL
+                );
+            """);
+
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_blobs_path ON blobs (path)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_uploaded_files_owned_path ON uploaded_files (path) WHERE blobDigest IS NULL");
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+package com.github.marcelektro.simplefilehost.service.file;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.Counter;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.service.db.DatabaseService;
+import com.github.marcelektro.simplefilehost.storage.BlobStore;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes blobs nothing references anymore from the store, working off the tombstones deletes leave behind,
+ * so deleting a file never waits on the store.
+ * <p>
+ * Due tombstones are picked up in batches and deleted on a small pool, paced to the configured rate,
+ * so a mass delete doesn't compete with downloads for I/O. Failed deletions are retried with exponential backoff.
+ * Tombstones live in the database, pending deletions survive restarts.
+ * <p>
+ * Content can be uploaded again before its old blob is reaped, the upload then removes the tombstone.
+ * The deletion holds the blob's lock and checks that its tombstone is still there, so a blob in use again is never removed.
+ */
+@Slf4j
+public class BlobReaper implements AutoCloseable {
+
+    private final FileUploadServiceImpl fileUploadService;
+    private final BlobStore blobStore;
+    private final DatabaseService dbService;
+    private final Config.BlobReaper config;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        var t = new Thread(r, "BlobReaper");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService unlinkers;
+
+    private final long permitIntervalNanos;
+    private long nextPermitNanos; // guarded by this
+
+    private final Counter deleted;
+    private final Counter failures;
+    private final AtomicLong pending = new AtomicLong();
+
+
+    public BlobReaper(FileUploadServiceImpl fileUploadService, BlobStore blobStore, DatabaseService dbService, Config.BlobReaper config, MetricsRegistry metrics) {
+        this.fileUploadService = fileUploadService;
+        this.blobStore = blobStore;
+        this.dbService = dbService;
+        this.config = config;
+
+        var threadCount = new AtomicInteger();
+        this.unlinkers = Executors.newFixedThreadPool(Math.max(1, config.threads), r -> {
+            var t = new Thread(r, "BlobReaper-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.permitIntervalNanos = config.maxDeletesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / config.maxDeletesPerSecond : 0;
+
+        this.deleted = metrics.counter("sfh_blob_reaper_deleted_total", "Blobs of deleted content removed from the store");
+        this.failures = metrics.counter("sfh_blob_reaper_failures_total", "Blob deletions that failed and will be retried");
+        metrics.gauge("sfh_blob_reaper_pending", "Blobs waiting to be deleted, as of the last round", this.pending::get);
+
+        if (config.intervalSeconds > 0)
+            this.scheduler.scheduleWithFixedDelay(this::reap, 1, config.intervalSeconds, TimeUnit.SECONDS);
+        else
+            log.warn("Blob reaper is disabled, blobs of deleted content stay in the store until it's enabled again");
+    }
+
+
+    private void reap() {
+        try {
+            // a full batch means there's likely more due right away
+            int reaped;
+            do {
+                reaped = reapBatch();
+            } while (reaped == this.config.batchSize && !Thread.currentThread().isInterrupted());
+
+            this.pending.set(countPending());
+
+        } catch (Exception e) {
+            log.error("Failed to reap deleted blobs", e);
+        }
+    }
+
+    /**
+     * @return how many tombstones were due
+     */
+    int reapBatch() throws Exception {
+        var due = new ArrayList<Tombstone>(this.config.batchSize);
+
+        try (var conn = this.dbService.getReadConnection()) {
+            var sql = """
+                      SELECT id, path, digest, attempts
+                      FROM blob_tombstones
+                      WHERE nextAttemptAt <= ?
+                      ORDER BY nextAttemptAt
+                      LIMIT ?
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setLong(1, System.currentTimeMillis());
+                ps.setInt(2, this.config.batchSize);
+                var rs = ps.executeQuery();
+
+                while (rs.next())
+                    due.add(new Tombstone(rs.getLong("id"), rs.getString("path"), rs.getString("digest"), rs.getInt("attempts")));
+            }
+        }
+
+        if (due.isEmpty())
+            return 0;
+
+        var futures = new ArrayList<Future<Boolean>>(due.size());
+        for (var tombstone : due)
+            futures.add(this.unlinkers.submit(() -> unlink(tombstone)));
+
+        var done = new ArrayList<Tombstone>();
+        var failed = new ArrayList<Tombstone>();
+        for (int i = 0; i < due.size(); i++)
+            (futures.get(i).get() ? done : failed).add(due.get(i));
+
+        this.dbService.write(conn -> {
+            var deleteSql = """
+                            DELETE FROM blob_tombstones
+                            WHERE id = ?
+                            """;
+            try (var ps = conn.prepareStatement(deleteSql)) {
+                for (var tombstone : done) {
+                    ps.setLong(1, tombstone.id());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+
+            var retrySql = """
+                           UPDATE blob_tombstones
+                           SET attempts = ?, nextAttemptAt = ?
+                           WHERE id = ?
+                           """;
+            try (var ps = conn.prepareStatement(retrySql)) {
+                var now = System.currentTimeMillis();
+                for (var tombstone : failed) {
+                    ps.setInt(1, tombstone.attempts() + 1);
+                    ps.setLong(2, now + retryDelayMillis(tombstone.attempts()));
+                    ps.setLong(3, tombstone.id());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+
+            return null;
+        });
+
+        return due.size();
+    }
+
+    /**
+     * @return whether the tombstone is done with, false to retry later
+     */
+    private boolean unlink(Tombstone tombstone) throws InterruptedException {
+        acquirePermit();
+
+        // files uploaded before content addressing own their blob exclusively, nothing can bring them back
+        var lock = tombstone.digest() != null ? this.fileUploadService.blobLock(tombstone.digest()) : null;
+        if (lock != null)
+            lock.lock();
+
+        try {
+            if (lock != null && !isTombstoned(tombstone)) {
+                log.debug("Blob was uploaded again before it was deleted, keeping it: {}", tombstone.key());
+                return true;
+            }
+
+            if (!this.blobStore.delete(tombstone.key()))
+                log.warn("Blob was already missing from the store when deleting it: {}", tombstone.key());
+
+            this.deleted.increment();
+            return true;
+
+        } catch (Exception e) {
+            log.warn("Failed to delete blob, retrying later (attempt {}): {}", tombstone.attempts() + 1, tombstone.key(), e);
+            this.failures.increment();
+            return false;
+
+        } finally {
+            if (lock != null)
+                lock.unlock();
+        }
+    }
+
+    private boolean isTombstoned(Tombstone tombstone) throws SQLException {
+        try (var conn = this.dbService.getReadConnection()) {
+            var sql = """
+                      SELECT 1
+                      FROM blob_tombstones
+                      WHERE id = ?
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setLong(1, tombstone.id());
+                return ps.executeQuery().next();
+            }
+        }
+    }
+
+    private long countPending() throws SQLException {
+        try (var conn = this.dbService.getReadConnection();
+             var ps = conn.prepareStatement("SELECT COUNT(*) FROM blob_tombstones")) {
+            var rs = ps.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Blocks until the next unlink is allowed by the rate limit, shared by all threads.
+     */
+    private void acquirePermit() throws InterruptedException {
+        if (this.permitIntervalNanos == 0)
+            return;
+
+        long waitNanos;
+        synchronized (this) {
+            var now = System.nanoTime();
+            var permit = Math.max(now, this.nextPermitNanos);
+            this.nextPermitNanos = permit + this.permitIntervalNanos;
+            waitNanos = permit - now;
+        }
+
+        if (waitNanos > 0)
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    private long retryDelayMillis(int attempts) {
+        var delaySeconds = (long) this.config.retryBaseDelaySeconds << Math.min(attempts, 30);
+        return TimeUnit.SECONDS.toMillis(Math.min(delaySeconds, this.config.retryMaxDelaySeconds));
+    }
+
+
+    @Override
+    public void close() {
+        this.scheduler.shutdownNow();
+        this.unlinkers.shutdownNow();
+    }
+
+
+    private record Tombstone(long id, String key, @Nullable String digest, int attempts) {}
+
+}
@@ -0,0 +1,604 @@
+package com.github.marcelektro.simplefilehost.service.file;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.Counter;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.metrics.TransferMetrics;
+import com.github.marcelektro.simplefilehost.service.db.DatabaseService;
+import com.github.marcelektro.simplefilehost.storage.BlobStore;
+import com.github.marcelektro.simplefilehost.storage.CorruptBlobException;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Checks in the background that the store holds what the database says it does, and nothing else.
+ * <p>
+ * A pass walks the blobs, reading each one back and comparing it to the digest it was stored under (computed while it was uploaded),
+ * then the files owning their blob, which have no digest and only get their size checked, then the keys in the store,
+ * handing blobs nothing references to the {@link BlobReaper}. Blobs found missing or corrupted are flagged in {@code blob_problems},
+ * the next upload of the same content restores them, and the flag goes away once a later pass finds them fine again.
+ * <p>
+ * Progress is saved after every batch, a pass cut short by a restart resumes where it stopped. Reads are paced to the configured rate
+ * and wait while downloads are busy, so scrubbing doesn't compete with them.
+ */
+@Slf4j
+public class BlobScrubber implements AutoCloseable {
+
+    static final String WALK_BLOBS = "blobs";
+    static final String WALK_OWNED_FILES = "ownedFiles";
+    static final String WALK_KEYS = "keys";
+
+    static final String MISSING = "missing";
+    static final String CORRUPT = "corrupt";
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_CHECK_SECONDS = 60;
+    private static final long BUSY_WAIT_MILLIS = 200;
+
+    private final FileUploadServiceImpl fileUploadService;
+    private final BlobStore blobStore;
+    private final DatabaseService dbService;
+    private final TransferMetrics transfers;
+    private final Config.Scrubber config;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        var t = new Thread(r, "BlobScrubber");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // only touched by the scrubbing thread
+    private long budgetStartNanos = System.nanoTime();
+    private long budgetBytes;
+
+    private final Counter verifiedBlobs;
+    private final Counter verifiedBytes;
+    private final Counter missing;
+    private final Counter corrupt;
+    private final Counter orphans;
+    private final Counter failures;
+    private final AtomicLong problems = new AtomicLong();
+
+
+    public BlobScrubber(FileUploadServiceImpl fileUploadService, BlobStore blobStore, DatabaseService dbService, TransferMetrics transfers,
+                        Config.Scrubber config, MetricsRegistry metrics) {
+        this.fileUploadService = fileUploadService;
+        this.blobStore = blobStore;
+        this.dbService = dbService;
+        this.transfers = transfers;
+        this.config = config;
+
+        this.verifiedBlobs = metrics.counter("sfh_scrub_verified_blobs_total", "Blobs read back and found matching their digest");
+        this.verifiedBytes = metrics.counter("sfh_scrub_read_bytes_total", "Bytes of blob content read back for verifying");
+        this.missing = metrics.counter("sfh_scrub_missing_total", "Blobs found missing from the store");
+        this.corrupt = metrics.counter("sfh_scrub_corrupt_total", "Blobs found not matching their digest or size");
+        this.orphans = metrics.counter("sfh_scrub_orphans_total", "Blobs nothing referenced, left to the reaper");
+        this.failures = metrics.counter("sfh_scrub_failures_total", "Blobs that couldn't be checked, tried again in the next pass");
+        metrics.gauge("sfh_blob_problems", "Blobs flagged missing or corrupted, as of the last round", this.problems::get);
+
+        this.scheduler.scheduleWithFixedDelay(this::scrub, 1, IDLE_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+
+    void scrub() {
+        try {
+            walk(WALK_BLOBS, "blobs", this::scrubBlobs);
+            walk(WALK_OWNED_FILES, "files uploaded before content addressing", this::scrubOwnedFiles);
+            walk(WALK_KEYS, "keys in the store", this::scrubKeys);
+
+            this.problems.set(countProblems());
+
+        } catch (Exception e) {
+            log.error("Failed to scrub blobs", e);
+        }
+    }
+
+    /**
+     * Carries on with the walk's current pass, or starts a new one once the last one is old enough.
+     *
+     * @param what the walk goes over, for the log
+     */
+    private void walk(String walk, String what, Step step) throws Exception {
+        // shutting down, the walks after one cut short wait for the next start
+        if (Thread.currentThread().isInterrupted())
+            return;
+
+        var progress = progress(walk);
+        var now = System.currentTimeMillis();
+
+        String cursor;
+        long passStartedAt;
+        if (progress == null || progress.passFinishedAt() != null) {
+            if (progress != null && now - progress.passStartedAt() < TimeUnit.HOURS.toMillis(this.config.passIntervalHours))
+                return;
+
+            cursor = "";
+            passStartedAt = now;
+            saveProgress(walk, cursor, passStartedAt, null);
+            log.debug("Starting scrubbing pass over the {}", what);
+        } else {
+            cursor = progress.cursor();
+            passStartedAt = progress.passStartedAt();
+        }
+
+        while (!Thread.currentThread().isInterrupted()) {
+            var next = step.scrub(cursor);
+            if (next == null) {
+                saveProgress(walk, cursor, passStartedAt, System.currentTimeMillis());
+                log.info("Finished scrubbing pass over the {}", what);
+                return;
+            }
+
+            cursor = next;
+            var savedCursor = cursor;
+            recordDone(() -> saveCursor(walk, savedCursor));
+        }
+    }
+
+    /**
+     * Records what's been done even when the scrubber is shut down in the middle of it, the interrupt is kept for the walk to stop at.
+     */
+    private void recordDone(Recording recording) throws Exception {
+        var interrupted = Thread.interrupted();
+        try {
+            recording.record();
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the last digest done, null once there are no more. Short of the batch's end when interrupted
+     */
+    private @Nullable String scrubBlobs(String afterDigest) throws Exception {
+        var batch = new ArrayList<StoredBlob>(this.config.batchSize);
+
+        try (var conn = this.dbService.getReadConnection()) {
+            var sql = """
+                      SELECT digest, path, size, codec, frameSize, frameIndex
+                      FROM blobs
+                      WHERE digest > ?
+                      ORDER BY digest
+                      LIMIT ?
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, afterDigest);
+                ps.setInt(2, this.config.batchSize);
+                var rs = ps.executeQuery();
+
+                while (rs.next()) {
+                    var encoding = FileUploadServiceImpl.readEncoding(rs);
+                    batch.add(new StoredBlob(rs.getString("digest"), rs.getString("path"), rs.getLong("size"),
+                            encoding != null ? encoding.storedSize() : rs.getLong("size"), encoding != null));
+                }
+            }
+        }
+
+        if (batch.isEmpty())
+            return null;
+
+        var fine = new ArrayList<String>(batch.size());
+        var lastDone = afterDigest;
+        for (var blob : batch) {
+            if (Thread.currentThread().isInterrupted())
+                break;
+
+            BlobStore.BlobStat stat = null;
+            try {
+                stat = this.blobStore.stat(blob.key());
+                var finding = stat == null ? new Finding(MISSING, null) : verify(blob, stat);
+
+                if (finding == null) {
+                    this.verifiedBlobs.increment();
+                    fine.add(blob.key());
+                } else {
+                    flagBlob(blob, stat, finding);
+                }
+
+            } catch (NoSuchFileException e) {
+                flagBlob(blob, stat, new Finding(MISSING, null));
+
+            } catch (CorruptBlobException | ZipException | EOFException e) {
+                flagBlob(blob, stat, new Finding(CORRUPT, e.getMessage()));
+
+            } catch (InterruptedIOException | ClosedByInterruptException e) {
+                // verified from the start when the walk carries on
+                break;
+
+            } catch (IOException e) {
+                log.warn("Failed to verify blob {}, trying again in the next pass", blob.key(), e);
+                this.failures.increment();
+            }
+
+            lastDone = blob.digest();
+        }
+
+        recordDone(() -> clearProblems(fine));
+        return lastDone;
+    }
+
+    /**
+     * Reads the blob back, decoding it if it's stored compressed.
+     *
+     * @return what's wrong with it, null if nothing
+     */
+    private @Nullable Finding verify(StoredBlob blob, BlobStore.BlobStat stat) throws IOException {
+        if (stat.size() != blob.storedSize())
+            return new Finding(CORRUPT, "stored size is " + stat.size() + " instead of " + blob.storedSize());
+
+        var digest = newDigest();
+        var buffer = new byte[READ_BUFFER_SIZE];
+        long size = 0;
+
+        // the gzip stream's own checksum and length get checked along
+        try (var stored = this.blobStore.get(blob.key(), 0, -1);
+             var in = blob.compressed() ? new GZIPInputStream(stored, READ_BUFFER_SIZE) : stored) {
+
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+                size += read;
+
+                this.verifiedBytes.add(read);
+                throttle(read);
+            }
+        }
+
+        if (size != blob.size())
+            return new Finding(CORRUPT, "content is " + size + " bytes instead of " + blob.size());
+        if (!HexFormat.of().formatHex(digest.digest()).equals(blob.digest()))
+            return new Finding(CORRUPT, "content doesn't match its digest");
+        return null;
+    }
+
+    /**
+     * Files uploaded before content addressing have no digest, they can only be checked for being there with the right size.
+     *
+     * @return the last file ID done, null once there are no more
+     */
+    private @Nullable String scrubOwnedFiles(String afterFileId) throws Exception {
+        var batch = new ArrayList<OwnedFile>(this.config.batchSize);
+
+        try (var conn = this.dbService.getReadConnection()) {
+            var sql = """
+                      SELECT id, path, size
+                      FROM uploaded_files
+                      WHERE blobDigest IS NULL AND id > ?
+                      ORDER BY id
+                      LIMIT ?
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, afterFileId);
+                ps.setInt(2, this.config.batchSize);
+                var rs = ps.executeQuery();
+
+                while (rs.next()) {
+                    var size = rs.getLong("size");
+                    batch.add(new OwnedFile(rs.getString("id"), rs.getString("path"), rs.wasNull() ? null : size));
+                }
+            }
+        }
+
+        if (batch.isEmpty())
+            return null;
+
+        var fine = new ArrayList<String>(batch.size());
+        for (var file : batch) {
+            try {
+                var stat = this.blobStore.stat(file.key());
+                if (stat == null)
+                    flagOwnedFile(file, new Finding(MISSING, null));
+                else if (file.size() != null && stat.size() != file.size())
+                    flagOwnedFile(file, new Finding(CORRUPT, "stored size is " + stat.size() + " instead of " + file.size()));
+                else
+                    fine.add(file.key());
+
+            } catch (IOException e) {
+                log.warn("Failed to check blob {}, trying again in the next pass", file.key(), e);
+                this.failures.increment();
+            }
+        }
+
+        clearProblems(fine);
+        return batch.get(batch.size() - 1).fileId();
+    }
+
+    /**
+     * Blobs in the store nothing references. Those still young may belong to an upload or a move that's yet to record them.
+     *
+     * @return the last key done, null once there are no more
+     */
+    private @Nullable String scrubKeys(String afterKey) throws Exception {
+        var keys = this.blobStore.list(afterKey, this.config.batchSize);
+        if (keys.isEmpty())
+            return null;
+
+        List<String> unreferenced;
+        try (var conn = this.dbService.getReadConnection()) {
+            unreferenced = FileUploadServiceImpl.unreferencedKeys(conn, keys);
+        }
+
+        var graceMillis = TimeUnit.HOURS.toMillis(this.config.orphanGraceHours);
+        for (var key : unreferenced) {
+            try {
+                var stat = this.blobStore.stat(key);
+                if (stat == null || System.currentTimeMillis() - stat.lastModifiedMillis() < graceMillis)
+                    continue;
+
+                if (this.fileUploadService.releaseOrphanBlob(key)) {
+                    log.warn("Found a blob nothing references, deleting it: {}", key);
+                    this.orphans.increment();
+                }
+
+            } catch (IOException e) {
+                log.warn("Failed to check unreferenced blob {}, trying again in the next pass", key, e);
+                this.failures.increment();
+            }
+        }
+
+        return keys.get(keys.size() - 1);
+    }
+
+
+    /**
+     * Records a problem found with a blob, unless it changed while being checked: deleted, moved or restored by an upload.
+     *
+     * @param seen the blob's metadata before it was checked
+     */
+    private void flagBlob(StoredBlob blob, @Nullable BlobStore.BlobStat seen, Finding finding) throws Exception {
+        var lock = this.fileUploadService.blobLock(blob.digest());
+
+        lock.lock();
+        try {
+            if (!Objects.equals(seen, this.blobStore.stat(blob.key())))
+                return;
+
+            var flagged = this.dbService.write(conn -> {
+                var sql = """
+                          INSERT INTO blob_problems (path, digest, problem, detail, foundAt)
+                          SELECT ?, ?, ?, ?, ?
+                          WHERE EXISTS (SELECT 1 FROM blobs WHERE digest = ? AND path = ?)
+                          ON CONFLICT (path) DO UPDATE SET problem = excluded.problem, detail = excluded.detail
+                          """;
+                try (var ps = conn.prepareStatement(sql)) {
+                    setFinding(ps, blob.key(), blob.digest(), finding);
+                    ps.setString(6, blob.digest());
+                    ps.setString(7, blob.key());
+                    return ps.executeUpdate() > 0;
+                }
+            });
+
+            if (flagged)
+                countFinding(blob.key(), finding);
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flagOwnedFile(OwnedFile file, Finding finding) throws Exception {
+        var flagged = this.dbService.write(conn -> {
+            var sql = """
+                      INSERT INTO blob_problems (path, digest, problem, detail, foundAt)
+                      SELECT ?, ?, ?, ?, ?
+                      WHERE EXISTS (SELECT 1 FROM uploaded_files WHERE id = ? AND path = ?)
+                      ON CONFLICT (path) DO UPDATE SET problem = excluded.problem, detail = excluded.detail
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                setFinding(ps, file.key(), null, finding);
+                ps.setString(6, file.fileId());
+                ps.setString(7, file.key());
+                return ps.executeUpdate() > 0;
+            }
+        });
+
+        if (flagged)
+            countFinding(file.key(), finding);
+    }
+
+    private static void setFinding(PreparedStatement ps, String key, @Nullable String digest, Finding finding) throws SQLException {
+        ps.setString(1, key);
+        ps.setString(2, digest);
+        ps.setString(3, finding.problem());
+        ps.setString(4, finding.detail());
+        ps.setLong(5, System.currentTimeMillis());
+    }
+
+    private void countFinding(String key, Finding finding) {
+        if (finding.problem().equals(MISSING)) {
+            log.error("Blob is missing from the store: {}", key);
+            this.missing.increment();
+        } else {
+            log.error("Blob is corrupted ({}): {}", finding.detail(), key);
+            this.corrupt.increment();
+        }
+    }
+
+    private void clearProblems(List<String> keys) throws Exception {
+        if (keys.isEmpty())
+            return;
+
+        this.dbService.write(conn -> {
+            var sql = """
+                      DELETE FROM blob_problems
+                      WHERE path = ?
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                for (var key : keys) {
+                    ps.setString(1, key);
+                    ps.addBatch();
+                }
+                return ps.executeBatch();
+            }
+        });
+    }
+
+
+    private @Nullable Progress progress(String walk) throws SQLException {
+        try (var conn = this.dbService.getReadConnection()) {
+            var sql = """
+                      SELECT cursor, passStartedAt, passFinishedAt
+                      FROM scrub_progress
+                      WHERE walk = ?
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, walk);
+                var rs = ps.executeQuery();
+                if (!rs.next())
+                    return null;
+
+                var finishedAt = rs.getLong("passFinishedAt");
+                return new Progress(rs.getString("cursor"), rs.getLong("passStartedAt"), rs.wasNull() ? null : finishedAt);
+            }
+        }
+    }
+
+    private void saveProgress(String walk, String cursor, long passStartedAt, @Nullable Long passFinishedAt) throws Exception {
+        this.dbService.write(conn -> {
+            var sql = """
+                      INSERT OR REPLACE INTO scrub_progress (walk, cursor, passStartedAt, passFinishedAt)
+                      VALUES (?, ?, ?, ?)
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, walk);
+                ps.setString(2, cursor);
+                ps.setLong(3, passStartedAt);
+                if (passFinishedAt != null)
+                    ps.setLong(4, passFinishedAt);
+                else
+                    ps.setNull(4, Types.INTEGER);
+                return ps.executeUpdate();
+            }
+        });
+    }
+
+    private void saveCursor(String walk, String cursor) throws Exception {
+        this.dbService.write(conn -> {
+            var sql = """
+                      UPDATE scrub_progress
+                      SET cursor = ?
+                      WHERE walk = ?
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, cursor);
+                ps.setString(2, walk);
+                return ps.executeUpdate();
+            }
+        });
+    }
+
+    private long countProblems() throws SQLException {
+        try (var conn = this.dbService.getReadConnection();
+             var ps = conn.prepareStatement("SELECT COUNT(*) FROM blob_problems")) {
+            var rs = ps.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+
+    /**
+     * Waits while downloads are busy, then for as long as the bytes read are ahead of the rate limit.
+     * Falling behind the rate (a slow disk) isn't made up for in a burst afterwards.
+     */
+    private void throttle(long bytes) throws IOException {
+        try {
+            var pauseAbove = this.config.pauseAboveActiveDownloads;
+            if (pauseAbove > 0 && this.transfers.activeDownloads() > pauseAbove) {
+                while (this.transfers.activeDownloads() > pauseAbove)
+                    TimeUnit.MILLISECONDS.sleep(BUSY_WAIT_MILLIS);
+                resetBudget();
+            }
+
+            if (this.config.maxBytesPerSecond <= 0)
+                return;
+
+            this.budgetBytes += bytes;
+            var dueNanos = this.budgetStartNanos + (long) ((double) this.budgetBytes / this.config.maxBytesPerSecond * TimeUnit.SECONDS.toNanos(1));
+            var now = System.nanoTime();
+
+            if (dueNanos > now)
+                TimeUnit.NANOSECONDS.sleep(dueNanos - now);
+            else if (now - dueNanos > TimeUnit.SECONDS.toNanos(1))
+                resetBudget();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scrubbing");
+        }
+    }
+
+    private void resetBudget() {
+        this.budgetStartNanos = System.nanoTime();
+        this.budgetBytes = 0;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+
+    @Override
+    public void close() {
+        this.scheduler.shutdownNow();
+    }
+
+
+    @FunctionalInterface
+    private interface Step {
+        /**
+         * @return the cursor after the batch done, null once the walk is through
+         */
+        @Nullable String scrub(String cursor) throws Exception;
+    }
+
+    @FunctionalInterface
+    private interface Recording {
+        void record() throws Exception;
+    }
+
+    /**
+     * @param problem {@link #MISSING} or {@link #CORRUPT}
+     * @param detail  what exactly didn't match, if anything
+     */
+    private record Finding(String problem, @Nullable String detail) {}
+
+    private record Progress(String cursor, long passStartedAt, @Nullable Long passFinishedAt) {}
+
+    /**
+     * @param size        of the content as uploaded
+     * @param storedSize  of the blob as stored, smaller if it's compressed
+     */
+    private record StoredBlob(String digest, String key, long size, long storedSize, boolean compressed) {}
+
+    /**
+     * @param size null if it was never recorded
+     */
+    private record OwnedFile(String fileId, String key, @Nullable Long size) {}
+
+}
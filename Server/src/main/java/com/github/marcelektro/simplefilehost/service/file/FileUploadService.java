@@ -1,25 +1,51 @@
 package com.github.marcelektro.simplefilehost.service.file;
 
 import com.github.marcelektro.simplefilehost.service.ServiceResult;
+import com.github.marcelektro.simplefilehost.storage.BlobEncoding;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.sql.SQLException;
 import java.time.LocalDateTime;
 import java.util.List;
 
 public interface FileUploadService {
 
-    ServiceResult<String> uploadFile(String userId, String originalFilename, long size, InputStream inputStream) throws Exception;
+    /**
+     * Stores the content of the given stream as a new file. The size is determined while reading the stream.
+     */
+    ServiceResult<String> uploadFile(String userId, String originalFilename, InputStream inputStream) throws Exception;
 
     ServiceResult<FileDownloadResult> downloadByFileId(String userId, String fileId) throws Exception;
 
     ServiceResult<FileDownloadResult> downloadBySharedLink(String linkId, String password) throws Exception;
 
-    ServiceResult<List<UploadedFileSummary>> listFiles(String userId, SortBy sortBy) throws SQLException;
+    /**
+     * Passes the user's files to the consumer one by one as they're read, without collecting them.
+     *
+     * @param cursor the cursor returned for the previous page, null to start at the beginning
+     * @param limit max number of files, 0 for all remaining files
+     * @return the cursor for the next page, null if there are no more files
+     */
+    ServiceResult<String> listFiles(String userId, SortBy sortBy, @Nullable String cursor, int limit, FileSummaryConsumer consumer) throws Exception;
+
+    /**
+     * Passes files of the user to the consumer one by one, for sending them all in one archive.
+     * Explicitly given files are all looked up upfront, if any of them doesn't exist (or isn't the user's) none are passed on.
+     *
+     * @param fileIds the files in the order to pass them on, duplicates are skipped; null for all of the user's files, by name
+     */
+    ServiceResult<Void> archiveFiles(String userId, @Nullable List<String> fileIds, ArchivedFileConsumer consumer) throws Exception;
 
     ServiceResult<Void> deleteFile(String userId, String fileId) throws Exception;
 
+    /**
+     * Deletes many files in one transaction, with the same outcome as deleting them one by one.
+     *
+     * @return the result for each of the given files, in the same order
+     */
+    ServiceResult<List<ServiceResult<Void>>> deleteFiles(String userId, List<String> fileIds) throws Exception;
+
 
     enum SortBy {
         NAME_ASC,
@@ -30,6 +56,16 @@ public interface FileUploadService {
         SIZE_DESC
     }
 
+    @FunctionalInterface
+    interface FileSummaryConsumer {
+        void accept(UploadedFileSummary summary) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface ArchivedFileConsumer {
+        void accept(ArchivedFile file) throws IOException;
+    }
+
     class UploadedFileSummary {
         public String fileId;
         public String filename;
@@ -38,8 +74,18 @@ public interface FileUploadService {
         public int sharedLinksCount;
     }
 
+    record ArchivedFile(
+            String fileId,
+            String filename,
+            long size,
+            LocalDateTime uploadDate,
+            String blobKey,
+            @Nullable BlobEncoding encoding
+    ) {}
+
     record FileDownloadResult(
             String originalFilename,
-            File file
+            String blobKey,
+            @Nullable BlobEncoding encoding
     ) {}
 }
@@ -1,77 +1,574 @@
 package com.github.marcelektro.simplefilehost.service.file;
 
+import com.github.marcelektro.simplefilehost.cache.BlobCache;
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.TransferMetrics;
 import com.github.marcelektro.simplefilehost.service.ServiceResult;
 import com.github.marcelektro.simplefilehost.service.db.DatabaseService;
+import com.github.marcelektro.simplefilehost.service.sharing.ShareLinkCache;
+import com.github.marcelektro.simplefilehost.storage.BlobEncoding;
+import com.github.marcelektro.simplefilehost.storage.BlobStore;
+import com.github.marcelektro.simplefilehost.storage.FramedGzip;
+import com.github.marcelektro.simplefilehost.util.EpochMillis;
+import com.github.marcelektro.simplefilehost.util.KeysetCursor;
+import com.google.gson.Gson;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.*;
-import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
 public class FileUploadServiceImpl implements FileUploadService {
 
-    private final File blobRoot;
+    private static final int BLOB_LOCK_STRIPES = 64;
+    private static final int LIST_CHUNK_SIZE = 500;
+    private static final Gson GSON = new Gson();
+
+    private final File stagingDirectory;
+    private final BlobStore blobStore;
     private final DatabaseService dbService;
+    private final Config.Upload uploadConfig;
+    private final Config.Compression compressionConfig;
+    private final ShareLinkCache shareLinkCache;
+    private final BlobCache blobCache;
+    private final TransferMetrics transfers;
+
+    // Serializes reference count changes with the blob store operations that go along with them (put, delete).
+    // Striped by digest, uploads/deletes of unrelated content don't contend.
+    private final Lock[] blobLocks = new Lock[BLOB_LOCK_STRIPES];
 
-    public FileUploadServiceImpl(File blobRoot, DatabaseService dbService) {
-        this.blobRoot = blobRoot;
+    /**
+     * @param stagingDirectory uploads are written here before they're put into the store, always local.
+     *                         On the store's filesystem for a local store, so putting them is a rename
+     */
+    public FileUploadServiceImpl(File stagingDirectory, BlobStore blobStore, DatabaseService dbService, Config.Upload uploadConfig, Config.Compression compressionConfig,
+                                 ShareLinkCache shareLinkCache, BlobCache blobCache, TransferMetrics transfers) {
+        this.stagingDirectory = stagingDirectory;
+        this.blobStore = blobStore;
         this.dbService = dbService;
+        this.uploadConfig = uploadConfig;
+        this.compressionConfig = compressionConfig;
+        this.shareLinkCache = shareLinkCache;
+        this.blobCache = blobCache;
+        this.transfers = transfers;
+
+        for (int i = 0; i < this.blobLocks.length; i++)
+            this.blobLocks[i] = new ReentrantLock();
     }
 
 
     @Override
-    public ServiceResult<String> uploadFile(String userId, String originalFilename, long size, InputStream inputStream) throws Exception {
+    public ServiceResult<String> uploadFile(String userId, String originalFilename, InputStream inputStream) throws Exception {
+        var stagingFile = newStagingFile(UUID.randomUUID().toString());
+
+        StagedBlob staged;
+        this.transfers.uploadStarted();
+        try {
+            staged = writeStaging(inputStream, stagingFile);
+
+            if (staged == null) {
+                Files.deleteIfExists(stagingFile.toPath());
+                return ServiceResult.failure("FILE_TOO_LARGE", "File exceeds the maximum upload size of " + this.uploadConfig.maxFileSize + " bytes");
+            }
+
+        } catch (Exception e) {
+            Files.deleteIfExists(stagingFile.toPath());
+            throw e;
+
+        } finally {
+            this.transfers.uploadFinished();
+        }
+
         var fileId = UUID.randomUUID().toString();
+        commitStagedBlob(userId, fileId, originalFilename, staged);
+
+        return ServiceResult.success(fileId);
+    }
+
+
+    /**
+     * A fully written staging file along with the SHA-256 digest of its content.
+     */
+    record StagedBlob(File file, long size, String digest) {}
+
+
+    File newStagingFile(String name) throws IOException {
+        if (!this.stagingDirectory.exists() && !this.stagingDirectory.mkdirs()) {
+            throw new IOException("Failed to create blob staging directory");
+        }
+
+        return new File(this.stagingDirectory, name);
+    }
+
+    /**
+     * Computes the digest of an already complete staging file, for content that wasn't written sequentially.
+     */
+    StagedBlob digestStaged(File stagingFile) throws IOException {
+        var digest = newDigest();
+        var buffer = new byte[this.uploadConfig.bufferSize];
+        long size = 0;
+
+        try (var in = Files.newInputStream(stagingFile.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+                size += read;
+            }
+        }
+
+        return new StagedBlob(stagingFile, size, HexFormat.of().formatHex(digest.digest()));
+    }
+
+    /**
+     * Records a new file pointing at the staged content. If a blob with the same digest already exists,
+     * its reference count is bumped and the staging file is dropped, otherwise the staged content is put into the store.
+     * The staging file is always gone afterwards.
+     */
+    void commitStagedBlob(String userId, String fileId, String originalFilename, StagedBlob staged) throws Exception {
+        var lock = blobLock(staged.digest());
+
+        // a put can take long (a remote store), it's done before the write transaction instead of holding up all other writes
+        var stored = false;
+        KnownBlob known = null;
+        String key = null;
+        var restoredFileIds = new HashSet<String>();
+        var restored = false;
+
+        lock.lock();
+        try {
+            known = knownBlob(staged.digest());
+            key = known != null ? known.key() : this.blobStore.placeNew(staged.digest(), staged.size());
+            var blobKey = key;
+
+            // new content, or a known blob whose content went missing or was found corrupted and gets restored by this upload.
+            // Content still there while its deletion is pending is replaced, how it was encoded is gone along with its record
+            var stat = known != null && !known.flagged() ? this.blobStore.stat(key) : null;
+            restored = known != null && (stat == null || stat.size() != known.storedSize());
+            var putContent = known == null || restored;
+            var restoring = restored;
+
+            BlobEncoding encoding = null;
+            if (putContent) {
+                encoding = putStaged(key, staged);
+                stored = true;
+            }
+            var storedEncoding = encoding;
+
+            this.dbService.write(conn -> {
+                var updateSql = """
+                                UPDATE blobs
+                                SET refCount = refCount + 1
+                                WHERE digest = ?
+                                """;
+                int existing;
+                try (var ps = conn.prepareStatement(updateSql)) {
+                    ps.setString(1, staged.digest());
+                    existing = ps.executeUpdate();
+                }
 
-        var dir = fileId.substring(0, 2);
-        var filename = fileId.substring(2);
+                if (existing > 0 && restoring) {
+                    var updateEncodingSql = """
+                                            UPDATE blobs
+                                            SET codec = ?, frameSize = ?, frameIndex = ?
+                                            WHERE digest = ?
+                                            """;
+                    try (var ps = conn.prepareStatement(updateEncodingSql)) {
+                        setEncoding(ps, 1, storedEncoding);
+                        ps.setString(4, staged.digest());
+                        ps.executeUpdate();
+                    }
+
+                    // stored under the current compression settings, links cached with the old encoding have to go
+                    var selectFilesSql = """
+                                         SELECT id
+                                         FROM uploaded_files
+                                         WHERE blobDigest = ?
+                                         """;
+                    try (var ps = conn.prepareStatement(selectFilesSql)) {
+                        ps.setString(1, staged.digest());
+                        var rs = ps.executeQuery();
+                        while (rs.next())
+                            restoredFileIds.add(rs.getString("id"));
+                    }
+                }
+
+                if (existing == 0) {
+                    var insertBlobSql = """
+                                        INSERT INTO blobs (digest, path, size, refCount, codec, frameSize, frameIndex)
+                                        VALUES (?, ?, ?, 1, ?, ?, ?)
+                                        """;
+                    try (var ps = conn.prepareStatement(insertBlobSql)) {
+                        ps.setString(1, staged.digest());
+                        ps.setString(2, blobKey);
+                        ps.setLong(3, staged.size());
+                        setEncoding(ps, 4, storedEncoding);
+                        ps.executeUpdate();
+                    }
+
+                    // the same content deleted before, but not reaped yet: it's in use again and must stay
+                    var resurrectSql = """
+                                       DELETE FROM blob_tombstones
+                                       WHERE path = ?
+                                       """;
+                    try (var ps = conn.prepareStatement(resurrectSql)) {
+                        ps.setString(1, blobKey);
+                        ps.executeUpdate();
+                    }
+                }
 
-        var targetDir = new File(this.blobRoot, dir);
+                if (putContent) {
+                    var clearProblemSql = """
+                                          DELETE FROM blob_problems
+                                          WHERE path = ?
+                                          """;
+                    try (var ps = conn.prepareStatement(clearProblemSql)) {
+                        ps.setString(1, blobKey);
+                        ps.executeUpdate();
+                    }
+                }
 
-        if (!targetDir.exists() && !targetDir.mkdirs()) {
-            throw new IOException("Failed to create blob directory");
+                var insertFileSql = """
+                                    INSERT INTO uploaded_files (id, userId, filename, size, uploadedAt, path, blobDigest)
+                                    VALUES (?, ?, ?, ?, ?, ?, ?)
+                                    """;
+                try (var ps = conn.prepareStatement(insertFileSql)) {
+                    ps.setString(1, fileId);
+                    ps.setString(2, userId);
+                    ps.setString(3, originalFilename);
+                    ps.setLong(4, staged.size());
+                    ps.setLong(5, System.currentTimeMillis());
+                    ps.setString(6, blobKey);
+                    ps.setString(7, staged.digest());
+                    return ps.executeUpdate();
+                }
+            });
+
+        } catch (Exception e) {
+            // a rolled back transaction must take the blob it created along
+            if (stored && known == null)
+                this.blobStore.delete(key);
+            throw e;
+
+        } finally {
+            lock.unlock();
+            Files.deleteIfExists(staged.file().toPath());
         }
 
-        var blobFile = new File(targetDir, filename);
+        if (restored) {
+            // the cached content and links are of the blob as it was before, possibly encoded differently
+            this.shareLinkCache.invalidateFiles(restoredFileIds);
+            this.blobCache.invalidate(key);
+        }
+    }
 
-        if (blobFile.exists())
-            throw new IllegalStateException("Duplicate file upload.");
+    /**
+     * Puts the staged content into the store, compressed if that's enabled and a sample of it compresses well enough.
+     *
+     * @return how it's encoded, null if it's stored as it is
+     */
+    private @Nullable BlobEncoding putStaged(String key, StagedBlob staged) throws IOException {
+        var compression = this.compressionConfig;
+        if (!compression.enabled || staged.size() < compression.minBlobBytes
+                || !FramedGzip.isCompressible(staged.file(), compression.sampleBytes, compression.level, compression.maxRatioPercent)) {
+            this.blobStore.putFile(key, staged.file());
+            return null;
+        }
 
-        Files.copy(inputStream, blobFile.toPath());
+        var compressedFile = new File(this.stagingDirectory, staged.file().getName() + ".gz");
+        try {
+            BlobEncoding encoding;
+            try (var in = Files.newInputStream(staged.file().toPath());
+                 var out = Files.newOutputStream(compressedFile.toPath())) {
+                encoding = FramedGzip.encode(in, staged.size(), out, compression.frameSize, compression.level);
+            }
 
-        var now = LocalDateTime.now();
+            // the beginning can be misleading
+            if (encoding.storedSize() >= staged.size()) {
+                this.blobStore.putFile(key, staged.file());
+                return null;
+            }
 
-        try (var conn = this.dbService.getConnection()) {
+            this.blobStore.putFile(key, compressedFile);
+            this.transfers.compressedBlobs.increment();
+            this.transfers.compressionSavedBytes.add(staged.size() - encoding.storedSize());
+            return encoding;
 
+        } finally {
+            Files.deleteIfExists(compressedFile.toPath());
+        }
+    }
+
+    private static void setEncoding(PreparedStatement ps, int index, @Nullable BlobEncoding encoding) throws SQLException {
+        if (encoding == null) {
+            ps.setNull(index, Types.VARCHAR);
+            ps.setNull(index + 1, Types.INTEGER);
+            ps.setNull(index + 2, Types.BLOB);
+            return;
+        }
+
+        ps.setString(index, encoding.codec());
+        ps.setInt(index + 1, encoding.frameSize());
+        ps.setBytes(index + 2, encoding.frameIndex());
+    }
+
+    /**
+     * From the blob's columns joined to a file's, {@code size} being the file's.
+     */
+    static @Nullable BlobEncoding readEncoding(ResultSet rs) throws SQLException {
+        return BlobEncoding.of(rs.getString("codec"), rs.getLong("size"), rs.getInt("frameSize"), rs.getBytes("frameIndex"));
+    }
+
+    /**
+     * Only reliable while holding the blob's lock.
+     *
+     * @return null if there's no such blob
+     */
+    private @Nullable KnownBlob knownBlob(String digest) throws SQLException {
+        try (var conn = this.dbService.getReadConnection()) {
             var sql = """
-                        INSERT INTO uploaded_files (id, userId, filename, size, uploadDate, path)
-                        VALUES (?, ?, ?, ?, ?, ?)
-                        """;
+                      SELECT b.path, b.size, b.codec, b.frameSize, b.frameIndex, p.problem
+                      FROM blobs b
+                          LEFT JOIN blob_problems p ON p.path = b.path
+                      WHERE b.digest = ?
+                      """;
             try (var ps = conn.prepareStatement(sql)) {
-                ps.setString(1, fileId);
-                ps.setString(2, userId);
-                ps.setString(3, originalFilename);
-                ps.setLong(4, size);
-                ps.setString(5, now.toString());
-                ps.setString(6, blobFile.getAbsolutePath());
-                ps.executeUpdate();
+                ps.setString(1, digest);
+                var rs = ps.executeQuery();
+                if (!rs.next())
+                    return null;
+
+                var encoding = readEncoding(rs);
+                return new KnownBlob(rs.getString("path"), encoding != null ? encoding.storedSize() : rs.getLong("size"), rs.getString("problem") != null);
             }
         }
+    }
 
-        return ServiceResult.success(fileId);
+    /**
+     * Moves a blob to another key of the store, e.g. onto another volume. The content is copied without holding the blob's lock,
+     * only switching the records over to the copy does, so uploads and deletes of it carry on meanwhile. The old copy is left to the reaper.
+     *
+     * @return whether it was moved, false if it was deleted or moved elsewhere meanwhile
+     */
+    boolean relocateBlob(String digest, String fromKey, String toKey) throws Exception {
+        var stat = this.blobStore.stat(fromKey);
+        if (stat == null)
+            return false;
+
+        try (var in = this.blobStore.get(fromKey, 0, stat.size())) {
+            this.blobStore.put(toKey, in, stat.size());
+        }
+
+        var lock = blobLock(digest);
+        var fileIds = new HashSet<String>();
+        boolean moved;
+
+        lock.lock();
+        try {
+            // a pending deletion of the same content at the target may have been carried out since the copy was made
+            var copied = this.blobStore.stat(toKey);
+            if (copied == null || copied.size() != stat.size())
+                return false;
+
+            moved = this.dbService.write(conn -> {
+                var updateBlobSql = """
+                                    UPDATE blobs
+                                    SET path = ?
+                                    WHERE digest = ? AND path = ?
+                                    """;
+                try (var ps = conn.prepareStatement(updateBlobSql)) {
+                    ps.setString(1, toKey);
+                    ps.setString(2, digest);
+                    ps.setString(3, fromKey);
+                    if (ps.executeUpdate() == 0)
+                        return false;
+                }
+
+                var selectFilesSql = """
+                                     SELECT id
+                                     FROM uploaded_files
+                                     WHERE blobDigest = ?
+                                     """;
+                try (var ps = conn.prepareStatement(selectFilesSql)) {
+                    ps.setString(1, digest);
+                    var rs = ps.executeQuery();
+                    while (rs.next())
+                        fileIds.add(rs.getString("id"));
+                }
+
+                var updateFilesSql = """
+                                     UPDATE uploaded_files
+                                     SET path = ?
+                                     WHERE blobDigest = ?
+                                     """;
+                try (var ps = conn.prepareStatement(updateFilesSql)) {
+                    ps.setString(1, toKey);
+                    ps.setString(2, digest);
+                    ps.executeUpdate();
+                }
+
+                // the copy replaced content deleted there before, which must not be reaped anymore
+                var resurrectSql = """
+                                   DELETE FROM blob_tombstones
+                                   WHERE path = ?
+                                   """;
+                try (var ps = conn.prepareStatement(resurrectSql)) {
+                    ps.setString(1, toKey);
+                    ps.executeUpdate();
+                }
+
+                // copied as it is, a problem found with it still applies
+                var moveProblemSql = """
+                                     UPDATE blob_problems
+                                     SET path = ?
+                                     WHERE path = ?
+                                     """;
+                try (var ps = conn.prepareStatement(moveProblemSql)) {
+                    ps.setString(1, toKey);
+                    ps.setString(2, fromKey);
+                    ps.executeUpdate();
+                }
+
+                tombstoneBlobs(conn, List.of(new ReleasedBlob(fromKey, digest)));
+                return true;
+            });
+
+            if (!moved)
+                this.blobStore.delete(toKey);
+
+        } catch (Exception e) {
+            this.blobStore.delete(toKey);
+            throw e;
+
+        } finally {
+            lock.unlock();
+        }
+
+        if (moved) {
+            // cached links still point at the old copy, which is going away
+            this.shareLinkCache.invalidateFiles(fileIds);
+            this.blobCache.invalidate(fromKey);
+        }
+
+        return moved;
+    }
+
+    /**
+     * Leaves a blob nothing references to the {@link BlobReaper}, like one a crash left behind between storing and recording it.
+     * Checked under the lock of the digest its key stands for, which uploads hold from storing a blob until it's recorded.
+     *
+     * @return whether it was unreferenced and is going to be deleted
+     */
+    boolean releaseOrphanBlob(String key) throws Exception {
+        var digest = BlobStore.digestOf(key);
+        var lock = blobLock(digest);
+
+        lock.lock();
+        try {
+            var released = this.dbService.write(conn -> {
+                if (unreferencedKeys(conn, List.of(key)).isEmpty())
+                    return false;
+
+                tombstoneBlobs(conn, List.of(new ReleasedBlob(key, digest)));
+                return true;
+            });
+
+            if (released)
+                this.blobCache.invalidate(key);
+            return released;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blob keys neither a blob, a file owning its blob nor a pending deletion refers to.
+     */
+    static List<String> unreferencedKeys(Connection conn, Collection<String> keys) throws SQLException {
+        var sql = """
+                  SELECT k.value AS path
+                  FROM json_each(?) k
+                  WHERE NOT EXISTS (SELECT 1 FROM blobs b WHERE b.path = k.value)
+                      AND NOT EXISTS (SELECT 1 FROM uploaded_files uf WHERE uf.path = k.value AND uf.blobDigest IS NULL)
+                      AND NOT EXISTS (SELECT 1 FROM blob_tombstones t WHERE t.path = k.value)
+                  """;
+        try (var ps = conn.prepareStatement(sql)) {
+            ps.setString(1, GSON.toJson(keys));
+            var rs = ps.executeQuery();
+
+            var unreferenced = new ArrayList<String>();
+            while (rs.next())
+                unreferenced.add(rs.getString("path"));
+            return unreferenced;
+        }
+    }
+
+    /**
+     * Copies the stream into the staging file, hashing it on the way and enforcing the configured max file size.
+     * @return the staged blob, or null if the stream exceeded the size limit
+     */
+    private @Nullable StagedBlob writeStaging(InputStream inputStream, File stagingFile) throws IOException {
+        var maxSize = this.uploadConfig.maxFileSize;
+        var buffer = new byte[this.uploadConfig.bufferSize];
+        var digest = newDigest();
+        long written = 0;
+
+        try (var out = Files.newOutputStream(stagingFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            int read;
+            while ((read = inputStream.read(buffer)) >= 0) {
+                written += read;
+
+                if (maxSize > 0 && written > maxSize)
+                    return null;
+
+                digest.update(buffer, 0, read);
+
+                var writeStart = System.nanoTime();
+                out.write(buffer, 0, read);
+                this.transfers.blobWriteSeconds.observeNanosAsSeconds(System.nanoTime() - writeStart);
+                this.transfers.uploadedBytes.add(read);
+            }
+        }
+
+        return new StagedBlob(stagingFile, written, HexFormat.of().formatHex(digest.digest()));
+    }
+
+    /**
+     * Held while a blob's reference count changes along with the store operations that go with it, also by the {@link BlobReaper}.
+     */
+    Lock blobLock(String digest) {
+        return this.blobLocks[blobLockStripe(digest)];
+    }
+
+    private int blobLockStripe(String digest) {
+        return Math.floorMod(digest.hashCode(), this.blobLocks.length);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
     }
 
     @Override
     public ServiceResult<FileDownloadResult> downloadByFileId(String userId, String fileId) throws Exception {
-        try (var conn = this.dbService.getConnection()) {
+        try (var conn = this.dbService.getReadConnection()) {
             var sql = """
-                        SELECT filename, path
-                        FROM uploaded_files
-                        WHERE id = ? AND userId = ?
+                        SELECT uf.filename, uf.size, uf.path, b.codec, b.frameSize, b.frameIndex
+                        FROM uploaded_files uf
+                            LEFT JOIN blobs b ON b.digest = uf.blobDigest
+                        WHERE uf.id = ? AND uf.userId = ?
                         """;
             try (var ps = conn.prepareStatement(sql)) {
                 ps.setString(1, fileId);
@@ -81,12 +578,10 @@ public class FileUploadServiceImpl implements FileUploadService {
                 if (!rs.next())
                     return ServiceResult.failure("FILE_NOT_FOUND", "File not found or access denied");
 
-                var originalFilename = rs.getString("filename");
-                var path = rs.getString("path");
-
                 var result = new FileDownloadResult(
-                        originalFilename,
-                        new File(path)
+                        rs.getString("filename"),
+                        rs.getString("path"),
+                        readEncoding(rs)
                 );
                 return ServiceResult.success(result);
             }
@@ -95,109 +590,266 @@ public class FileUploadServiceImpl implements FileUploadService {
 
     @Override
     public ServiceResult<FileDownloadResult> downloadBySharedLink(String linkId, @Nullable String userEnteredPassword) throws Exception {
-        try (var conn = this.dbService.getConnection()) {
-            conn.setAutoCommit(false);
-
-            var linkQuery = """
-                            SELECT fileId, password, expiry
-                            FROM shared_links
-                            WHERE id = ?
-                            """;
-            try (var ps = conn.prepareStatement(linkQuery)) {
-                ps.setString(1, linkId);
-                var rs = ps.executeQuery();
+        var link = this.shareLinkCache.resolve(linkId);
 
-                if (!rs.next())
-                    return ServiceResult.failure("LINK_NOT_FOUND", "Shared link not found");
+        if (link == null)
+            return ServiceResult.failure("LINK_NOT_FOUND", "Shared link not found");
 
-                var fileId = rs.getString("fileId");
-                var password = rs.getString("password");
-                var expiry = rs.getString("expiry") != null
-                        ? LocalDateTime.parse(rs.getString("expiry"))
-                        : null;
+        if (link.hasExpired())
+            return ServiceResult.failure("LINK_EXPIRED", "Shared link has expired");
 
-                if (expiry != null && expiry.isBefore(LocalDateTime.now()))
-                    return ServiceResult.failure("LINK_EXPIRED", "Shared link has expired");
+        if (link.password() != null && !link.password().equals(userEnteredPassword))
+            return ServiceResult.failure("INVALID_PASSWORD", "Invalid password for shared link");
 
-                if (password != null && !password.equals(userEnteredPassword))
-                    return ServiceResult.failure("INVALID_PASSWORD", "Invalid password for shared link");
+        var result = new FileDownloadResult(
+                link.filename(),
+                link.blobKey(),
+                link.encoding()
+        );
 
-                // TODO: depending on whether we wanna go multi share, merge into one query?
-                var fileQuery = """
-                                SELECT filename, path
-                                FROM uploaded_files
-                                WHERE id = ?
-                                """;
-                try (var filePs = conn.prepareStatement(fileQuery)) {
-                    filePs.setString(1, fileId);
-                    var fileRs = filePs.executeQuery();
+        return ServiceResult.success(result);
+    }
+
+    @Override
+    public ServiceResult<String> listFiles(String userId, SortBy sortBy, @Nullable String cursor, int limit, FileSummaryConsumer consumer) throws Exception {
+        var sort = sortBy != null ? sortBy : SortBy.DATE_DESC;
 
-                    if (!fileRs.next())
-                        throw new IllegalStateException("File not found for shared link, this should never happen since shared links can't exist without a file");
+        var column = switch (sort) {
+            case NAME_ASC, NAME_DESC -> "uf.filename";
+            case DATE_ASC, DATE_DESC -> "uf.uploadedAt";
+            case SIZE_ASC, SIZE_DESC -> "uf.size";
+        };
+        var ascending = switch (sort) {
+            case NAME_ASC, DATE_ASC, SIZE_ASC -> true;
+            case NAME_DESC, DATE_DESC, SIZE_DESC -> false;
+        };
+        var numericKey = !column.equals("uf.filename");
 
-                    var result = new FileDownloadResult(
-                            fileRs.getString("filename"),
-                            new File(fileRs.getString("path"))
-                    );
+        KeysetCursor after = null;
+        if (cursor != null) {
+            after = KeysetCursor.decode(cursor);
+            if (after == null || !after.sort().equals(sort.name()) || (numericKey && !isLong(after.key())))
+                return ServiceResult.failure("INVALID_CURSOR", "The cursor is malformed or was issued for a different sort mode");
+        }
 
-                    return ServiceResult.success(result);
+        var direction = ascending ? "ASC" : "DESC";
+
+        // the link count as a correlated subquery only runs for the rows actually returned, unlike a join + group by over all files
+        var firstPageSql = """
+                SELECT uf.id, uf.filename, uf.size, uf.uploadedAt,
+                       (SELECT COUNT(*) FROM shared_links sl WHERE sl.fileId = uf.id) AS "sharedLinksCount"
+                FROM uploaded_files uf
+                WHERE uf.userId = ?
+                ORDER BY %1$s %2$s, uf.id %2$s
+                LIMIT ?
+                """.formatted(column, direction);
+        var nextPageSql = """
+                SELECT uf.id, uf.filename, uf.size, uf.uploadedAt,
+                       (SELECT COUNT(*) FROM shared_links sl WHERE sl.fileId = uf.id) AS "sharedLinksCount"
+                FROM uploaded_files uf
+                WHERE uf.userId = ? AND (%1$s, uf.id) %3$s (?, ?)
+                ORDER BY %1$s %2$s, uf.id %2$s
+                LIMIT ?
+                """.formatted(column, direction, ascending ? ">" : "<");
+
+        // Read in bounded chunks, each on a short read transaction, continuing after the last row of the previous one.
+        // A slow client then never holds a connection (and the WAL snapshot) for longer than one chunk takes to write out.
+        long remaining = limit > 0 ? limit : Long.MAX_VALUE;
+
+        while (true) {
+            var chunkSize = (int) Math.min(remaining, LIST_CHUNK_SIZE);
+            var emitted = 0;
+            var hasMore = false;
+
+            try (var conn = dbService.getReadConnection();
+                 var ps = conn.prepareStatement(after == null ? firstPageSql : nextPageSql)) {
+
+                var i = 1;
+                ps.setString(i++, userId);
+                if (after != null) {
+                    if (numericKey)
+                        ps.setLong(i++, Long.parseLong(after.key()));
+                    else
+                        ps.setString(i++, after.key());
+                    ps.setString(i++, after.id());
                 }
+                // one more than needed tells whether anything follows
+                ps.setInt(i, chunkSize + 1);
+
+                var rs = ps.executeQuery();
+                while (rs.next()) {
+                    if (emitted == chunkSize) {
+                        hasMore = true;
+                        break;
+                    }
+
+                    var summary = new UploadedFileSummary();
+                    summary.fileId = rs.getString("id");
+                    summary.filename = rs.getString("filename");
+                    summary.size = rs.getLong("size");
+                    summary.uploadDate = EpochMillis.toLocalDateTime(rs.getLong("uploadedAt"));
+                    summary.sharedLinksCount = rs.getInt("sharedLinksCount");
 
-            } catch (Exception e) {
-                conn.rollback();
-                throw e;
+                    consumer.accept(summary);
+                    emitted++;
 
-            } finally {
-                conn.commit();
-                conn.setAutoCommit(true);
+                    var key = switch (sort) {
+                        case NAME_ASC, NAME_DESC -> summary.filename;
+                        case DATE_ASC, DATE_DESC -> String.valueOf(rs.getLong("uploadedAt"));
+                        case SIZE_ASC, SIZE_DESC -> String.valueOf(summary.size);
+                    };
+                    after = new KeysetCursor(sort.name(), summary.fileId, key);
+                }
             }
+
+            remaining -= emitted;
+
+            if (!hasMore)
+                return ServiceResult.success(null);
+
+            if (remaining == 0)
+                return ServiceResult.success(after.encode());
+        }
+    }
+
+    private static boolean isLong(String s) {
+        try {
+            Long.parseLong(s);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
         }
     }
 
     @Override
-    public ServiceResult<List<UploadedFileSummary>> listFiles(String userId, SortBy sortBy) throws SQLException {
-        var files = new ArrayList<UploadedFileSummary>();
-        var sql = """
-                SELECT uf.id, uf.filename, uf.size, uf.uploadDate,
-                       COUNT(sl.id) AS "sharedLinksCount"
+    public ServiceResult<Void> archiveFiles(String userId, @Nullable List<String> fileIds, ArchivedFileConsumer consumer) throws Exception {
+        if (fileIds == null)
+            return archiveAllFiles(userId, consumer);
+
+        var ids = new LinkedHashSet<>(fileIds);
+        var found = new HashMap<String, ArchivedFile>(ids.size() * 2);
+
+        // one lookup for all IDs, the list is bound as a single JSON array parameter instead of one placeholder per ID
+        try (var conn = dbService.getReadConnection()) {
+            var sql = """
+                      SELECT uf.id, uf.filename, uf.size, uf.uploadedAt, uf.path, b.codec, b.frameSize, b.frameIndex
+                      FROM uploaded_files uf
+                          LEFT JOIN blobs b ON b.digest = uf.blobDigest
+                      WHERE uf.userId = ? AND uf.id IN (SELECT value FROM json_each(?))
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, userId);
+                ps.setString(2, GSON.toJson(ids));
+                var rs = ps.executeQuery();
+
+                while (rs.next()) {
+                    var file = readArchivedFile(rs);
+                    found.put(file.fileId(), file);
+                }
+            }
+        }
+
+        if (found.size() != ids.size())
+            return ServiceResult.failure("FILE_NOT_FOUND", "File not found or access denied");
+
+        for (var id : ids)
+            consumer.accept(found.get(id));
+
+        return ServiceResult.success(null);
+    }
+
+    private ServiceResult<Void> archiveAllFiles(String userId, ArchivedFileConsumer consumer) throws Exception {
+        var firstChunkSql = """
+                SELECT uf.id, uf.filename, uf.size, uf.uploadedAt, uf.path, b.codec, b.frameSize, b.frameIndex
                 FROM uploaded_files uf
-                    LEFT JOIN shared_links sl ON sl.fileId = uf.id
+                    LEFT JOIN blobs b ON b.digest = uf.blobDigest
                 WHERE uf.userId = ?
-                GROUP BY uf.id, uf.filename, uf.size, uf.uploadDate;
+                ORDER BY uf.filename, uf.id
+                LIMIT ?
+                """;
+        var nextChunkSql = """
+                SELECT uf.id, uf.filename, uf.size, uf.uploadedAt, uf.path, b.codec, b.frameSize, b.frameIndex
+                FROM uploaded_files uf
+                    LEFT JOIN blobs b ON b.digest = uf.blobDigest
+                WHERE uf.userId = ? AND (uf.filename, uf.id) > (?, ?)
+                ORDER BY uf.filename, uf.id
+                LIMIT ?
                 """;
-        sql += switch (sortBy != null ? sortBy : SortBy.DATE_DESC) {
-            case NAME_ASC -> " ORDER BY uf.filename ASC";
-            case NAME_DESC -> " ORDER BY uf.filename DESC";
-            case DATE_ASC -> " ORDER BY uf.uploadDate ASC";
-            case DATE_DESC -> " ORDER BY uf.uploadDate DESC";
-            case SIZE_ASC -> " ORDER BY uf.size ASC";
-            case SIZE_DESC -> " ORDER BY uf.size DESC";
-        };
 
-        try (var conn = dbService.getConnection();
-             var ps = conn.prepareStatement(sql)) {
-            ps.setString(1, userId);
-            var rs = ps.executeQuery();
+        // Same chunked reads as the listing, but each chunk is collected before passing it on:
+        // sending a chunk's files takes far longer than sending their listing, the read transaction isn't held open for that.
+        ArchivedFile last = null;
+        while (true) {
+            var chunk = new ArrayList<ArchivedFile>(LIST_CHUNK_SIZE);
+
+            try (var conn = dbService.getReadConnection();
+                 var ps = conn.prepareStatement(last == null ? firstChunkSql : nextChunkSql)) {
 
-            while (rs.next()) {
-                var summary = new UploadedFileSummary();
-                summary.fileId = rs.getString("id");
-                summary.filename = rs.getString("filename");
-                summary.size = rs.getLong("size");
-                summary.uploadDate = LocalDateTime.parse(rs.getString("uploadDate"));
-                summary.sharedLinksCount = rs.getInt("sharedLinksCount");
-                files.add(summary);
+                var i = 1;
+                ps.setString(i++, userId);
+                if (last != null) {
+                    ps.setString(i++, last.filename());
+                    ps.setString(i++, last.fileId());
+                }
+                ps.setInt(i, LIST_CHUNK_SIZE);
+
+                var rs = ps.executeQuery();
+                while (rs.next())
+                    chunk.add(readArchivedFile(rs));
             }
+
+            for (var file : chunk)
+                consumer.accept(file);
+
+            if (chunk.size() < LIST_CHUNK_SIZE)
+                return ServiceResult.success(null);
+
+            last = chunk.getLast();
         }
+    }
 
-        return ServiceResult.success(files);
+    private static ArchivedFile readArchivedFile(ResultSet rs) throws SQLException {
+        return new ArchivedFile(
+                rs.getString("id"),
+                rs.getString("filename"),
+                rs.getLong("size"),
+                EpochMillis.toLocalDateTime(rs.getLong("uploadedAt")),
+                rs.getString("path"),
+                readEncoding(rs)
+        );
     }
 
     @Override
     public ServiceResult<Void> deleteFile(String userId, String fileId) throws Exception {
-        try (var conn = dbService.getConnection()) {
-            conn.setAutoCommit(false);
-            try {
+        // the digest decides which lock to take, look it up before starting the actual transaction
+        String digest;
+        try (var conn = dbService.getReadConnection()) {
+            var sql = """
+                      SELECT blobDigest
+                      FROM uploaded_files
+                      WHERE id = ? AND userId = ?
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, fileId);
+                ps.setString(2, userId);
+                var rs = ps.executeQuery();
+
+                if (!rs.next())
+                    return ServiceResult.failure("FILE_NOT_FOUND", "File not found or access denied");
+
+                digest = rs.getString("blobDigest");
+            }
+        }
+
+        // files uploaded before content addressing own their blob exclusively and have no digest
+        var lock = digest != null ? blobLock(digest) : null;
+        if (lock != null)
+            lock.lock();
+
+        var released = new AtomicReference<ReleasedBlob>();
+
+        try {
+            var res = dbService.write(conn -> {
                 // Get file path
                 String selectSql = """
                                 SELECT path
@@ -212,11 +864,14 @@ public class FileUploadServiceImpl implements FileUploadService {
                     if (rs.next()) {
                         filePath = rs.getString("path");
                     } else {
-                        conn.rollback();
-                        return ServiceResult.failure("FILE_NOT_FOUND", "File not found or access denied");
+                        return ServiceResult.<Void>failure("FILE_NOT_FOUND", "File not found or access denied");
                     }
                 }
 
+                if (filePath == null) {
+                    throw new IllegalStateException("File path is null, but file exists in database: " + fileId);
+                }
+
                 // Delete DB record
                 String deleteSql = """
                                    DELETE FROM uploaded_files
@@ -228,33 +883,259 @@ public class FileUploadServiceImpl implements FileUploadService {
                     ps.executeUpdate();
                 }
 
-
-                if (filePath == null) {
-                    throw new IllegalStateException("File path is null, but file exists in database: " + fileId);
+                if (digest == null || releaseBlob(conn, digest)) {
+                    released.set(new ReleasedBlob(filePath, digest));
+                    tombstoneBlobs(conn, List.of(released.get()));
                 }
 
-                var file = new File(filePath);
+                return ServiceResult.<Void>success(null);
+            });
 
-                if (!file.exists()) {
-                    throw new IllegalStateException("File does not exist on disk, but exists in database: " + filePath);
-                }
+            // links to the file can't be served anymore, their rows stay behind but no longer resolve
+            if (res.isSuccess())
+                this.shareLinkCache.invalidateFile(fileId);
 
-                var deleteRes = file.delete();
+            // the blob itself is left to the reaper
+            if (released.get() != null)
+                this.blobCache.invalidate(released.get().key());
 
-                if (!deleteRes) {
-                    throw new IOException("Failed to delete file from disk: " + filePath);
+            return res;
+
+        } finally {
+            if (lock != null)
+                lock.unlock();
+        }
+    }
+
+    @Override
+    public ServiceResult<List<ServiceResult<Void>>> deleteFiles(String userId, List<String> fileIds) throws Exception {
+        var idsJson = GSON.toJson(new LinkedHashSet<>(fileIds));
+
+        // the digests decide which locks to take, look them up before starting the actual transaction
+        var stripes = new TreeSet<Integer>();
+        try (var conn = dbService.getReadConnection()) {
+            var sql = """
+                      SELECT DISTINCT blobDigest
+                      FROM uploaded_files
+                      WHERE userId = ? AND id IN (SELECT value FROM json_each(?)) AND blobDigest IS NOT NULL
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, userId);
+                ps.setString(2, idsJson);
+                var rs = ps.executeQuery();
+
+                while (rs.next())
+                    stripes.add(blobLockStripe(rs.getString("blobDigest")));
+            }
+        }
+
+        // always taken in stripe order, batches with overlapping stripes can't deadlock
+        var locked = new ArrayList<Lock>(stripes.size());
+        for (var stripe : stripes) {
+            this.blobLocks[stripe].lock();
+            locked.add(this.blobLocks[stripe]);
+        }
+
+        var deleted = new HashSet<String>();
+        var released = new ArrayList<ReleasedBlob>();
+
+        try {
+            dbService.write(conn -> {
+                // digest -> path for content addressed blobs, null key for files owning their blob exclusively
+                var paths = new HashMap<String, String>();
+                var references = new HashMap<String, Integer>();
+
+                var selectSql = """
+                                SELECT id, path, blobDigest
+                                FROM uploaded_files
+                                WHERE userId = ? AND id IN (SELECT value FROM json_each(?))
+                                """;
+                try (var ps = conn.prepareStatement(selectSql)) {
+                    ps.setString(1, userId);
+                    ps.setString(2, idsJson);
+                    var rs = ps.executeQuery();
+
+                    while (rs.next()) {
+                        var fileId = rs.getString("id");
+                        var path = rs.getString("path");
+                        var digest = rs.getString("blobDigest");
+
+                        if (path == null)
+                            throw new IllegalStateException("File path is null, but file exists in database: " + fileId);
+
+                        deleted.add(fileId);
+                        if (digest == null) {
+                            released.add(new ReleasedBlob(path, null));
+                        } else {
+                            paths.put(digest, path);
+                            references.merge(digest, 1, Integer::sum);
+                        }
+                    }
                 }
 
-                return ServiceResult.success(null);
+                var deleteSql = """
+                                DELETE FROM uploaded_files
+                                WHERE userId = ? AND id IN (SELECT value FROM json_each(?))
+                                """;
+                try (var ps = conn.prepareStatement(deleteSql)) {
+                    ps.setString(1, userId);
+                    ps.setString(2, idsJson);
+                    ps.executeUpdate();
+                }
+
+                for (var digest : releaseBlobs(conn, references))
+                    released.add(new ReleasedBlob(paths.get(digest), digest));
 
-            } catch (Exception e) {
-                conn.rollback();
-                throw e;
+                tombstoneBlobs(conn, released);
 
-            } finally {
-                conn.commit();
-                conn.setAutoCommit(true);
+                return null;
+            });
+
+            // links to the files can't be served anymore, their rows stay behind but no longer resolve
+            if (!deleted.isEmpty())
+                this.shareLinkCache.invalidateFiles(deleted);
+
+            // the blobs themselves are left to the reaper
+            for (var blob : released)
+                this.blobCache.invalidate(blob.key());
+
+        } finally {
+            for (var lock : locked)
+                lock.unlock();
+        }
+
+        // repeated IDs fail like a second delete of the same file would
+        var results = new ArrayList<ServiceResult<Void>>(fileIds.size());
+        for (var fileId : fileIds) {
+            results.add(deleted.remove(fileId)
+                    ? ServiceResult.success(null)
+                    : ServiceResult.failure("FILE_NOT_FOUND", "File not found or access denied"));
+        }
+
+        return ServiceResult.success(results);
+    }
+
+    /**
+     * Drops one reference to a blob.
+     * @return whether that was the last reference, the blob row is gone then and the blob can be deleted
+     */
+    private boolean releaseBlob(Connection conn, String digest) throws SQLException {
+        var updateSql = """
+                        UPDATE blobs
+                        SET refCount = refCount - 1
+                        WHERE digest = ?
+                        """;
+        try (var ps = conn.prepareStatement(updateSql)) {
+            ps.setString(1, digest);
+            ps.executeUpdate();
+        }
+
+        var deleteSql = """
+                        DELETE FROM blobs
+                        WHERE digest = ? AND refCount <= 0
+                        """;
+        try (var ps = conn.prepareStatement(deleteSql)) {
+            ps.setString(1, digest);
+            return ps.executeUpdate() > 0;
+        }
+    }
+
+    /**
+     * Drops the given number of references to each blob.
+     * @return the blobs whose last reference that was, their rows are gone then and the blobs can be deleted
+     */
+    private List<String> releaseBlobs(Connection conn, Map<String, Integer> references) throws SQLException {
+        if (references.isEmpty())
+            return List.of();
+
+        var updateSql = """
+                        UPDATE blobs
+                        SET refCount = refCount - ?
+                        WHERE digest = ?
+                        """;
+        try (var ps = conn.prepareStatement(updateSql)) {
+            for (var entry : references.entrySet()) {
+                ps.setInt(1, entry.getValue());
+                ps.setString(2, entry.getKey());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+
+        var digestsJson = GSON.toJson(references.keySet());
+        var released = new ArrayList<String>();
+
+        var selectSql = """
+                        SELECT digest
+                        FROM blobs
+                        WHERE digest IN (SELECT value FROM json_each(?)) AND refCount <= 0
+                        """;
+        try (var ps = conn.prepareStatement(selectSql)) {
+            ps.setString(1, digestsJson);
+            var rs = ps.executeQuery();
+            while (rs.next())
+                released.add(rs.getString("digest"));
+        }
+
+        var deleteSql = """
+                        DELETE FROM blobs
+                        WHERE digest IN (SELECT value FROM json_each(?)) AND refCount <= 0
+                        """;
+        try (var ps = conn.prepareStatement(deleteSql)) {
+            ps.setString(1, digestsJson);
+            ps.executeUpdate();
+        }
+
+        return released;
+    }
+
+    /**
+     * Leaves unreferenced blobs to the {@link BlobReaper}, so deletes never wait on the store.
+     * Written in the transaction dropping the last reference, a tombstone is never lost and never outlives a rollback.
+     */
+    private void tombstoneBlobs(Connection conn, List<ReleasedBlob> blobs) throws SQLException {
+        if (blobs.isEmpty())
+            return;
+
+        var sql = """
+                  INSERT INTO blob_tombstones (path, digest, deletedAt, nextAttemptAt)
+                  VALUES (?, ?, ?, ?)
+                  """;
+        try (var ps = conn.prepareStatement(sql)) {
+            var now = System.currentTimeMillis();
+            for (var blob : blobs) {
+                ps.setString(1, blob.key());
+                ps.setString(2, blob.digest());
+                ps.setLong(3, now);
+                ps.setLong(4, now);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+
+        // whatever was wrong with them doesn't matter anymore
+        var clearProblemsSql = """
+                               DELETE FROM blob_problems
+                               WHERE path = ?
+                               """;
+        try (var ps = conn.prepareStatement(clearProblemsSql)) {
+            for (var blob : blobs) {
+                ps.setString(1, blob.key());
+                ps.addBatch();
             }
+            ps.executeBatch();
         }
     }
+
+    /**
+     * A blob nothing references anymore.
+     *
+     * @param digest null for files uploaded before content addressing, owning their blob exclusively
+     */
+    private record ReleasedBlob(String key, @Nullable String digest) {}
+
+    /**
+     * @param flagged whether the scrubber found a problem with its content
+     */
+    private record KnownBlob(String key, long storedSize, boolean flagged) {}
 }
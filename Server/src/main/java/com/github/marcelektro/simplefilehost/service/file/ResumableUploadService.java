@@ -0,0 +1,42 @@
+package com.github.marcelektro.simplefilehost.service.file;
+
+import com.github.marcelektro.simplefilehost.service.ServiceResult;
+
+import java.io.InputStream;
+import java.time.LocalDateTime;
+
+/**
+ * Uploads split into offset-addressed chunks, which can be sent in any order, concurrently and retried individually.
+ * A session is created with the final file size, filled with chunks and then finalized into a regular file.
+ */
+public interface ResumableUploadService {
+
+    ServiceResult<UploadSession> createSession(String userId, String originalFilename, long size) throws Exception;
+
+    ServiceResult<UploadSession> getSession(String userId, String uploadId) throws Exception;
+
+    /**
+     * Writes a chunk at the given offset.
+     * @param length the chunk length if known upfront, -1 to read until the end of the stream
+     */
+    ServiceResult<UploadSession> writeChunk(String userId, String uploadId, long offset, long length, InputStream data) throws Exception;
+
+    /**
+     * Turns a fully received session into a file.
+     * @return the id of the new file
+     */
+    ServiceResult<String> finalizeSession(String userId, String uploadId) throws Exception;
+
+    ServiceResult<Void> abortSession(String userId, String uploadId) throws Exception;
+
+
+    record UploadSession(
+            String uploadId,
+            String originalFilename,
+            long size,
+            long offset, // length of the contiguous received prefix, i.e. where a sequential client should resume
+            long receivedBytes,
+            LocalDateTime expiresAt
+    ) {}
+
+}
@@ -0,0 +1,544 @@
+package com.github.marcelektro.simplefilehost.service.file;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.TransferMetrics;
+import com.github.marcelektro.simplefilehost.service.ServiceResult;
+import com.github.marcelektro.simplefilehost.service.db.DatabaseOverloadedException;
+import com.github.marcelektro.simplefilehost.service.db.DatabaseService;
+import com.github.marcelektro.simplefilehost.util.EpochMillis;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+@Slf4j
+public class ResumableUploadServiceImpl implements ResumableUploadService, AutoCloseable {
+
+    private final FileUploadServiceImpl fileUploadService;
+    private final DatabaseService dbService;
+    private final Config.Upload uploadConfig;
+    private final TransferMetrics transfers;
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        var t = new Thread(r, "UploadSessionReaper");
+        t.setDaemon(true);
+        return t;
+    });
+
+
+    public ResumableUploadServiceImpl(FileUploadServiceImpl fileUploadService, DatabaseService dbService, Config.Upload uploadConfig, TransferMetrics transfers) {
+        this.fileUploadService = fileUploadService;
+        this.dbService = dbService;
+        this.uploadConfig = uploadConfig;
+        this.transfers = transfers;
+
+        this.reaper.scheduleWithFixedDelay(this::expireSessions, 1, 1, TimeUnit.MINUTES);
+    }
+
+
+    @Override
+    public ServiceResult<UploadSession> createSession(String userId, String originalFilename, long size) throws Exception {
+        if (size < 0)
+            return ServiceResult.failure("INVALID_SIZE", "File size must not be negative");
+
+        if (this.uploadConfig.maxFileSize > 0 && size > this.uploadConfig.maxFileSize)
+            return ServiceResult.failure("FILE_TOO_LARGE", "File exceeds the maximum upload size of " + this.uploadConfig.maxFileSize + " bytes");
+
+        // the upload id becomes the file id
+        var uploadId = UUID.randomUUID().toString();
+        var stagingFile = this.fileUploadService.newStagingFile(uploadId);
+
+        // preallocate the full size up front, chunks are then written in place at their offsets
+        try (var raf = new RandomAccessFile(stagingFile, "rw")) {
+            raf.setLength(size);
+        }
+
+        var now = LocalDateTime.now();
+        var session = new Session(uploadId, userId, originalFilename, size, stagingFile, new TreeMap<>(), now.plusSeconds(this.uploadConfig.sessionTtlSeconds));
+
+        try {
+            this.dbService.write(conn -> {
+                var sql = """
+                          INSERT INTO upload_sessions (id, userId, filename, size, receivedRanges, createdAt, expiresAt)
+                          VALUES (?, ?, ?, ?, ?, ?, ?)
+                          """;
+                try (var ps = conn.prepareStatement(sql)) {
+                    ps.setString(1, uploadId);
+                    ps.setString(2, userId);
+                    ps.setString(3, originalFilename);
+                    ps.setLong(4, size);
+                    ps.setString(5, "");
+                    ps.setLong(6, EpochMillis.of(now));
+                    ps.setLong(7, EpochMillis.of(session.expiresAt));
+                    return ps.executeUpdate();
+                }
+            });
+        } catch (Exception e) {
+            Files.deleteIfExists(stagingFile.toPath());
+            throw e;
+        }
+
+        this.sessions.put(uploadId, session);
+
+        return ServiceResult.success(session.snapshot());
+    }
+
+    @Override
+    public ServiceResult<UploadSession> getSession(String userId, String uploadId) throws Exception {
+        var session = findSession(userId, uploadId);
+        if (session == null)
+            return ServiceResult.failure("SESSION_NOT_FOUND", "Upload session not found or expired");
+
+        return ServiceResult.success(session.snapshot());
+    }
+
+    @Override
+    public ServiceResult<UploadSession> writeChunk(String userId, String uploadId, long offset, long length, InputStream data) throws Exception {
+        var session = findSession(userId, uploadId);
+        if (session == null)
+            return ServiceResult.failure("SESSION_NOT_FOUND", "Upload session not found or expired");
+
+        if (offset < 0 || offset > session.size)
+            return ServiceResult.failure("INVALID_OFFSET", "Offset must be between 0 and the file size");
+
+        if (length > this.uploadConfig.maxChunkSize)
+            return ServiceResult.failure("CHUNK_TOO_LARGE", "Chunk exceeds the maximum chunk size of " + this.uploadConfig.maxChunkSize + " bytes");
+
+        if (length >= 0 && offset + length > session.size)
+            return ServiceResult.failure("CHUNK_OUT_OF_BOUNDS", "Chunk extends past the end of the file");
+
+        // Chunks share the read lock, so any number of them can be written at once.
+        // Finalizing or aborting takes the write lock, a chunk arriving meanwhile is rejected rather than queued.
+        var lock = session.lock.readLock();
+        if (!lock.tryLock())
+            return ServiceResult.failure("SESSION_CLOSING", "Upload session is being finalized or aborted");
+
+        try {
+            if (session.closed)
+                return ServiceResult.failure("SESSION_NOT_FOUND", "Upload session not found or expired");
+
+            var channel = session.channel();
+            var maxEnd = Math.min(session.size, offset + this.uploadConfig.maxChunkSize);
+
+            var buffer = new byte[this.uploadConfig.bufferSize];
+            var byteBuffer = ByteBuffer.wrap(buffer);
+            var position = offset;
+
+            this.transfers.uploadStarted();
+            try {
+                int read;
+                while ((read = data.read(buffer)) >= 0) {
+                    if (position + read > maxEnd)
+                        return ServiceResult.failure("CHUNK_OUT_OF_BOUNDS", "Chunk extends past the end of the file or exceeds the maximum chunk size");
+
+                    var writeStart = System.nanoTime();
+                    byteBuffer.clear().limit(read);
+                    while (byteBuffer.hasRemaining())
+                        position += channel.write(byteBuffer, position);
+                    this.transfers.blobWriteSeconds.observeNanosAsSeconds(System.nanoTime() - writeStart);
+                    this.transfers.uploadedBytes.add(read);
+                }
+
+            } finally {
+                this.transfers.uploadFinished();
+
+                // even a chunk cut off halfway leaves its written prefix behind, so a retry only needs to send the rest.
+                // Only recorded once it's on disk, a crash must not leave ranges marked received that are really holes
+                if (position > offset) {
+                    channel.force(false);
+                    markReceived(session, offset, position);
+                }
+            }
+
+            return ServiceResult.success(session.snapshot());
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ServiceResult<String> finalizeSession(String userId, String uploadId) throws Exception {
+        var session = findSession(userId, uploadId);
+        if (session == null)
+            return ServiceResult.failure("SESSION_NOT_FOUND", "Upload session not found or expired");
+
+        // waits for chunks still being written
+        session.lock.writeLock().lock();
+        try {
+            if (session.closed)
+                return ServiceResult.failure("SESSION_NOT_FOUND", "Upload session not found or expired");
+
+            var snapshot = session.snapshot();
+            if (snapshot.receivedBytes() != session.size)
+                return ServiceResult.failure("UPLOAD_INCOMPLETE", "Only " + snapshot.receivedBytes() + " of " + session.size + " bytes have been received");
+
+            session.closed = true;
+
+            var kept = keptFile(session);
+            try {
+                session.closeChannel(true);
+
+                // a commit cut short by a crash, after the store took over the staging file
+                if (!session.stagingFile.exists() && kept.exists())
+                    Files.move(kept.toPath(), session.stagingFile.toPath());
+                keepContent(session, kept);
+
+                // chunks arrive out of order, so unlike regular uploads the content can only be hashed once it's complete
+                var staged = this.fileUploadService.digestStaged(session.stagingFile);
+                this.fileUploadService.commitStagedBlob(userId, uploadId, session.originalFilename, staged);
+
+            } catch (Exception e) {
+                if (kept.exists())
+                    Files.move(kept.toPath(), session.stagingFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+                // without the content there's nothing left to retry with
+                if (!session.stagingFile.exists()) {
+                    deleteSession(session);
+                    throw e;
+                }
+
+                // everything's still there, the client only has to finalize again
+                session.closed = false;
+                if (e instanceof DatabaseOverloadedException)
+                    throw e;
+
+                log.error("Failed to finalize upload {}, it can be finalized again", uploadId, e);
+                return ServiceResult.failure("FINALIZE_FAILED", "Failed to store the upload, finalize it again to retry");
+            }
+
+            Files.deleteIfExists(kept.toPath());
+            deleteSession(session);
+
+            return ServiceResult.success(uploadId);
+
+        } finally {
+            session.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ServiceResult<Void> abortSession(String userId, String uploadId) throws Exception {
+        var session = findSession(userId, uploadId);
+        if (session == null)
+            return ServiceResult.failure("SESSION_NOT_FOUND", "Upload session not found or expired");
+
+        session.lock.writeLock().lock();
+        try {
+            if (session.closed)
+                return ServiceResult.failure("SESSION_NOT_FOUND", "Upload session not found or expired");
+
+            discardSession(session);
+            return ServiceResult.success(null);
+
+        } finally {
+            session.lock.writeLock().unlock();
+        }
+    }
+
+
+    private void expireSessions() {
+        try {
+            var expiredIds = new ArrayList<String>();
+
+            try (var conn = this.dbService.getReadConnection()) {
+                var sql = """
+                          SELECT id
+                          FROM upload_sessions
+                          WHERE expiresAt < ?
+                          """;
+                try (var ps = conn.prepareStatement(sql)) {
+                    ps.setLong(1, System.currentTimeMillis());
+                    var rs = ps.executeQuery();
+                    while (rs.next())
+                        expiredIds.add(rs.getString("id"));
+                }
+            }
+
+            for (var uploadId : expiredIds) {
+                var session = loadSession(uploadId);
+                if (session == null)
+                    continue;
+
+                // a chunk is being written right now, so it's clearly not abandoned
+                if (!session.lock.writeLock().tryLock())
+                    continue;
+
+                try {
+                    if (session.closed || session.expiresAt.isAfter(LocalDateTime.now()))
+                        continue;
+
+                    log.info("Expiring abandoned upload session {} ({} of {} bytes received)", uploadId, session.snapshot().receivedBytes(), session.size);
+                    discardSession(session);
+
+                } finally {
+                    session.lock.writeLock().unlock();
+                }
+            }
+
+        } catch (Exception e) {
+            log.error("Failed to expire upload sessions", e);
+        }
+    }
+
+
+    /**
+     * Must be called while holding the session's write lock.
+     */
+    private void discardSession(Session session) throws Exception {
+        session.closed = true;
+        try {
+            session.closeChannel(false);
+            Files.deleteIfExists(session.stagingFile.toPath());
+            Files.deleteIfExists(keptFile(session).toPath());
+        } finally {
+            deleteSession(session);
+        }
+    }
+
+    /**
+     * A second name for the received content while it's committed, the store may take the staging file itself over.
+     * A failed commit gets it back from there, so the upload can be finalized again instead of being sent again.
+     */
+    private static File keptFile(Session session) {
+        return new File(session.stagingFile.getPath() + ".kept");
+    }
+
+    private static void keepContent(Session session, File kept) throws IOException {
+        Files.deleteIfExists(kept.toPath());
+        try {
+            Files.createLink(kept.toPath(), session.stagingFile.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            log.warn("Can't link the content of upload {} while committing it, a failed commit discards it: {}", session.uploadId, e.toString());
+        }
+    }
+
+    private void deleteSession(Session session) throws Exception {
+        this.sessions.remove(session.uploadId, session);
+
+        this.dbService.write(conn -> {
+            try (var ps = conn.prepareStatement("DELETE FROM upload_sessions WHERE id = ?")) {
+                ps.setString(1, session.uploadId);
+                return ps.executeUpdate();
+            }
+        });
+    }
+
+    private void markReceived(Session session, long start, long end) throws Exception {
+        // merging and persisting under the same monitor keeps the stored ranges in the same order as the in-memory ones
+        synchronized (session) {
+            session.addRange(start, end);
+            session.expiresAt = LocalDateTime.now().plusSeconds(this.uploadConfig.sessionTtlSeconds);
+
+            var ranges = session.rangesToString();
+            var expiresAt = EpochMillis.of(session.expiresAt);
+
+            this.dbService.write(conn -> {
+                var sql = """
+                          UPDATE upload_sessions
+                          SET receivedRanges = ?, expiresAt = ?
+                          WHERE id = ?
+                          """;
+                try (var ps = conn.prepareStatement(sql)) {
+                    ps.setString(1, ranges);
+                    ps.setLong(2, expiresAt);
+                    ps.setString(3, session.uploadId);
+                    return ps.executeUpdate();
+                }
+            });
+        }
+    }
+
+    private @Nullable Session findSession(String userId, String uploadId) throws SQLException {
+        var session = loadSession(uploadId);
+
+        if (session == null || !session.userId.equals(userId) || session.hasExpired())
+            return null;
+
+        return session;
+    }
+
+    /**
+     * Returns the in-memory session, loading it from the database if this instance hasn't seen it yet (e.g. after a restart).
+     */
+    private @Nullable Session loadSession(String uploadId) throws SQLException {
+        var session = this.sessions.get(uploadId);
+        if (session != null)
+            return session;
+
+        try (var conn = this.dbService.getReadConnection()) {
+            var sql = """
+                      SELECT userId, filename, size, receivedRanges, expiresAt
+                      FROM upload_sessions
+                      WHERE id = ?
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, uploadId);
+                var rs = ps.executeQuery();
+
+                if (!rs.next())
+                    return null;
+
+                File stagingFile;
+                try {
+                    stagingFile = this.fileUploadService.newStagingFile(uploadId);
+                } catch (IOException e) {
+                    throw new SQLException("Failed to resolve staging file for upload session " + uploadId, e);
+                }
+
+                var loaded = new Session(
+                        uploadId,
+                        rs.getString("userId"),
+                        rs.getString("filename"),
+                        rs.getLong("size"),
+                        stagingFile,
+                        Session.parseRanges(rs.getString("receivedRanges")),
+                        EpochMillis.toLocalDateTime(rs.getLong("expiresAt"))
+                );
+
+                var existing = this.sessions.putIfAbsent(uploadId, loaded);
+                return existing != null ? existing : loaded;
+            }
+        }
+    }
+
+
+    @Override
+    public void close() {
+        this.reaper.shutdownNow();
+    }
+
+
+    private static class Session {
+
+        private final String uploadId;
+        private final String userId;
+        private final String originalFilename;
+        private final long size;
+        private final File stagingFile;
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        // received byte ranges, start -> end (exclusive), non-overlapping and non-adjacent. Guarded by this
+        private final TreeMap<Long, Long> received;
+        private LocalDateTime expiresAt; // guarded by this
+        private @Nullable FileChannel channel; // guarded by this
+
+        private volatile boolean closed;
+
+
+        private Session(String uploadId, String userId, String originalFilename, long size, File stagingFile, TreeMap<Long, Long> received, LocalDateTime expiresAt) {
+            this.uploadId = uploadId;
+            this.userId = userId;
+            this.originalFilename = originalFilename;
+            this.size = size;
+            this.stagingFile = stagingFile;
+            this.received = received;
+            this.expiresAt = expiresAt;
+        }
+
+
+        /**
+         * Positional writes on a FileChannel are safe to issue concurrently, all chunks share one channel.
+         */
+        private synchronized FileChannel channel() throws IOException {
+            if (this.channel == null)
+                this.channel = FileChannel.open(this.stagingFile.toPath(), StandardOpenOption.WRITE);
+            return this.channel;
+        }
+
+        private synchronized void closeChannel(boolean flush) throws IOException {
+            if (this.channel == null)
+                return;
+
+            try {
+                if (flush)
+                    this.channel.force(false);
+            } finally {
+                this.channel.close();
+                this.channel = null;
+            }
+        }
+
+        /**
+         * Until the reaper gets to it, an expired session is still around.
+         */
+        private synchronized boolean hasExpired() {
+            return this.expiresAt.isBefore(LocalDateTime.now());
+        }
+
+        private synchronized void addRange(long start, long end) {
+            // absorb every range overlapping or touching [start, end)
+            var floor = this.received.floorEntry(start);
+            if (floor != null && floor.getValue() >= start) {
+                start = floor.getKey();
+                end = Math.max(end, floor.getValue());
+            }
+
+            var next = this.received.ceilingEntry(start);
+            while (next != null && next.getKey() <= end) {
+                end = Math.max(end, next.getValue());
+                this.received.remove(next.getKey());
+                next = this.received.ceilingEntry(start);
+            }
+
+            this.received.put(start, end);
+        }
+
+        private synchronized UploadSession snapshot() {
+            var first = this.received.firstEntry();
+            var offset = first != null && first.getKey() == 0 ? first.getValue() : 0;
+
+            long receivedBytes = 0;
+            for (var range : this.received.entrySet())
+                receivedBytes += range.getValue() - range.getKey();
+
+            return new UploadSession(this.uploadId, this.originalFilename, this.size, offset, receivedBytes, this.expiresAt);
+        }
+
+        private synchronized String rangesToString() {
+            var sb = new StringBuilder();
+            for (var range : this.received.entrySet()) {
+                if (!sb.isEmpty())
+                    sb.append(',');
+                sb.append(range.getKey()).append('-').append(range.getValue());
+            }
+            return sb.toString();
+        }
+
+        private static TreeMap<Long, Long> parseRanges(String s) {
+            var ranges = new TreeMap<Long, Long>();
+            if (s.isEmpty())
+                return ranges;
+
+            for (var range : s.split(",")) {
+                var dash = range.indexOf('-');
+                ranges.put(Long.parseLong(range.substring(0, dash)), Long.parseLong(range.substring(dash + 1)));
+            }
+            return ranges;
+        }
+
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.github.marcelektro.simplefilehost.service.file;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.Counter;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.service.db.DatabaseService;
+import com.github.marcelektro.simplefilehost.storage.VolumeBlobStore;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evens out the fill levels of the blob volumes while the server is running, mostly for when an empty disk was added:
+ * new blobs favour it, but the existing ones would otherwise stay where they are.
+ * <p>
+ * Once the fullest and the emptiest volume differ by more than the threshold, blobs are moved from the one to the other
+ * until they're within half of it, so it doesn't start right over again. Copies are paced to the configured rate,
+ * and each move only holds the blob's lock for switching the records over, see {@link FileUploadServiceImpl#relocateBlob}.
+ * The old copies are left to the {@link BlobReaper}.
+ */
+@Slf4j
+public class VolumeRebalancer implements AutoCloseable {
+
+    private static final int SCAN_BATCH_SIZE = 500;
+
+    private final FileUploadServiceImpl fileUploadService;
+    private final VolumeBlobStore blobStore;
+    private final DatabaseService dbService;
+    private final double threshold;
+    private final long maxBytesPerSecond;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        var t = new Thread(r, "VolumeRebalancer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Counter movedBlobs;
+    private final Counter movedBytes;
+    private final Counter failures;
+    private final AtomicInteger running = new AtomicInteger();
+
+
+    public VolumeRebalancer(FileUploadServiceImpl fileUploadService, VolumeBlobStore blobStore, DatabaseService dbService, Config.Storage config, MetricsRegistry metrics) {
+        this.fileUploadService = fileUploadService;
+        this.blobStore = blobStore;
+        this.dbService = dbService;
+        this.threshold = config.rebalanceThresholdPercent / 100d;
+        this.maxBytesPerSecond = config.rebalanceMaxBytesPerSecond;
+
+        this.movedBlobs = metrics.counter("sfh_volume_rebalance_moved_total", "Blobs moved between volumes to even out their fill levels");
+        this.movedBytes = metrics.counter("sfh_volume_rebalance_moved_bytes_total", "Bytes of blobs moved between volumes to even out their fill levels");
+        this.failures = metrics.counter("sfh_volume_rebalance_failures_total", "Blob moves between volumes that failed");
+        metrics.gauge("sfh_volume_rebalance_running", "Whether blobs are being moved between volumes", this.running::get);
+
+        this.scheduler.scheduleWithFixedDelay(this::rebalance, config.rebalanceIntervalSeconds, config.rebalanceIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+
+    private void rebalance() {
+        try {
+            var volumes = this.blobStore.volumes();
+            var fullest = volumes.stream().max(Comparator.comparingDouble(VolumeBlobStore.Volume::fillRatio)).orElseThrow();
+            var emptiest = volumes.stream().min(Comparator.comparingDouble(VolumeBlobStore.Volume::fillRatio)).orElseThrow();
+
+            if (fullest.fillRatio() - emptiest.fillRatio() <= this.threshold)
+                return;
+
+            log.debug("Volume {} is {}% full, volume {} {}%, moving blobs", fullest.name(), Math.round(fullest.fillRatio() * 100),
+                    emptiest.name(), Math.round(emptiest.fillRatio() * 100));
+
+            long moved;
+            this.running.set(1);
+            try {
+                moved = moveBlobs(fullest, emptiest);
+            } finally {
+                this.running.set(0);
+            }
+
+            // the fullest volume may hold nothing but other data, there's no point in telling every round
+            if (moved > 0) {
+                log.info("Moved {} blobs from volume {} to volume {}, now {}% and {}% full", moved, fullest.name(), emptiest.name(),
+                        Math.round(fullest.fillRatio() * 100), Math.round(emptiest.fillRatio() * 100));
+            }
+
+        } catch (Exception e) {
+            log.error("Failed to rebalance blob volumes", e);
+        }
+    }
+
+    /**
+     * @return how many blobs were moved
+     */
+    private long moveBlobs(VolumeBlobStore.Volume from, VolumeBlobStore.Volume to) throws Exception {
+        var startNanos = System.nanoTime();
+        long blobsMoved = 0;
+        long bytesMoved = 0;
+        var afterDigest = "";
+
+        while (!Thread.currentThread().isInterrupted()) {
+            var batch = new ArrayList<Candidate>(SCAN_BATCH_SIZE);
+
+            try (var conn = this.dbService.getReadConnection()) {
+                var sql = """
+                          SELECT digest, path, size
+                          FROM blobs
+                          WHERE digest > ?
+                          ORDER BY digest
+                          LIMIT ?
+                          """;
+                try (var ps = conn.prepareStatement(sql)) {
+                    ps.setString(1, afterDigest);
+                    ps.setInt(2, SCAN_BATCH_SIZE);
+                    var rs = ps.executeQuery();
+
+                    while (rs.next())
+                        batch.add(new Candidate(rs.getString("digest"), rs.getString("path"), rs.getLong("size")));
+                }
+            }
+
+            if (batch.isEmpty())
+                return blobsMoved;
+            afterDigest = batch.get(batch.size() - 1).digest();
+
+            for (var blob : batch) {
+                if (!isOn(blob, from))
+                    continue;
+
+                // half the threshold, so it doesn't start right over again with the next new blob
+                if (from.fillRatio() - to.fillRatio() <= this.threshold / 2)
+                    return blobsMoved;
+
+                try {
+                    if (this.fileUploadService.relocateBlob(blob.digest(), blob.key(), this.blobStore.keyOn(to, blob.digest()))) {
+                        this.movedBlobs.increment();
+                        this.movedBytes.add(blob.size());
+                        blobsMoved++;
+                        bytesMoved += blob.size();
+                    }
+
+                } catch (Exception e) {
+                    log.warn("Failed to move blob {} to volume {}", blob.key(), to.name(), e);
+                    this.failures.increment();
+                }
+
+                throttle(startNanos, bytesMoved);
+            }
+        }
+
+        return blobsMoved;
+    }
+
+    private boolean isOn(Candidate blob, VolumeBlobStore.Volume volume) {
+        try {
+            return this.blobStore.volumeOf(blob.key()) == volume;
+        } catch (IOException e) {
+            // on a volume that's not configured anymore, nothing to move it from
+            return false;
+        }
+    }
+
+    /**
+     * Sleeps for as long as the bytes moved so far are ahead of the rate limit.
+     */
+    private void throttle(long startNanos, long bytesMoved) throws InterruptedException {
+        if (this.maxBytesPerSecond <= 0)
+            return;
+
+        var dueNanos = startNanos + (long) ((double) bytesMoved / this.maxBytesPerSecond * TimeUnit.SECONDS.toNanos(1));
+        var waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0)
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+
+    @Override
+    public void close() {
+        this.scheduler.shutdownNow();
+    }
+
+
+    private record Candidate(String digest, String key, long size) {}
+
+}
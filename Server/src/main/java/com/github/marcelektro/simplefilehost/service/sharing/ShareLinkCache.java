@@ -0,0 +1,116 @@
+package com.github.marcelektro.simplefilehost.service.sharing;
+
+import com.github.marcelektro.simplefilehost.cache.WeightedLruCache;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.service.db.DatabaseService;
+import com.github.marcelektro.simplefilehost.storage.BlobEncoding;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+
+/**
+ * Share links resolved down to everything needed to serve them, cached since popular links are hit far more often than they change.
+ * <p>
+ * Whoever changes a link, or the file behind it, must invalidate it <b>after</b> committing.
+ * Expiry is part of the cached data and checked by the caller on every use, so an expired link is never served from the cache.
+ */
+public class ShareLinkCache {
+
+    private final DatabaseService dbService;
+    private final WeightedLruCache<String, ResolvedShareLink> cache;
+
+
+    public ShareLinkCache(DatabaseService dbService, long maxBytes, MetricsRegistry metrics) {
+        this.dbService = dbService;
+        this.cache = new WeightedLruCache<>("share_links", maxBytes, ResolvedShareLink::estimateSize, metrics);
+    }
+
+
+    /**
+     * @return the link, or null if it doesn't exist (or its file doesn't anymore)
+     */
+    public @Nullable ResolvedShareLink resolve(String linkId) throws Exception {
+        return this.cache.get(linkId, this::load);
+    }
+
+    public void invalidate(String linkId) {
+        this.cache.invalidate(linkId);
+    }
+
+    public void invalidateFile(String fileId) {
+        this.cache.invalidateIf(link -> link.fileId().equals(fileId));
+    }
+
+    /**
+     * Like {@link #invalidateFile} for many files, in one pass over the cache.
+     */
+    public void invalidateFiles(Set<String> fileIds) {
+        this.cache.invalidateIf(link -> fileIds.contains(link.fileId()));
+    }
+
+
+    private @Nullable ResolvedShareLink load(String linkId) throws Exception {
+        try (var conn = this.dbService.getReadConnection()) {
+            var sql = """
+                      SELECT sl.fileId, sl.password, sl.expiresAt,
+                             uf.filename, uf.size, uf.path,
+                             b.codec, b.frameSize, b.frameIndex
+                      FROM shared_links sl
+                          INNER JOIN uploaded_files uf ON uf.id = sl.fileId
+                          LEFT JOIN blobs b ON b.digest = uf.blobDigest
+                      WHERE sl.id = ?
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, linkId);
+                var rs = ps.executeQuery();
+
+                if (!rs.next())
+                    return null;
+
+                var expiresAt = rs.getLong("expiresAt");
+                var hasExpiry = !rs.wasNull();
+
+                return new ResolvedShareLink(
+                        linkId,
+                        rs.getString("fileId"),
+                        rs.getString("password"),
+                        hasExpiry ? expiresAt : null,
+                        rs.getString("filename"),
+                        rs.getLong("size"),
+                        rs.getString("path"),
+                        BlobEncoding.of(rs.getString("codec"), rs.getLong("size"), rs.getInt("frameSize"), rs.getBytes("frameIndex"))
+                );
+            }
+        }
+    }
+
+
+    public record ResolvedShareLink(
+            String linkId,
+            String fileId,
+            @Nullable String password,
+            @Nullable Long expiresAt,
+            String filename,
+            long fileSize,
+            String blobKey,
+            @Nullable BlobEncoding encoding
+    ) {
+
+        public boolean hasPassword() {
+            return this.password != null && !this.password.isEmpty();
+        }
+
+        public boolean hasExpired() {
+            return this.expiresAt != null && this.expiresAt < System.currentTimeMillis();
+        }
+
+        private long estimateSize() {
+            // object headers and references, plus two bytes per char for the strings
+            return 160 + 2L * (this.linkId.length() + this.fileId.length() + this.filename.length() + this.blobKey.length()
+                    + (this.password != null ? this.password.length() : 0))
+                    + (this.encoding != null ? this.encoding.estimateSize() : 0);
+        }
+
+    }
+
+}
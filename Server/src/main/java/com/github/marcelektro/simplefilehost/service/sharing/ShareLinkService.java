@@ -10,6 +10,13 @@ public interface ShareLinkService {
 
     ServiceResult<String> createShareLink(String userId, String fileId, String password, LocalDateTime expiry) throws Exception;
 
+    /**
+     * Creates many links in one transaction, with the same outcome as creating them one by one.
+     *
+     * @return the ID of each link created, or why it wasn't, in the same order as given
+     */
+    ServiceResult<List<ServiceResult<String>>> createShareLinks(String userId, List<NewShareLink> links) throws Exception;
+
     ServiceResult<Void> updateShareLink(String userId, String linkId, String newPassword, LocalDateTime newExpiry) throws Exception;
 
     ServiceResult<Void> deleteShareLink(String userId, String linkId) throws Exception;
@@ -19,6 +26,12 @@ public interface ShareLinkService {
     ServiceResult<List<ShareLinkInfo>> listShareLinksForFile(String userId, String fileId) throws Exception;
 
 
+    record NewShareLink(
+            String fileId,
+            @Nullable String password,
+            @Nullable LocalDateTime expiry
+    ) { }
+
     record ShareLinkValidationResult(
             String fileId,
             String originalFilename,
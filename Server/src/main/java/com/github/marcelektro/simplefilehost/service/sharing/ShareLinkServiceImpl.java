@@ -2,206 +2,209 @@ package com.github.marcelektro.simplefilehost.service.sharing;
 
 import com.github.marcelektro.simplefilehost.service.ServiceResult;
 import com.github.marcelektro.simplefilehost.service.db.DatabaseService;
+import com.github.marcelektro.simplefilehost.util.EpochMillis;
+import com.google.gson.Gson;
 import org.jetbrains.annotations.Nullable;
 
+import java.security.SecureRandom;
 import java.sql.*;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.UUID;
+import java.util.*;
 
 public class ShareLinkServiceImpl implements ShareLinkService {
 
+    private static final Gson GSON = new Gson();
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int LINK_ID_BYTES = 16;
+
     private final DatabaseService dbService;
+    private final ShareLinkCache shareLinkCache;
 
-    public ShareLinkServiceImpl(DatabaseService dbService) {
+    public ShareLinkServiceImpl(DatabaseService dbService, ShareLinkCache shareLinkCache) {
         this.dbService = dbService;
+        this.shareLinkCache = shareLinkCache;
     }
 
 
     @Override
     public ServiceResult<String> createShareLink(String userId, String fileId, @Nullable String password, @Nullable LocalDateTime expiry) throws Exception {
 
-        var linkId = UUID.randomUUID().toString()
-                .substring(0, 8);
-
-        try (var conn = dbService.getConnection()) {
-            conn.setAutoCommit(false);
-            try {
-                if (!ownsFile(conn, userId, fileId)) {
-                    return ServiceResult.failure("ACCESS_DENIED", "User does not own the file");
-                }
-
-                var sql = """
-                      INSERT INTO shared_links (id, fileId, expiry, password)
-                      VALUES (?, ?, ?, ?)
-                      """;
-                try (var ps = conn.prepareStatement(sql)) {
-                    ps.setString(1, linkId);
-                    ps.setString(2, fileId);
-                    ps.setString(3, expiry != null ? expiry.toString() : null);
-                    ps.setString(4, password);
-                    ps.executeUpdate();
-                }
+        var linkId = newLinkId();
 
-                return ServiceResult.success(linkId);
+        return dbService.write(conn -> {
+            if (!ownsFile(conn, userId, fileId)) {
+                return ServiceResult.failure("ACCESS_DENIED", "User does not own the file");
+            }
 
-            } catch (Exception e) {
-                conn.rollback();
-                throw e;
-            } finally {
-                conn.commit();
+            var sql = """
+                  INSERT INTO shared_links (id, fileId, expiresAt, password)
+                  VALUES (?, ?, ?, ?)
+                  """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, linkId);
+                ps.setString(2, fileId);
+                ps.setObject(3, EpochMillis.ofNullable(expiry));
+                ps.setString(4, password);
+                ps.executeUpdate();
             }
-        }
+
+            return ServiceResult.success(linkId);
+        });
     }
 
     @Override
-    public ServiceResult<Void> updateShareLink(String userId, String linkId, @Nullable String newPassword, @Nullable LocalDateTime newExpiry) throws Exception {
-        try (var conn = dbService.getConnection()) {
-            conn.setAutoCommit(false);
-            try {
-                if (!ownsLink(conn, userId, linkId)) {
-                    return ServiceResult.failure("ACCESS_DENIED", "User does not own this share link");
-                }
+    public ServiceResult<List<ServiceResult<String>>> createShareLinks(String userId, List<NewShareLink> links) throws Exception {
+        var fileIds = new LinkedHashSet<String>();
+        for (var link : links)
+            fileIds.add(link.fileId());
 
-                var sql = """
-                      UPDATE shared_links
-                      SET expiry = ?, password = ?
-                      WHERE id = ?
-                      """;
-                try (var ps = conn.prepareStatement(sql)) {
-                    ps.setString(1, newExpiry != null ? newExpiry.toString() : null);
-                    ps.setString(2, newPassword);
-                    ps.setString(3, linkId);
-                    ps.executeUpdate();
-                }
+        return dbService.write(conn -> {
+            var owned = ownedFiles(conn, userId, fileIds);
 
-                return ServiceResult.success(null);
+            var results = new ArrayList<ServiceResult<String>>(links.size());
 
-            } catch (Exception e) {
-                conn.rollback();
-                throw e;
-            } finally {
-                conn.commit();
-            }
-        }
-    }
+            var sql = """
+                  INSERT INTO shared_links (id, fileId, expiresAt, password)
+                  VALUES (?, ?, ?, ?)
+                  """;
+            try (var ps = conn.prepareStatement(sql)) {
+                for (var link : links) {
+                    if (!owned.contains(link.fileId())) {
+                        results.add(ServiceResult.failure("ACCESS_DENIED", "User does not own the file"));
+                        continue;
+                    }
 
-    @Override
-    public ServiceResult<Void> deleteShareLink(String userId, String linkId) throws Exception {
-        try (var conn = dbService.getConnection()) {
-            conn.setAutoCommit(false);
-            try {
-                if (!ownsLink(conn, userId, linkId)) {
-                    return ServiceResult.failure("ACCESS_DENIED", "User does not own this share link");
-                }
+                    var linkId = newLinkId();
 
-                var sql = """
-                          DELETE FROM shared_links
-                          WHERE id = ?
-                          """;
-                try (var ps = conn.prepareStatement(sql)) {
                     ps.setString(1, linkId);
-                    ps.executeUpdate();
+                    ps.setString(2, link.fileId());
+                    ps.setObject(3, EpochMillis.ofNullable(link.expiry()));
+                    ps.setString(4, link.password());
+                    ps.addBatch();
+
+                    results.add(ServiceResult.success(linkId));
                 }
+                ps.executeBatch();
+            }
 
-                return ServiceResult.success(null);
+            return ServiceResult.success(results);
+        });
+    }
 
-            } catch (Exception e) {
-                conn.rollback();
-                throw e;
-            } finally {
-                conn.commit();
+    @Override
+    public ServiceResult<Void> updateShareLink(String userId, String linkId, @Nullable String newPassword, @Nullable LocalDateTime newExpiry) throws Exception {
+        ServiceResult<Void> res = dbService.write(conn -> {
+            if (!ownsLink(conn, userId, linkId)) {
+                return ServiceResult.failure("ACCESS_DENIED", "User does not own this share link");
             }
-        }
+
+            var sql = """
+                  UPDATE shared_links
+                  SET expiresAt = ?, password = ?
+                  WHERE id = ?
+                  """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setObject(1, EpochMillis.ofNullable(newExpiry));
+                ps.setString(2, newPassword);
+                ps.setString(3, linkId);
+                ps.executeUpdate();
+            }
+
+            return ServiceResult.success(null);
+        });
+
+        if (res.isSuccess())
+            this.shareLinkCache.invalidate(linkId);
+
+        return res;
     }
 
     @Override
-    public ServiceResult<ShareLinkValidationResult> validateLink(String linkId, @Nullable String userEnteredPassword) throws Exception {
-        try (var conn = dbService.getConnection()) {
+    public ServiceResult<Void> deleteShareLink(String userId, String linkId) throws Exception {
+        ServiceResult<Void> res = dbService.write(conn -> {
+            if (!ownsLink(conn, userId, linkId)) {
+                return ServiceResult.failure("ACCESS_DENIED", "User does not own this share link");
+            }
+
             var sql = """
-                        SELECT sl.fileId, sl.password, sl.expiry,
-                               uf.filename AS "ufFilename", uf.size AS "ufSize"
-                        FROM shared_links sl
-                            INNER JOIN uploaded_files uf on uf.id = sl.fileId
-                        WHERE sl.id = ?
-                        """;
+                      DELETE FROM shared_links
+                      WHERE id = ?
+                      """;
             try (var ps = conn.prepareStatement(sql)) {
                 ps.setString(1, linkId);
-                var rs = ps.executeQuery();
+                ps.executeUpdate();
+            }
 
-                if (!rs.next()) {
-                    return ServiceResult.failure("LINK_NOT_FOUND", "Shared link not found");
-                }
+            return ServiceResult.success(null);
+        });
 
-                var fileId = rs.getString("fileId");
-                var password = rs.getString("password");
-                var expiryStr = rs.getString("expiry");
+        if (res.isSuccess())
+            this.shareLinkCache.invalidate(linkId);
 
-                var expiry = expiryStr != null ? LocalDateTime.parse(expiryStr) : null;
+        return res;
+    }
 
-                var hasExpiry = expiry != null;
-                var hasExpired = hasExpiry && expiry.isBefore(LocalDateTime.now());
+    @Override
+    public ServiceResult<ShareLinkValidationResult> validateLink(String linkId, @Nullable String userEnteredPassword) throws Exception {
+        var link = this.shareLinkCache.resolve(linkId);
 
-                var hasPassword = password != null && !password.isEmpty();
-                var validPassword = hasPassword && password.equals(userEnteredPassword);
+        if (link == null) {
+            return ServiceResult.failure("LINK_NOT_FOUND", "Shared link not found");
+        }
 
-                var originalFilename = rs.getString("ufFilename");
-                var fileSize = rs.getLong("ufSize");
+        var hasPassword = link.hasPassword();
+        var validPassword = hasPassword && link.password().equals(userEnteredPassword);
 
-                var result = new ShareLinkValidationResult(
-                        fileId,
-                        originalFilename,
-                        fileSize,
-                        hasPassword,
-                        validPassword,
-                        expiry,
-                        hasExpired
-                );
+        var result = new ShareLinkValidationResult(
+                link.fileId(),
+                link.filename(),
+                link.fileSize(),
+                hasPassword,
+                validPassword,
+                link.expiresAt() != null ? EpochMillis.toLocalDateTime(link.expiresAt()) : null,
+                link.hasExpired()
+        );
 
-                return ServiceResult.success(result);
-            }
-        }
+        return ServiceResult.success(result);
     }
 
     public ServiceResult<List<ShareLinkInfo>> listShareLinksForFile(String userId, String fileId) throws Exception {
         var results = new ArrayList<ShareLinkInfo>();
-        try (var conn = dbService.getConnection()) {
-            conn.setAutoCommit(false);
-            try {
-                if (!ownsFile(conn, userId, fileId))
-                    return ServiceResult.failure("ACCESS_DENIED", "User does not own the file");
-
-                var sql = """
-                            SELECT id, expiry, password
-                            FROM shared_links
-                            WHERE fileId = ?
-                            """;
-                try (var ps = conn.prepareStatement(sql)) {
-                    ps.setString(1, fileId);
-                    var rs = ps.executeQuery();
-                    while (rs.next()) {
-                        var summary = new ShareLinkInfo(
-                                rs.getString("id"),
-                                rs.getString("expiry") != null ? LocalDateTime.parse(rs.getString("expiry")) : null,
-                                rs.getString("password")
-                        );
-                        results.add(summary);
-                    }
-                }
-
-                conn.commit();
-                return ServiceResult.success(results);
+        try (var conn = dbService.getReadConnection()) {
+            if (!ownsFile(conn, userId, fileId))
+                return ServiceResult.failure("ACCESS_DENIED", "User does not own the file");
 
-            } catch (Exception e) {
-                conn.rollback();
-                throw e;
-            } finally {
-                conn.setAutoCommit(true);
+            var sql = """
+                        SELECT id, expiresAt, password
+                        FROM shared_links
+                        WHERE fileId = ?
+                        """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, fileId);
+                var rs = ps.executeQuery();
+                while (rs.next()) {
+                    var summary = new ShareLinkInfo(
+                            rs.getString("id"),
+                            rs.getObject("expiresAt") != null ? EpochMillis.toLocalDateTime(rs.getLong("expiresAt")) : null,
+                            rs.getString("password")
+                    );
+                    results.add(summary);
+                }
             }
+
+            return ServiceResult.success(results);
         }
     }
 
+    /**
+     * 128 random bits, a whole batch of links never clashes with itself or existing links (which would roll back the entire batch).
+     */
+    private static String newLinkId() {
+        var bytes = new byte[LINK_ID_BYTES];
+        RANDOM.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
     private boolean ownsFile(Connection conn, String userId, String fileId) throws SQLException {
         var sql = """
                 SELECT id
@@ -215,6 +218,27 @@ public class ShareLinkServiceImpl implements ShareLinkService {
         }
     }
 
+    /**
+     * @return those of the given files the user owns, looked up at once
+     */
+    private Set<String> ownedFiles(Connection conn, String userId, Collection<String> fileIds) throws SQLException {
+        var sql = """
+                SELECT id
+                FROM uploaded_files
+                WHERE userId = ? AND id IN (SELECT value FROM json_each(?))
+                """;
+        try (var ps = conn.prepareStatement(sql)) {
+            ps.setString(1, userId);
+            ps.setString(2, GSON.toJson(fileIds));
+            var rs = ps.executeQuery();
+
+            var owned = new HashSet<String>();
+            while (rs.next())
+                owned.add(rs.getString("id"));
+            return owned;
+        }
+    }
+
     private boolean ownsLink(Connection conn, String userId, String linkId) throws SQLException {
 
         var sql = """
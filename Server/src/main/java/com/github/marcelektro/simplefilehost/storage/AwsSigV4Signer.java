@@ -0,0 +1,138 @@
+package com.github.marcelektro.simplefilehost.storage;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+import java.util.SortedMap;
+import java.util.stream.Collectors;
+
+/**
+ * AWS Signature Version 4, as sent in the Authorization header of S3 requests.
+ */
+final class AwsSigV4Signer {
+
+    static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    static final String EMPTY_PAYLOAD_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    private final String accessKey;
+    private final String secretKey;
+    private final String region;
+    private final String service;
+
+    // the signing key only changes with the date
+    private volatile SigningKey signingKey;
+
+
+    AwsSigV4Signer(String accessKey, String secretKey, String region, String service) {
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.region = region;
+        this.service = service;
+    }
+
+
+    /**
+     * @param canonicalUri the request path, already URI-encoded
+     * @param canonicalQuery the query parameters, encoded and sorted by name
+     * @param headers every header to sign by lowercase name, must include host, x-amz-date and x-amz-content-sha256
+     * @param payloadHash hex SHA-256 of the body, or {@link #UNSIGNED_PAYLOAD}
+     * @return the Authorization header value
+     */
+    String authorization(String method, String canonicalUri, String canonicalQuery, SortedMap<String, String> headers, String payloadHash, Instant time) {
+        var amzDate = AMZ_DATE.format(time);
+        var date = amzDate.substring(0, 8);
+        var scope = date + "/" + this.region + "/" + this.service + "/aws4_request";
+
+        var signedHeaders = String.join(";", headers.keySet());
+        var canonicalHeaders = headers.entrySet().stream()
+                .map(h -> h.getKey() + ":" + h.getValue().trim().replaceAll(" +", " ") + "\n")
+                .collect(Collectors.joining());
+
+        var canonicalRequest = method + "\n"
+                + canonicalUri + "\n"
+                + canonicalQuery + "\n"
+                + canonicalHeaders + "\n"
+                + signedHeaders + "\n"
+                + payloadHash;
+
+        var stringToSign = ALGORITHM + "\n"
+                + amzDate + "\n"
+                + scope + "\n"
+                + sha256Hex(canonicalRequest.getBytes(StandardCharsets.UTF_8));
+
+        var signature = HexFormat.of().formatHex(hmac(signingKey(date), stringToSign));
+
+        return ALGORITHM + " Credential=" + this.accessKey + "/" + scope + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature;
+    }
+
+
+    static String amzDate(Instant time) {
+        return AMZ_DATE.format(time);
+    }
+
+    /**
+     * URI-encodes as SigV4 wants it: everything but unreserved characters, optionally keeping slashes (for paths).
+     */
+    static String encode(String value, boolean keepSlashes) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        var sb = new StringBuilder(bytes.length + 16);
+
+        for (var b : bytes) {
+            var c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && keepSlashes)) {
+                sb.append(c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit((c >> 4) & 0xF, 16))).append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            }
+        }
+
+        return sb.toString();
+    }
+
+    static String sha256Hex(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+
+    private byte[] signingKey(String date) {
+        var key = this.signingKey;
+        if (key != null && key.date.equals(date))
+            return key.key;
+
+        var dateKey = hmac(("AWS4" + this.secretKey).getBytes(StandardCharsets.UTF_8), date);
+        var regionKey = hmac(dateKey, this.region);
+        var serviceKey = hmac(regionKey, this.service);
+        var signing = hmac(serviceKey, "aws4_request");
+
+        this.signingKey = new SigningKey(date, signing);
+        return signing;
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            var mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+
+    private record SigningKey(String date, byte[] key) {}
+
+}
@@ -0,0 +1,61 @@
+package com.github.marcelektro.simplefilehost.storage;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * How a blob stored compressed is laid out, see {@link FramedGzip}. Blobs stored as they are have none.
+ *
+ * @param codec        how the content was compressed, {@link FramedGzip#CODEC}
+ * @param size         of the content as uploaded
+ * @param frameSize    bytes of content per frame, the last one may be shorter
+ * @param frameOffsets where each frame starts in the stored blob, followed by where the last one ends
+ */
+public record BlobEncoding(String codec, long size, int frameSize, long[] frameOffsets) {
+
+    public int frameCount() {
+        return this.frameOffsets.length - 1;
+    }
+
+    /**
+     * Size of the blob as stored.
+     */
+    public long storedSize() {
+        return this.frameOffsets[frameCount()] + FramedGzip.TRAILER_SIZE;
+    }
+
+    /**
+     * The frame offsets as stored in the database, the compressed length of each frame.
+     */
+    public byte[] frameIndex() {
+        var index = ByteBuffer.allocate(4 * frameCount());
+        for (int i = 0; i < frameCount(); i++)
+            index.putInt((int) (this.frameOffsets[i + 1] - this.frameOffsets[i]));
+        return index.array();
+    }
+
+    /**
+     * From the database columns, which are all null for a blob stored as it is.
+     */
+    public static @Nullable BlobEncoding of(@Nullable String codec, long size, int frameSize, byte[] frameIndex) {
+        if (codec == null)
+            return null;
+
+        var index = ByteBuffer.wrap(frameIndex);
+        var frameOffsets = new long[frameIndex.length / 4 + 1];
+        frameOffsets[0] = FramedGzip.HEADER_SIZE;
+        for (int i = 1; i < frameOffsets.length; i++)
+            frameOffsets[i] = frameOffsets[i - 1] + index.getInt();
+
+        return new BlobEncoding(codec, size, frameSize, frameOffsets);
+    }
+
+    /**
+     * Rough heap footprint, for caches weighing their entries.
+     */
+    public long estimateSize() {
+        return 64 + 8L * this.frameOffsets.length;
+    }
+
+}
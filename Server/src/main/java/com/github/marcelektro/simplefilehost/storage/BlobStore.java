@@ -0,0 +1,122 @@
+package com.github.marcelektro.simplefilehost.storage;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Where blob content is kept, addressed by keys relative to the store (as recorded in the database), never by local paths.
+ * <p>
+ * Blobs are immutable, a key is only ever written again with the same content (a re-upload of deleted content).
+ * Locking around that is up to the caller, stores only guarantee that a put is atomic: a blob is either fully there or not at all.
+ */
+public interface BlobStore {
+
+    /**
+     * Chooses the key of a new content-addressed blob. Stores spreading blobs over several places decide where it goes here,
+     * the key records that decision.
+     */
+    default String placeNew(String digest, long size) {
+        return keyFor(digest);
+    }
+
+    /**
+     * Stores the content under the key, replacing whatever is there.
+     *
+     * @param size exact number of bytes the stream provides
+     */
+    void put(String key, InputStream content, long size) throws IOException;
+
+    /**
+     * Stores a local file's content under the key. The file may be moved into the store instead of copied,
+     * it must not be used afterwards.
+     */
+    default void putFile(String key, File file) throws IOException {
+        try (var in = Files.newInputStream(file.toPath())) {
+            put(key, in, file.length());
+        }
+    }
+
+    /**
+     * Opens a range of a blob for reading.
+     *
+     * @param length -1 for everything from the offset on
+     * @throws java.nio.file.NoSuchFileException if there's no blob under the key
+     */
+    InputStream get(String key, long offset, long length) throws IOException;
+
+    /**
+     * @return false if there was nothing under the key, as far as the store can tell
+     */
+    boolean delete(String key) throws IOException;
+
+    /**
+     * @return the blob's metadata, or null if there's no blob under the key
+     */
+    @Nullable BlobStat stat(String key) throws IOException;
+
+    /**
+     * Lists the keys of the stored blobs in order, for walking all of them a batch at a time.
+     *
+     * @param afterKey the last key of the previous batch, an empty string to start at the beginning
+     * @return at most {@code limit} keys following it, empty once there are none left
+     */
+    List<String> list(String afterKey, int limit) throws IOException;
+
+    /**
+     * The blob as a local file, for sending it without copying (memory-mapped, straight from the page cache).
+     *
+     * @return the file, or null if the store isn't on the local filesystem
+     */
+    default @Nullable File localFile(String key) {
+        return null;
+    }
+
+    /**
+     * Accounts for bytes sent straight from a {@link #localFile}, which bypass the store.
+     */
+    default void localFileRead(String key, long bytes) {
+    }
+
+
+    record BlobStat(long size, long lastModifiedMillis) {}
+
+
+    /**
+     * The key of content-addressed blobs, sharded by the first two hex digits of the digest.
+     */
+    static String keyFor(String digest) {
+        return digest.substring(0, 2) + "/" + digest.substring(2);
+    }
+
+    /**
+     * The digest of a content-addressed blob from its key, whichever volume or pack it's on.
+     */
+    static String digestOf(String key) {
+        var nameStart = key.lastIndexOf('/');
+        if (nameStart <= 0)
+            return key;
+
+        var shardStart = key.lastIndexOf('/', nameStart - 1);
+        return key.substring(shardStart + 1, nameStart) + key.substring(nameStart + 1);
+    }
+
+    /**
+     * @param localRoot the data directory's blob root, the first volume of the local backend
+     */
+    static BlobStore fromConfig(Config.Storage storageConfig, File localRoot, MetricsRegistry metrics) {
+        return switch (storageConfig.backend) {
+            case "local" -> new VolumeBlobStore(localRoot, storageConfig.volumes, metrics);
+            case "s3" -> new S3BlobStore(storageConfig);
+
+            default -> throw new IllegalArgumentException("Unknown blob storage backend: " + storageConfig.backend);
+        };
+    }
+
+}
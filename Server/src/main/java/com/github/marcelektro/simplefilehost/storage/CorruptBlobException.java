@@ -0,0 +1,18 @@
+package com.github.marcelektro.simplefilehost.storage;
+
+import java.io.IOException;
+
+/**
+ * A blob's stored content doesn't match what was recorded about it, reading it again won't help.
+ */
+public class CorruptBlobException extends IOException {
+
+    public CorruptBlobException(String message) {
+        super(message);
+    }
+
+    public CorruptBlobException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
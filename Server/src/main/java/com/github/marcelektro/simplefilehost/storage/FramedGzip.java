@@ -0,0 +1,249 @@
+package com.github.marcelektro.simplefilehost.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Blob content compressed as a single gzip member whose deflate stream is cut into frames: the compressor is fully flushed
+ * after every {@code frameSize} bytes of content, which byte-aligns the output and drops its history, so decoding can start at any frame.
+ * <p>
+ * The stored blob is a plain gzip stream, a client accepting gzip gets it as it is.
+ * A range of the content only needs the frames it falls into read and decoded, their offsets are kept in the {@link BlobEncoding}.
+ */
+public final class FramedGzip {
+
+    public static final String CODEC = "gzip";
+
+    static final int HEADER_SIZE = 10;
+    static final int TRAILER_SIZE = 8;
+
+    // magic, deflate, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+
+    private FramedGzip() {}
+
+
+    /**
+     * Whether compressing is worth it, judged by how well the beginning of the file compresses.
+     *
+     * @param maxRatioPercent compressed size relative to the original, at most
+     */
+    public static boolean isCompressible(File file, int sampleBytes, int level, int maxRatioPercent) throws IOException {
+        byte[] sample;
+        try (var in = Files.newInputStream(file.toPath())) {
+            sample = in.readNBytes(sampleBytes);
+        }
+        if (sample.length == 0)
+            return false;
+
+        var deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+
+            var buffer = new byte[OUTPUT_BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished())
+                compressed += deflater.deflate(buffer);
+
+            return compressed * 100 <= (long) sample.length * maxRatioPercent;
+
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compresses {@code size} bytes of content to the output.
+     */
+    public static BlobEncoding encode(InputStream in, long size, OutputStream out, int frameSize, int level) throws IOException {
+        var frameCount = (int) Math.max(1, (size + frameSize - 1) / frameSize);
+        var frameOffsets = new long[frameCount + 1];
+
+        var input = new byte[(int) Math.min(frameSize, Math.max(size, 1))];
+        var output = new byte[OUTPUT_BUFFER_SIZE];
+        var crc = new CRC32();
+        var deflater = new Deflater(level, true);
+
+        try {
+            out.write(HEADER);
+            long position = HEADER_SIZE;
+            long remaining = size;
+
+            for (int frame = 0; frame < frameCount; frame++) {
+                frameOffsets[frame] = position;
+
+                var length = (int) Math.min(frameSize, remaining);
+                if (in.readNBytes(input, 0, length) != length)
+                    throw new IOException("Blob content ended before its expected size");
+                remaining -= length;
+
+                crc.update(input, 0, length);
+                deflater.setInput(input, 0, length);
+
+                if (frame == frameCount - 1) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        var written = deflater.deflate(output);
+                        out.write(output, 0, written);
+                        position += written;
+                    }
+                } else {
+                    // a full output buffer may mean there's more to come
+                    int written;
+                    do {
+                        written = deflater.deflate(output, 0, output.length, Deflater.FULL_FLUSH);
+                        out.write(output, 0, written);
+                        position += written;
+                    } while (written == output.length);
+                }
+            }
+
+            frameOffsets[frameCount] = position;
+
+            out.write(ByteBuffer.allocate(TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt((int) crc.getValue())
+                    .putInt((int) size)
+                    .array());
+
+        } finally {
+            deflater.end();
+        }
+
+        return new BlobEncoding(CODEC, size, frameSize, frameOffsets);
+    }
+
+    /**
+     * Decodes a range of the content, reading only the frames it falls into.
+     *
+     * @param stored opens a range of the stored blob
+     */
+    public static InputStream decode(StoredRange stored, BlobEncoding encoding, long offset, long length) throws IOException {
+        if (!encoding.codec().equals(CODEC))
+            throw new IOException("Unknown blob codec: " + encoding.codec());
+        if (length <= 0 || offset >= encoding.size())
+            return InputStream.nullInputStream();
+
+        var end = Math.min(encoding.size(), offset + length);
+        var firstFrame = (int) (offset / encoding.frameSize());
+        var lastFrame = (int) ((end - 1) / encoding.frameSize());
+
+        var offsets = encoding.frameOffsets();
+        var in = stored.open(offsets[firstFrame], offsets[lastFrame + 1] - offsets[firstFrame]);
+
+        return new FrameInputStream(in, encoding, firstFrame, lastFrame, offset - (long) firstFrame * encoding.frameSize(), end - offset);
+    }
+
+
+    @FunctionalInterface
+    public interface StoredRange {
+        InputStream open(long offset, long length) throws IOException;
+    }
+
+    /**
+     * Decodes one frame after the other into a frame-sized buffer, handing out the requested part of them.
+     */
+    private static final class FrameInputStream extends InputStream {
+
+        private final InputStream in;
+        private final BlobEncoding encoding;
+        private final int lastFrame;
+        private final Inflater inflater = new Inflater(true);
+
+        private int nextFrame;
+        private byte[] compressed = new byte[0];
+        private final byte[] frame;
+        private int framePosition;
+        private int frameLength;
+
+        private long skip;
+        private long remaining;
+
+
+        private FrameInputStream(InputStream in, BlobEncoding encoding, int firstFrame, int lastFrame, long skip, long length) {
+            this.in = in;
+            this.encoding = encoding;
+            this.nextFrame = firstFrame;
+            this.lastFrame = lastFrame;
+            this.frame = new byte[(int) Math.min(encoding.frameSize(), encoding.size())];
+            this.skip = skip;
+            this.remaining = length;
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.remaining <= 0)
+                return -1;
+
+            if (this.framePosition == this.frameLength)
+                decodeNextFrame();
+
+            var read = (int) Math.min(Math.min(len, this.frameLength - this.framePosition), this.remaining);
+            System.arraycopy(this.frame, this.framePosition, b, off, read);
+            this.framePosition += read;
+            this.remaining -= read;
+            return read;
+        }
+
+        private void decodeNextFrame() throws IOException {
+            if (this.nextFrame > this.lastFrame)
+                throw new IOException("Compressed blob ended before the expected size");
+
+            var offsets = this.encoding.frameOffsets();
+            var compressedLength = (int) (offsets[this.nextFrame + 1] - offsets[this.nextFrame]);
+            if (this.compressed.length < compressedLength)
+                this.compressed = new byte[compressedLength];
+            if (this.in.readNBytes(this.compressed, 0, compressedLength) != compressedLength)
+                throw new CorruptBlobException("Compressed blob ended before the expected size, it was truncated?");
+
+            var contentLength = (int) Math.min(this.encoding.frameSize(), this.encoding.size() - (long) this.nextFrame * this.encoding.frameSize());
+
+            // every frame starts without history, a fresh state is all it takes to decode it on its own
+            this.inflater.reset();
+            this.inflater.setInput(this.compressed, 0, compressedLength);
+            try {
+                var produced = 0;
+                while (produced < contentLength) {
+                    var inflated = this.inflater.inflate(this.frame, produced, contentLength - produced);
+                    if (inflated == 0 && (this.inflater.needsInput() || this.inflater.finished()))
+                        throw new CorruptBlobException("Compressed blob frame " + this.nextFrame + " is shorter than expected");
+                    produced += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new CorruptBlobException("Compressed blob frame " + this.nextFrame + " can't be decoded", e);
+            }
+
+            this.nextFrame++;
+            this.framePosition = (int) this.skip;
+            this.frameLength = contentLength;
+            this.skip = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.inflater.end();
+            this.in.close();
+        }
+
+    }
+
+}
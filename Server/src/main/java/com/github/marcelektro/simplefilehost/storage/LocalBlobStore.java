@@ -0,0 +1,194 @@
+package com.github.marcelektro.simplefilehost.storage;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Blobs as files in a directory on the local filesystem, keys being their paths relative to it.
+ */
+public class LocalBlobStore implements BlobStore {
+
+    private final File root;
+
+
+    public LocalBlobStore(File root) {
+        this.root = root;
+    }
+
+
+    @Override
+    public void put(String key, InputStream content, long size) throws IOException {
+        var target = fileFor(key);
+        createParent(target);
+
+        // written next to the target and renamed into place, so a blob is never seen half written
+        var temp = new File(target.getParentFile(), "." + target.getName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            Files.copy(content, temp.toPath());
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Moves the file into place, which is a rename as long as it's on the same filesystem, otherwise it's copied over.
+     */
+    @Override
+    public void putFile(String key, File file) throws IOException {
+        var target = fileFor(key);
+        createParent(target);
+
+        try {
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            try (var in = Files.newInputStream(file.toPath())) {
+                put(key, in, file.length());
+            }
+            Files.delete(file.toPath());
+        }
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        var channel = FileChannel.open(fileFor(key).toPath(), StandardOpenOption.READ);
+        channel.position(offset);
+
+        var in = Channels.newInputStream(channel);
+        return length < 0 ? in : new LimitedInputStream(in, length);
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        return Files.deleteIfExists(fileFor(key).toPath());
+    }
+
+    @Override
+    public @Nullable BlobStat stat(String key) throws IOException {
+        var file = fileFor(key);
+        try {
+            var attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return new BlobStat(attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Blobs lie in shard directories right below the root. Names starting with a dot aren't blobs,
+     * like the staging directory and files still being written.
+     */
+    @Override
+    public List<String> list(String afterKey, int limit) throws IOException {
+        var keys = new ArrayList<String>();
+
+        var shards = this.root.list((dir, name) -> !name.startsWith("."));
+        if (shards == null)
+            return keys;
+        // in the order of the keys, the separator sorts before most characters of a name
+        Arrays.sort(shards, Comparator.comparing(shard -> shard + "/"));
+
+        for (var shard : shards) {
+            var prefix = shard + "/";
+            // every key in the shard is at or before the last one listed
+            if (afterKey.compareTo(prefix) > 0 && !afterKey.startsWith(prefix))
+                continue;
+
+            var names = new File(this.root, shard).list((dir, name) -> !name.startsWith(".") && new File(dir, name).isFile());
+            if (names == null)
+                continue;
+
+            Arrays.stream(names)
+                    .map(name -> prefix + name)
+                    .filter(key -> key.compareTo(afterKey) > 0)
+                    .sorted()
+                    .limit(limit - keys.size())
+                    .forEach(keys::add);
+
+            if (keys.size() >= limit)
+                break;
+        }
+
+        return keys;
+    }
+
+    @Override
+    public File localFile(String key) {
+        return fileFor(key);
+    }
+
+
+    private File fileFor(String key) {
+        return new File(this.root, key);
+    }
+
+    private static void createParent(File target) throws IOException {
+        var dir = target.getParentFile();
+        if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Failed to create blob directory");
+    }
+
+
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        private LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0)
+                return -1;
+
+            var b = super.read();
+            if (b >= 0)
+                this.remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.remaining <= 0)
+                return -1;
+
+            var read = super.read(b, off, (int) Math.min(len, this.remaining));
+            if (read > 0)
+                this.remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            var skipped = super.skip(Math.min(n, this.remaining));
+            this.remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), this.remaining);
+        }
+
+    }
+
+}
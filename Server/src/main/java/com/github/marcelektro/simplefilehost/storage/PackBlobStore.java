@@ -0,0 +1,746 @@
+package com.github.marcelektro.simplefilehost.storage;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.Counter;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.service.db.DatabaseService;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Small blobs appended to large pack files instead of getting a file each, sparing the filesystem millions of tiny files
+ * and downloads an {@code open()} each. Larger blobs, and every key not marked as packed, are left to the wrapped store.
+ * <p>
+ * Where a packed blob lies (pack, position, length and CRC32C checksum) is indexed in the database. Blobs are appended to
+ * one active pack at a time, which is sealed once it reaches the segment size. Reads are positional reads on a small pool
+ * of pack files kept open, whole blobs are checked against their checksum.
+ * <p>
+ * Deleting a blob only drops its index entry, the space stays dead until the {@link PackCompactor} rewrites the pack.
+ * An entry is committed after its bytes are written and flushed, and a pack's recorded size only covers committed entries,
+ * so whatever a crash left behind past it is cut off on startup. A pack shorter than that lost committed blobs,
+ * it's sealed as it is and reading them fails as corrupted.
+ */
+@Slf4j
+public class PackBlobStore implements BlobStore {
+
+    /**
+     * The first segment of packed blobs' keys, taken from the volume names.
+     */
+    public static final String KEY_SEGMENT = "packs";
+    private static final String KEY_PREFIX = KEY_SEGMENT + "/";
+
+    private static final int MAX_READ_ATTEMPTS = 3;
+    private static final int COMPACTION_BATCH_SIZE = 256;
+
+    private final BlobStore delegate;
+    private final File directory;
+    private final DatabaseService dbService;
+    private final int maxBlobBytes;
+    private final long segmentBytes;
+
+    private final OpenPacks openPacks;
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private @Nullable ActivePack active; // guarded by appendLock
+
+    private final Counter appendedBytes;
+    private final Counter checksumFailures;
+
+
+    public PackBlobStore(BlobStore delegate, File directory, DatabaseService dbService, Config.Packs config, MetricsRegistry metrics) throws Exception {
+        this.delegate = delegate;
+        this.directory = directory;
+        this.dbService = dbService;
+        this.maxBlobBytes = config.maxBlobBytes;
+        this.segmentBytes = config.segmentBytes;
+        this.openPacks = new OpenPacks(Math.max(1, config.openFiles));
+
+        if (directory.mkdirs())
+            log.info("Creating pack directory: {}", directory.getAbsolutePath());
+
+        this.appendedBytes = metrics.counter("sfh_pack_appended_bytes_total", "Bytes of blobs appended to pack files, including compaction");
+        this.checksumFailures = metrics.counter("sfh_pack_checksum_failures_total", "Packed blobs read that didn't match their checksum");
+        metrics.gauge("sfh_pack_open_files", "Pack files kept open for reading", this.openPacks::size);
+
+        this.active = recoverActivePack();
+    }
+
+
+    public static boolean isPacked(String key) {
+        return key.startsWith(KEY_PREFIX);
+    }
+
+    @Override
+    public String placeNew(String digest, long size) {
+        return size <= this.maxBlobBytes ? KEY_PREFIX + BlobStore.keyFor(digest) : this.delegate.placeNew(digest, size);
+    }
+
+    @Override
+    public void put(String key, InputStream content, long size) throws IOException {
+        if (!isPacked(key)) {
+            this.delegate.put(key, content, size);
+            return;
+        }
+
+        if (size > Integer.MAX_VALUE - 8)
+            throw new IOException("Blob is too large for a pack: " + key);
+
+        var bytes = content.readNBytes((int) size);
+        if (bytes.length != size)
+            throw new IOException("Blob content ended before its expected size");
+
+        var crc = new CRC32C();
+        crc.update(bytes);
+        var checksum = crc.getValue();
+
+        var location = append(bytes);
+        sync(location.packId(), location.position() + bytes.length);
+        write(conn -> {
+            // the entry it replaces, if any, turns into dead space
+            var replaced = entry(conn, key);
+            if (replaced != null)
+                addLiveBytes(conn, replaced.packId(), -replaced.length());
+
+            if (!extendPack(conn, location.packId(), location.position() + bytes.length, bytes.length))
+                throw new IOException("Pack " + location.packId() + " was compacted away before the blob was indexed");
+
+            var sql = """
+                      INSERT OR REPLACE INTO pack_entries (path, packId, position, length, checksum, createdAt)
+                      VALUES (?, ?, ?, ?, ?, ?)
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, key);
+                ps.setLong(2, location.packId());
+                ps.setLong(3, location.position());
+                ps.setLong(4, bytes.length);
+                ps.setLong(5, checksum);
+                ps.setLong(6, System.currentTimeMillis());
+                ps.executeUpdate();
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void putFile(String key, File file) throws IOException {
+        if (!isPacked(key)) {
+            this.delegate.putFile(key, file);
+            return;
+        }
+
+        try (var in = Files.newInputStream(file.toPath())) {
+            put(key, in, file.length());
+        }
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        if (!isPacked(key))
+            return this.delegate.get(key, offset, length);
+
+        for (int attempt = 1; ; attempt++) {
+            var entry = entry(key);
+            if (entry == null)
+                throw new NoSuchFileException(key);
+
+            var start = Math.min(offset, entry.length());
+            var readLength = length < 0 ? entry.length() - start : Math.min(length, entry.length() - start);
+
+            try {
+                var bytes = read(entry.packId(), entry.position() + start, (int) readLength);
+                if (start == 0 && readLength == entry.length())
+                    verify(key, entry, bytes);
+
+                return new ByteArrayInputStream(bytes);
+
+            } catch (ClosedChannelException | NoSuchFileException e) {
+                // the pack was closed by the pool or compacted away meanwhile, the entry has moved then
+                if (attempt == MAX_READ_ATTEMPTS)
+                    throw e;
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        if (!isPacked(key))
+            return this.delegate.delete(key);
+
+        return write(conn -> {
+            var entry = entry(conn, key);
+            if (entry == null)
+                return false;
+
+            var sql = """
+                      DELETE FROM pack_entries
+                      WHERE path = ?
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, key);
+                ps.executeUpdate();
+            }
+
+            addLiveBytes(conn, entry.packId(), -entry.length());
+            return true;
+        });
+    }
+
+    @Override
+    public @Nullable BlobStat stat(String key) throws IOException {
+        if (!isPacked(key))
+            return this.delegate.stat(key);
+
+        var entry = entry(key);
+        return entry != null ? new BlobStat(entry.length(), entry.createdAt()) : null;
+    }
+
+    @Override
+    public List<String> list(String afterKey, int limit) throws IOException {
+        var keys = new ArrayList<>(this.delegate.list(afterKey, limit));
+
+        try (var conn = this.dbService.getReadConnection()) {
+            var sql = """
+                      SELECT path
+                      FROM pack_entries
+                      WHERE path > ?
+                      ORDER BY path
+                      LIMIT ?
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, afterKey);
+                ps.setInt(2, limit);
+                var rs = ps.executeQuery();
+
+                while (rs.next())
+                    keys.add(rs.getString("path"));
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to list packed blobs", e);
+        }
+
+        Collections.sort(keys);
+        return keys.size() > limit ? new ArrayList<>(keys.subList(0, limit)) : keys;
+    }
+
+    @Override
+    public @Nullable File localFile(String key) {
+        // a pack file holds far more than the blob
+        return isPacked(key) ? null : this.delegate.localFile(key);
+    }
+
+    @Override
+    public void localFileRead(String key, long bytes) {
+        this.delegate.localFileRead(key, bytes);
+    }
+
+
+    /**
+     * Sealed packs with at least the given share of dead space, the ones with the most first.
+     */
+    List<Long> packsToCompact(double deadRatio) throws SQLException {
+        try (var conn = this.dbService.getReadConnection()) {
+            var sql = """
+                      SELECT id
+                      FROM packs
+                      WHERE sealed = 1 AND size - liveBytes >= size * ?
+                      ORDER BY size - liveBytes DESC
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setDouble(1, deadRatio);
+                var rs = ps.executeQuery();
+
+                var ids = new ArrayList<Long>();
+                while (rs.next())
+                    ids.add(rs.getLong("id"));
+                return ids;
+            }
+        }
+    }
+
+    /**
+     * Appends the live blobs of a sealed pack to the active one and deletes it. Reads and deletes carry on meanwhile,
+     * each blob's entry is only switched over if it's still the same one. The copies of a batch are flushed once,
+     * before any of their entries is switched over.
+     */
+    Compaction compact(long packId) throws Exception {
+        long movedBytes = 0;
+        long afterPosition = -1;
+
+        while (true) {
+            var batch = new ArrayList<Map.Entry<String, Entry>>(COMPACTION_BATCH_SIZE);
+
+            try (var conn = this.dbService.getReadConnection()) {
+                var sql = """
+                          SELECT path, packId, position, length, checksum, createdAt
+                          FROM pack_entries
+                          WHERE packId = ? AND position > ?
+                          ORDER BY position
+                          LIMIT ?
+                          """;
+                try (var ps = conn.prepareStatement(sql)) {
+                    ps.setLong(1, packId);
+                    ps.setLong(2, afterPosition);
+                    ps.setInt(3, COMPACTION_BATCH_SIZE);
+                    var rs = ps.executeQuery();
+
+                    while (rs.next())
+                        batch.add(Map.entry(rs.getString("path"), readEntry(rs)));
+                }
+            }
+
+            if (batch.isEmpty())
+                break;
+            afterPosition = batch.get(batch.size() - 1).getValue().position();
+
+            var copies = new ArrayList<Map.Entry<String, Entry>>(batch.size());
+            var locations = new ArrayList<Location>(batch.size());
+
+            for (var item : batch) {
+                var key = item.getKey();
+                var entry = item.getValue();
+
+                byte[] bytes;
+                try {
+                    bytes = read(packId, entry.position(), (int) entry.length());
+                } catch (CorruptBlobException e) {
+                    // nothing to copy, the entry stays on this pack, which is kept for it
+                    log.warn("Packed blob can't be read, it's corrupted: {}", key, e);
+                    continue;
+                }
+
+                // copied as it is anyway, it stays detectable
+                var crc = new CRC32C();
+                crc.update(bytes);
+                if (crc.getValue() != entry.checksum())
+                    log.warn("Packed blob doesn't match its checksum, it's corrupted: {}", key);
+
+                copies.add(item);
+                locations.add(append(bytes));
+            }
+
+            if (!locations.isEmpty()) {
+                var last = locations.get(locations.size() - 1);
+                sync(last.packId(), last.position() + copies.get(copies.size() - 1).getValue().length());
+            }
+
+            for (int i = 0; i < copies.size(); i++) {
+                var key = copies.get(i).getKey();
+                var entry = copies.get(i).getValue();
+                var location = locations.get(i);
+
+                var moved = write(conn -> {
+                    var sql = """
+                              UPDATE pack_entries
+                              SET packId = ?, position = ?
+                              WHERE path = ? AND packId = ? AND position = ?
+                              """;
+                    try (var ps = conn.prepareStatement(sql)) {
+                        ps.setLong(1, location.packId());
+                        ps.setLong(2, location.position());
+                        ps.setString(3, key);
+                        ps.setLong(4, packId);
+                        ps.setLong(5, entry.position());
+                        if (ps.executeUpdate() == 0)
+                            return false; // deleted or replaced meanwhile, the copy is dead space right away
+                    }
+
+                    addLiveBytes(conn, packId, -entry.length());
+                    return extendPack(conn, location.packId(), location.position() + entry.length(), entry.length());
+                });
+
+                if (moved)
+                    movedBytes += entry.length();
+            }
+        }
+
+        // the moved blobs' only copies are about to go, they must be on disk
+        syncActive();
+
+        var fileSize = packFile(packId).length();
+
+        var deleted = write(conn -> {
+            // an entry whose commit was still pending when the pack was sealed, it's moved next time
+            var countSql = """
+                           SELECT COUNT(*)
+                           FROM pack_entries
+                           WHERE packId = ?
+                           """;
+            try (var ps = conn.prepareStatement(countSql)) {
+                ps.setLong(1, packId);
+                var rs = ps.executeQuery();
+                if (rs.next() && rs.getLong(1) > 0)
+                    return false;
+            }
+
+            var deleteSql = """
+                            DELETE FROM packs
+                            WHERE id = ?
+                            """;
+            try (var ps = conn.prepareStatement(deleteSql)) {
+                ps.setLong(1, packId);
+                ps.executeUpdate();
+            }
+            return true;
+        });
+
+        if (!deleted)
+            return new Compaction(movedBytes, 0);
+
+        this.openPacks.close(packId);
+        Files.deleteIfExists(packFile(packId).toPath());
+
+        return new Compaction(movedBytes, Math.max(0, fileSize - movedBytes));
+    }
+
+    PackStats stats() throws SQLException {
+        try (var conn = this.dbService.getReadConnection();
+             var ps = conn.prepareStatement("SELECT COUNT(*), COALESCE(SUM(size), 0), COALESCE(SUM(size - liveBytes), 0) FROM packs")) {
+            var rs = ps.executeQuery();
+            rs.next();
+            return new PackStats(rs.getLong(1), rs.getLong(2), rs.getLong(3));
+        }
+    }
+
+
+    /**
+     * Picks up the pack that was active when the server stopped, cutting off what was appended to it but never committed.
+     */
+    private @Nullable ActivePack recoverActivePack() throws Exception {
+        long id;
+        long size;
+
+        try (var conn = this.dbService.getReadConnection()) {
+            var sql = """
+                      SELECT id, size
+                      FROM packs
+                      WHERE sealed = 0
+                      ORDER BY id DESC
+                      LIMIT 1
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                var rs = ps.executeQuery();
+                if (!rs.next())
+                    return null;
+
+                id = rs.getLong("id");
+                size = rs.getLong("size");
+            }
+        }
+
+        var channel = FileChannel.open(packFile(id).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() < size) {
+            // appending at the recorded size would leave a hole, at the file's end it would overwrite committed blobs
+            log.error("Pack {} is {} bytes shorter than its committed blobs need, they're corrupted. Sealing it", id, size - channel.size());
+            channel.close();
+            seal(id, size);
+            return null;
+        }
+
+        if (channel.size() > size) {
+            log.info("Cutting off {} bytes of uncommitted blobs from pack {}", channel.size() - size, id);
+            channel.truncate(size);
+            channel.force(false);
+        }
+
+        return new ActivePack(id, channel, size);
+    }
+
+    /**
+     * Writes the bytes to the end of the active pack, starting a new one first if they don't fit anymore.
+     * The bytes are written while holding the lock (they're small), so sealing a pack never cuts off a write in progress.
+     */
+    private Location append(byte[] bytes) throws IOException {
+        this.appendLock.lock();
+        try {
+            var pack = this.active;
+            if (pack == null || (pack.size > 0 && pack.size + bytes.length > this.segmentBytes))
+                pack = rollOver();
+
+            var position = pack.size;
+            var buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining())
+                pack.channel.write(buffer, position + buffer.position());
+
+            pack.size += bytes.length;
+            this.appendedBytes.add(bytes.length);
+
+            return new Location(pack.id, position);
+
+        } finally {
+            this.appendLock.unlock();
+        }
+    }
+
+    /**
+     * Flushes the given pack up to the given position, unless it happened already. Appends wait meanwhile,
+     * those that got in before are flushed along, and then don't need a flush of their own.
+     */
+    private void sync(long packId, long end) throws IOException {
+        this.appendLock.lock();
+        try {
+            var pack = this.active;
+            // no longer the active pack, sealing it flushed it
+            if (pack == null || pack.id != packId || pack.syncedSize >= end)
+                return;
+
+            pack.channel.force(false);
+            pack.syncedSize = pack.size;
+
+        } finally {
+            this.appendLock.unlock();
+        }
+    }
+
+    private void syncActive() throws IOException {
+        this.appendLock.lock();
+        try {
+            var pack = this.active;
+            if (pack != null)
+                sync(pack.id, pack.size);
+        } finally {
+            this.appendLock.unlock();
+        }
+    }
+
+    /**
+     * Seals the active pack and starts a new one. Only called while holding the append lock.
+     */
+    private ActivePack rollOver() throws IOException {
+        var previous = this.active;
+
+        // its entries still being committed are sealed along, they must be on disk first
+        if (previous != null)
+            previous.channel.force(false);
+
+        long id = write(conn -> {
+            if (previous != null)
+                seal(conn, previous.id, previous.size);
+
+            var insertSql = """
+                            INSERT INTO packs (createdAt)
+                            VALUES (?)
+                            RETURNING id
+                            """;
+            try (var ps = conn.prepareStatement(insertSql)) {
+                ps.setLong(1, System.currentTimeMillis());
+                var rs = ps.executeQuery();
+                rs.next();
+                return rs.getLong(1);
+            }
+        });
+
+        if (previous != null)
+            previous.channel.close();
+
+        var pack = new ActivePack(id, FileChannel.open(packFile(id).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE), 0);
+        this.active = pack;
+        return pack;
+    }
+
+    private void seal(long packId, long size) throws IOException {
+        write(conn -> {
+            seal(conn, packId, size);
+            return null;
+        });
+    }
+
+    private static void seal(Connection conn, long packId, long size) throws SQLException {
+        var sql = """
+                  UPDATE packs
+                  SET sealed = 1, size = MAX(size, ?)
+                  WHERE id = ?
+                  """;
+        try (var ps = conn.prepareStatement(sql)) {
+            ps.setLong(1, size);
+            ps.setLong(2, packId);
+            ps.executeUpdate();
+        }
+    }
+
+    private byte[] read(long packId, long position, int length) throws IOException {
+        var channel = this.openPacks.get(packId);
+        var buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new CorruptBlobException("Pack " + packId + " ended before the blob's end, it was truncated?");
+        }
+        return buffer.array();
+    }
+
+    private void verify(String key, Entry entry, byte[] bytes) throws IOException {
+        var crc = new CRC32C();
+        crc.update(bytes);
+        if (crc.getValue() != entry.checksum()) {
+            this.checksumFailures.increment();
+            throw new CorruptBlobException("Packed blob doesn't match its checksum: " + key);
+        }
+    }
+
+    private @Nullable Entry entry(String key) throws IOException {
+        try (var conn = this.dbService.getReadConnection()) {
+            return entry(conn, key);
+        } catch (SQLException e) {
+            throw new IOException("Failed to look up packed blob " + key, e);
+        }
+    }
+
+    private static @Nullable Entry entry(Connection conn, String key) throws SQLException {
+        var sql = """
+                  SELECT packId, position, length, checksum, createdAt
+                  FROM pack_entries
+                  WHERE path = ?
+                  """;
+        try (var ps = conn.prepareStatement(sql)) {
+            ps.setString(1, key);
+            var rs = ps.executeQuery();
+            return rs.next() ? readEntry(rs) : null;
+        }
+    }
+
+    private static Entry readEntry(ResultSet rs) throws SQLException {
+        return new Entry(rs.getLong("packId"), rs.getLong("position"), rs.getLong("length"), rs.getLong("checksum"), rs.getLong("createdAt"));
+    }
+
+    private static void addLiveBytes(Connection conn, long packId, long bytes) throws SQLException {
+        var sql = """
+                  UPDATE packs
+                  SET liveBytes = liveBytes + ?
+                  WHERE id = ?
+                  """;
+        try (var ps = conn.prepareStatement(sql)) {
+            ps.setLong(1, bytes);
+            ps.setLong(2, packId);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Accounts for a committed entry ending at the given position.
+     *
+     * @return false if the pack is gone
+     */
+    private static boolean extendPack(Connection conn, long packId, long end, long liveBytes) throws SQLException {
+        var sql = """
+                  UPDATE packs
+                  SET size = MAX(size, ?), liveBytes = liveBytes + ?
+                  WHERE id = ?
+                  """;
+        try (var ps = conn.prepareStatement(sql)) {
+            ps.setLong(1, end);
+            ps.setLong(2, liveBytes);
+            ps.setLong(3, packId);
+            return ps.executeUpdate() > 0;
+        }
+    }
+
+    private <T> T write(DatabaseService.SqlWork<T> work) throws IOException {
+        try {
+            return this.dbService.write(work);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to update the pack index", e);
+        }
+    }
+
+    private File packFile(long packId) {
+        return new File(this.directory, String.format("%08d.pack", packId));
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close pack file", e);
+        }
+    }
+
+
+    record Compaction(long movedBytes, long reclaimedBytes) {}
+
+    record PackStats(long packs, long bytes, long deadBytes) {}
+
+    private record Location(long packId, long position) {}
+
+    private record Entry(long packId, long position, long length, long checksum, long createdAt) {}
+
+    private static final class ActivePack {
+
+        private final long id;
+        private final FileChannel channel;
+        private long size;
+        private long syncedSize; // flushed to disk up to here
+
+        private ActivePack(long id, FileChannel channel, long size) {
+            this.id = id;
+            this.channel = channel;
+            this.size = size;
+            this.syncedSize = size;
+        }
+
+    }
+
+    /**
+     * The most recently read pack files, kept open. A read on one closed meanwhile fails and is retried.
+     */
+    private final class OpenPacks {
+
+        private final LinkedHashMap<Long, FileChannel> channels;
+
+        private OpenPacks(int maxOpen) {
+            this.channels = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, FileChannel> eldest) {
+                    if (size() <= maxOpen)
+                        return false;
+
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+
+        private synchronized FileChannel get(long packId) throws IOException {
+            var channel = this.channels.get(packId);
+            if (channel != null && channel.isOpen())
+                return channel;
+
+            channel = FileChannel.open(packFile(packId).toPath(), StandardOpenOption.READ);
+            this.channels.put(packId, channel);
+            return channel;
+        }
+
+        private synchronized void close(long packId) {
+            var channel = this.channels.remove(packId);
+            if (channel != null)
+                closeQuietly(channel);
+        }
+
+        private synchronized int size() {
+            return this.channels.size();
+        }
+
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.github.marcelektro.simplefilehost.storage;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.Counter;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gets the space of deleted packed blobs back: sealed packs whose dead share passed the threshold
+ * have their live blobs appended to the active pack and are deleted, one after the other.
+ */
+@Slf4j
+public class PackCompactor implements AutoCloseable {
+
+    private final PackBlobStore packs;
+    private final double deadRatio;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        var t = new Thread(r, "PackCompactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Counter compacted;
+    private final Counter movedBytes;
+    private final Counter reclaimedBytes;
+    private final AtomicLong packCount = new AtomicLong();
+    private final AtomicLong packBytes = new AtomicLong();
+    private final AtomicLong deadBytes = new AtomicLong();
+
+
+    public PackCompactor(PackBlobStore packs, Config.Packs config, MetricsRegistry metrics) {
+        if (config.compactIntervalSeconds <= 0)
+            throw new IllegalArgumentException("Pack compaction interval must be positive: " + config.compactIntervalSeconds);
+
+        this.packs = packs;
+        this.deadRatio = config.compactDeadPercent / 100d;
+
+        this.compacted = metrics.counter("sfh_pack_compactions_total", "Pack files rewritten to drop the space of deleted blobs");
+        this.movedBytes = metrics.counter("sfh_pack_compaction_moved_bytes_total", "Bytes of live blobs copied out of compacted packs");
+        this.reclaimedBytes = metrics.counter("sfh_pack_compaction_reclaimed_bytes_total", "Bytes freed by compacting packs");
+        metrics.gauge("sfh_packs", "Pack files, as of the last round", this.packCount::get);
+        metrics.gauge("sfh_pack_bytes", "Size of all pack files, as of the last round", this.packBytes::get);
+        metrics.gauge("sfh_pack_dead_bytes", "Space in pack files taken by deleted blobs, as of the last round", this.deadBytes::get);
+
+        this.scheduler.scheduleWithFixedDelay(this::compact, 1, config.compactIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+
+    private void compact() {
+        try {
+            for (var packId : this.packs.packsToCompact(this.deadRatio)) {
+                if (Thread.currentThread().isInterrupted())
+                    return;
+
+                var compaction = this.packs.compact(packId);
+                this.movedBytes.add(compaction.movedBytes());
+
+                if (compaction.reclaimedBytes() > 0 || compaction.movedBytes() > 0) {
+                    this.compacted.increment();
+                    this.reclaimedBytes.add(compaction.reclaimedBytes());
+                    log.info("Compacted pack {}, moved {} bytes and freed {} bytes", packId, compaction.movedBytes(), compaction.reclaimedBytes());
+                }
+            }
+
+            var stats = this.packs.stats();
+            this.packCount.set(stats.packs());
+            this.packBytes.set(stats.bytes());
+            this.deadBytes.set(stats.deadBytes());
+
+        } catch (Exception e) {
+            log.error("Failed to compact packs", e);
+        }
+    }
+
+
+    @Override
+    public void close() {
+        this.scheduler.shutdownNow();
+    }
+
+}
@@ -0,0 +1,376 @@
+package com.github.marcelektro.simplefilehost.storage;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Blobs as objects in an S3-compatible bucket (AWS S3, MinIO, ...), so any number of nodes can share them.
+ * <p>
+ * Requests are signed with SigV4 and sent with the JDK's HTTP client, buckets are addressed path-style.
+ * Blobs larger than a part are uploaded as multipart uploads, several parts in flight at once,
+ * reads are ranged GETs streamed straight through.
+ */
+@Slf4j
+public class S3BlobStore implements BlobStore {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+    private static final Pattern LISTED_KEY = Pattern.compile("<Key>([^<]*)</Key>");
+    // S3 lists at most this many keys at once
+    private static final int MAX_LIST_KEYS = 1000;
+
+    private final URI endpoint;
+    private final String bucket;
+    private final String keyPrefix;
+    private final int partSize;
+    private final int uploadConcurrency;
+    private final AwsSigV4Signer signer;
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    private final ExecutorService partUploads = Executors.newVirtualThreadPerTaskExecutor();
+
+
+    public S3BlobStore(Config.Storage config) {
+        this.endpoint = URI.create(config.s3Endpoint.endsWith("/") ? config.s3Endpoint.substring(0, config.s3Endpoint.length() - 1) : config.s3Endpoint);
+        this.bucket = config.s3Bucket;
+        this.keyPrefix = config.s3KeyPrefix;
+        // S3 rejects parts below 5 MiB, except for the last one
+        this.partSize = Math.max(config.s3PartSize, 5 * 1024 * 1024);
+        this.uploadConcurrency = Math.max(1, config.s3UploadConcurrency);
+        this.signer = new AwsSigV4Signer(config.s3AccessKey, config.s3SecretKey, config.s3Region, "s3");
+    }
+
+
+    @Override
+    public void put(String key, InputStream content, long size) throws IOException {
+        if (size <= this.partSize) {
+            var body = readPart(content, (int) size);
+            expectSuccess(send("PUT", key, Map.of(), Map.of(), body, HttpResponse.BodyHandlers.ofString()), "PUT", key);
+            return;
+        }
+
+        var uploadId = createMultipartUpload(key);
+        try {
+            var etags = uploadParts(key, uploadId, content, size);
+            completeMultipartUpload(key, uploadId, etags, size);
+
+        } catch (IOException | RuntimeException e) {
+            abortMultipartUpload(key, uploadId, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        if (length == 0)
+            return InputStream.nullInputStream();
+
+        var headers = new TreeMap<String, String>();
+        if (offset > 0 || length > 0)
+            headers.put("range", "bytes=" + offset + "-" + (length > 0 ? String.valueOf(offset + length - 1) : ""));
+
+        var response = send("GET", key, Map.of(), headers, null, HttpResponse.BodyHandlers.ofInputStream());
+
+        if (response.statusCode() == 404) {
+            response.body().close();
+            throw new NoSuchFileException(key);
+        }
+
+        // a server ignoring the range answers 200 with the whole object, which mustn't be taken for the range
+        var expectedStatus = offset > 0 || length > 0 ? 206 : 200;
+        if (response.statusCode() != expectedStatus) {
+            String error;
+            try (var body = response.body()) {
+                error = new String(body.readNBytes(1024), StandardCharsets.UTF_8);
+            }
+            throw new IOException("S3 GET " + key + " failed with status " + response.statusCode() + ": " + error);
+        }
+
+        return response.body();
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        // S3 doesn't tell whether there was anything to delete
+        expectSuccess(send("DELETE", key, Map.of(), Map.of(), null, HttpResponse.BodyHandlers.ofString()), "DELETE", key);
+        return true;
+    }
+
+    @Override
+    public @Nullable BlobStat stat(String key) throws IOException {
+        var response = send("HEAD", key, Map.of(), Map.of(), null, HttpResponse.BodyHandlers.discarding());
+
+        if (response.statusCode() == 404)
+            return null;
+        if (response.statusCode() != 200)
+            throw new IOException("S3 HEAD " + key + " failed with status " + response.statusCode());
+
+        var size = response.headers().firstValueAsLong("content-length").orElseThrow(() -> new IOException("S3 HEAD " + key + " returned no Content-Length"));
+        var lastModified = response.headers().firstValue("last-modified")
+                .map(value -> ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli())
+                .orElse(0L);
+
+        return new BlobStat(size, lastModified);
+    }
+
+
+    @Override
+    public List<String> list(String afterKey, int limit) throws IOException {
+        var query = new TreeMap<String, String>();
+        query.put("list-type", "2");
+        query.put("prefix", this.keyPrefix);
+        query.put("max-keys", String.valueOf(Math.min(limit, MAX_LIST_KEYS)));
+        if (!afterKey.isEmpty())
+            query.put("start-after", this.keyPrefix + afterKey);
+
+        var canonicalUri = "/" + AwsSigV4Signer.encode(this.bucket, false);
+        var response = expectSuccess(send("GET", canonicalUri, this.bucket, query, Map.of(), null, HttpResponse.BodyHandlers.ofString(), MAX_ATTEMPTS), "list", this.keyPrefix);
+
+        var keys = new ArrayList<String>();
+        var matcher = LISTED_KEY.matcher(response.body());
+        while (matcher.find()) {
+            var key = unescapeXml(matcher.group(1));
+            if (key.startsWith(this.keyPrefix))
+                keys.add(key.substring(this.keyPrefix.length()));
+        }
+        return keys;
+    }
+
+
+    private String createMultipartUpload(String key) throws IOException {
+        // not retried, each attempt would start an upload of its own
+        var response = expectSuccess(sendOnce("POST", key, Map.of("uploads", ""), Map.of(), new byte[0], HttpResponse.BodyHandlers.ofString()), "create multipart upload", key);
+
+        var matcher = UPLOAD_ID.matcher(response.body());
+        if (!matcher.find())
+            throw new IOException("S3 returned no upload ID for " + key);
+
+        return matcher.group(1);
+    }
+
+    /**
+     * Reads the parts one after the other, uploading up to {@code uploadConcurrency} of them at once,
+     * which also bounds how many part buffers are held.
+     *
+     * @return the ETag of each part
+     */
+    private ArrayList<String> uploadParts(String key, String uploadId, InputStream content, long size) throws IOException {
+        var permits = new Semaphore(this.uploadConcurrency);
+        var parts = new ArrayList<Future<String>>();
+
+        try {
+            long remaining = size;
+            for (int partNumber = 1; remaining > 0; partNumber++) {
+                var body = readPart(content, (int) Math.min(this.partSize, remaining));
+                remaining -= body.length;
+
+                permits.acquire();
+
+                var query = Map.of("partNumber", String.valueOf(partNumber), "uploadId", uploadId);
+                parts.add(this.partUploads.submit(() -> {
+                    try {
+                        var response = expectSuccess(send("PUT", key, query, Map.of(), body, HttpResponse.BodyHandlers.discarding()), "upload part", key);
+                        return response.headers().firstValue("etag").orElseThrow(() -> new IOException("S3 returned no ETag for a part of " + key));
+                    } finally {
+                        permits.release();
+                    }
+                }));
+
+                // no point in reading further once a part failed for good
+                for (var part : parts) {
+                    if (part.isDone())
+                        part.get();
+                }
+            }
+
+            var etags = new ArrayList<String>(parts.size());
+            for (var part : parts)
+                etags.add(part.get());
+            return etags;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading " + key);
+
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause)
+                throw cause;
+            throw new IOException("Failed to upload a part of " + key, e.getCause());
+
+        } finally {
+            for (var part : parts)
+                part.cancel(true);
+        }
+    }
+
+    /**
+     * Not retried, a retry after the upload completed but the response got lost fails with NoSuchUpload.
+     * Instead, when completing seemingly failed, the object is looked up to tell whether it did after all.
+     */
+    private void completeMultipartUpload(String key, String uploadId, ArrayList<String> etags, long size) throws IOException {
+        var xml = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); i++) {
+            xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber>")
+                    .append("<ETag>").append(etags.get(i).replace("&", "&amp;").replace("<", "&lt;")).append("</ETag></Part>");
+        }
+        xml.append("</CompleteMultipartUpload>");
+
+        try {
+            var response = expectSuccess(sendOnce("POST", key, Map.of("uploadId", uploadId), Map.of("content-type", "application/xml"),
+                    xml.toString().getBytes(StandardCharsets.UTF_8), HttpResponse.BodyHandlers.ofString()), "complete multipart upload", key);
+
+            // the status is sent before the parts are assembled, failures that happen then only show in the body
+            if (response.body().contains("<Error>"))
+                throw new IOException("S3 failed to complete the multipart upload of " + key + ": " + response.body());
+
+        } catch (InterruptedIOException e) {
+            throw e;
+
+        } catch (IOException e) {
+            if (!isStored(key, size, e))
+                throw e;
+            log.debug("S3 completed the multipart upload of {} despite the failure", key, e);
+        }
+    }
+
+    private boolean isStored(String key, long size, Exception cause) {
+        try {
+            var stat = stat(key);
+            return stat != null && stat.size() == size;
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            return false;
+        }
+    }
+
+    private void abortMultipartUpload(String key, String uploadId, Exception cause) {
+        try {
+            send("DELETE", key, Map.of("uploadId", uploadId), Map.of(), null, HttpResponse.BodyHandlers.discarding());
+        } catch (Exception e) {
+            // left to the bucket's lifecycle rules for incomplete uploads
+            log.warn("Failed to abort multipart upload of {}", key, e);
+            cause.addSuppressed(e);
+        }
+    }
+
+    private static String unescapeXml(String text) {
+        return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'").replace("&amp;", "&");
+    }
+
+    private static byte[] readPart(InputStream content, int length) throws IOException {
+        var body = content.readNBytes(length);
+        if (body.length != length)
+            throw new IOException("Blob content ended before its expected size");
+        return body;
+    }
+
+
+    /**
+     * Sends a signed request, retrying connection failures and server errors. Only for idempotent requests.
+     *
+     * @param query parameters by name, values unencoded. An empty value is sent as a bare name
+     * @param headers additional headers to send and sign, lowercase names
+     * @param body null for none
+     */
+    private <T> HttpResponse<T> send(String method, String key, Map<String, String> query, Map<String, String> headers,
+                                     byte[] body, HttpResponse.BodyHandler<T> handler) throws IOException {
+        return send(method, objectUri(key), key, query, headers, body, handler, MAX_ATTEMPTS);
+    }
+
+    /**
+     * Like {@link #send(String, String, Map, Map, byte[], HttpResponse.BodyHandler)}, without retrying, for requests that aren't idempotent.
+     */
+    private <T> HttpResponse<T> sendOnce(String method, String key, Map<String, String> query, Map<String, String> headers,
+                                         byte[] body, HttpResponse.BodyHandler<T> handler) throws IOException {
+        return send(method, objectUri(key), key, query, headers, body, handler, 1);
+    }
+
+    private String objectUri(String key) {
+        return "/" + AwsSigV4Signer.encode(this.bucket, false) + "/" + AwsSigV4Signer.encode(this.keyPrefix + key, true);
+    }
+
+    /**
+     * @param target what the request is about, for logging
+     */
+    private <T> HttpResponse<T> send(String method, String canonicalUri, String target, Map<String, String> query, Map<String, String> headers,
+                                     byte[] body, HttpResponse.BodyHandler<T> handler, int maxAttempts) throws IOException {
+        var canonicalQuery = new TreeMap<>(query).entrySet().stream()
+                .map(p -> AwsSigV4Signer.encode(p.getKey(), false) + "=" + AwsSigV4Signer.encode(p.getValue(), false))
+                .collect(Collectors.joining("&"));
+        var uri = URI.create(this.endpoint + canonicalUri + (canonicalQuery.isEmpty() ? "" : "?" + canonicalQuery));
+
+        for (int attempt = 1; ; attempt++) {
+            // signed anew on every attempt, a signature is only accepted for a few minutes
+            var now = Instant.now();
+            var payloadHash = body == null || body.length == 0 ? AwsSigV4Signer.EMPTY_PAYLOAD_SHA256 : AwsSigV4Signer.UNSIGNED_PAYLOAD;
+
+            var signed = new TreeMap<>(headers);
+            signed.put("host", uri.getRawAuthority());
+            signed.put("x-amz-content-sha256", payloadHash);
+            signed.put("x-amz-date", AwsSigV4Signer.amzDate(now));
+
+            var request = HttpRequest.newBuilder(uri)
+                    .method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body))
+                    .header("authorization", this.signer.authorization(method, canonicalUri, canonicalQuery, signed, payloadHash, now));
+            for (var header : signed.entrySet()) {
+                if (!header.getKey().equals("host"))
+                    request.header(header.getKey(), header.getValue());
+            }
+
+            try {
+                var response = this.client.send(request.build(), handler);
+                if (response.statusCode() < 500 || attempt >= maxAttempts)
+                    return response;
+
+                if (response.body() instanceof InputStream in)
+                    in.close();
+                log.debug("S3 {} {} failed with status {}, retrying", method, target, response.statusCode());
+
+            } catch (IOException e) {
+                if (attempt >= maxAttempts)
+                    throw e;
+                log.debug("S3 {} {} failed, retrying", method, target, e);
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during S3 " + method + " " + target);
+            }
+        }
+    }
+
+    private static <T> HttpResponse<T> expectSuccess(HttpResponse<T> response, String operation, String key) throws IOException {
+        if (response.statusCode() / 100 != 2)
+            throw new IOException("S3 " + operation + " " + key + " failed with status " + response.statusCode() + (response.body() instanceof String s ? ": " + s : ""));
+        return response;
+    }
+
+}
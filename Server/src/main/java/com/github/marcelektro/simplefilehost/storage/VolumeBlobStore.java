@@ -0,0 +1,289 @@
+package com.github.marcelektro.simplefilehost.storage;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.Counter;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Blobs spread over several local directories (volumes), ideally each on a disk of its own, adding up their capacity and I/O.
+ * <p>
+ * A new blob goes to a volume picked at random, weighted by its free space and divided by the writes already going to it,
+ * so emptier and idler disks take more of the load. The volume is part of the blob's key: {@code name/xx/rest} on a configured volume,
+ * plain {@code xx/rest} on the data directory's own (the only layout before volumes existed), every read goes straight to it.
+ */
+@Slf4j
+public class VolumeBlobStore implements BlobStore {
+
+    private static final String DEFAULT_VOLUME = "default";
+
+    private static final Pattern VOLUME_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+
+    private final Volume defaultVolume;
+    private final Map<String, Volume> volumes = new LinkedHashMap<>();
+
+
+    /**
+     * @param defaultRoot the data directory's blob root, holding the blobs with keys without a volume
+     */
+    public VolumeBlobStore(File defaultRoot, List<Config.Volume> volumes, MetricsRegistry metrics) {
+        this.defaultVolume = new Volume(DEFAULT_VOLUME, defaultRoot, true, metrics);
+        this.volumes.put(DEFAULT_VOLUME, this.defaultVolume);
+
+        for (var volume : volumes) {
+            // keys of packed blobs look like those of a volume named after them
+            if (!VOLUME_NAME.matcher(volume.name).matches() || volume.name.equals(DEFAULT_VOLUME) || volume.name.equals(PackBlobStore.KEY_SEGMENT))
+                throw new IllegalArgumentException("Invalid blob volume name: " + volume.name);
+            if (this.volumes.containsKey(volume.name))
+                throw new IllegalArgumentException("Duplicate blob volume name: " + volume.name);
+
+            this.volumes.put(volume.name, new Volume(volume.name, new File(volume.path), false, metrics));
+        }
+    }
+
+
+    public List<Volume> volumes() {
+        return Collections.unmodifiableList(new ArrayList<>(this.volumes.values()));
+    }
+
+    /**
+     * @return the volume holding the blob under the key
+     * @throws IOException if it's on a volume that isn't configured (anymore)
+     */
+    public Volume volumeOf(String key) throws IOException {
+        var shardEnd = key.lastIndexOf('/');
+        var volumeEnd = shardEnd > 0 ? key.lastIndexOf('/', shardEnd - 1) : -1;
+        if (volumeEnd < 0)
+            return this.defaultVolume;
+
+        var volume = this.volumes.get(key.substring(0, volumeEnd));
+        if (volume == null)
+            throw new IOException("Blob is on an unknown volume, was it removed from the config? " + key);
+        return volume;
+    }
+
+    /**
+     * The key of a content-addressed blob on the given volume.
+     */
+    public String keyOn(Volume volume, String digest) {
+        return volume == this.defaultVolume ? BlobStore.keyFor(digest) : volume.name + "/" + BlobStore.keyFor(digest);
+    }
+
+
+    @Override
+    public String placeNew(String digest, long size) {
+        var weights = new double[this.volumes.size()];
+        var candidates = new ArrayList<Volume>(this.volumes.size());
+        double total = 0;
+
+        for (var volume : this.volumes.values()) {
+            var free = volume.freeBytes() - size;
+            if (free <= 0)
+                continue;
+
+            var weight = (double) free / (1 + volume.writesInFlight.get());
+            weights[candidates.size()] = weight;
+            candidates.add(volume);
+            total += weight;
+        }
+
+        // all full, the write fails on whichever it's tried
+        if (candidates.isEmpty())
+            return keyOn(this.defaultVolume, digest);
+
+        var pick = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < candidates.size() - 1; i++) {
+            pick -= weights[i];
+            if (pick < 0)
+                return keyOn(candidates.get(i), digest);
+        }
+        return keyOn(candidates.get(candidates.size() - 1), digest);
+    }
+
+    @Override
+    public void put(String key, InputStream content, long size) throws IOException {
+        var volume = volumeOf(key);
+
+        volume.writesInFlight.incrementAndGet();
+        try {
+            volume.store.put(volume.localKey(key), content, size);
+            volume.writtenBytes.add(size);
+        } finally {
+            volume.writesInFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void putFile(String key, File file) throws IOException {
+        var volume = volumeOf(key);
+        var size = file.length();
+
+        volume.writesInFlight.incrementAndGet();
+        try {
+            volume.store.putFile(volume.localKey(key), file);
+            volume.writtenBytes.add(size);
+        } finally {
+            volume.writesInFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        var volume = volumeOf(key);
+        return new CountingInputStream(volume.store.get(volume.localKey(key), offset, length), volume.readBytes);
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        var volume = volumeOf(key);
+        return volume.store.delete(volume.localKey(key));
+    }
+
+    @Override
+    public @Nullable BlobStat stat(String key) throws IOException {
+        var volume = volumeOf(key);
+        return volume.store.stat(volume.localKey(key));
+    }
+
+    @Override
+    public List<String> list(String afterKey, int limit) throws IOException {
+        var keys = new ArrayList<String>();
+
+        for (var volume : this.volumes.values()) {
+            var prefix = volume.isDefault ? "" : volume.name + "/";
+
+            String localAfterKey;
+            if (afterKey.startsWith(prefix))
+                localAfterKey = afterKey.substring(prefix.length());
+            else if (afterKey.compareTo(prefix) < 0)
+                localAfterKey = "";
+            else
+                continue; // all of the volume's keys were listed before
+
+            for (var key : volume.store.list(localAfterKey, limit))
+                keys.add(prefix + key);
+        }
+
+        // each volume's keys are in order, all of them together not yet
+        Collections.sort(keys);
+        return keys.size() > limit ? new ArrayList<>(keys.subList(0, limit)) : keys;
+    }
+
+    @Override
+    public @Nullable File localFile(String key) {
+        try {
+            var volume = volumeOf(key);
+            return volume.store.localFile(volume.localKey(key));
+        } catch (IOException e) {
+            // reading through the store reports it
+            return null;
+        }
+    }
+
+    @Override
+    public void localFileRead(String key, long bytes) {
+        try {
+            volumeOf(key).readBytes.add(bytes);
+        } catch (IOException ignored) {
+        }
+    }
+
+
+    public static final class Volume {
+
+        private final String name;
+        private final File root;
+        private final boolean isDefault;
+        private final LocalBlobStore store;
+        private final AtomicInteger writesInFlight = new AtomicInteger();
+        private final Counter readBytes;
+        private final Counter writtenBytes;
+
+
+        private Volume(String name, File root, boolean isDefault, MetricsRegistry metrics) {
+            this.name = name;
+            this.root = root;
+            this.isDefault = isDefault;
+            this.store = new LocalBlobStore(root);
+
+            if (root.mkdirs())
+                log.info("Creating blob volume directory: {}", root.getAbsolutePath());
+
+            var labels = MetricsRegistry.labels("volume", name);
+            this.readBytes = metrics.counter("sfh_volume_read_bytes_total", "Bytes of blob content read from the volume", labels);
+            this.writtenBytes = metrics.counter("sfh_volume_written_bytes_total", "Bytes of blob content written to the volume", labels);
+            metrics.gauge("sfh_volume_free_bytes", "Space left on the volume's filesystem", labels, this::freeBytes);
+            metrics.gauge("sfh_volume_size_bytes", "Size of the volume's filesystem", labels, this::totalBytes);
+            metrics.gauge("sfh_volume_fill_ratio", "Share of the volume's filesystem in use", labels, this::fillRatio);
+            metrics.gauge("sfh_volume_writes_in_flight", "Blobs being written to the volume", labels, this.writesInFlight::get);
+        }
+
+
+        public String name() {
+            return this.name;
+        }
+
+        public long freeBytes() {
+            return this.root.getUsableSpace();
+        }
+
+        public long totalBytes() {
+            return this.root.getTotalSpace();
+        }
+
+        public double fillRatio() {
+            var total = totalBytes();
+            return total == 0 ? 1 : 1 - (double) freeBytes() / total;
+        }
+
+        /**
+         * The key within the volume's directory.
+         */
+        private String localKey(String key) {
+            return this.isDefault ? key : key.substring(this.name.length() + 1);
+        }
+
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private final Counter counter;
+
+        private CountingInputStream(InputStream in, Counter counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = super.read();
+            if (b >= 0)
+                this.counter.increment();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            var read = super.read(b, off, len);
+            if (read > 0)
+                this.counter.add(read);
+            return read;
+        }
+
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.github.marcelektro.simplefilehost.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Dates are stored as epoch milliseconds, but handled as LocalDateTime in the server's time zone everywhere else.
+ */
+public class EpochMillis {
+
+    public static long of(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    public static @Nullable Long ofNullable(@Nullable LocalDateTime dateTime) {
+        return dateTime != null ? of(dateTime) : null;
+    }
+
+    public static LocalDateTime toLocalDateTime(long epochMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+    }
+
+}
@@ -5,6 +5,10 @@ import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.HexFormat;
 
+/**
+ * Salted SHA-512, how passwords were hashed before {@link com.github.marcelektro.simplefilehost.service.auth.password.PasswordHasher}.
+ * Only still used to verify such hashes, which are replaced on the user's next login.
+ */
 public class HashUtil {
 
     private static final SecureRandom secureRandom = new SecureRandom();
@@ -0,0 +1,149 @@
+package com.github.marcelektro.simplefilehost.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Parsing of {@code Range: bytes=...} request headers (RFC 9110 section 14).
+ */
+public class HttpRange {
+
+    /**
+     * Requests with more ranges than this are served in full, so a single request can't make us send
+     * thousands of tiny parts.
+     */
+    public static final int MAX_RANGES = 64;
+
+
+    /**
+     * @param start first byte, inclusive
+     * @param end last byte, inclusive
+     */
+    public record ByteRange(long start, long end) {
+
+        public long length() {
+            return this.end - this.start + 1;
+        }
+
+        public String toContentRange(long size) {
+            return "bytes " + this.start + "-" + this.end + "/" + size;
+        }
+
+    }
+
+
+    /**
+     * Parses a Range header against a representation of the given size.
+     * Overlapping or adjacent ranges are merged, which may reorder them.
+     *
+     * @return null if the header should be ignored and the full content served (absent, not a bytes range,
+     *         malformed, without any range or too many ranges), an empty list if no range is satisfiable (416), otherwise the ranges to serve
+     */
+    public static @Nullable List<ByteRange> parse(@Nullable String header, long size) {
+        if (header == null)
+            return null;
+
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6))
+            return null;
+
+        var specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES)
+            return null;
+
+        var ranges = new ArrayList<ByteRange>();
+        var anySpec = false;
+
+        for (var spec : specs) {
+            spec = spec.trim();
+            if (spec.isEmpty())
+                continue;
+
+            var dash = spec.indexOf('-');
+            if (dash < 0)
+                return null;
+            // from here on the spec is either valid or makes the whole header invalid
+            anySpec = true;
+
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    // suffix range, the last N bytes
+                    var suffixLength = parseNonNegative(spec.substring(1));
+                    if (suffixLength == 0)
+                        continue; // unsatisfiable
+
+                    start = Math.max(0, size - suffixLength);
+                    end = size - 1;
+                } else {
+                    start = parseNonNegative(spec.substring(0, dash));
+                    end = dash == spec.length() - 1
+                            ? size - 1
+                            : Math.min(parseNonNegative(spec.substring(dash + 1)), size - 1);
+
+                    if (dash != spec.length() - 1 && parseNonNegative(spec.substring(dash + 1)) < start)
+                        return null; // last-pos before first-pos makes the whole header invalid
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (start >= size || start > end)
+                continue; // unsatisfiable, but others may still be fine
+
+            ranges.add(new ByteRange(start, end));
+        }
+
+        // a range-set has at least one range, "bytes=" alone is as malformed as any other invalid spec
+        if (!anySpec)
+            return null;
+
+        return coalesce(ranges);
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if (ranges.size() < 2)
+            return ranges;
+
+        var sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(ByteRange::start));
+
+        // nothing overlaps, keep the order the client asked for
+        var overlapping = false;
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).start() <= sorted.get(i - 1).end() + 1) {
+                overlapping = true;
+                break;
+            }
+        }
+        if (!overlapping)
+            return ranges;
+
+        var merged = new ArrayList<ByteRange>();
+        var current = sorted.getFirst();
+        for (int i = 1; i < sorted.size(); i++) {
+            var next = sorted.get(i);
+            if (next.start() <= current.end() + 1) {
+                current = new ByteRange(current.start(), Math.max(current.end(), next.end()));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+
+        return merged;
+    }
+
+    private static long parseNonNegative(String s) {
+        s = s.trim();
+        if (s.isEmpty() || s.charAt(0) == '+' || s.charAt(0) == '-')
+            throw new NumberFormatException("Not a non-negative number: " + s);
+        return Long.parseLong(s);
+    }
+
+}
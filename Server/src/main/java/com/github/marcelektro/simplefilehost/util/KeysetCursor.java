@@ -0,0 +1,42 @@
+package com.github.marcelektro.simplefilehost.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque cursor for keyset pagination: the sort mode it was issued for and the sort key and id of the last row sent.
+ * The next page continues strictly after that row, so pages neither skip nor repeat rows when rows are added or removed in between.
+ *
+ * @param sort name of the sort mode, a cursor is only valid for the mode it was created with
+ * @param id tiebreaker, rows with equal keys are ordered by id
+ * @param key the sort column's value of the last row
+ */
+public record KeysetCursor(String sort, String id, String key) {
+
+    public String encode() {
+        // key goes last, it's the only part that may contain the separator
+        var raw = this.sort + "\n" + this.id + "\n" + this.key;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the cursor, or null if it's not one we issued
+     */
+    public static @Nullable KeysetCursor decode(String encoded) {
+        String raw;
+        try {
+            raw = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        var parts = raw.split("\n", 3);
+        if (parts.length != 3)
+            return null;
+
+        return new KeysetCursor(parts[0], parts[1], parts[2]);
+    }
+
+}
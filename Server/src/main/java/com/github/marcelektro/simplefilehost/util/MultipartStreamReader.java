@@ -0,0 +1,338 @@
+package com.github.marcelektro.simplefilehost.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Incremental {@code multipart/form-data} parser reading straight off the request body.
+ * <p>
+ * Parts are exposed one at a time, their content is streamed without ever buffering more than
+ * a single read buffer, so arbitrarily large parts can be processed in constant memory.
+ * Only the current part's content stream is valid; calling {@link #nextPart()} skips whatever is left of it.
+ */
+public class MultipartStreamReader {
+
+    private static final byte[] HEADER_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final InputStream in;
+    private final byte[] delimiter; // CRLF--boundary
+    private final int maxHeaderSize;
+
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    private boolean started;
+    private boolean finished;
+    private @Nullable PartInputStream currentContent;
+
+
+    public MultipartStreamReader(InputStream in, String boundary, int bufferSize, int maxHeaderSize) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        this.maxHeaderSize = maxHeaderSize;
+
+        this.buf = new byte[Math.max(bufferSize, maxHeaderSize + HEADER_END.length) + this.delimiter.length];
+
+        // The first boundary is not preceded by a CRLF, pretend it is so that every delimiter looks the same
+        this.buf[0] = '\r';
+        this.buf[1] = '\n';
+        this.limit = 2;
+    }
+
+
+    /**
+     * Extracts the boundary parameter from a {@code multipart/form-data} content type.
+     * @return the boundary, or null if the content type is not multipart or has no boundary
+     */
+    public static @Nullable String extractBoundary(@Nullable String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/"))
+            return null;
+
+        var boundary = parseHeaderParams(contentType).get("boundary");
+
+        if (Checks.empty(boundary) || boundary.length() > 70)
+            return null;
+
+        return boundary;
+    }
+
+
+    /**
+     * Advances to the next part, skipping any unread content of the current one.
+     * @return the next part, or null once the closing boundary has been reached
+     */
+    public @Nullable Part nextPart() throws IOException {
+        if (this.finished)
+            return null;
+
+        if (this.currentContent != null) {
+            this.currentContent.skipRemaining();
+            this.currentContent = null;
+        } else if (!this.started) {
+            skipPreamble();
+        }
+
+        this.started = true;
+
+        // after a delimiter there is either `--` (closing boundary) or CRLF followed by the part headers
+        require(2);
+        if (this.buf[this.pos] == '-' && this.buf[this.pos + 1] == '-') {
+            this.finished = true;
+            return null;
+        }
+
+        skipLinearWhitespace();
+        require(2);
+        if (this.buf[this.pos] != '\r' || this.buf[this.pos + 1] != '\n')
+            throw new MalformedMultipartException("Expected CRLF after multipart boundary");
+        this.pos += 2;
+
+        var headers = readHeaders();
+
+        var disposition = headers.get("content-disposition");
+        var dispositionParams = disposition != null ? parseHeaderParams(disposition) : Map.<String, String>of();
+
+        this.currentContent = new PartInputStream();
+
+        return new Part(
+                dispositionParams.get("name"),
+                dispositionParams.get("filename"),
+                headers.get("content-type"),
+                this.currentContent
+        );
+    }
+
+
+    private void skipPreamble() throws IOException {
+        while (true) {
+            var idx = indexOf(this.delimiter, this.pos, this.limit);
+            if (idx >= 0) {
+                this.pos = idx + this.delimiter.length;
+                return;
+            }
+
+            // keep a tail that could be the start of the delimiter
+            this.pos = Math.max(this.pos, this.limit - this.delimiter.length + 1);
+
+            if (this.eof)
+                throw new MalformedMultipartException("No multipart boundary found in request body");
+            fill();
+        }
+    }
+
+    private void skipLinearWhitespace() throws IOException {
+        while (true) {
+            require(1);
+            var b = this.buf[this.pos];
+            if (b != ' ' && b != '\t')
+                return;
+            this.pos++;
+        }
+    }
+
+    private Map<String, String> readHeaders() throws IOException {
+        var headers = new HashMap<String, String>();
+
+        // no headers at all, the blank line follows immediately
+        require(2);
+        if (this.buf[this.pos] == '\r' && this.buf[this.pos + 1] == '\n') {
+            this.pos += 2;
+            return headers;
+        }
+
+        int end;
+        while ((end = indexOf(HEADER_END, this.pos, this.limit)) < 0) {
+            if (this.limit - this.pos >= this.maxHeaderSize)
+                throw new MalformedMultipartException("Multipart part headers exceed " + this.maxHeaderSize + " bytes");
+            if (this.eof)
+                throw new EOFException("Unexpected end of multipart stream while reading part headers");
+            fill();
+        }
+
+        var block = new String(this.buf, this.pos, end - this.pos, StandardCharsets.UTF_8);
+        this.pos = end + HEADER_END.length;
+
+        for (var line : block.split("\r\n")) {
+            var colon = line.indexOf(':');
+            if (colon <= 0)
+                throw new MalformedMultipartException("Malformed multipart header line");
+
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+
+        return headers;
+    }
+
+
+    /**
+     * Ensures at least {@code n} unread bytes are buffered.
+     */
+    private void require(int n) throws IOException {
+        while (this.limit - this.pos < n) {
+            if (this.eof)
+                throw new EOFException("Unexpected end of multipart stream");
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        if (this.pos > 0) {
+            System.arraycopy(this.buf, this.pos, this.buf, 0, this.limit - this.pos);
+            this.limit -= this.pos;
+            this.pos = 0;
+        }
+
+        var read = this.in.read(this.buf, this.limit, this.buf.length - this.limit);
+        if (read < 0)
+            this.eof = true;
+        else
+            this.limit += read;
+    }
+
+    private int indexOf(byte[] needle, int from, int to) {
+        var last = to - needle.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (this.buf[i + j] != needle[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+
+    /**
+     * Parses {@code key=value} parameters of a header value such as
+     * {@code form-data; name="file"; filename="a.txt"}. Keys are lower-cased.
+     */
+    static Map<String, String> parseHeaderParams(String value) {
+        var params = new HashMap<String, String>();
+
+        var i = value.indexOf(';');
+        while (i >= 0 && i < value.length()) {
+            i++; // skip ';'
+
+            var eq = value.indexOf('=', i);
+            if (eq < 0)
+                break;
+
+            var key = value.substring(i, eq).trim().toLowerCase(Locale.ROOT);
+            i = eq + 1;
+
+            String paramValue;
+            if (i < value.length() && value.charAt(i) == '"') {
+                var sb = new StringBuilder();
+                i++;
+                while (i < value.length() && value.charAt(i) != '"') {
+                    var c = value.charAt(i);
+                    if (c == '\\' && i + 1 < value.length())
+                        c = value.charAt(++i);
+                    sb.append(c);
+                    i++;
+                }
+                paramValue = sb.toString();
+                i = value.indexOf(';', i);
+            } else {
+                var next = value.indexOf(';', i);
+                paramValue = (next < 0 ? value.substring(i) : value.substring(i, next)).trim();
+                i = next;
+            }
+
+            params.putIfAbsent(key, paramValue);
+        }
+
+        return params;
+    }
+
+
+    public record Part(
+            @Nullable String name,
+            @Nullable String filename,
+            @Nullable String contentType,
+            InputStream content
+    ) {}
+
+
+    public static class MalformedMultipartException extends IOException {
+        public MalformedMultipartException(String message) {
+            super(message);
+        }
+    }
+
+
+    private class PartInputStream extends InputStream {
+
+        private boolean done;
+
+        @Override
+        public int read() throws IOException {
+            var single = new byte[1];
+            var n = read(single, 0, 1);
+            return n < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.done)
+                return -1;
+            if (len == 0)
+                return 0;
+
+            var buf = MultipartStreamReader.this.buf;
+            var delimiter = MultipartStreamReader.this.delimiter;
+
+            while (true) {
+                var pos = MultipartStreamReader.this.pos;
+                var limit = MultipartStreamReader.this.limit;
+
+                // only look for a delimiter starting within the bytes we could return
+                var windowEnd = (int) Math.min(limit, (long) pos + len + delimiter.length - 1);
+                var idx = indexOf(delimiter, pos, windowEnd);
+
+                int available;
+                if (idx >= 0) {
+                    available = idx - pos;
+                    if (available == 0) {
+                        MultipartStreamReader.this.pos = idx + delimiter.length;
+                        this.done = true;
+                        return -1;
+                    }
+                } else {
+                    // the tail might be the beginning of a delimiter, hold it back
+                    available = windowEnd - pos - (delimiter.length - 1);
+                }
+
+                if (available > 0) {
+                    var n = Math.min(available, len);
+                    System.arraycopy(buf, pos, b, off, n);
+                    MultipartStreamReader.this.pos += n;
+                    return n;
+                }
+
+                if (MultipartStreamReader.this.eof)
+                    throw new EOFException("Unexpected end of multipart stream, closing boundary missing");
+                fill();
+            }
+        }
+
+        private void skipRemaining() throws IOException {
+            var skipBuf = new byte[8192];
+            //noinspection StatementWithEmptyBody
+            while (read(skipBuf, 0, skipBuf.length) >= 0) {
+            }
+        }
+
+    }
+
+}
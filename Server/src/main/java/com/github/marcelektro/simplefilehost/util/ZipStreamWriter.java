@@ -0,0 +1,320 @@
+package com.github.marcelektro.simplefilehost.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a ZIP archive to a stream as its entries come in, without ever seeking back or buffering an entry.
+ * <p>
+ * Each entry's CRC and sizes follow its content in a data descriptor, so neither has to be known upfront,
+ * and entries may be stored or deflated. Every entry uses ZIP64 sizes, so neither entries nor the archive are limited to 4 GiB;
+ * the central directory and end records only switch to ZIP64 fields where the values don't fit otherwise.
+ * Only the central directory is kept in memory, a few dozen bytes per entry.
+ * <p>
+ * Stored entries can only be read through the central directory, readers going through the stream front to back
+ * (like {@link java.util.zip.ZipInputStream}) can't tell where their content ends.
+ */
+public class ZipStreamWriter implements AutoCloseable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final short VERSION_ZIP64 = 45;
+    private static final short FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final short FLAG_UTF8 = 1 << 11;
+    private static final short METHOD_STORED = 0;
+    private static final short METHOD_DEFLATED = 8;
+    private static final short ZIP64_EXTRA_ID = 0x0001;
+
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+
+    private final OutputStream out;
+    private final List<CentralEntry> entries = new ArrayList<>();
+    private long offset;
+
+    private @Nullable EntryOutputStream currentEntry;
+    private boolean finished;
+
+
+    public ZipStreamWriter(OutputStream out) {
+        this.out = out;
+    }
+
+
+    /**
+     * Starts the next entry. Its content is written to the returned stream, which must be closed before the next entry.
+     *
+     * @param name path within the archive, {@code /} separated
+     * @param deflate whether to compress the content, otherwise it's stored as is
+     */
+    public OutputStream putEntry(String name, LocalDateTime lastModified, boolean deflate) throws IOException {
+        if (this.currentEntry != null)
+            throw new IllegalStateException("The previous entry has not been closed");
+        if (this.finished)
+            throw new IllegalStateException("The archive has already been finished");
+
+        var nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        var method = deflate ? METHOD_DEFLATED : METHOD_STORED;
+        var dosTime = dosTime(lastModified);
+
+        // sizes are in the data descriptor, the ZIP64 extra field here only announces that they're 8 bytes there
+        var header = buffer(30 + nameBytes.length + 20)
+                .putInt(LOCAL_HEADER_SIGNATURE)
+                .putShort(VERSION_ZIP64)
+                .putShort((short) (FLAG_DATA_DESCRIPTOR | FLAG_UTF8))
+                .putShort(method)
+                .putInt(dosTime)
+                .putInt(0) // crc
+                .putInt((int) MAX_32) // compressed size
+                .putInt((int) MAX_32) // uncompressed size
+                .putShort((short) nameBytes.length)
+                .putShort((short) 20)
+                .put(nameBytes)
+                .putShort(ZIP64_EXTRA_ID)
+                .putShort((short) 16)
+                .putLong(0)
+                .putLong(0);
+
+        var headerOffset = this.offset;
+        write(header);
+
+        this.currentEntry = new EntryOutputStream(nameBytes, method, dosTime, headerOffset, deflate ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null);
+        return this.currentEntry;
+    }
+
+    /**
+     * Writes the central directory, completing the archive. Doesn't close the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (this.finished)
+            return;
+        if (this.currentEntry != null)
+            throw new IllegalStateException("The last entry has not been closed");
+        this.finished = true;
+
+        var centralStart = this.offset;
+        for (var entry : this.entries)
+            writeCentralHeader(entry);
+        var centralSize = this.offset - centralStart;
+
+        var count = this.entries.size();
+        if (count >= MAX_16 || centralStart >= MAX_32 || centralSize >= MAX_32) {
+            var zip64EndOffset = this.offset;
+
+            write(buffer(56)
+                    .putInt(ZIP64_END_SIGNATURE)
+                    .putLong(44) // size of the rest of this record
+                    .putShort(VERSION_ZIP64)
+                    .putShort(VERSION_ZIP64)
+                    .putInt(0) // this disk
+                    .putInt(0) // disk with the central directory
+                    .putLong(count)
+                    .putLong(count)
+                    .putLong(centralSize)
+                    .putLong(centralStart));
+
+            write(buffer(20)
+                    .putInt(ZIP64_LOCATOR_SIGNATURE)
+                    .putInt(0)
+                    .putLong(zip64EndOffset)
+                    .putInt(1)); // total disks
+        }
+
+        write(buffer(22)
+                .putInt(END_SIGNATURE)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) Math.min(count, MAX_16))
+                .putShort((short) Math.min(count, MAX_16))
+                .putInt((int) Math.min(centralSize, MAX_32))
+                .putInt((int) Math.min(centralStart, MAX_32))
+                .putShort((short) 0)); // comment length
+
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+
+    private void writeCentralHeader(CentralEntry entry) throws IOException {
+        // only the values that don't fit go to the ZIP64 extra field, in this order
+        var zip64Fields = 0;
+        if (entry.uncompressedSize >= MAX_32)
+            zip64Fields++;
+        if (entry.compressedSize >= MAX_32)
+            zip64Fields++;
+        if (entry.headerOffset >= MAX_32)
+            zip64Fields++;
+
+        var extraLength = zip64Fields > 0 ? 4 + 8 * zip64Fields : 0;
+
+        var header = buffer(46 + entry.name.length + extraLength)
+                .putInt(CENTRAL_HEADER_SIGNATURE)
+                .putShort(VERSION_ZIP64) // made by
+                .putShort(VERSION_ZIP64) // needed
+                .putShort((short) (FLAG_DATA_DESCRIPTOR | FLAG_UTF8))
+                .putShort(entry.method)
+                .putInt(entry.dosTime)
+                .putInt((int) entry.crc)
+                .putInt((int) Math.min(entry.compressedSize, MAX_32))
+                .putInt((int) Math.min(entry.uncompressedSize, MAX_32))
+                .putShort((short) entry.name.length)
+                .putShort((short) extraLength)
+                .putShort((short) 0) // comment length
+                .putShort((short) 0) // disk
+                .putShort((short) 0) // internal attributes
+                .putInt(0) // external attributes
+                .putInt((int) Math.min(entry.headerOffset, MAX_32))
+                .put(entry.name);
+
+        if (zip64Fields > 0) {
+            header.putShort(ZIP64_EXTRA_ID).putShort((short) (8 * zip64Fields));
+            if (entry.uncompressedSize >= MAX_32)
+                header.putLong(entry.uncompressedSize);
+            if (entry.compressedSize >= MAX_32)
+                header.putLong(entry.compressedSize);
+            if (entry.headerOffset >= MAX_32)
+                header.putLong(entry.headerOffset);
+        }
+
+        write(header);
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        write(buffer.array(), 0, buffer.position());
+    }
+
+    private void write(byte[] bytes, int off, int len) throws IOException {
+        this.out.write(bytes, off, len);
+        this.offset += len;
+    }
+
+    /**
+     * MS-DOS date and time, local time with two second precision, nothing before 1980.
+     */
+    private static int dosTime(LocalDateTime time) {
+        if (time.getYear() < 1980)
+            return (1 << 21) | (1 << 16);
+
+        return (time.getYear() - 1980) << 25
+                | time.getMonthValue() << 21
+                | time.getDayOfMonth() << 16
+                | time.getHour() << 11
+                | time.getMinute() << 5
+                | time.getSecond() >> 1;
+    }
+
+
+    private record CentralEntry(byte[] name, short method, int dosTime, long headerOffset, long crc, long compressedSize, long uncompressedSize) {}
+
+    private final class EntryOutputStream extends OutputStream {
+
+        private final byte[] name;
+        private final short method;
+        private final int dosTime;
+        private final long headerOffset;
+        private final @Nullable Deflater deflater;
+
+        private final CRC32 crc = new CRC32();
+        private final long contentStart = ZipStreamWriter.this.offset;
+        private long uncompressedSize;
+        private byte[] deflateBuffer; // allocated on first use, stored entries never need it
+        private boolean closed;
+
+
+        private EntryOutputStream(byte[] name, short method, int dosTime, long headerOffset, @Nullable Deflater deflater) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.headerOffset = headerOffset;
+            this.deflater = deflater;
+        }
+
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (this.closed)
+                throw new IOException("Entry already closed");
+
+            this.crc.update(b, off, len);
+            this.uncompressedSize += len;
+
+            if (this.deflater == null) {
+                ZipStreamWriter.this.write(b, off, len);
+                return;
+            }
+
+            this.deflater.setInput(b, off, len);
+            while (!this.deflater.needsInput())
+                drainDeflater();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.closed)
+                return;
+            this.closed = true;
+
+            try {
+                if (this.deflater != null) {
+                    this.deflater.finish();
+                    while (!this.deflater.finished())
+                        drainDeflater();
+                }
+            } finally {
+                if (this.deflater != null)
+                    this.deflater.end();
+            }
+
+            var compressedSize = ZipStreamWriter.this.offset - this.contentStart;
+
+            ZipStreamWriter.this.write(buffer(24)
+                    .putInt(DATA_DESCRIPTOR_SIGNATURE)
+                    .putInt((int) this.crc.getValue())
+                    .putLong(compressedSize)
+                    .putLong(this.uncompressedSize));
+
+            ZipStreamWriter.this.entries.add(new CentralEntry(this.name, this.method, this.dosTime, this.headerOffset,
+                    this.crc.getValue(), compressedSize, this.uncompressedSize));
+            ZipStreamWriter.this.currentEntry = null;
+        }
+
+        private void drainDeflater() throws IOException {
+            if (this.deflateBuffer == null)
+                this.deflateBuffer = new byte[64 * 1024];
+
+            var length = this.deflater.deflate(this.deflateBuffer);
+            if (length > 0)
+                ZipStreamWriter.this.write(this.deflateBuffer, 0, length);
+        }
+
+    }
+
+}
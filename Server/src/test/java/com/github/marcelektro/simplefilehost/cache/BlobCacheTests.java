@@ -0,0 +1,171 @@
+package com.github.marcelektro.simplefilehost.cache;
+
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.metrics.TransferMetrics;
+import com.github.marcelektro.simplefilehost.storage.LocalBlobStore;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlobCacheTests {
+
+    private static final int BLOB_SIZE = 4 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+
+    private String blob(String name) throws Exception {
+        var file = this.tempDir.resolve(name).toFile();
+        if (!file.exists())
+            Files.write(file.toPath(), name.repeat(BLOB_SIZE / name.length() + 1).substring(0, BLOB_SIZE).getBytes());
+        return name;
+    }
+
+    private BlobCache cache(long maxEntryBytes, MetricsRegistry metrics) {
+        return new BlobCache(new LocalBlobStore(this.tempDir.toFile()), 64 * 1024, maxEntryBytes, metrics, new TransferMetrics(metrics));
+    }
+
+    private static long counter(MetricsRegistry metrics, String name) {
+        return metrics.scrape().lines()
+                .filter(line -> line.startsWith(name + " "))
+                .mapToLong(line -> Long.parseLong(line.substring(name.length() + 1)))
+                .findFirst()
+                .orElseThrow();
+    }
+
+
+    @Test
+    public void testLoadsOnSecondAccess() throws Exception {
+        var metrics = new MetricsRegistry();
+        var cache = cache(BLOB_SIZE, metrics);
+        var key = blob("a");
+
+        assertNull(cache.get(key), "first access only counts");
+
+        var loaded = cache.get(key);
+        assertNotNull(loaded);
+        assertEquals(ByteBuffer.wrap(Files.readAllBytes(this.tempDir.resolve(key))), loaded.content().duplicate());
+
+        assertSame(loaded, cache.get(key));
+        assertEquals(1, counter(metrics, "sfh_cache_blobs_hits_total"));
+        assertEquals(BLOB_SIZE, cache.residentBytes());
+
+        cache.invalidate(key);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testFrequentBlobsSurviveScan() throws Exception {
+        var metrics = new MetricsRegistry();
+        // room for 15 blobs in the main area
+        var cache = cache(BLOB_SIZE, metrics);
+
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 10; i++)
+                cache.get(blob("hot" + i));
+        }
+
+        // each downloaded twice, just often enough to be loaded
+        for (int i = 0; i < 40; i++) {
+            cache.get(blob("scan" + i));
+            cache.get(blob("scan" + i));
+        }
+
+        var hitsBefore = counter(metrics, "sfh_cache_blobs_hits_total");
+        for (int i = 0; i < 10; i++)
+            cache.get(blob("hot" + i));
+
+        assertEquals(10, counter(metrics, "sfh_cache_blobs_hits_total") - hitsBefore);
+        assertTrue(cache.residentBytes() <= 64 * 1024);
+    }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        var metrics = new MetricsRegistry();
+        var cache = cache(BLOB_SIZE, metrics);
+        var key = blob("shared");
+
+        cache.get(key);
+
+        var start = new CountDownLatch(1);
+        var executor = Executors.newFixedThreadPool(16);
+        try {
+            var futures = new ArrayList<Future<BlobCache.CachedBlob>>();
+            for (int i = 0; i < 16; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return cache.get(key);
+                }));
+            }
+
+            start.countDown();
+            for (var future : futures)
+                assertNotNull(future.get());
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(1, counter(metrics, "sfh_cache_blobs_loads_total"));
+    }
+
+    @Test
+    public void testLargeBlobsAreNotCached() throws Exception {
+        var metrics = new MetricsRegistry();
+        var cache = cache(BLOB_SIZE / 2, metrics);
+        var key = blob("large");
+
+        assertNull(cache.get(key));
+        assertNull(cache.get(key));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testFirstAccessDoesntTouchTheStore() throws Exception {
+        var stats = new AtomicInteger();
+        var store = new LocalBlobStore(this.tempDir.toFile()) {
+            @Override
+            public @Nullable BlobStat stat(String key) throws IOException {
+                stats.incrementAndGet();
+                return super.stat(key);
+            }
+        };
+        var metrics = new MetricsRegistry();
+        var cache = new BlobCache(store, 64 * 1024, BLOB_SIZE, metrics, new TransferMetrics(metrics));
+        var key = blob("a");
+
+        assertNull(cache.get(key));
+        assertEquals(0, stats.get(), "not loaded anyway, a stat would be a wasted request");
+
+        assertNotNull(cache.get(key));
+        assertEquals(1, stats.get());
+    }
+
+    @Test
+    public void testPeekingDoesntCountAsAccess() throws Exception {
+        var cache = cache(BLOB_SIZE, new MetricsRegistry());
+        var key = blob("a");
+
+        // read along in an archive, it's not popular because of that
+        assertNull(cache.peek(key));
+        assertNull(cache.peek(key));
+        assertNull(cache.get(key), "first access only counts");
+
+        var loaded = cache.get(key);
+        assertNotNull(loaded);
+        assertSame(loaded, cache.peek(key));
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.github.marcelektro.simplefilehost.cache;
+
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WeightedLruCacheTests {
+
+    @Test
+    public void testCachesAndEvictsByWeight() throws Exception {
+        // 16 segments of 100 each, every value weighs 40
+        var cache = new WeightedLruCache<Integer, String>("test", 1600, v -> 40, new MetricsRegistry());
+        var loads = new AtomicInteger();
+
+        // keys 0, 16, 32 share a segment, only two of them fit
+        assertEquals("0", cache.get(0, k -> { loads.incrementAndGet(); return String.valueOf(k); }));
+        assertEquals("0", cache.get(0, k -> { loads.incrementAndGet(); return String.valueOf(k); }));
+        assertEquals(1, loads.get());
+
+        cache.get(16, String::valueOf);
+        cache.get(0, k -> fail("recently used, still cached"));
+        cache.get(32, String::valueOf); // evicts 16, the least recently used
+
+        assertEquals(2, cache.size());
+        assertEquals(80, cache.weight());
+        assertEquals("16!", cache.get(16, k -> k + "!"));
+    }
+
+    @Test
+    public void testInvalidationDuringLoadIsNotOverwritten() throws Exception {
+        var cache = new WeightedLruCache<String, String>("test", 1 << 20, String::length, new MetricsRegistry());
+
+        // the link changes while its old state is being loaded
+        var loaded = cache.get("link", k -> {
+            cache.invalidate("link");
+            return "stale";
+        });
+
+        assertEquals("stale", loaded);
+        assertEquals("fresh", cache.get("link", k -> "fresh"));
+    }
+
+    @Test
+    public void testNullIsNotCached() throws Exception {
+        var cache = new WeightedLruCache<String, String>("test", 1 << 20, String::length, new MetricsRegistry());
+
+        assertNull(cache.get("missing", k -> null));
+        assertEquals("created", cache.get("missing", k -> "created"));
+    }
+
+}
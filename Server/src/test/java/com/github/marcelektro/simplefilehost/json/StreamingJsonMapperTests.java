@@ -0,0 +1,106 @@
+package com.github.marcelektro.simplefilehost.json;
+
+import com.github.marcelektro.simplefilehost.dto.ErrorResponse;
+import com.github.marcelektro.simplefilehost.dto.auth.LoginResponseDto;
+import com.github.marcelektro.simplefilehost.dto.auth.MeResponseDto;
+import com.github.marcelektro.simplefilehost.dto.file.FileDownloadErrorResponseDto;
+import com.github.marcelektro.simplefilehost.dto.file.FileMetaDto;
+import com.github.marcelektro.simplefilehost.dto.file.UploadFileResponseDto;
+import com.github.marcelektro.simplefilehost.dto.sharing.*;
+import com.github.marcelektro.simplefilehost.dto.upload.FinalizeUploadResponseDto;
+import com.github.marcelektro.simplefilehost.dto.upload.UploadSessionDto;
+import com.github.marcelektro.simplefilehost.util.LocalDateTimeTypeAdapter;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StreamingJsonMapperTests {
+
+    // as configured in SimpleFileHostApp
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeTypeAdapter())
+            .serializeNulls()
+            .create();
+
+    private static final String TRICKY = "<a href='x'>&amp;=\"\\/ \t\n\r\b\f \u0000\u001f\u007f \u00e9\u4e2d\ud83d\ude00 \u2028\u2029";
+
+    private final StreamingJsonMapper mapper = new StreamingJsonMapper(GSON);
+
+
+    private void assertSameAsGson(Object value) throws Exception {
+        var expected = GSON.toJson(value, value.getClass());
+
+        assertEquals(expected, this.mapper.toJsonString(value, value.getClass()));
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), this.mapper.toJsonStream(value, value.getClass()).readAllBytes());
+    }
+
+
+    @Test
+    public void testDtosMatchGson() throws Exception {
+        var date = LocalDateTime.of(2025, 3, 7, 9, 5, 0);
+
+        var values = List.of(
+                ErrorResponse.of("SOME_ERROR", TRICKY),
+                ErrorResponse.of("NULL_MESSAGE", null),
+                new LoginResponseDto(Integer.MAX_VALUE, TRICKY, "eyJhbGciOiJIUzI1NiJ9.e30.abc-_="),
+                new MeResponseDto(-1),
+                new FileDownloadErrorResponseDto(),
+                new FileMetaDto("id", TRICKY, Long.MAX_VALUE, date, 3),
+                new FileMetaDto("id", "", 0, null, 0),
+                new UploadFileResponseDto("id"),
+                new CreateShareLinkResponseDto("abcd1234"),
+                new ListShareLinksResponseDto("id", List.of(
+                        new ShareLinkDto("a", date.withNano(123_000_000), TRICKY),
+                        new ShareLinkDto("b", null, null)
+                )),
+                new ListShareLinksResponseDto("id", List.of()),
+                new ListShareLinksResponseDto(null, null),
+                new ShareLinkInfoDto("a", "b", null, date),
+                new ShareLinkValidationResultDto("a", "b", TRICKY, 42, true, false, null, true),
+                new FinalizeUploadResponseDto("id"),
+                new UploadSessionDto("u", TRICKY, 100, 50, 75, date.withNano(1))
+        );
+
+        for (var value : values) {
+            assertTrue(StreamingJsonMapper.hasWriter(value.getClass()), value.getClass().getName());
+            assertSameAsGson(value);
+        }
+    }
+
+    @Test
+    public void testDatesMatchGson() throws Exception {
+        var random = new Random(1);
+
+        var dates = new ArrayList<>(List.of(
+                LocalDateTime.of(2025, 1, 1, 0, 0),
+                LocalDateTime.of(1, 12, 31, 23, 59, 59, 999_999_999),
+                LocalDateTime.of(9999, 6, 15, 12, 30, 1, 100),
+                LocalDateTime.of(10000, 1, 1, 0, 0),
+                LocalDateTime.of(-5, 1, 1, 0, 0, 0, 500_000_000)
+        ));
+        for (int i = 0; i < 1000; i++) {
+            dates.add(LocalDateTime.of(random.nextInt(3000), 1 + random.nextInt(12), 1 + random.nextInt(28),
+                    random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextBoolean() ? 0 : random.nextInt(1_000_000_000)));
+        }
+
+        for (var date : dates)
+            assertSameAsGson(new ShareLinkInfoDto("a", "b", null, date));
+    }
+
+    @Test
+    public void testUnknownTypesFallBackToGson() {
+        var value = new LoginRequestLike("user", TRICKY);
+        assertEquals(GSON.toJson(value), this.mapper.toJsonString(value, LoginRequestLike.class));
+    }
+
+    private record LoginRequestLike(String username, String password) {}
+
+}
@@ -0,0 +1,46 @@
+package com.github.marcelektro.simplefilehost.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsRegistryTests {
+
+    @Test
+    public void testRendersLabeledFamiliesTogether() {
+        var metrics = new MetricsRegistry();
+
+        metrics.counter("requests_total", "Requests", MetricsRegistry.labels("status", "200")).add(3);
+        metrics.counter("requests_total", "Requests", MetricsRegistry.labels("status", "404")).increment();
+        metrics.histogram("latency_seconds", "Latency", MetricsRegistry.labels("route", "/a"), new double[]{0.1, 1}).observe(0.5);
+
+        assertEquals("""
+                     # HELP latency_seconds Latency
+                     # TYPE latency_seconds histogram
+                     latency_seconds_bucket{route="/a",le="0.1"} 0
+                     latency_seconds_bucket{route="/a",le="1"} 1
+                     latency_seconds_bucket{route="/a",le="+Inf"} 1
+                     latency_seconds_sum{route="/a"} 0.5
+                     latency_seconds_count{route="/a"} 1
+                     # HELP requests_total Requests
+                     # TYPE requests_total counter
+                     requests_total{status="200"} 3
+                     requests_total{status="404"} 1
+                     """, metrics.scrape());
+    }
+
+    @Test
+    public void testRejectsDuplicatesAndTypeConflicts() {
+        var metrics = new MetricsRegistry();
+        metrics.counter("a_total", "A", MetricsRegistry.labels("x", "1"));
+
+        assertThrows(IllegalArgumentException.class, () -> metrics.counter("a_total", "A", MetricsRegistry.labels("x", "1")));
+        assertThrows(IllegalArgumentException.class, () -> metrics.gauge("a_total", "A", MetricsRegistry.labels("x", "2"), () -> 1));
+    }
+
+    @Test
+    public void testEscapesLabelValues() {
+        assertEquals("path=\"a\\\"b\\\\c\\nd\"", MetricsRegistry.labels("path", "a\"b\\c\nd"));
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.github.marcelektro.simplefilehost.service.auth;
+
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.security.Keys;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AuthServiceImplTests {
+
+    private static final String SECRET = "test-secret-test-secret-test-secret-test-secret";
+
+
+    private static String token(String subject, Instant expiration) {
+        return Jwts.builder()
+                .subject(subject)
+                .expiration(Date.from(expiration))
+                .signWith(Keys.hmacShaKeyFor(SECRET.getBytes()))
+                .compact();
+    }
+
+
+    @Test
+    public void testCachedTokenStillExpires() throws Exception {
+        var clock = new MutableClock(Instant.now());
+        var auth = new AuthServiceImpl(null, null, SECRET, 1024 * 1024, new MetricsRegistry(), clock);
+        var token = token("42", clock.instant().plusSeconds(2));
+
+        // verified once, then served from the cache
+        assertEquals(42, auth.validateTokenAndGetUserId(token).getData());
+        clock.advance(Duration.ofSeconds(1));
+        assertEquals(42, auth.validateTokenAndGetUserId(token).getData());
+
+        clock.advance(Duration.ofSeconds(2));
+
+        var res = auth.validateTokenAndGetUserId(token);
+        assertFalse(res.isSuccess());
+        assertEquals("EXPIRED_TOKEN", res.getErrorCode());
+    }
+
+    @Test
+    public void testInvalidTokensAreRejected() throws Exception {
+        var auth = new AuthServiceImpl(null, null, SECRET, 1024 * 1024, new MetricsRegistry());
+        var token = token("42", Instant.now().plusSeconds(60));
+
+        var tampered = token.substring(0, token.length() - 2) + (token.endsWith("AA") ? "BB" : "AA");
+        assertEquals("TOKEN_VALIDATION_FAILURE", auth.validateTokenAndGetUserId(tampered).getErrorCode());
+        assertEquals("TOKEN_VALIDATION_FAILURE", auth.validateTokenAndGetUserId("not a token").getErrorCode());
+
+        assertEquals("TOKEN_VALIDATION_FAILURE", auth.validateTokenAndGetUserId(token("not a number", Instant.now().plusSeconds(60))).getErrorCode());
+    }
+
+
+    private static final class MutableClock extends Clock {
+
+        private volatile Instant now;
+
+        private MutableClock(Instant now) {
+            this.now = now;
+        }
+
+        private void advance(Duration duration) {
+            this.now = this.now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return this.now;
+        }
+
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.github.marcelektro.simplefilehost.service.auth.password;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.util.HashUtil;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PasswordHashingExecutorTests {
+
+    private static Config.Auth authConfig(int iterations, int threads, int queueSize) {
+        return new Config.Auth(Pbkdf2PasswordHasher.SHA256, iterations, threads, queueSize, 1);
+    }
+
+
+    @Test
+    public void testVerifiesAndRehashesOutdatedHashes() throws Exception {
+        var oldHasher = new Pbkdf2PasswordHasher(Pbkdf2PasswordHasher.SHA256, 1000);
+        var config = authConfig(2000, 1, 4);
+        var executor = new PasswordHashingExecutor(PasswordHasher.fromConfig(config), config, new MetricsRegistry());
+
+        var current = executor.hash("secret");
+        assertEquals(new PasswordHashingExecutor.Verification(true, null), executor.verify("secret", current, ""));
+        assertFalse(executor.verify("wrong", current, "").valid());
+
+        var outdated = oldHasher.hash("secret");
+        var verification = executor.verify("secret", outdated, "");
+        assertTrue(verification.valid());
+        assertNotNull(verification.rehashed());
+        assertTrue(new Pbkdf2PasswordHasher(Pbkdf2PasswordHasher.SHA256, 2000).verify("secret", verification.rehashed()));
+        assertFalse(executor.verify("wrong", outdated, "").valid());
+
+        // from before hashes carried their salt
+        var salt = HashUtil.generateSalt();
+        var legacy = executor.verify("secret", HashUtil.hashPassword("secret", salt), salt);
+        assertTrue(legacy.valid());
+        assertNotNull(legacy.rehashed());
+    }
+
+    @Test
+    public void testUnknownUsersCostAVerificationToo() throws Exception {
+        var verified = new AtomicInteger();
+        var config = authConfig(2000, 1, 4);
+        PasswordHasher countingHasher = new Pbkdf2PasswordHasher(Pbkdf2PasswordHasher.SHA256, 2000) {
+            @Override
+            public boolean verify(String password, String encodedHash) {
+                verified.incrementAndGet();
+                assertFalse(needsRehash(encodedHash), "with the current parameters");
+                return super.verify(password, encodedHash);
+            }
+        };
+        var metrics = new MetricsRegistry();
+        var executor = new PasswordHashingExecutor(countingHasher, config, metrics);
+
+        executor.verifyUnknownUser("secret");
+        executor.verifyUnknownUser("");
+        assertEquals(2, verified.get());
+        assertTrue(metrics.scrape().contains("sfh_auth_password_hash_seconds_count 3"), "the dummy hash is made once");
+    }
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws Exception {
+        var release = new CountDownLatch(1);
+        var started = new CountDownLatch(1);
+
+        PasswordHasher blockingHasher = new Pbkdf2PasswordHasher(Pbkdf2PasswordHasher.SHA256, 1000) {
+            @Override
+            public String hash(String password) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return super.hash(password);
+            }
+        };
+
+        var metrics = new MetricsRegistry();
+        var executor = new PasswordHashingExecutor(blockingHasher, authConfig(1000, 1, 1), metrics);
+
+        // one running, one queued
+        var running = new Thread(() -> assertDoesNotThrow(() -> executor.hash("a")));
+        running.start();
+        started.await();
+        var queued = new Thread(() -> assertDoesNotThrow(() -> executor.hash("b")));
+        queued.start();
+        while (!metrics.scrape().contains("sfh_auth_password_hash_queue_depth 1.0"))
+            Thread.sleep(1);
+
+        assertThrows(RejectedExecutionException.class, () -> executor.hash("c"));
+        assertTrue(metrics.scrape().contains("sfh_auth_password_hash_rejected_total 1"));
+
+        release.countDown();
+        running.join();
+        queued.join();
+    }
+
+}
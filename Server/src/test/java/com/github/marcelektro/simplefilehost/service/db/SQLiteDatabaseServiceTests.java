@@ -0,0 +1,306 @@
+package com.github.marcelektro.simplefilehost.service.db;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.service.db.migration.V1Baseline;
+import com.github.marcelektro.simplefilehost.util.EpochMillis;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SQLiteDatabaseServiceTests {
+
+    @TempDir
+    Path tempDir;
+
+
+    private SQLiteDatabaseService database(MetricsRegistry metrics, int writeQueueSize, int writeQueueTimeoutMillis) throws Exception {
+        var defaults = Config.defaultConfig().database;
+        var config = new Config.Database(defaults.readPoolSize, defaults.synchronous, defaults.mmapSize, defaults.cacheSizeKiB, defaults.busyTimeoutMillis,
+                defaults.groupCommitMaxBatchSize, defaults.groupCommitMaxWaitMicros, writeQueueSize, writeQueueTimeoutMillis, defaults.overloadRetryAfterSeconds);
+
+        var db = new SQLiteDatabaseService(this.tempDir.resolve("test.db").toString(), config, metrics);
+        db.write(conn -> conn.createStatement().execute("CREATE TABLE t (id INTEGER PRIMARY KEY)"));
+        return db;
+    }
+
+    private static long queueDepth(MetricsRegistry metrics) {
+        return metrics.scrape().lines()
+                .filter(line -> line.startsWith("sfh_db_write_queue_depth "))
+                .mapToLong(line -> (long) Double.parseDouble(line.substring(line.indexOf(' ') + 1)))
+                .findFirst()
+                .orElseThrow();
+    }
+
+    /**
+     * Keeps the writer busy until the returned latch is counted down, so the writes queued meanwhile end up in one batch.
+     */
+    private static CountDownLatch blockWriter(DatabaseService db, ExecutorService executor) throws InterruptedException {
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        executor.submit(() -> db.write(conn -> {
+            started.countDown();
+            return release.await(10, TimeUnit.SECONDS);
+        }));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        return release;
+    }
+
+    /**
+     * Queues the write from another thread and waits until it's in the queue, so writes queued one after the other keep their order.
+     */
+    private static Future<?> queueWrite(DatabaseService db, ExecutorService executor, MetricsRegistry metrics, DatabaseService.SqlWork<?> work) throws InterruptedException {
+        var depth = queueDepth(metrics);
+        var future = executor.submit(() -> db.write(work));
+        while (queueDepth(metrics) == depth)
+            Thread.sleep(1);
+        return future;
+    }
+
+    private static int countRows(DatabaseService db) throws Exception {
+        try (var conn = db.getReadConnection();
+             var rs = conn.createStatement().executeQuery("SELECT COUNT(*) FROM t")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+
+    @Test
+    public void testGroupCommitIsolatesFailures() throws Exception {
+        var metrics = new MetricsRegistry();
+        var db = new SQLiteDatabaseService(this.tempDir.resolve("test.db").toString(), Config.defaultConfig().database, metrics);
+
+        db.write(conn -> conn.createStatement().execute("CREATE TABLE t (id INTEGER PRIMARY KEY)"));
+
+        var executor = Executors.newFixedThreadPool(16);
+        try {
+            var futures = new ArrayList<Future<?>>();
+
+            for (int i = 0; i < 200; i++) {
+                var id = i;
+                futures.add(executor.submit(() -> db.write(conn -> {
+                    conn.createStatement().execute("INSERT INTO t (id) VALUES (" + id + ")");
+
+                    // every tenth write fails after having written, only its own insert may be rolled back
+                    if (id % 10 == 0)
+                        throw new IllegalStateException("failing write " + id);
+                    return id;
+                })));
+            }
+
+            var failures = 0;
+            for (var future : futures) {
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    assertInstanceOf(IllegalStateException.class, e.getCause());
+                    failures++;
+                }
+            }
+
+            assertEquals(20, failures);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(180, countRows(db));
+        assertTrue(metrics.scrape().contains("sfh_db_write_batch_size_count"));
+    }
+
+    @Test
+    public void testQueuedWritesRunInOrderWithinABatch() throws Exception {
+        var metrics = new MetricsRegistry();
+        var db = database(metrics, 64, 1000);
+        db.write(conn -> conn.createStatement().execute("CREATE TABLE log (seq INTEGER PRIMARY KEY AUTOINCREMENT, id INTEGER)"));
+
+        var executor = Executors.newCachedThreadPool();
+        try {
+            var release = blockWriter(db, executor);
+
+            var futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 10; i++) {
+                var id = i;
+                futures.add(queueWrite(db, executor, metrics, conn -> {
+                    conn.createStatement().execute("INSERT INTO log (id) VALUES (" + id + ")");
+                    // one in the middle of the batch fails, only its own insert is rolled back
+                    if (id == 3)
+                        throw new IllegalStateException("failing write");
+                    return id;
+                }));
+            }
+
+            release.countDown();
+            for (int i = 0; i < futures.size(); i++) {
+                if (i == 3) {
+                    var future = futures.get(i);
+                    assertInstanceOf(IllegalStateException.class, assertThrows(Exception.class, future::get).getCause());
+                } else {
+                    futures.get(i).get();
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        var ids = new ArrayList<Integer>();
+        try (var conn = db.getReadConnection();
+             var rs = conn.createStatement().executeQuery("SELECT id FROM log ORDER BY seq")) {
+            while (rs.next())
+                ids.add(rs.getInt(1));
+        }
+        assertEquals(List.of(0, 1, 2, 4, 5, 6, 7, 8, 9), ids);
+    }
+
+    @Test
+    public void testRejectsWritesWhileTheQueueStaysFull() throws Exception {
+        var metrics = new MetricsRegistry();
+        var db = database(metrics, 2, 50);
+
+        var executor = Executors.newCachedThreadPool();
+        try {
+            var release = blockWriter(db, executor);
+            var queued = List.of(
+                    queueWrite(db, executor, metrics, conn -> conn.createStatement().execute("INSERT INTO t (id) VALUES (1)")),
+                    queueWrite(db, executor, metrics, conn -> conn.createStatement().execute("INSERT INTO t (id) VALUES (2)"))
+            );
+
+            assertThrows(DatabaseOverloadedException.class, () -> db.write(conn -> conn.createStatement().execute("INSERT INTO t (id) VALUES (3)")));
+
+            release.countDown();
+            for (var future : queued)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        // the rejected write never ran, there's room again now
+        assertEquals(2, countRows(db));
+        db.write(conn -> conn.createStatement().execute("INSERT INTO t (id) VALUES (3)"));
+        assertEquals(3, countRows(db));
+        assertTrue(metrics.scrape().contains("sfh_db_writes_rejected_total 1"));
+    }
+
+    @Test
+    public void testCloseFailsQueuedWritesAndReleasesTheDatabase() throws Exception {
+        var metrics = new MetricsRegistry();
+        var db = database(metrics, 16, 1000);
+        db.write(conn -> conn.createStatement().execute("INSERT INTO t (id) VALUES (1)"));
+
+        var executor = Executors.newCachedThreadPool();
+        try {
+            blockWriter(db, executor);
+            var queued = queueWrite(db, executor, metrics, conn -> conn.createStatement().execute("INSERT INTO t (id) VALUES (2)"));
+
+            db.close();
+
+            var e = assertThrows(ExecutionException.class, queued::get);
+            assertInstanceOf(SQLException.class, e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThrows(SQLException.class, () -> db.write(conn -> conn.createStatement().execute("INSERT INTO t (id) VALUES (3)")));
+        assertThrows(SQLException.class, db::getReadConnection);
+
+        // committed before, and the file can be opened again
+        var reopened = new SQLiteDatabaseService(this.tempDir.resolve("test.db").toString(), Config.defaultConfig().database, new MetricsRegistry());
+        try {
+            assertEquals(1, countRows(reopened));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testNestedWriteJoinsTransaction() throws Exception {
+        var db = new SQLiteDatabaseService(this.tempDir.resolve("test.db").toString(), Config.defaultConfig().database, new MetricsRegistry());
+
+        db.write(conn -> conn.createStatement().execute("CREATE TABLE t (id INTEGER PRIMARY KEY)"));
+
+        assertThrows(IllegalStateException.class, () -> db.write(conn -> {
+            db.write(inner -> inner.createStatement().execute("INSERT INTO t (id) VALUES (1)"));
+            throw new IllegalStateException("rolls back the nested write too");
+        }));
+
+        assertEquals(0, countRows(db));
+
+        // sees what the outer write did so far and hands its result back, without queueing behind it
+        var inserted = db.write(conn -> {
+            conn.createStatement().execute("INSERT INTO t (id) VALUES (2)");
+            return db.write(inner -> {
+                try (var rs = inner.createStatement().executeQuery("SELECT COUNT(*) FROM t")) {
+                    rs.next();
+                    return rs.getInt(1);
+                }
+            });
+        });
+        assertEquals(1, inserted);
+        assertEquals(1, countRows(db));
+    }
+
+    @Test
+    public void testMigratesLegacyDatabase() throws Exception {
+        var dbFile = this.tempDir.resolve("legacy.db").toString();
+
+        // a database as created before versioned migrations, with TEXT dates
+        try (var conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile);
+             var stmt = conn.createStatement()) {
+            new V1Baseline().apply(conn);
+            stmt.execute("INSERT INTO uploaded_files (id, userId, filename, size, uploadDate, path) VALUES ('f1', 'u1', 'a.txt', 3, '2024-05-01T12:30:15.123456', '/srv/data/blobs/4f/3c2e8a')");
+            stmt.execute("INSERT INTO shared_links (id, fileId, expiry, password) VALUES ('l1', 'f1', '2030-01-01T00:00', NULL), ('l2', 'f1', NULL, NULL)");
+        }
+
+        var db = new SQLiteDatabaseService(dbFile, Config.defaultConfig().database, new MetricsRegistry());
+        db.initialSetup();
+
+        try (var conn = db.getReadConnection();
+             var stmt = conn.createStatement()) {
+            var rs = stmt.executeQuery("SELECT uploadedAt FROM uploaded_files WHERE id = 'f1'");
+            assertTrue(rs.next());
+            assertEquals(EpochMillis.of(LocalDateTime.parse("2024-05-01T12:30:15.123")), rs.getLong(1));
+
+            rs = stmt.executeQuery("SELECT path FROM uploaded_files WHERE id = 'f1'");
+            assertTrue(rs.next());
+            assertEquals("4f/3c2e8a", rs.getString(1));
+
+            rs = stmt.executeQuery("SELECT id, expiresAt FROM shared_links ORDER BY id");
+            assertTrue(rs.next());
+            assertEquals(EpochMillis.of(LocalDateTime.parse("2030-01-01T00:00")), rs.getLong(2));
+            assertTrue(rs.next());
+            rs.getLong(2);
+            assertTrue(rs.wasNull());
+
+            rs = stmt.executeQuery("EXPLAIN QUERY PLAN SELECT id FROM uploaded_files WHERE userId = 'u1' ORDER BY uploadedAt DESC, id DESC");
+            assertTrue(rs.next());
+            assertTrue(rs.getString("detail").contains("idx_uploaded_files_user_uploaded_at"), rs.getString("detail"));
+
+            rs = stmt.executeQuery("SELECT MAX(version) FROM schema_migrations");
+            assertEquals(8, rs.getInt(1));
+        }
+
+        // the pre-migration backup
+        try (var files = Files.list(this.tempDir)) {
+            assertEquals(1, files.filter(f -> f.getFileName().toString().startsWith("legacy.db.pre-migration-v0")).count());
+        }
+
+        // running again is a no-op
+        db.initialSetup();
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.github.marcelektro.simplefilehost.service.file;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.storage.LocalBlobStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.github.marcelektro.simplefilehost.service.file.FileServiceFixtures.USER_ID;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlobReaperTests {
+
+    @TempDir
+    Path tempDir;
+
+    private FileServiceFixtures fixtures;
+    private BlobReaper reaper;
+    private volatile boolean failDeletes;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        this.fixtures = new FileServiceFixtures(this.tempDir);
+
+        // the same files, failing deletes on demand
+        var blobStore = new LocalBlobStore(this.fixtures.blobDirectory) {
+            @Override
+            public boolean delete(String key) throws IOException {
+                if (BlobReaperTests.this.failDeletes)
+                    throw new IOException("Device busy");
+                return super.delete(key);
+            }
+        };
+
+        // no interval, driven by the test instead
+        this.reaper = new BlobReaper(this.fixtures.fileUploadService, blobStore, this.fixtures.db,
+                new Config.BlobReaper(2, 256, 0, 0, 30, 60 * 60), this.fixtures.metrics);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.reaper.close();
+    }
+
+    /**
+     * @return the key of the deleted file's blob, tombstoned
+     */
+    private String uploadAndDelete(byte[] content) throws Exception {
+        var fileId = this.fixtures.upload(USER_ID, content);
+        var key = this.fixtures.blobKey(fileId);
+        assertTrue(this.fixtures.fileUploadService.deleteFile(USER_ID, fileId).isSuccess());
+        return key;
+    }
+
+    private boolean stored(String key) throws Exception {
+        return this.fixtures.blobStore.stat(key) != null;
+    }
+
+
+    @Test
+    public void testDeletesTombstonedBlobs() throws Exception {
+        var key = uploadAndDelete(FileServiceFixtures.content(1, 5000));
+        assertTrue(stored(key));
+
+        assertEquals(1, this.reaper.reapBatch());
+        assertFalse(stored(key));
+        assertEquals(0, this.fixtures.queryLong("SELECT COUNT(*) FROM blob_tombstones"));
+
+        assertEquals(0, this.reaper.reapBatch());
+    }
+
+    @Test
+    public void testBacksOffAfterAFailedDelete() throws Exception {
+        var key = uploadAndDelete(FileServiceFixtures.content(1, 5000));
+
+        this.failDeletes = true;
+        var before = System.currentTimeMillis();
+        assertEquals(1, this.reaper.reapBatch());
+
+        assertTrue(stored(key));
+        assertEquals(1, this.fixtures.queryLong("SELECT attempts FROM blob_tombstones WHERE path = ?", key));
+        var nextAttemptAt = this.fixtures.queryLong("SELECT nextAttemptAt FROM blob_tombstones WHERE path = ?", key);
+        assertTrue(nextAttemptAt >= before + TimeUnit.SECONDS.toMillis(30), "retried after the base delay");
+
+        // not due yet, even once the store works again
+        this.failDeletes = false;
+        assertEquals(0, this.reaper.reapBatch());
+        assertTrue(stored(key));
+
+        // the second failure doubles the delay
+        this.failDeletes = true;
+        this.fixtures.db.write(conn -> conn.createStatement().executeUpdate("UPDATE blob_tombstones SET nextAttemptAt = 0"));
+        before = System.currentTimeMillis();
+        assertEquals(1, this.reaper.reapBatch());
+        assertEquals(2, this.fixtures.queryLong("SELECT attempts FROM blob_tombstones WHERE path = ?", key));
+        nextAttemptAt = this.fixtures.queryLong("SELECT nextAttemptAt FROM blob_tombstones WHERE path = ?", key);
+        assertTrue(nextAttemptAt >= before + TimeUnit.SECONDS.toMillis(60));
+
+        this.failDeletes = false;
+        this.fixtures.db.write(conn -> conn.createStatement().executeUpdate("UPDATE blob_tombstones SET nextAttemptAt = 0"));
+        assertEquals(1, this.reaper.reapBatch());
+        assertFalse(stored(key));
+        assertEquals(0, this.fixtures.queryLong("SELECT COUNT(*) FROM blob_tombstones"));
+    }
+
+    @Test
+    public void testKeepsABlobUploadedAgainWhileBeingReaped() throws Exception {
+        var content = FileServiceFixtures.content(1, 5000);
+        var key = uploadAndDelete(content);
+        var digest = this.fixtures.queryString("SELECT digest FROM blob_tombstones WHERE path = ?", key);
+        assertNotNull(digest);
+
+        var lock = (ReentrantLock) this.fixtures.fileUploadService.blobLock(digest);
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            // the reaper picks up the tombstone, then waits for the blob's lock
+            lock.lock();
+            try {
+                var reaping = executor.submit(this.reaper::reapBatch);
+                while (!lock.hasQueuedThreads())
+                    Thread.sleep(1);
+
+                // the lock is reentrant, the upload goes through while the reaper waits
+                var fileId = this.fixtures.upload(USER_ID, content);
+                assertEquals(key, this.fixtures.blobKey(fileId));
+
+                lock.unlock();
+                assertEquals(1, reaping.get(10, TimeUnit.SECONDS));
+            } finally {
+                if (lock.isHeldByCurrentThread())
+                    lock.unlock();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertArrayEquals(content, this.fixtures.read(key));
+        assertEquals(0, this.fixtures.queryLong("SELECT COUNT(*) FROM blob_tombstones"));
+        assertEquals(1, this.fixtures.queryLong("SELECT refCount FROM blobs WHERE path = ?", key));
+    }
+
+}
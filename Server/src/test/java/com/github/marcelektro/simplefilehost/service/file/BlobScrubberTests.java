@@ -0,0 +1,215 @@
+package com.github.marcelektro.simplefilehost.service.file;
+
+import com.github.marcelektro.simplefilehost.cache.BlobCache;
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.metrics.TransferMetrics;
+import com.github.marcelektro.simplefilehost.service.db.SQLiteDatabaseService;
+import com.github.marcelektro.simplefilehost.service.sharing.ShareLinkCache;
+import com.github.marcelektro.simplefilehost.storage.BlobStore;
+import com.github.marcelektro.simplefilehost.storage.LocalBlobStore;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlobScrubberTests {
+
+    private static final String USER_ID = "scrub-user";
+
+    @TempDir
+    Path tempDir;
+
+    private SQLiteDatabaseService db;
+    private LocalBlobStore blobStore;
+    private FileUploadServiceImpl fileUploadService;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final TransferMetrics transfers = new TransferMetrics(this.metrics);
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        var config = Config.defaultConfig();
+        this.db = new SQLiteDatabaseService(this.tempDir.resolve("test.db").toString(), config.database, this.metrics);
+        this.db.initialSetup();
+
+        // fill the read pool up front, Hikari would otherwise still be opening connections in the background when the temp directory is deleted
+        var connections = new ArrayList<Connection>();
+        for (int i = 0; i < config.database.readPoolSize; i++)
+            connections.add(this.db.getReadConnection());
+        for (var conn : connections)
+            conn.close();
+
+        this.blobStore = new LocalBlobStore(blobDirectory());
+        this.fileUploadService = new FileUploadServiceImpl(new File(blobDirectory(), ".staging"), this.blobStore, this.db, config.upload,
+                config.compression, new ShareLinkCache(this.db, 0, this.metrics), new BlobCache(this.blobStore, 0, 0, this.metrics, this.transfers), this.transfers);
+
+        this.db.write(conn -> {
+            try (var ps = conn.prepareStatement("INSERT INTO users (id, username, passwordHash, passwordSalt) VALUES (?, ?, '', '')")) {
+                ps.setString(1, USER_ID);
+                ps.setString(2, USER_ID);
+                ps.executeUpdate();
+            }
+            return null;
+        });
+    }
+
+    private File blobDirectory() {
+        return this.tempDir.resolve("blobs").toFile();
+    }
+
+    private BlobScrubber scrubber() {
+        return scrubber(this.blobStore, 2, this.metrics);
+    }
+
+    private BlobScrubber scrubber(LocalBlobStore blobStore, int batchSize, MetricsRegistry metrics) {
+        var scrubber = new BlobScrubber(this.fileUploadService, blobStore, this.db, this.transfers,
+                new Config.Scrubber(true, 0, 0, batchSize, 0, 0), metrics);
+        // driven by the test instead
+        scrubber.close();
+        return scrubber;
+    }
+
+    private static byte[] content(int seed) {
+        var content = new byte[5000];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private String upload(byte[] content) throws Exception {
+        var result = this.fileUploadService.uploadFile(USER_ID, "file.bin", new ByteArrayInputStream(content));
+        assertTrue(result.isSuccess());
+        return blobPath(result.getData());
+    }
+
+    private String blobPath(String fileId) throws Exception {
+        try (var conn = this.db.getReadConnection();
+             var ps = conn.prepareStatement("SELECT b.path FROM uploaded_files uf JOIN blobs b ON b.digest = uf.blobDigest WHERE uf.id = ?")) {
+            ps.setString(1, fileId);
+            var rs = ps.executeQuery();
+            assertTrue(rs.next());
+            return rs.getString(1);
+        }
+    }
+
+    private Map<String, String> problems() throws Exception {
+        var problems = new TreeMap<String, String>();
+        try (var conn = this.db.getReadConnection();
+             var ps = conn.prepareStatement("SELECT path, problem FROM blob_problems")) {
+            var rs = ps.executeQuery();
+            while (rs.next())
+                problems.put(rs.getString("path"), rs.getString("problem"));
+        }
+        return problems;
+    }
+
+    private String cursor(String walk) throws Exception {
+        try (var conn = this.db.getReadConnection();
+             var ps = conn.prepareStatement("SELECT cursor FROM scrub_progress WHERE walk = ?")) {
+            ps.setString(1, walk);
+            var rs = ps.executeQuery();
+            assertTrue(rs.next());
+            return rs.getString(1);
+        }
+    }
+
+    private boolean tombstoned(String key) throws Exception {
+        try (var conn = this.db.getReadConnection();
+             var ps = conn.prepareStatement("SELECT 1 FROM blob_tombstones WHERE path = ?")) {
+            ps.setString(1, key);
+            return ps.executeQuery().next();
+        }
+    }
+
+
+    @Test
+    public void testFlagsDamagedBlobsAndRestoresThemOnUpload() throws Exception {
+        var corrupted = upload(content(1));
+        var missing = upload(content(2));
+        var fine = upload(content(3));
+
+        try (var blob = new RandomAccessFile(new File(blobDirectory(), corrupted), "rw")) {
+            blob.seek(100);
+            blob.write(~content(1)[100]);
+        }
+        Files.delete(new File(blobDirectory(), missing).toPath());
+
+        scrubber().scrub();
+
+        assertEquals(Map.of(corrupted, BlobScrubber.CORRUPT, missing, BlobScrubber.MISSING), problems());
+        assertFalse(tombstoned(fine));
+
+        // uploading the same content again writes it back
+        upload(content(1));
+        assertArrayEquals(content(1), Files.readAllBytes(new File(blobDirectory(), corrupted).toPath()));
+        assertEquals(Map.of(missing, BlobScrubber.MISSING), problems());
+    }
+
+    @Test
+    public void testReleasesBlobsNothingReferences() throws Exception {
+        var referenced = upload(content(1));
+        var orphan = "ab/" + "0".repeat(62);
+        this.blobStore.put(orphan, new ByteArrayInputStream(content(2)), 5000);
+
+        scrubber().scrub();
+
+        assertTrue(tombstoned(orphan));
+        assertFalse(tombstoned(referenced));
+        assertTrue(problems().isEmpty());
+    }
+
+    @Test
+    public void testResumesAfterTheLastBlobCheckedWhenInterrupted() throws Exception {
+        var keys = new ArrayList<String>();
+        for (int i = 0; i < 4; i++)
+            keys.add(upload(content(i)));
+        // walked in digest order, which the keys follow
+        keys.sort(null);
+
+        // shut down while checking the second blob of the batch, its read is cut short
+        var stats = new AtomicInteger();
+        var interrupting = new LocalBlobStore(blobDirectory()) {
+            @Override
+            public @Nullable BlobStat stat(String key) throws IOException {
+                if (stats.incrementAndGet() == 2)
+                    Thread.currentThread().interrupt();
+                return super.stat(key);
+            }
+        };
+        try {
+            scrubber(interrupting, 4, new MetricsRegistry()).scrub();
+        } finally {
+            Thread.interrupted();
+        }
+
+        assertEquals(BlobStore.digestOf(keys.get(0)), cursor(BlobScrubber.WALK_BLOBS));
+        assertTrue(problems().isEmpty());
+
+        // the rest of the batch is still verified
+        try (var blob = new RandomAccessFile(new File(blobDirectory(), keys.get(1)), "rw")) {
+            blob.seek(100);
+            var b = blob.read();
+            blob.seek(100);
+            blob.write(~b);
+        }
+        scrubber().scrub();
+        assertEquals(List.of(keys.get(1)), List.copyOf(problems().keySet()));
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.github.marcelektro.simplefilehost.service.file;
+
+import com.github.marcelektro.simplefilehost.cache.BlobCache;
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.metrics.TransferMetrics;
+import com.github.marcelektro.simplefilehost.service.db.SQLiteDatabaseService;
+import com.github.marcelektro.simplefilehost.service.sharing.ShareLinkCache;
+import com.github.marcelektro.simplefilehost.storage.LocalBlobStore;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The file services on a fresh database and local blob store in a temp directory, with two users to upload as.
+ */
+public class FileServiceFixtures {
+
+    public static final String USER_ID = "user-1";
+    public static final String OTHER_USER_ID = "user-2";
+
+    public final Config config = Config.defaultConfig();
+    public final MetricsRegistry metrics = new MetricsRegistry();
+    public final TransferMetrics transfers = new TransferMetrics(this.metrics);
+    public final File blobDirectory;
+    public final SQLiteDatabaseService db;
+    public final LocalBlobStore blobStore;
+    public final ShareLinkCache shareLinkCache;
+    public final BlobCache blobCache;
+    public final FileUploadServiceImpl fileUploadService;
+
+
+    public FileServiceFixtures(Path directory) throws Exception {
+        this(directory, Config.defaultConfig().compression, 0);
+    }
+
+    /**
+     * @param cacheBytes for the share link and blob caches each, 0 to leave them uncached
+     */
+    public FileServiceFixtures(Path directory, Config.Compression compression, long cacheBytes) throws Exception {
+        this.db = new SQLiteDatabaseService(directory.resolve("test.db").toString(), this.config.database, this.metrics);
+        this.db.initialSetup();
+
+        // fill the read pool up front, Hikari would otherwise still be opening connections in the background when the temp directory is deleted
+        var connections = new ArrayList<Connection>();
+        for (int i = 0; i < this.config.database.readPoolSize; i++)
+            connections.add(this.db.getReadConnection());
+        for (var conn : connections)
+            conn.close();
+
+        this.blobDirectory = directory.resolve("blobs").toFile();
+        this.blobStore = new LocalBlobStore(this.blobDirectory);
+        this.shareLinkCache = new ShareLinkCache(this.db, cacheBytes, this.metrics);
+        this.blobCache = new BlobCache(this.blobStore, cacheBytes, cacheBytes, this.metrics, this.transfers);
+        this.fileUploadService = new FileUploadServiceImpl(new File(this.blobDirectory, ".staging"), this.blobStore, this.db, this.config.upload,
+                compression, this.shareLinkCache, this.blobCache, this.transfers);
+
+        this.db.write(conn -> {
+            try (var ps = conn.prepareStatement("INSERT INTO users (id, username, passwordHash, passwordSalt) VALUES (?, ?, '', '')")) {
+                for (var userId : new String[]{USER_ID, OTHER_USER_ID}) {
+                    ps.setString(1, userId);
+                    ps.setString(2, userId);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            return null;
+        });
+    }
+
+
+    /**
+     * Random, so it's stored as it is rather than compressed.
+     */
+    public static byte[] content(int seed, int size) {
+        var content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * @return the new file's id
+     */
+    public String upload(String userId, byte[] content) throws Exception {
+        var result = this.fileUploadService.uploadFile(userId, "file.bin", new ByteArrayInputStream(content));
+        assertTrue(result.isSuccess(), result.getMessage());
+        return result.getData();
+    }
+
+    public String blobKey(String fileId) throws Exception {
+        var key = queryString("SELECT path FROM uploaded_files WHERE id = ?", fileId);
+        assertNotNull(key, "no such file " + fileId);
+        return key;
+    }
+
+    public byte[] read(String key) throws Exception {
+        try (var in = this.blobStore.get(key, 0, -1)) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * @return the first column of the first row, null if there's none
+     */
+    public @Nullable String queryString(String sql, Object... params) throws Exception {
+        try (var conn = this.db.getReadConnection();
+             var ps = conn.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++)
+                ps.setObject(i + 1, params[i]);
+            var rs = ps.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    public long queryLong(String sql, Object... params) throws Exception {
+        var value = queryString(sql, params);
+        assertNotNull(value, "no rows for " + sql);
+        return Long.parseLong(value);
+    }
+
+}
@@ -0,0 +1,240 @@
+package com.github.marcelektro.simplefilehost.service.file;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.service.ServiceResult;
+import com.github.marcelektro.simplefilehost.service.sharing.ShareLinkServiceImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static com.github.marcelektro.simplefilehost.service.file.FileServiceFixtures.OTHER_USER_ID;
+import static com.github.marcelektro.simplefilehost.service.file.FileServiceFixtures.USER_ID;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileUploadServiceImplTests {
+
+    @TempDir
+    Path tempDir;
+
+    private FileServiceFixtures fixtures;
+    private FileUploadServiceImpl files;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        // share links cached, deletes have to invalidate them
+        this.fixtures = new FileServiceFixtures(this.tempDir, Config.defaultConfig().compression, 1024 * 1024);
+        this.files = this.fixtures.fileUploadService;
+    }
+
+    private long refCount(String key) throws Exception {
+        var refCount = this.fixtures.queryString("SELECT refCount FROM blobs WHERE path = ?", key);
+        return refCount != null ? Long.parseLong(refCount) : 0;
+    }
+
+    private boolean tombstoned(String key) throws Exception {
+        return this.fixtures.queryString("SELECT path FROM blob_tombstones WHERE path = ?", key) != null;
+    }
+
+    /**
+     * Another instance on the same database, store and caches, compressing uploads. The fixtures' own one doesn't.
+     */
+    private FileUploadServiceImpl compressingService() {
+        var defaults = Config.defaultConfig().compression;
+        var compression = new Config.Compression(true, defaults.level, defaults.frameSize, defaults.minBlobBytes, defaults.sampleBytes, defaults.maxRatioPercent);
+        return new FileUploadServiceImpl(new File(this.fixtures.blobDirectory, ".staging"), this.fixtures.blobStore, this.fixtures.db,
+                this.fixtures.config.upload, compression, this.fixtures.shareLinkCache, this.fixtures.blobCache, this.fixtures.transfers);
+    }
+
+    private static byte[] compressibleContent() {
+        var content = new StringBuilder();
+        for (int i = 0; content.length() < 50_000; i++)
+            content.append("line ").append(i).append('\n');
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Uploads content whose blob went missing from the store, with the given service, after a link to a file of it was cached.
+     *
+     * @return the link
+     */
+    private String restore(FileUploadServiceImpl first, FileUploadServiceImpl again, byte[] content) throws Exception {
+        var fileId = first.uploadFile(USER_ID, "file.bin", new ByteArrayInputStream(content)).getData();
+        var key = this.fixtures.blobKey(fileId);
+
+        var link = new ShareLinkServiceImpl(this.fixtures.db, this.fixtures.shareLinkCache).createShareLink(USER_ID, fileId, null, null).getData();
+        assertNotNull(this.fixtures.shareLinkCache.resolve(link));
+
+        // the second access admits it to the cache
+        this.fixtures.blobCache.get(key);
+        assertNotNull(this.fixtures.blobCache.get(key));
+
+        Files.delete(new File(this.fixtures.blobDirectory, key).toPath());
+        assertTrue(again.uploadFile(OTHER_USER_ID, "file.bin", new ByteArrayInputStream(content)).isSuccess());
+        assertEquals(2, refCount(key));
+        return link;
+    }
+
+    private void assertCachedAsStored(String link) throws Exception {
+        var resolved = this.fixtures.shareLinkCache.resolve(link);
+        assertNotNull(resolved);
+
+        var stored = this.fixtures.read(resolved.blobKey());
+        var cached = this.fixtures.blobCache.get(resolved.blobKey());
+        assertNotNull(cached);
+        assertArrayEquals(stored, cached.open(0, cached.size()).readAllBytes());
+    }
+
+
+    @Test
+    public void testIdenticalUploadsShareOneBlob() throws Exception {
+        var content = FileServiceFixtures.content(1, 5000);
+
+        var first = this.fixtures.upload(USER_ID, content);
+        var second = this.fixtures.upload(OTHER_USER_ID, content);
+        var other = this.fixtures.upload(USER_ID, FileServiceFixtures.content(2, 5000));
+
+        var key = this.fixtures.blobKey(first);
+        assertEquals(key, this.fixtures.blobKey(second));
+        assertNotEquals(key, this.fixtures.blobKey(other));
+
+        assertEquals(2, refCount(key));
+        assertEquals(2, this.fixtures.queryLong("SELECT COUNT(*) FROM blobs"));
+        assertArrayEquals(content, this.fixtures.read(key));
+
+        // the staging files are gone either way
+        assertEquals(0, this.fixtures.blobDirectory.toPath().resolve(".staging").toFile().list().length);
+    }
+
+    @Test
+    public void testDeletingTheLastReferenceReleasesTheBlob() throws Exception {
+        var content = FileServiceFixtures.content(1, 5000);
+        var first = this.fixtures.upload(USER_ID, content);
+        var second = this.fixtures.upload(OTHER_USER_ID, content);
+        var key = this.fixtures.blobKey(first);
+
+        // only the owner deletes
+        assertEquals("FILE_NOT_FOUND", this.files.deleteFile(OTHER_USER_ID, first).getErrorCode());
+
+        assertTrue(this.files.deleteFile(USER_ID, first).isSuccess());
+        assertEquals(1, refCount(key));
+        assertFalse(tombstoned(key));
+        assertArrayEquals(content, this.fixtures.read(key));
+
+        assertTrue(this.files.deleteFile(OTHER_USER_ID, second).isSuccess());
+        assertEquals(0, refCount(key));
+        assertTrue(tombstoned(key), "left to the reaper");
+
+        assertEquals("FILE_NOT_FOUND", this.files.deleteFile(OTHER_USER_ID, second).getErrorCode());
+    }
+
+    @Test
+    public void testDeletingALegacyFileReleasesItsOwnBlob() throws Exception {
+        // uploaded before content addressing, no digest and no blob row
+        var key = "legacy-upload";
+        this.fixtures.blobStore.put(key, new ByteArrayInputStream(new byte[]{1, 2, 3}), 3);
+        this.fixtures.db.write(conn -> {
+            var sql = """
+                      INSERT INTO uploaded_files (id, userId, filename, size, uploadedAt, path, blobDigest)
+                      VALUES ('legacy', ?, 'old.bin', 3, 0, ?, NULL)
+                      """;
+            try (var ps = conn.prepareStatement(sql)) {
+                ps.setString(1, USER_ID);
+                ps.setString(2, key);
+                return ps.executeUpdate();
+            }
+        });
+
+        assertTrue(this.files.deleteFile(USER_ID, "legacy").isSuccess());
+        assertTrue(tombstoned(key));
+        assertNull(this.fixtures.queryString("SELECT digest FROM blob_tombstones WHERE path = ?", key));
+    }
+
+    @Test
+    public void testBatchDeleteReportsEachFile() throws Exception {
+        var owned = this.fixtures.upload(USER_ID, FileServiceFixtures.content(1, 5000));
+        var ownedToo = this.fixtures.upload(USER_ID, FileServiceFixtures.content(2, 5000));
+        var foreign = this.fixtures.upload(OTHER_USER_ID, FileServiceFixtures.content(3, 5000));
+
+        var res = this.files.deleteFiles(USER_ID, List.of(owned, foreign, "missing", ownedToo, owned));
+        assertTrue(res.isSuccess());
+
+        // a repeated id fails like a second delete would
+        assertEquals(List.of(true, false, false, true, false), res.getData().stream().map(ServiceResult::isSuccess).toList());
+        assertEquals("FILE_NOT_FOUND", res.getData().get(1).getErrorCode());
+
+        assertNull(this.fixtures.queryString("SELECT id FROM uploaded_files WHERE id IN (?, ?)", owned, ownedToo));
+        assertNotNull(this.fixtures.queryString("SELECT id FROM uploaded_files WHERE id = ?", foreign));
+    }
+
+    @Test
+    public void testBatchDeleteReleasesSharedBlobsByReference() throws Exception {
+        var content = FileServiceFixtures.content(1, 5000);
+        var first = this.fixtures.upload(USER_ID, content);
+        var second = this.fixtures.upload(USER_ID, content);
+        var kept = this.fixtures.upload(OTHER_USER_ID, content);
+        var key = this.fixtures.blobKey(first);
+        assertEquals(3, refCount(key));
+
+        // two references to the same blob in one batch, the third one keeps it
+        this.files.deleteFiles(USER_ID, List.of(first, second));
+        assertEquals(1, refCount(key));
+        assertFalse(tombstoned(key));
+        assertArrayEquals(content, this.fixtures.read(key));
+
+        this.files.deleteFiles(OTHER_USER_ID, List.of(kept));
+        assertEquals(0, refCount(key));
+        assertTrue(tombstoned(key));
+    }
+
+    @Test
+    public void testBatchDeleteInvalidatesShareLinks() throws Exception {
+        var deleted = this.fixtures.upload(USER_ID, FileServiceFixtures.content(1, 5000));
+        var kept = this.fixtures.upload(USER_ID, FileServiceFixtures.content(2, 5000));
+
+        var links = new ShareLinkServiceImpl(this.fixtures.db, this.fixtures.shareLinkCache);
+        var deletedLink = links.createShareLink(USER_ID, deleted, null, null).getData();
+        var keptLink = links.createShareLink(USER_ID, kept, null, null).getData();
+
+        // cached now
+        assertNotNull(this.fixtures.shareLinkCache.resolve(deletedLink));
+        assertNotNull(this.fixtures.shareLinkCache.resolve(keptLink));
+
+        this.files.deleteFiles(USER_ID, List.of(deleted));
+
+        assertNull(this.fixtures.shareLinkCache.resolve(deletedLink));
+        assertNotNull(this.fixtures.shareLinkCache.resolve(keptLink));
+        assertEquals("LINK_NOT_FOUND", links.validateLink(deletedLink, null).getErrorCode());
+    }
+
+    @Test
+    public void testRestoringARawBlobCompressedDropsItsCachedEncoding() throws Exception {
+        var content = compressibleContent();
+        var link = restore(this.files, compressingService(), content);
+
+        var resolved = this.fixtures.shareLinkCache.resolve(link);
+        assertNotNull(resolved.encoding(), "links see the blob as it's stored now");
+        assertEquals(content.length, resolved.encoding().size());
+        assertTrue(this.fixtures.read(resolved.blobKey()).length < content.length);
+        assertCachedAsStored(link);
+    }
+
+    @Test
+    public void testRestoringACompressedBlobRawDropsItsCachedEncoding() throws Exception {
+        var content = compressibleContent();
+        var link = restore(compressingService(), this.files, content);
+
+        var resolved = this.fixtures.shareLinkCache.resolve(link);
+        assertNull(resolved.encoding(), "links see the blob as it's stored now");
+        assertArrayEquals(content, this.fixtures.read(resolved.blobKey()));
+        assertCachedAsStored(link);
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.github.marcelektro.simplefilehost.service.file;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import static com.github.marcelektro.simplefilehost.service.file.FileServiceFixtures.USER_ID;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResumableUploadServiceImplTests {
+
+    private static final int SIZE = 10_000;
+
+    @TempDir
+    Path tempDir;
+
+    private FileServiceFixtures fixtures;
+    private ResumableUploadServiceImpl uploads;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        this.fixtures = new FileServiceFixtures(this.tempDir);
+        this.uploads = newService();
+    }
+
+    private ResumableUploadServiceImpl newService() {
+        return new ResumableUploadServiceImpl(this.fixtures.fileUploadService, this.fixtures.db, this.fixtures.config.upload, this.fixtures.transfers);
+    }
+
+    private String createSession() throws Exception {
+        var result = this.uploads.createSession(USER_ID, "file.bin", SIZE);
+        assertTrue(result.isSuccess());
+        return result.getData().uploadId();
+    }
+
+    private ResumableUploadService.UploadSession writeChunk(String uploadId, byte[] content, int start, int end) throws Exception {
+        var result = this.uploads.writeChunk(USER_ID, uploadId, start, end - start, new ByteArrayInputStream(content, start, end - start));
+        assertTrue(result.isSuccess(), result.getMessage());
+        return result.getData();
+    }
+
+
+    @Test
+    public void testAssemblesChunksArrivingOutOfOrder() throws Exception {
+        var content = FileServiceFixtures.content(1, SIZE);
+        var uploadId = createSession();
+
+        var session = writeChunk(uploadId, content, 6000, SIZE);
+        assertEquals(0, session.offset());
+        assertEquals(4000, session.receivedBytes());
+
+        session = writeChunk(uploadId, content, 0, 2500);
+        assertEquals(2500, session.offset());
+
+        // overlapping what's already there
+        session = writeChunk(uploadId, content, 2000, 6500);
+        assertEquals(SIZE, session.offset());
+        assertEquals(SIZE, session.receivedBytes());
+
+        var fileId = this.uploads.finalizeSession(USER_ID, uploadId);
+        assertTrue(fileId.isSuccess());
+        assertEquals(uploadId, fileId.getData());
+        assertArrayEquals(content, this.fixtures.read(this.fixtures.blobKey(uploadId)));
+
+        assertFalse(this.uploads.getSession(USER_ID, uploadId).isSuccess());
+    }
+
+    @Test
+    public void testKeepsTheWrittenPrefixOfATruncatedChunk() throws Exception {
+        var content = FileServiceFixtures.content(2, SIZE);
+        var uploadId = createSession();
+
+        // the connection drops 3000 bytes into the chunk
+        var cutOff = new InputStream() {
+            private final InputStream in = new ByteArrayInputStream(content, 0, 3000);
+
+            @Override
+            public int read() throws IOException {
+                var b = this.in.read();
+                if (b < 0)
+                    throw new IOException("Connection reset");
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                var read = this.in.read(b, off, len);
+                if (read < 0)
+                    throw new IOException("Connection reset");
+                return read;
+            }
+        };
+        assertThrows(IOException.class, () -> this.uploads.writeChunk(USER_ID, uploadId, 0, SIZE, cutOff));
+
+        // as recorded in the database, after a restart
+        var restarted = newService();
+        var session = restarted.getSession(USER_ID, uploadId).getData();
+        assertEquals(3000, session.offset());
+        assertEquals(3000, session.receivedBytes());
+
+        var rest = restarted.writeChunk(USER_ID, uploadId, 3000, SIZE - 3000, new ByteArrayInputStream(content, 3000, SIZE - 3000));
+        assertTrue(rest.isSuccess());
+        assertTrue(restarted.finalizeSession(USER_ID, uploadId).isSuccess());
+        assertArrayEquals(content, this.fixtures.read(this.fixtures.blobKey(uploadId)));
+    }
+
+    @Test
+    public void testRefusesToFinalizeWithMissingRanges() throws Exception {
+        var content = FileServiceFixtures.content(3, SIZE);
+        var uploadId = createSession();
+
+        writeChunk(uploadId, content, 0, 4000);
+        writeChunk(uploadId, content, 5000, SIZE);
+
+        var result = this.uploads.finalizeSession(USER_ID, uploadId);
+        assertFalse(result.isSuccess());
+        assertEquals("UPLOAD_INCOMPLETE", result.getErrorCode());
+
+        // still open, the gap can be filled in
+        writeChunk(uploadId, content, 4000, 5000);
+        assertTrue(this.uploads.finalizeSession(USER_ID, uploadId).isSuccess());
+        assertArrayEquals(content, this.fixtures.read(this.fixtures.blobKey(uploadId)));
+    }
+
+    @Test
+    public void testRejectsChunksPastTheEnd() throws Exception {
+        var uploadId = createSession();
+        var chunk = new byte[100];
+
+        var declared = this.uploads.writeChunk(USER_ID, uploadId, SIZE - 50, chunk.length, new ByteArrayInputStream(chunk));
+        assertEquals("CHUNK_OUT_OF_BOUNDS", declared.getErrorCode());
+
+        // the length isn't known up front, the content itself runs over
+        var undeclared = this.uploads.writeChunk(USER_ID, uploadId, SIZE - 50, -1, new ByteArrayInputStream(chunk));
+        assertEquals("CHUNK_OUT_OF_BOUNDS", undeclared.getErrorCode());
+
+        assertFalse(this.uploads.getSession(FileServiceFixtures.OTHER_USER_ID, uploadId).isSuccess());
+        assertEquals(0, this.uploads.getSession(USER_ID, uploadId).getData().receivedBytes());
+    }
+
+    @Test
+    public void testKeepsTheUploadWhenCommittingItFails() throws Exception {
+        var content = FileServiceFixtures.content(4, SIZE);
+        var uploadId = createSession();
+        writeChunk(uploadId, content, 0, SIZE);
+
+        // a file by the upload's id already exists, recording it fails after the content was stored
+        this.fixtures.db.write(conn -> conn.createStatement().executeUpdate(
+                "INSERT INTO uploaded_files (id, userId, filename, size, uploadedAt, path, blobDigest) VALUES ('" + uploadId + "', '" + USER_ID + "', 'x', 0, 0, 'x', NULL)"));
+
+        var failed = this.uploads.finalizeSession(USER_ID, uploadId);
+        assertEquals("FINALIZE_FAILED", failed.getErrorCode());
+        assertEquals(0, this.fixtures.queryLong("SELECT COUNT(*) FROM blobs"));
+
+        // still complete, also after a restart
+        assertEquals(SIZE, newService().getSession(USER_ID, uploadId).getData().receivedBytes());
+
+        this.fixtures.db.write(conn -> conn.createStatement().executeUpdate("DELETE FROM uploaded_files"));
+        assertTrue(this.uploads.finalizeSession(USER_ID, uploadId).isSuccess());
+        assertArrayEquals(content, this.fixtures.read(this.fixtures.blobKey(uploadId)));
+
+        // nothing left in staging
+        assertEquals(0, this.fixtures.blobDirectory.toPath().resolve(".staging").toFile().list().length);
+    }
+
+    @Test
+    public void testRejectsExpiredSessions() throws Exception {
+        var content = FileServiceFixtures.content(5, SIZE);
+        var uploadId = createSession();
+        writeChunk(uploadId, content, 0, SIZE);
+
+        // expired before the reaper got to it
+        this.fixtures.db.write(conn -> conn.createStatement().executeUpdate("UPDATE upload_sessions SET expiresAt = 0"));
+        var restarted = newService();
+
+        assertEquals("SESSION_NOT_FOUND", restarted.getSession(USER_ID, uploadId).getErrorCode());
+        assertEquals("SESSION_NOT_FOUND", restarted.writeChunk(USER_ID, uploadId, 0, 1, new ByteArrayInputStream(content, 0, 1)).getErrorCode());
+        assertEquals("SESSION_NOT_FOUND", restarted.finalizeSession(USER_ID, uploadId).getErrorCode());
+    }
+
+}
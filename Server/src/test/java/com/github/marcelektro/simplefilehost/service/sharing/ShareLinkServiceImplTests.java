@@ -0,0 +1,101 @@
+package com.github.marcelektro.simplefilehost.service.sharing;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.service.ServiceResult;
+import com.github.marcelektro.simplefilehost.service.file.FileServiceFixtures;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static com.github.marcelektro.simplefilehost.service.file.FileServiceFixtures.OTHER_USER_ID;
+import static com.github.marcelektro.simplefilehost.service.file.FileServiceFixtures.USER_ID;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShareLinkServiceImplTests {
+
+    @TempDir
+    Path tempDir;
+
+    private FileServiceFixtures fixtures;
+    private ShareLinkServiceImpl links;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        this.fixtures = new FileServiceFixtures(this.tempDir, Config.defaultConfig().compression, 1024 * 1024);
+        this.links = new ShareLinkServiceImpl(this.fixtures.db, this.fixtures.shareLinkCache);
+    }
+
+
+    @Test
+    public void testBatchCreateReportsEachLink() throws Exception {
+        var owned = this.fixtures.upload(USER_ID, FileServiceFixtures.content(1, 100));
+        var foreign = this.fixtures.upload(OTHER_USER_ID, FileServiceFixtures.content(2, 100));
+        var expiry = LocalDateTime.now().plusDays(1).withNano(0);
+
+        var res = this.links.createShareLinks(USER_ID, List.of(
+                new ShareLinkService.NewShareLink(owned, null, null),
+                new ShareLinkService.NewShareLink(foreign, null, null),
+                new ShareLinkService.NewShareLink("missing", null, null),
+                new ShareLinkService.NewShareLink(owned, "secret", expiry)
+        ));
+        assertTrue(res.isSuccess());
+
+        var results = res.getData();
+        assertEquals(List.of(true, false, false, true), results.stream().map(ServiceResult::isSuccess).toList());
+        assertEquals("ACCESS_DENIED", results.get(1).getErrorCode());
+        assertEquals("ACCESS_DENIED", results.get(2).getErrorCode());
+
+        var plain = this.links.validateLink(results.get(0).getData(), null).getData();
+        assertEquals(owned, plain.fileId());
+        assertFalse(plain.passwordProtected());
+
+        var protectedLink = this.links.validateLink(results.get(3).getData(), "secret").getData();
+        assertTrue(protectedLink.passwordProtected());
+        assertTrue(protectedLink.validPassword());
+        assertEquals(expiry, protectedLink.expiry());
+
+        assertEquals(2, this.fixtures.queryLong("SELECT COUNT(*) FROM shared_links"));
+    }
+
+    @Test
+    public void testLinkIdsDontCollideWithinABatch() throws Exception {
+        var fileId = this.fixtures.upload(USER_ID, FileServiceFixtures.content(1, 100));
+
+        var batch = new ArrayList<ShareLinkService.NewShareLink>();
+        for (int i = 0; i < 10_000; i++)
+            batch.add(new ShareLinkService.NewShareLink(fileId, null, null));
+
+        var ids = new HashSet<String>();
+        for (var result : this.links.createShareLinks(USER_ID, batch).getData()) {
+            assertTrue(result.isSuccess());
+            // URL-safe, they end up in share URLs
+            assertTrue(result.getData().matches("[A-Za-z0-9_-]{22}"), result.getData());
+            ids.add(result.getData());
+        }
+        assertEquals(batch.size(), ids.size());
+    }
+
+    @Test
+    public void testChangesInvalidateCachedLinks() throws Exception {
+        var fileId = this.fixtures.upload(USER_ID, FileServiceFixtures.content(1, 100));
+        var linkId = this.links.createShareLink(USER_ID, fileId, null, null).getData();
+
+        // cached now
+        assertFalse(this.links.validateLink(linkId, null).getData().passwordProtected());
+
+        assertEquals("ACCESS_DENIED", this.links.updateShareLink(OTHER_USER_ID, linkId, "secret", null).getErrorCode());
+        assertTrue(this.links.updateShareLink(USER_ID, linkId, "secret", null).isSuccess());
+        assertTrue(this.links.validateLink(linkId, "secret").getData().validPassword());
+
+        assertTrue(this.links.deleteShareLink(USER_ID, linkId).isSuccess());
+        assertEquals("LINK_NOT_FOUND", this.links.validateLink(linkId, null).getErrorCode());
+    }
+
+}
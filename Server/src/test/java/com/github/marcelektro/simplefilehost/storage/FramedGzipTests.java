@@ -0,0 +1,80 @@
+package com.github.marcelektro.simplefilehost.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FramedGzipTests {
+
+    private static final int FRAME_SIZE = 1000;
+
+
+    private static byte[] content(int size) {
+        var content = new byte[size];
+        for (int i = 0; i < size; i++)
+            content[i] = (byte) ('a' + (i * 7 / 13) % 26);
+        return content;
+    }
+
+    private static byte[] encode(byte[] content, ByteArrayOutputStream out) throws IOException {
+        var encoding = FramedGzip.encode(new ByteArrayInputStream(content), content.length, out, FRAME_SIZE, 6);
+        var stored = out.toByteArray();
+        assertEquals(stored.length, encoding.storedSize());
+        return stored;
+    }
+
+    private static byte[] decode(byte[] stored, BlobEncoding encoding, long offset, long length) throws IOException {
+        try (var in = FramedGzip.decode((position, len) -> new ByteArrayInputStream(stored, (int) position, (int) len), encoding, offset, length)) {
+            return in.readAllBytes();
+        }
+    }
+
+
+    @Test
+    public void testStoredBlobIsPlainGzip() throws Exception {
+        var content = content(4500);
+        var out = new ByteArrayOutputStream();
+        var stored = encode(content, out);
+
+        assertTrue(stored.length < content.length);
+        try (var in = new GZIPInputStream(new ByteArrayInputStream(stored))) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testDecodesRangesAcrossFrames() throws Exception {
+        var content = content(4500);
+        var out = new ByteArrayOutputStream();
+        var encoding = FramedGzip.encode(new ByteArrayInputStream(content), content.length, out, FRAME_SIZE, 6);
+        var stored = out.toByteArray();
+
+        // as read back from the database
+        encoding = BlobEncoding.of(encoding.codec(), encoding.size(), encoding.frameSize(), encoding.frameIndex());
+        assertNotNull(encoding);
+        assertEquals(5, encoding.frameCount());
+
+        assertArrayEquals(content, decode(stored, encoding, 0, content.length));
+        assertArrayEquals(Arrays.copyOfRange(content, 10, 20), decode(stored, encoding, 10, 10));
+        assertArrayEquals(Arrays.copyOfRange(content, 990, 3010), decode(stored, encoding, 990, 2020));
+        assertArrayEquals(Arrays.copyOfRange(content, 4000, 4500), decode(stored, encoding, 4000, 1000));
+        assertEquals(0, decode(stored, encoding, 4500, 10).length);
+    }
+
+    @Test
+    public void testDetectsTruncation() throws Exception {
+        var content = content(2500);
+        var out = new ByteArrayOutputStream();
+        var encoding = FramedGzip.encode(new ByteArrayInputStream(content), content.length, out, FRAME_SIZE, 6);
+        var truncated = Arrays.copyOf(out.toByteArray(), (int) encoding.frameOffsets()[2]);
+
+        assertThrows(IOException.class, () -> decode(truncated, encoding, 0, content.length));
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.github.marcelektro.simplefilehost.storage;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import com.github.marcelektro.simplefilehost.service.db.SQLiteDatabaseService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PackBlobStoreTests {
+
+    @TempDir
+    Path tempDir;
+
+    private SQLiteDatabaseService db;
+
+
+    @BeforeEach
+    public void setUpDatabase() throws Exception {
+        this.db = new SQLiteDatabaseService(this.tempDir.resolve("test.db").toString(), Config.defaultConfig().database, new MetricsRegistry());
+        this.db.initialSetup();
+    }
+
+    private PackBlobStore store(long segmentBytes) throws Exception {
+        return new PackBlobStore(new LocalBlobStore(this.tempDir.resolve("blobs").toFile()), packDirectory(), this.db,
+                new Config.Packs(1024, segmentBytes, 2, 30, 60), new MetricsRegistry());
+    }
+
+    private File packDirectory() {
+        return this.tempDir.resolve("packs").toFile();
+    }
+
+    private File[] packFiles() {
+        var files = Objects.requireNonNull(packDirectory().listFiles());
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static byte[] content(int size, int seed) {
+        var content = new byte[size];
+        for (int i = 0; i < size; i++)
+            content[i] = (byte) (seed * 31 + i);
+        return content;
+    }
+
+    private static void put(BlobStore store, String key, byte[] content) throws IOException {
+        store.put(key, new ByteArrayInputStream(content), content.length);
+    }
+
+
+    @Test
+    public void testPacksSmallBlobsOnly() throws Exception {
+        var store = store(1024 * 1024);
+
+        var small = store.placeNew("4f3c2e8a", 100);
+        assertEquals("packs/4f/3c2e8a", small);
+        assertEquals("4f/3c2e8a", store.placeNew("4f3c2e8a", 2000));
+
+        put(store, small, content(100, 1));
+        put(store, "4f/3c2e8a", content(2000, 2));
+
+        assertArrayEquals(content(100, 1), store.get(small, 0, -1).readAllBytes());
+        assertArrayEquals(Arrays.copyOfRange(content(100, 1), 10, 30), store.get(small, 10, 20).readAllBytes());
+        assertEquals(100, store.stat(small).size());
+        assertNull(store.localFile(small));
+
+        // not packed, a file of its own
+        assertTrue(store.localFile("4f/3c2e8a").isFile());
+        assertEquals(1, packFiles().length);
+
+        assertTrue(store.delete(small));
+        assertFalse(store.delete(small));
+        assertNull(store.stat(small));
+        assertThrows(NoSuchFileException.class, () -> store.get(small, 0, -1));
+    }
+
+    @Test
+    public void testCompactionKeepsLiveBlobs() throws Exception {
+        var store = store(300);
+
+        // three 100 byte blobs per pack
+        for (int i = 0; i < 9; i++)
+            put(store, "packs/0" + i + "/blob", content(100, i));
+        assertEquals(3, packFiles().length);
+
+        for (int i = 0; i < 6; i++) {
+            if (i != 4)
+                store.delete("packs/0" + i + "/blob");
+        }
+
+        // the first two are sealed, the third one is still being appended to
+        var due = store.packsToCompact(0.5);
+        assertEquals(2, due.size());
+
+        long reclaimed = 0;
+        for (var packId : due)
+            reclaimed += store.compact(packId).reclaimedBytes();
+
+        assertEquals(500, reclaimed);
+        for (int i = 4; i < 9; i++) {
+            if (i != 5)
+                assertArrayEquals(content(100, i), store.get("packs/0" + i + "/blob", 0, -1).readAllBytes());
+        }
+
+        var stats = store.stats();
+        assertEquals(400, stats.bytes() - stats.deadBytes());
+    }
+
+    @Test
+    public void testCutsOffUncommittedAppendsOnStartup() throws Exception {
+        var store = store(1024 * 1024);
+        put(store, "packs/aa/one", content(50, 1));
+
+        // bytes written for a blob that never got indexed
+        try (var pack = new RandomAccessFile(packFiles()[0], "rw")) {
+            pack.seek(pack.length());
+            pack.write(content(30, 9));
+        }
+
+        var restarted = store(1024 * 1024);
+        assertEquals(50, packFiles()[0].length());
+
+        put(restarted, "packs/bb/two", content(40, 2));
+        assertArrayEquals(content(50, 1), restarted.get("packs/aa/one", 0, -1).readAllBytes());
+        assertArrayEquals(content(40, 2), restarted.get("packs/bb/two", 0, -1).readAllBytes());
+    }
+
+    @Test
+    public void testSealsAPackShorterThanItsCommittedBlobs() throws Exception {
+        var store = store(1024 * 1024);
+        put(store, "packs/aa/one", content(50, 1));
+        put(store, "packs/bb/two", content(40, 2));
+
+        // lost part of a committed blob
+        try (var pack = new RandomAccessFile(packFiles()[0], "rw")) {
+            pack.setLength(60);
+        }
+
+        var restarted = store(1024 * 1024);
+        put(restarted, "packs/cc/three", content(30, 3));
+
+        assertEquals(60, packFiles()[0].length(), "nothing was appended over the gap");
+        assertEquals(2, packFiles().length);
+        assertArrayEquals(content(50, 1), restarted.get("packs/aa/one", 0, -1).readAllBytes());
+        assertThrows(CorruptBlobException.class, () -> restarted.get("packs/bb/two", 0, -1));
+        assertArrayEquals(content(30, 3), restarted.get("packs/cc/three", 0, -1).readAllBytes());
+    }
+
+    @Test
+    public void testDetectsCorruption() throws Exception {
+        var store = store(1024 * 1024);
+        put(store, "packs/aa/one", content(50, 1));
+
+        try (var pack = new RandomAccessFile(packFiles()[0], "rw")) {
+            pack.seek(20);
+            pack.write(0x7f);
+        }
+
+        var e = assertThrows(CorruptBlobException.class, () -> store.get("packs/aa/one", 0, -1));
+        assertTrue(e.getMessage().contains("checksum"));
+    }
+
+}
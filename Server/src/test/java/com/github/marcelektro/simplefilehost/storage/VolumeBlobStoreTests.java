@@ -0,0 +1,113 @@
+package com.github.marcelektro.simplefilehost.storage;
+
+import com.github.marcelektro.simplefilehost.config.Config;
+import com.github.marcelektro.simplefilehost.metrics.MetricsRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VolumeBlobStoreTests {
+
+    private static final String DIGEST = "4f3c2e8a";
+
+    @TempDir
+    private Path tempDir;
+
+
+    private VolumeBlobStore store(MetricsRegistry metrics) {
+        return new VolumeBlobStore(this.tempDir.resolve("blobs").toFile(),
+                List.of(new Config.Volume("disk1", this.tempDir.resolve("disk1").toString())), metrics);
+    }
+
+    @Test
+    public void testRoutesKeysToTheirVolume() throws IOException {
+        var store = store(new MetricsRegistry());
+        var disk1 = store.volumes().get(1);
+
+        var key = store.keyOn(disk1, DIGEST);
+        assertEquals("disk1/4f/3c2e8a", key);
+        assertSame(disk1, store.volumeOf(key));
+
+        store.put(key, new ByteArrayInputStream(new byte[]{1, 2, 3}), 3);
+        assertTrue(new File(this.tempDir.toFile(), "disk1/4f/3c2e8a").isFile());
+        assertArrayEquals(new byte[]{2, 3}, store.get(key, 1, -1).readAllBytes());
+        assertEquals(3, store.stat(key).size());
+        assertEquals(new File(this.tempDir.toFile(), "disk1/4f/3c2e8a"), store.localFile(key));
+    }
+
+    @Test
+    public void testKeysWithoutVolumeAreOnTheDataDirectory() throws IOException {
+        var store = store(new MetricsRegistry());
+
+        // the layout from before volumes existed
+        var key = BlobStore.keyFor(DIGEST);
+        assertEquals("default", store.volumeOf(key).name());
+        assertEquals(key, store.keyOn(store.volumeOf(key), DIGEST));
+
+        store.put(key, new ByteArrayInputStream(new byte[]{1}), 1);
+        assertTrue(new File(this.tempDir.toFile(), "blobs/4f/3c2e8a").isFile());
+    }
+
+    @Test
+    public void testRejectsUnknownVolumes() {
+        var store = store(new MetricsRegistry());
+
+        assertThrows(IOException.class, () -> store.stat("removed/4f/3c2e8a"));
+        assertNull(store.localFile("removed/4f/3c2e8a"));
+
+        assertThrows(IllegalArgumentException.class, () -> new VolumeBlobStore(this.tempDir.toFile(),
+                List.of(new Config.Volume("default", this.tempDir.resolve("other").toString())), new MetricsRegistry()));
+        assertThrows(IllegalArgumentException.class, () -> new VolumeBlobStore(this.tempDir.toFile(),
+                List.of(new Config.Volume("a/b", this.tempDir.resolve("other").toString())), new MetricsRegistry()));
+    }
+
+    @Test
+    public void testListsKeysOfAllVolumes() throws IOException {
+        var store = store(new MetricsRegistry());
+        for (var key : List.of("disk1/4f/3c2e8a", "4f/3c2e8a", "12/abcdef", "disk1/00/ffffff"))
+            store.put(key, new ByteArrayInputStream(new byte[1]), 1);
+
+        assertEquals(List.of("12/abcdef", "4f/3c2e8a", "disk1/00/ffffff"), store.list("", 3));
+        assertEquals(List.of("disk1/00/ffffff", "disk1/4f/3c2e8a"), store.list("4f/3c2e8a", 10));
+        assertEquals("4f3c2e8a", BlobStore.digestOf("disk1/4f/3c2e8a"));
+    }
+
+    @Test
+    public void testPlacesNewBlobsOnAllVolumes() throws IOException {
+        var store = store(new MetricsRegistry());
+
+        // both on the same filesystem here, so equally weighted
+        var used = new HashSet<String>();
+        for (int i = 0; i < 200; i++)
+            used.add(store.volumeOf(store.placeNew(DIGEST, 1)).name());
+
+        assertEquals(2, used.size());
+    }
+
+    @Test
+    public void testCountsBytesPerVolume() throws IOException {
+        var metrics = new MetricsRegistry();
+        var store = store(metrics);
+
+        var staged = this.tempDir.resolve("staged");
+        Files.write(staged, new byte[10]);
+        store.putFile("disk1/4f/3c2e8a", staged.toFile());
+        store.get("disk1/4f/3c2e8a", 0, 4).readAllBytes();
+        store.localFileRead("disk1/4f/3c2e8a", 6);
+
+        var scrape = metrics.scrape();
+        assertTrue(scrape.contains("sfh_volume_written_bytes_total{volume=\"disk1\"} 10"), scrape);
+        assertTrue(scrape.contains("sfh_volume_read_bytes_total{volume=\"disk1\"} 10"), scrape);
+        assertTrue(scrape.contains("sfh_volume_written_bytes_total{volume=\"default\"} 0"), scrape);
+    }
+
+}
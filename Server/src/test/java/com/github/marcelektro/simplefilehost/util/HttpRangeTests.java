@@ -0,0 +1,58 @@
+package com.github.marcelektro.simplefilehost.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpRangeTests {
+
+    private static HttpRange.ByteRange range(long start, long end) {
+        return new HttpRange.ByteRange(start, end);
+    }
+
+
+    @Test
+    public void testSingleRanges() {
+        assertEquals(List.of(range(0, 499)), HttpRange.parse("bytes=0-499", 1000));
+        assertEquals(List.of(range(500, 999)), HttpRange.parse("bytes=500-", 1000));
+        assertEquals(List.of(range(900, 999)), HttpRange.parse("bytes=-100", 1000));
+
+        // end past the size is clamped, suffix longer than the file means the whole file
+        assertEquals(List.of(range(900, 999)), HttpRange.parse("bytes=900-5000", 1000));
+        assertEquals(List.of(range(0, 999)), HttpRange.parse("bytes=-5000", 1000));
+    }
+
+    @Test
+    public void testMultipleRanges() {
+        assertEquals(List.of(range(500, 599), range(0, 99)), HttpRange.parse("bytes=500-599, 0-99", 1000));
+
+        // overlapping and adjacent ranges get merged
+        assertEquals(List.of(range(0, 199)), HttpRange.parse("bytes=0-99,50-149,150-199", 1000));
+
+        // unsatisfiable ranges are dropped while the rest is served
+        assertEquals(List.of(range(0, 9)), HttpRange.parse("bytes=0-9,5000-6000", 1000));
+    }
+
+    @Test
+    public void testUnsatisfiable() {
+        assertEquals(List.of(), HttpRange.parse("bytes=1000-", 1000));
+        assertEquals(List.of(), HttpRange.parse("bytes=-0", 1000));
+        assertEquals(List.of(), HttpRange.parse("bytes=0-", 0));
+        assertEquals(List.of(), HttpRange.parse("bytes=, 2000-", 1000));
+    }
+
+    @Test
+    public void testIgnored() {
+        assertNull(HttpRange.parse(null, 1000));
+        assertNull(HttpRange.parse("items=0-5", 1000));
+        assertNull(HttpRange.parse("bytes=abc-def", 1000));
+        assertNull(HttpRange.parse("bytes=500-100", 1000));
+        assertNull(HttpRange.parse("bytes=5", 1000));
+        assertNull(HttpRange.parse("bytes=", 1000));
+        assertNull(HttpRange.parse("bytes= , ", 1000));
+        assertNull(HttpRange.parse("bytes=" + "0-0,".repeat(HttpRange.MAX_RANGES + 1), 1000));
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.github.marcelektro.simplefilehost.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KeysetCursorTests {
+
+    @Test
+    public void testRoundTrip() {
+        var cursor = new KeysetCursor("NAME_ASC", "3f1c", "report\nfinal.pdf");
+        var encoded = cursor.encode();
+
+        // safe to put into a query parameter as is
+        assertTrue(encoded.matches("[A-Za-z0-9_-]+"));
+        assertEquals(cursor, KeysetCursor.decode(encoded));
+    }
+
+    @Test
+    public void testRejectsForeignCursors() {
+        assertNull(KeysetCursor.decode("not base64!"));
+        assertNull(KeysetCursor.decode("bm9uZXdsaW5l")); // "nonewline"
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.github.marcelektro.simplefilehost.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MultipartStreamReaderTests {
+
+    private static final String BOUNDARY = "----formBoundary7MA4YWxkTrZu0gW";
+
+
+    @Test
+    public void testExtractBoundary() {
+        assertEquals(BOUNDARY, MultipartStreamReader.extractBoundary("multipart/form-data; boundary=" + BOUNDARY));
+        assertEquals("quoted boundary", MultipartStreamReader.extractBoundary("multipart/form-data; boundary=\"quoted boundary\""));
+
+        assertNull(MultipartStreamReader.extractBoundary("application/json"));
+        assertNull(MultipartStreamReader.extractBoundary("multipart/form-data"));
+        assertNull(MultipartStreamReader.extractBoundary(null));
+    }
+
+    @Test
+    public void testReadsPartsAcrossSmallBuffers() throws IOException {
+        var content = new byte[100_000];
+        new Random(42).nextBytes(content);
+
+        var body = concat(
+                ("preamble\r\n--" + BOUNDARY + "\r\n"
+                        + "Content-Disposition: form-data; name=\"description\"\r\n\r\n"
+                        + "hello\r\n--" + BOUNDARY + "\r\n"
+                        + "Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                        + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8),
+                content,
+                ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8)
+        );
+
+        // a tiny buffer and a trickling stream force delimiters to be split across reads
+        var reader = new MultipartStreamReader(new TricklingInputStream(body, 7), BOUNDARY, 16, 256);
+
+        var first = reader.nextPart();
+        assertNotNull(first);
+        assertEquals("description", first.name());
+        assertNull(first.filename());
+        assertEquals("hello", new String(first.content().readAllBytes(), StandardCharsets.UTF_8));
+
+        var second = reader.nextPart();
+        assertNotNull(second);
+        assertEquals("file", second.name());
+        assertEquals("data.bin", second.filename());
+        assertEquals("application/octet-stream", second.contentType());
+        assertArrayEquals(content, second.content().readAllBytes());
+
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    public void testSkipsUnreadContent() throws IOException {
+        var body = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"a\"\r\n\r\n"
+                + "first part content\r\n--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"b\"\r\n\r\n"
+                + "\r\n--" + BOUNDARY + "--").getBytes(StandardCharsets.UTF_8);
+
+        var reader = new MultipartStreamReader(new ByteArrayInputStream(body), BOUNDARY, 64, 256);
+
+        assertEquals("a", reader.nextPart().name());
+
+        var second = reader.nextPart();
+        assertEquals("b", second.name());
+        assertEquals(0, second.content().readAllBytes().length);
+
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    public void testTruncatedBodyFails() throws IOException {
+        var body = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n\r\n"
+                + "truncated content without a closing boundary").getBytes(StandardCharsets.UTF_8);
+
+        var reader = new MultipartStreamReader(new ByteArrayInputStream(body), BOUNDARY, 64, 256);
+        var part = reader.nextPart();
+
+        assertThrows(EOFException.class, () -> part.content().readAllBytes());
+    }
+
+    @Test
+    public void testOversizedHeadersFail() {
+        var body = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + "x".repeat(1000) + "\"\r\n\r\n"
+                + "content\r\n--" + BOUNDARY + "--").getBytes(StandardCharsets.UTF_8);
+
+        var reader = new MultipartStreamReader(new ByteArrayInputStream(body), BOUNDARY, 64, 128);
+
+        assertThrows(MultipartStreamReader.MalformedMultipartException.class, reader::nextPart);
+    }
+
+
+    private static byte[] concat(byte[]... arrays) {
+        var total = 0;
+        for (var a : arrays)
+            total += a.length;
+
+        var out = new byte[total];
+        var offset = 0;
+        for (var a : arrays) {
+            System.arraycopy(a, 0, out, offset, a.length);
+            offset += a.length;
+        }
+        return out;
+    }
+
+    /**
+     * Returns at most {@code chunk} bytes per read, like a slow network connection would.
+     */
+    private static class TricklingInputStream extends InputStream {
+        private final ByteArrayInputStream delegate;
+        private final int chunk;
+
+        TricklingInputStream(byte[] data, int chunk) {
+            this.delegate = new ByteArrayInputStream(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return this.delegate.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return this.delegate.read(b, off, Math.min(len, this.chunk));
+        }
+    }
+
+}
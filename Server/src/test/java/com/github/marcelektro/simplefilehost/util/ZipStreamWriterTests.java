@@ -0,0 +1,116 @@
+package com.github.marcelektro.simplefilehost.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ZipStreamWriterTests {
+
+    private static final LocalDateTime MODIFIED = LocalDateTime.of(2024, 5, 17, 13, 45, 30);
+
+    @TempDir
+    Path tempDir;
+
+
+    private File write(ZipStreamWriterAction action) throws Exception {
+        var bytes = new ByteArrayOutputStream();
+        try (var zip = new ZipStreamWriter(bytes)) {
+            action.accept(zip);
+        }
+
+        var file = this.tempDir.resolve("test.zip").toFile();
+        Files.write(file.toPath(), bytes.toByteArray());
+        return file;
+    }
+
+    @FunctionalInterface
+    private interface ZipStreamWriterAction {
+        void accept(ZipStreamWriter zip) throws Exception;
+    }
+
+
+    @Test
+    public void testStoredAndDeflatedEntries() throws Exception {
+        var random = new byte[200_000];
+        new Random(42).nextBytes(random);
+        var text = "hello zip ".repeat(10_000).getBytes(StandardCharsets.UTF_8);
+
+        var file = write(zip -> {
+            try (var entry = zip.putEntry("random.bin", MODIFIED, false)) {
+                entry.write(random);
+            }
+            try (var entry = zip.putEntry("text.txt", MODIFIED, true)) {
+                entry.write(text, 0, 1000);
+                entry.write(text, 1000, text.length - 1000);
+            }
+            zip.putEntry("empty", MODIFIED, true).close();
+        });
+
+        try (var zipFile = new ZipFile(file)) {
+            assertEquals(3, zipFile.size());
+
+            var stored = zipFile.getEntry("random.bin");
+            assertEquals(ZipEntry.STORED, stored.getMethod());
+            assertArrayEquals(random, zipFile.getInputStream(stored).readAllBytes());
+            assertEquals(MODIFIED, stored.getTimeLocal());
+
+            var deflated = zipFile.getEntry("text.txt");
+            assertEquals(ZipEntry.DEFLATED, deflated.getMethod());
+            assertTrue(deflated.getCompressedSize() < text.length / 10);
+            assertArrayEquals(text, zipFile.getInputStream(deflated).readAllBytes());
+
+            assertEquals(0, zipFile.getEntry("empty").getSize());
+        }
+    }
+
+    @Test
+    public void testUtf8Names() throws Exception {
+        var name = "r\u00e9sum\u00e9 \u65e5\u672c.txt";
+
+        var file = write(zip -> {
+            try (var entry = zip.putEntry(name, MODIFIED, false)) {
+                entry.write(1);
+            }
+        });
+
+        try (var zipFile = new ZipFile(file)) {
+            assertNotNull(zipFile.getEntry(name));
+        }
+    }
+
+    @Test
+    public void testZip64EntryCount() throws Exception {
+        var count = 70_000;
+
+        var file = write(zip -> {
+            for (int i = 0; i < count; i++)
+                zip.putEntry(Integer.toString(i), MODIFIED, false).close();
+        });
+
+        try (var zipFile = new ZipFile(file)) {
+            assertEquals(count, zipFile.size());
+            assertNotNull(zipFile.getEntry(Integer.toString(count - 1)));
+        }
+    }
+
+    @Test
+    public void testEntriesMustBeClosed() throws Exception {
+        var zip = new ZipStreamWriter(new ByteArrayOutputStream());
+        zip.putEntry("a", MODIFIED, false);
+
+        assertThrows(IllegalStateException.class, () -> zip.putEntry("b", MODIFIED, false));
+        assertThrows(IllegalStateException.class, zip::finish);
+    }
+
+}